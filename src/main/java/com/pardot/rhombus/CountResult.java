@@ -0,0 +1,40 @@
+package com.pardot.rhombus;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Pardot, an ExactTarget company
+ *
+ * Result of a count query along with how long each shard took to count.
+ */
+public class CountResult {
+
+	private final long count;
+	private final boolean limitReached;
+	private final Map<Long, Long> shardMillis;
+
+	/**
+	 * @param count Number of matching objects, no more than the limit
+	 * @param limitReached True if counting stopped at the limit, so the count is a lower bound
+	 * @param shardMillis Milliseconds each shard took to count, keyed by shard id in the order they finished.
+	 *                    Shards that were not counted before the limit was reached are not included.
+	 */
+	public CountResult(long count, boolean limitReached, Map<Long, Long> shardMillis) {
+		this.count = count;
+		this.limitReached = limitReached;
+		this.shardMillis = Collections.unmodifiableMap(shardMillis);
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public boolean isLimitReached() {
+		return limitReached;
+	}
+
+	public Map<Long, Long> getShardMillis() {
+		return shardMillis;
+	}
+}
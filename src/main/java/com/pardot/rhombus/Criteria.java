@@ -9,6 +9,7 @@ import org.slf4j.LoggerFactory;
 
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.List;
 import java.util.SortedMap;
 import java.util.UUID;
 
@@ -27,6 +28,7 @@ public class Criteria {
 	private Long limit = 0L;
 	private Boolean inclusive = true;
 	private Boolean allowFiltering = false;
+	private List<String> fields;
 
 
 	public String toString() {
@@ -38,6 +40,7 @@ public class Criteria {
 				.add("limit", limit)
 				.add("inclusive", inclusive)
 				.add("allowFiltering", allowFiltering)
+				.add("fields", fields)
 				.toString();
 	}
 
@@ -118,4 +121,16 @@ public class Criteria {
 	public void setAllowFiltering(Boolean allowFiltering) {
 		this.allowFiltering = allowFiltering;
 	}
+
+	public List<String> getFields() {
+		return fields;
+	}
+
+	/**
+	 * Only read and return these fields. The id, and any fields filtered on client side, are always included.
+	 * @param fields Names of the fields to return, or null to return every field
+	 */
+	public void setFields(List<String> fields) {
+		this.fields = fields;
+	}
 }
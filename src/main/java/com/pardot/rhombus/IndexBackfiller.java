@@ -0,0 +1,350 @@
+package com.pardot.rhombus;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.pardot.rhombus.cobject.CDefinition;
+import com.pardot.rhombus.cobject.CIndex;
+import com.pardot.rhombus.cobject.CObjectCQLGenerator;
+import com.pardot.rhombus.cobject.CObjectTokenVisitor;
+import com.pardot.rhombus.cobject.CObjectTokenVisitorFactory;
+import com.pardot.rhombus.cobject.CQLGenerationException;
+import com.pardot.rhombus.cobject.statement.BoundedCQLStatementIterator;
+import com.pardot.rhombus.cobject.statement.CQLStatement;
+import com.pardot.rhombus.cobject.statement.CQLStatementIterator;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Meter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pardot, an ExactTarget company
+ *
+ * Writes existing objects into an index that was added after they were inserted. A migration that adds an index
+ * only creates its table, so the index is empty for every object written before it.
+ * The static table is scanned in token ranges with a TableScanner and each object is written to the new index only,
+ * along with its shard index entry. Writes are sent asynchronously, limited by the object mapper's in-flight
+ * statement limit, and each page of writes completes before the scanner saves its progress, so a backfill that is
+ * stopped can be resumed from its savepoint directory.
+ * The scan reads the write time of each object along with the object, and its index row is written with that
+ * timestamp rather than the time it is sent, so an update or delete that lands while the backfill runs still
+ * removes the row it wrote.
+ */
+public class IndexBackfiller {
+
+	private static Logger logger = LoggerFactory.getLogger(IndexBackfiller.class);
+
+	public static final int DEFAULT_WRITE_RETRIES = 3;
+
+	private final ObjectMapper objectMapper;
+	private final String objectType;
+	private final CDefinition definition;
+	private final CIndex index;
+	private final int numPartitions;
+	private final String savepointDirectoryPath;
+	private int batchSize = 200;
+	private int writeRetries = DEFAULT_WRITE_RETRIES;
+	private boolean ringAligned = false;
+	private ScanThrottle throttle = null;
+	private final Meter objectsScanned;
+	private final Meter objectsWritten;
+	private final Meter failedWrites;
+
+	/**
+	 * @param objectMapper Object mapper for the keyspace, already using the definition that contains the new index
+	 * @param objectType Type of the objects to backfill
+	 * @param indexName Key of the new index, for example "foreignid:type"
+	 * @param numPartitions Number of token ranges to scan in parallel
+	 * @param savepointDirectoryPath Directory to save progress in, or null to not save progress
+	 * @throws RhombusException If the object type or index does not exist
+	 */
+	public IndexBackfiller(ObjectMapper objectMapper, String objectType, String indexName, int numPartitions, @Nullable String savepointDirectoryPath) throws RhombusException {
+		Preconditions.checkNotNull(objectMapper);
+		Preconditions.checkNotNull(objectType);
+		Preconditions.checkNotNull(indexName);
+		this.objectMapper = objectMapper;
+		this.objectType = objectType;
+		this.definition = objectMapper.getDefinition(objectType);
+		if(this.definition == null) {
+			throw new RhombusException("Object type " + objectType + " does not exist");
+		}
+		// Index keys are stored with their fields sorted
+		this.index = definition.getIndexes().get(new CIndex(indexName, null).getKey());
+		if(this.index == null) {
+			throw new RhombusException("Object type " + objectType + " has no index " + indexName);
+		}
+		this.numPartitions = numPartitions;
+		this.savepointDirectoryPath = savepointDirectoryPath;
+		String scope = objectType + "." + index.getName();
+		this.objectsScanned = Metrics.defaultRegistry().newMeter(IndexBackfiller.class, "objectsScanned", scope, "objects", TimeUnit.SECONDS);
+		this.objectsWritten = Metrics.defaultRegistry().newMeter(IndexBackfiller.class, "objectsWritten", scope, "objects", TimeUnit.SECONDS);
+		this.failedWrites = Metrics.defaultRegistry().newMeter(IndexBackfiller.class, "failedWrites", scope, "objects", TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Scan every object and write it to the index. Returns once the whole table has been scanned.
+	 */
+	public void backfill() {
+		TableScanner scanner = new TableScanner(objectMapper, objectType, numPartitions, new CObjectTokenVisitorFactory() {
+			@Override
+			public CObjectTokenVisitor getInstance(String name) {
+				return makeVisitor(name);
+			}
+		}, savepointDirectoryPath);
+		scanner.setBatchSize(batchSize);
+		scanner.setRingAligned(ringAligned);
+		scanner.setThrottle(throttle);
+		long start = System.currentTimeMillis();
+		logger.info("Backfilling index {} of {} using {} partitions", index.getName(), objectType, numPartitions);
+		scanner.scan();
+		logger.info("Backfilled index {} of {} in {}ms: {} objects scanned, {} written, {} failed",
+				index.getName(), objectType, System.currentTimeMillis() - start,
+				objectsScanned.count(), objectsWritten.count(), failedWrites.count());
+	}
+
+	/**
+	 * @param object Object as read from the static table
+	 * @param writeTime Write time of the object in microseconds, as read by the scan
+	 * @return Statements that write the object to the index, or null if the object has no value for one of the index fields
+	 * @throws CQLGenerationException If the statements could not be generated
+	 */
+	@Nullable
+	protected List<CQLStatement> makeCQLforIndexInsert(Map<String, Object> object, long writeTime) throws CQLGenerationException {
+		Map<String, Object> values = getSetValues(object);
+		if(!hasIndexValues(values)) {
+			return null;
+		}
+		List<CQLStatement> statements = Lists.newArrayList();
+		CObjectCQLGenerator.addCQLStatmentsForIndexInsert(
+				objectMapper.getKeyspaceDefinition().getName(),
+				true,
+				statements,
+				definition,
+				values,
+				index,
+				values.get("id"),
+				CObjectCQLGenerator.makeFieldAndValueList(definition, values),
+				writeTime,
+				null,
+				objectMapper.getShardIndexCache());
+		return statements;
+	}
+
+	/**
+	 * Columns that were never set are read back as null, and writing them would only add tombstones
+	 */
+	private static Map<String, Object> getSetValues(Map<String, Object> object) {
+		Map<String, Object> values = Maps.newHashMapWithExpectedSize(object.size());
+		for(Map.Entry<String, Object> entry : object.entrySet()) {
+			if(entry.getValue() != null) {
+				values.put(entry.getKey(), entry.getValue());
+			}
+		}
+		return values;
+	}
+
+	private boolean hasIndexValues(Map<String, Object> values) {
+		return index.validateIndexKeys(index.getIndexKeyAndValues(values));
+	}
+
+	public long getObjectsScanned() {
+		return objectsScanned.count();
+	}
+
+	public long getObjectsWritten() {
+		return objectsWritten.count();
+	}
+
+	public long getFailedWrites() {
+		return failedWrites.count();
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	public int getWriteRetries() {
+		return writeRetries;
+	}
+
+	public void setWriteRetries(int writeRetries) {
+		this.writeRetries = writeRetries;
+	}
+
+	public boolean isRingAligned() {
+		return ringAligned;
+	}
+
+	/**
+	 * @param ringAligned True to scan along the token ranges owned by each node, see TableScanner.setRingAligned
+	 */
+	public void setRingAligned(boolean ringAligned) {
+		this.ringAligned = ringAligned;
+	}
+
+	@Nullable
+	public ScanThrottle getThrottle() {
+		return throttle;
+	}
+
+	/**
+	 * @param throttle Throttle to limit the scan's reads by, or null to read as fast as possible
+	 */
+	public void setThrottle(@Nullable ScanThrottle throttle) {
+		this.throttle = throttle;
+	}
+
+	/**
+	 * @param name Name of the scan partition the visitor is for
+	 * @return Visitor that writes each object it visits to the index
+	 */
+	CObjectTokenVisitor makeVisitor(String name) {
+		return new BackfillVisitor(name);
+	}
+
+	private static List<CQLStatementIterator> iterate(List<CQLStatement> statements) {
+		return Collections.<CQLStatementIterator>singletonList(new BoundedCQLStatementIterator(statements));
+	}
+
+	private class BackfillVisitor extends CObjectTokenVisitor {
+
+		private final List<PendingWrite> pendingWrites = Lists.newArrayList();
+		// Write time of the object being visited
+		private Long writeTime = null;
+
+		private BackfillVisitor(String name) {
+			super(name);
+		}
+
+		@Override
+		public boolean isReadingWriteTimes() {
+			return true;
+		}
+
+		@Override
+		public void visit(Map<String, Object> object, @Nullable Long writeTime) {
+			this.writeTime = writeTime;
+			try {
+				visit(object);
+			} finally {
+				this.writeTime = null;
+			}
+		}
+
+		@Override
+		public void visit(Map<String, Object> object) {
+			objectsScanned.mark();
+			super.visit(object);
+		}
+
+		@Override
+		public boolean shouldInclude(Map<String, Object> object) {
+			// Objects without every index value are not in the index
+			return hasIndexValues(getSetValues(object));
+		}
+
+		@Override
+		public void applyAction(Map<String, Object> object) {
+			Object id = object.get(getIdField());
+			if(writeTime == null) {
+				// Only objects with fields set have index values
+				return;
+			}
+			List<CQLStatement> statements;
+			try {
+				statements = makeCQLforIndexInsert(object, writeTime);
+			} catch(CQLGenerationException e) {
+				logger.error("Unable to generate index insert for {} {}", objectType, id, e);
+				failedWrites.mark();
+				return;
+			}
+			if(statements == null) {
+				return;
+			}
+			pendingWrites.add(new PendingWrite(id, statements, objectMapper.executeStatementsAsync(iterate(statements))));
+		}
+
+		@Override
+		public void finishPage() {
+			for(PendingWrite write : pendingWrites) {
+				if(write.succeeded() || write.retry()) {
+					objectsWritten.mark();
+				} else {
+					failedWrites.mark();
+				}
+			}
+			pendingWrites.clear();
+		}
+
+		@Override
+		public void setUp() {
+		}
+
+		@Override
+		public void cleanUp() {
+			finishPage();
+		}
+	}
+
+	private class PendingWrite {
+		private final Object id;
+		private final List<CQLStatement> statements;
+		private final ListenableFuture<List<Throwable>> result;
+
+		private PendingWrite(Object id, List<CQLStatement> statements, ListenableFuture<List<Throwable>> result) {
+			this.id = id;
+			this.statements = statements;
+			this.result = result;
+		}
+
+		private boolean succeeded() {
+			try {
+				List<Throwable> failures = result.get();
+				if(failures.isEmpty()) {
+					return true;
+				}
+				logger.warn("Failed writing {} {} to index {}", objectType, id, index.getName(), failures.get(0));
+			} catch(ExecutionException e) {
+				logger.warn("Failed writing {} {} to index {}", objectType, id, index.getName(), e.getCause());
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			}
+			return false;
+		}
+
+		/**
+		 * Write the object again, waiting for each attempt. Index inserts are idempotent, so resending every statement is safe.
+		 */
+		private boolean retry() {
+			for(int attempt = 1; attempt <= writeRetries; attempt++) {
+				try {
+					List<Throwable> failures = objectMapper.executeStatementsAsync(iterate(statements)).get();
+					if(failures.isEmpty()) {
+						return true;
+					}
+					logger.warn("Retry {} writing {} {} to index {} failed", attempt, objectType, id, index.getName(), failures.get(0));
+				} catch(ExecutionException e) {
+					logger.warn("Retry {} writing {} {} to index {} failed", attempt, objectType, id, index.getName(), e.getCause());
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RuntimeException(e);
+				}
+			}
+			logger.error("Giving up writing {} {} to index {}", objectType, id, index.getName());
+			return false;
+		}
+	}
+}
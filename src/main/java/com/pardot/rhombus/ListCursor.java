@@ -0,0 +1,160 @@
+package com.pardot.rhombus;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.Lists;
+import com.google.common.io.BaseEncoding;
+import com.pardot.rhombus.cobject.CObjectOrdering;
+
+import javax.annotation.Nullable;
+import java.io.*;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Pardot, an ExactTarget company
+ *
+ * Position within a paged list query. A cursor records the shard and id of the last row handed out
+ * so the next page can pick up from there without looking up the shard index or rescanning shards.
+ * The cursor is only meaningful together with the Criteria that produced it.
+ */
+public class ListCursor implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+	private static final byte TOKEN_VERSION = 1;
+
+	private final long shardId;
+	private final UUID lastId;
+	private final CObjectOrdering ordering;
+	private final long remainingLimit;
+	private final List<Long> shardIds;
+
+	/**
+	 * @param shardId Shard the last returned row was read from
+	 * @param lastId Id of the last returned row
+	 * @param ordering Ordering of the query
+	 * @param remainingLimit Number of rows still allowed by the criteria limit, 0 if unlimited
+	 * @param shardIds Remaining shard ids starting with shardId when they came from the shard index,
+	 *                 null when the shard range is derived from the criteria
+	 */
+	public ListCursor(long shardId, UUID lastId, CObjectOrdering ordering, long remainingLimit, @Nullable List<Long> shardIds) {
+		this.shardId = shardId;
+		this.lastId = lastId;
+		this.ordering = ordering;
+		this.remainingLimit = remainingLimit;
+		this.shardIds = (shardIds == null) ? null : Collections.unmodifiableList(Lists.newArrayList(shardIds));
+	}
+
+	public long getShardId() {
+		return shardId;
+	}
+
+	public UUID getLastId() {
+		return lastId;
+	}
+
+	public CObjectOrdering getOrdering() {
+		return ordering;
+	}
+
+	public long getRemainingLimit() {
+		return remainingLimit;
+	}
+
+	@Nullable
+	public List<Long> getShardIds() {
+		return shardIds;
+	}
+
+	/**
+	 * @return Opaque url-safe string form of this cursor
+	 */
+	public String toToken() {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeByte(TOKEN_VERSION);
+			out.writeByte(ordering == CObjectOrdering.ASCENDING ? 0 : 1);
+			out.writeLong(shardId);
+			out.writeLong(lastId.getMostSignificantBits());
+			out.writeLong(lastId.getLeastSignificantBits());
+			out.writeLong(remainingLimit);
+			if(shardIds == null) {
+				out.writeInt(-1);
+			} else {
+				out.writeInt(shardIds.size());
+				for(Long id : shardIds) {
+					out.writeLong(id);
+				}
+			}
+			out.close();
+			return BaseEncoding.base64Url().omitPadding().encode(bytes.toByteArray());
+		} catch(IOException e) {
+			// Writing to a byte array does not throw
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @param token String previously returned by toToken
+	 * @return The cursor the token was made from
+	 * @throws RhombusException if the token is not a valid cursor
+	 */
+	public static ListCursor fromToken(String token) throws RhombusException {
+		try {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(BaseEncoding.base64Url().omitPadding().decode(token)));
+			byte version = in.readByte();
+			if(version != TOKEN_VERSION) {
+				throw new RhombusException("Unsupported list cursor version " + version);
+			}
+			CObjectOrdering ordering = (in.readByte() == 0) ? CObjectOrdering.ASCENDING : CObjectOrdering.DESCENDING;
+			long shardId = in.readLong();
+			UUID lastId = new UUID(in.readLong(), in.readLong());
+			long remainingLimit = in.readLong();
+			int shardCount = in.readInt();
+			List<Long> shardIds = null;
+			if(shardCount >= 0) {
+				shardIds = Lists.newArrayListWithCapacity(shardCount);
+				for(int i = 0; i < shardCount; i++) {
+					shardIds.add(in.readLong());
+				}
+			}
+			return new ListCursor(shardId, lastId, ordering, remainingLimit, shardIds);
+		} catch(IOException e) {
+			throw new RhombusException("Invalid list cursor " + token);
+		} catch(IllegalArgumentException e) {
+			throw new RhombusException("Invalid list cursor " + token);
+		}
+	}
+
+	@Override
+	public boolean equals(Object otherObject) {
+		if(otherObject == null) {
+			return false;
+		}
+		if(this.getClass() != otherObject.getClass()) {
+			return false;
+		}
+		final ListCursor other = (ListCursor)otherObject;
+		return this.shardId == other.shardId
+				&& this.remainingLimit == other.remainingLimit
+				&& Objects.equal(this.lastId, other.lastId)
+				&& Objects.equal(this.ordering, other.ordering)
+				&& Objects.equal(this.shardIds, other.shardIds);
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hashCode(shardId, lastId, ordering, remainingLimit, shardIds);
+	}
+
+	public String toString() {
+		return Objects.toStringHelper(this.getClass())
+				.add("shardId", shardId)
+				.add("lastId", lastId)
+				.add("ordering", ordering)
+				.add("remainingLimit", remainingLimit)
+				.add("shardIds", shardIds)
+				.toString();
+	}
+}
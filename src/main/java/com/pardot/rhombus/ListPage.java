@@ -0,0 +1,37 @@
+package com.pardot.rhombus;
+
+import javax.annotation.Nullable;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pardot, an ExactTarget company
+ *
+ * One page of list results along with the cursor to fetch the page after it.
+ */
+public class ListPage {
+
+	private final List<Map<String, Object>> results;
+	private final ListCursor cursor;
+
+	public ListPage(List<Map<String, Object>> results, @Nullable ListCursor cursor) {
+		this.results = results;
+		this.cursor = cursor;
+	}
+
+	public List<Map<String, Object>> getResults() {
+		return results;
+	}
+
+	/**
+	 * @return Cursor for the next page, or null if there are no more results
+	 */
+	@Nullable
+	public ListCursor getCursor() {
+		return cursor;
+	}
+
+	public boolean hasMore() {
+		return cursor != null;
+	}
+}
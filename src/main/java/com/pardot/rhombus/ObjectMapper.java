@@ -6,11 +6,20 @@ import com.datastax.driver.core.exceptions.AlreadyExistsException;
 import com.datastax.driver.core.exceptions.InvalidQueryException;
 import com.datastax.driver.core.utils.UUIDs;
 import com.fasterxml.jackson.databind.JsonMappingException;
+import com.google.common.base.Function;
 import com.google.common.base.Objects;
+import com.google.common.base.Predicate;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.pardot.rhombus.cobject.*;
-import com.pardot.rhombus.cobject.async.StatementIteratorConsumer;
+import com.pardot.rhombus.cobject.async.AsyncStatementExecutor;
+import com.pardot.rhombus.cobject.async.WriteCoalescer;
 import com.pardot.rhombus.cobject.migrations.CKeyspaceDefinitionMigrator;
 import com.pardot.rhombus.cobject.migrations.CObjectMigrationException;
 import com.pardot.rhombus.cobject.shardingstrategy.ShardingStrategyNone;
@@ -27,7 +36,13 @@ import org.slf4j.LoggerFactory;
 import javax.annotation.Nullable;
 import java.io.File;
 import java.io.IOException;
+import java.net.InetAddress;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Pardot, an ExactTarget company
@@ -38,23 +53,42 @@ public class ObjectMapper implements CObjectShardList {
 
 	private static Logger logger = LoggerFactory.getLogger(ObjectMapper.class);
 	private static final int reasonableStatementLimit = 50;
+	public static final long DEFAULT_STREAM_PAGE_SIZE = 200L;
 	private boolean executeAsync = true;
 	private boolean useCqlBatching = false;
 	private boolean logCql = false;
 	private boolean cacheBoundedQueries = true;
+	private boolean compactResults = false;
+	private int shardPrefetchCount = 1;
+	private long streamPageSize = DEFAULT_STREAM_PAGE_SIZE;
+	private int countConcurrency = ShardCounter.DEFAULT_CONCURRENCY;
+	private int countStatementLimit = ShardCounter.DEFAULT_STATEMENT_LIMIT;
 	private CQLExecutor cqlExecutor;
+	private AsyncStatementExecutor asyncStatementExecutor;
+	private WriteCoalescer writeCoalescer = null;
+	private ObjectCache objectCache = null;
+	private ShardListCache shardListCache = null;
+	private long shardListCacheRefreshSeconds = ShardListCache.DEFAULT_REFRESH_AFTER_WRITE_SECONDS;
+	private long shardListCacheTtlSeconds = ShardListCache.DEFAULT_EXPIRE_AFTER_WRITE_SECONDS;
+	private long writeCoalescingWindowMillis = WriteCoalescer.DEFAULT_WINDOW_MILLIS;
+	private int writeCoalescingMaxBatchSize = WriteCoalescer.DEFAULT_MAX_BATCH_SIZE;
 	private Session session;
 	private CKeyspaceDefinition keyspaceDefinition;
 	private CObjectCQLGenerator cqlGenerator;
 	private Long batchTimeout;
 	private String defaultSSTableOutputPath = System.getProperty("user.dir");
 	private Map<String, Pair<CQLSSTableWriter, Map<CIndex, CQLSSTableWriter>>> SSTableWriters = Maps.newHashMap();
+	// Runs the writes of updateAsync and deleteAsync once their read completes. Sending writes can block on the
+	// in-flight limit or on preparing a statement, which must not happen on the driver thread that completed the read.
+	private final ExecutorService writeContinuationExecutor = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("rhombus-write-continuation-%d").build());
 
 	public ObjectMapper(Session session, CKeyspaceDefinition keyspaceDefinition, Integer consistencyHorizon, Long batchTimeout) {
 		this.cqlExecutor = new CQLExecutor(session, logCql, keyspaceDefinition.getConsistencyLevel());
+		this.asyncStatementExecutor = new AsyncStatementExecutor(cqlExecutor);
 		this.session = session;
 		this.keyspaceDefinition = keyspaceDefinition;
 		this.cqlGenerator = new CObjectCQLGenerator(keyspaceDefinition.getName(), keyspaceDefinition.getDefinitions(), this, consistencyHorizon);
+		this.cqlGenerator.setShardIndexCache(new ShardIndexCache(keyspaceDefinition.getName()));
 		this.batchTimeout = batchTimeout;
 	}
 
@@ -68,6 +102,13 @@ public class ObjectMapper implements CObjectShardList {
 
 	public void truncateTables() {
 		// Index table
+		invalidateShardIndexCache();
+		if(objectCache != null) {
+			objectCache.invalidateAll();
+		}
+		if(shardListCache != null) {
+			shardListCache.invalidateAll();
+		}
 		CQLStatement truncateCql = cqlGenerator.makeCQLforShardIndexTableTruncate();
 		logger.debug("Truncating shard index table");
 		try {
@@ -85,6 +126,15 @@ public class ObjectMapper implements CObjectShardList {
 			logger.debug("Failed to truncate table with query ", truncateCql.getQuery());
 		}
 
+		// Index sketches
+		truncateCql = cqlGenerator.makeCQLforIndexSketchTableTruncate();
+		logger.debug("Truncating index sketch table");
+		try {
+			cqlExecutor.executeSync(truncateCql);
+		} catch(Exception e) {
+			logger.debug("Failed to truncate table with query ", truncateCql.getQuery());
+		}
+
 
 		// All of the tables in the keyspace
 		if(keyspaceDefinition.getDefinitions() != null) {
@@ -113,6 +163,10 @@ public class ObjectMapper implements CObjectShardList {
 		}
 		//we are about to rework the the keyspaces, so lets clear the bounded query cache
 		cqlExecutor.clearStatementCache();
+		invalidateShardIndexCache();
+		if(shardListCache != null) {
+			shardListCache.invalidateAll();
+		}
 		//First build the shard index
 		CQLStatement cql = cqlGenerator.makeCQLforShardIndexTableCreate();
 		try {
@@ -137,6 +191,15 @@ public class ObjectMapper implements CObjectShardList {
 		catch(Exception e) {
 			logger.debug("Unable to create update index table. It may already exist");
 		}
+		//Then the index sketches
+		cql = cqlGenerator.makeCQLforIndexSketchTableCreate();
+		try{
+			cqlExecutor.executeSync(cql);
+			logger.debug("Created index sketch table");
+		}
+		catch(Exception e) {
+			logger.debug("Unable to create index sketch table. It may already exist");
+		}
 
 		//Now build the tables for each object if the definition contains tables
 		if(keyspaceDefinition.getDefinitions() != null) {
@@ -192,6 +255,22 @@ public class ObjectMapper implements CObjectShardList {
 	}
 
 	public void executeStatements(List<CQLStatementIterator> statementIterators) throws RhombusException {
+		executeStatements(statementIterators, null);
+	}
+
+	/**
+	 * @param objectKey Key of the only object the statements write (see makeObjectKey), or null if they may write any
+	 */
+	private void executeStatements(List<CQLStatementIterator> statementIterators, @Nullable Object objectKey) throws RhombusException {
+		if(executeStatementsInternal(statementIterators, objectKey)) {
+			markShardIndexRowsRecorded(statementIterators);
+		}
+	}
+
+	/**
+	 * @return true if every statement was written successfully
+	 */
+	private boolean executeStatementsInternal(List<CQLStatementIterator> statementIterators, @Nullable Object objectKey) throws RhombusException {
 		boolean canExecuteAsync = true;
 		boolean allPreparable = true;
 		for(CQLStatementIterator statementIterator : statementIterators) {
@@ -202,22 +281,20 @@ public class ObjectMapper implements CObjectShardList {
 				allPreparable = false;
 			}
 		}
+		boolean succeeded = true;
 		if(canExecuteAsync &&  this.executeAsync) {
 			//If this is a bounded statement iterator, send it through the async path
 			long start = System.nanoTime();
 			logger.debug("Executing statements async");
 			if(this.useCqlBatching && allPreparable) {
 				cqlExecutor.executeBatch(statementIterators);
+			} else if(this.writeCoalescer != null && allPreparable) {
+				ListenableFuture<List<Throwable>> result = writeCoalescer.submit(statementIterators, objectKey);
+				// Nothing else from this caller is coming, so don't hold its statements for the rest of the window
+				writeCoalescer.flush();
+				succeeded = waitForCoalescedWrites(result).isEmpty();
 			} else {
-				List<StatementIteratorConsumer> consumers = Lists.newArrayList();
-				for(CQLStatementIterator statementIterator : statementIterators) {
-					StatementIteratorConsumer consumer = new StatementIteratorConsumer((BoundedCQLStatementIterator) statementIterator, cqlExecutor, batchTimeout);
-					consumer.start();
-					consumers.add(consumer);
-				}
-				for(StatementIteratorConsumer consumer : consumers) {
-					consumer.join();
-				}
+				succeeded = asyncStatementExecutor.execute(statementIterators, batchTimeout).isEmpty();
 			}
 			logger.debug("Async execution took {}us", (System.nanoTime() - start) / 1000);
 		} else {
@@ -234,10 +311,96 @@ public class ObjectMapper implements CObjectShardList {
 			}
 			logger.debug("Sync execution took {} ms", (System.nanoTime() - start) / 1000000);
 		}
+		return succeeded;
+	}
+
+	/**
+	 * Remember the shard index rows the statements wrote, so later inserts into the same shards can skip them.
+	 * Only call this once every statement has been written successfully.
+	 */
+	private void markShardIndexRowsRecorded(List<CQLStatementIterator> statementIterators) {
+		ShardIndexCache shardIndexCache = cqlGenerator.getShardIndexCache();
+		if(shardIndexCache == null) {
+			return;
+		}
+		for(CQLStatementIterator statementIterator : statementIterators) {
+			if(statementIterator instanceof BoundedCQLStatementIterator) {
+				shardIndexCache.markRecorded(((BoundedCQLStatementIterator)statementIterator).getStatements());
+			}
+		}
+	}
+
+	/**
+	 * Send statements without waiting for them to complete. Blocks only while the in-flight statement limit is reached.
+	 * @param statementIterators Bounded statement iterators to execute
+	 * @return Future of the failures of individual statements, empty if all succeeded
+	 */
+	public ListenableFuture<List<Throwable>> executeStatementsAsync(List<CQLStatementIterator> statementIterators) {
+		return executeStatementsAsync(statementIterators, null);
+	}
+
+	/**
+	 * @param objectKey Key of the only object the statements write (see makeObjectKey), or null if they may write any
+	 */
+	private ListenableFuture<List<Throwable>> executeStatementsAsync(final List<CQLStatementIterator> statementIterators, @Nullable Object objectKey) {
+		ListenableFuture<List<Throwable>> result;
+		if(writeCoalescer != null) {
+			result = writeCoalescer.submit(statementIterators, objectKey);
+		} else {
+			result = asyncStatementExecutor.executeAsync(statementIterators, batchTimeout);
+		}
+		Futures.addCallback(result, new FutureCallback<List<Throwable>>() {
+			@Override
+			public void onSuccess(List<Throwable> failures) {
+				if(failures.isEmpty()) {
+					markShardIndexRowsRecorded(statementIterators);
+				}
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				// Nothing was recorded, so the shard index rows are written again next time
+			}
+		});
+		return result;
+	}
+
+	private List<Throwable> waitForCoalescedWrites(ListenableFuture<List<Throwable>> result) throws RhombusException {
+		try {
+			return result.get(batchTimeout, TimeUnit.MILLISECONDS);
+		} catch(TimeoutException e) {
+			result.cancel(true);
+			throw new RhombusTimeoutException("Timout executing coalesced writes");
+		} catch(ExecutionException e) {
+			if(e.getCause() instanceof RhombusTimeoutException) {
+				throw (RhombusTimeoutException)e.getCause();
+			}
+			throw new RhombusException(e);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RhombusException(e);
+		}
+	}
+
+	private static <T> ListenableFuture<WriteResult<T>> withIds(ListenableFuture<List<Throwable>> failures, final T ids) {
+		return Futures.transform(failures, new Function<List<Throwable>, WriteResult<T>>() {
+			@Override
+			public WriteResult<T> apply(List<Throwable> failures) {
+				return new WriteResult<T>(ids, failures);
+			}
+		});
 	}
 
 	@Override
 	public List<Long> getShardIdList(CDefinition def, SortedMap<String, Object> indexValues, CObjectOrdering ordering, @Nullable UUID start, @Nullable UUID end) throws CQLGenerationException {
+		ShardListCache cache = shardListCache;
+		if(cache != null) {
+			return cache.getShardIdList(def, indexValues, ordering, start, end);
+		}
+		return readShardIdList(def, indexValues, ordering, start, end);
+	}
+
+	private List<Long> readShardIdList(CDefinition def, SortedMap<String, Object> indexValues, CObjectOrdering ordering, @Nullable UUID start, @Nullable UUID end) throws CQLGenerationException {
 		CQLStatement shardIdGet = CObjectCQLGenerator.makeCQLforGetShardIndexList(this.keyspaceDefinition.getName(), def, indexValues, ordering, start, end);
 		ResultSet resultSet = cqlExecutor.executeSync(shardIdGet);
 		List<Long> shardIdList = Lists.newArrayList();
@@ -256,6 +419,40 @@ public class ObjectMapper implements CObjectShardList {
 	public Map<String, List<UUID>> insertBatchMixed(Map<String, List<Map<String, Object>>> objects) throws CQLGenerationException, RhombusException {
 		logger.debug("Insert batch mixed");
 		List<CQLStatementIterator> statementIterators = Lists.newArrayList();
+		Map<String, List<UUID>> insertedIds = makeCQLforInsertBatchMixed(objects, statementIterators);
+		invalidateCachedObjects(insertedIds);
+		try {
+			executeStatements(statementIterators);
+		} finally {
+			invalidateCachedObjects(insertedIds);
+		}
+		return insertedIds;
+	}
+
+	/**
+	 * Insert a batch of mixed new object with values without waiting for the writes to complete
+	 * @param objects Objects to insert
+	 * @return Future of the ids of inserted objects along with any statements that failed
+	 * @throws CQLGenerationException
+	 */
+	public ListenableFuture<WriteResult<Map<String, List<UUID>>>> insertBatchMixedAsync(Map<String, List<Map<String, Object>>> objects) throws CQLGenerationException, RhombusException {
+		logger.debug("Insert batch mixed async");
+		List<CQLStatementIterator> statementIterators = Lists.newArrayList();
+		final Map<String, List<UUID>> insertedIds = makeCQLforInsertBatchMixed(objects, statementIterators);
+		invalidateCachedObjects(insertedIds);
+		ListenableFuture<List<Throwable>> result = executeStatementsAsync(statementIterators);
+		if(objectCache != null) {
+			result.addListener(new Runnable() {
+				@Override
+				public void run() {
+					invalidateCachedObjects(insertedIds);
+				}
+			}, MoreExecutors.sameThreadExecutor());
+		}
+		return withIds(result, insertedIds);
+	}
+
+	private Map<String, List<UUID>> makeCQLforInsertBatchMixed(Map<String, List<Map<String, Object>>> objects, List<CQLStatementIterator> statementIterators) throws CQLGenerationException, RhombusException {
 		Map<String, List<UUID>> insertedIds = Maps.newHashMap();
 		Integer ttl = null;
 		for(String objectType : objects.keySet()) {
@@ -295,7 +492,6 @@ public class ObjectMapper implements CObjectShardList {
 				insertedIds.put(objectType, ids);
 			}
 		}
-		executeStatements(statementIterators);
 		return insertedIds;
 	}
 
@@ -312,6 +508,43 @@ public class ObjectMapper implements CObjectShardList {
 		if(key == null) {
 			key = UUIDs.timeBased();
 		}
+		executeWritesFor(objectType, key, makeCQLforInsert(objectType, values, key));
+		return key;
+	}
+
+	/**
+	 * Insert a new object with values and key without waiting for the writes to complete
+	 * @param objectType Type of object to insert
+	 * @param values Values to insert
+	 * @param key Time UUID to use as key, or null to generate one
+	 * @return Future of the id of the inserted object along with any statements that failed
+	 * @throws CQLGenerationException
+	 */
+	public ListenableFuture<WriteResult<Object>> insertAsync(String objectType, Map<String, Object> values, @Nullable Object key) throws CQLGenerationException, RhombusException {
+		logger.debug("Insert async {}", objectType);
+		if(key == null) {
+			key = UUIDs.timeBased();
+		}
+		return withIds(executeWritesAsyncFor(objectType, key, makeCQLforInsert(objectType, values, key)), key);
+	}
+
+	/**
+	 * Insert a new objectType with values without waiting for the writes to complete
+	 * @param objectType Type of object to insert
+	 * @param values Values to insert
+	 * @return Future of the id of the inserted object along with any statements that failed
+	 * @throws CQLGenerationException
+	 */
+	public ListenableFuture<WriteResult<Object>> insertAsync(String objectType, Map<String, Object> values) throws CQLGenerationException, RhombusException {
+		Object key = null;
+		if(values.containsKey("id")) {
+			key = values.get("id");
+			values.remove("id");
+		}
+		return insertAsync(objectType, values, key);
+	}
+
+	private CQLStatementIterator makeCQLforInsert(String objectType, Map<String, Object> values, Object key) throws CQLGenerationException {
 		long timestamp = System.currentTimeMillis();
 
 		Integer ttl = null;
@@ -324,9 +557,7 @@ public class ObjectMapper implements CObjectShardList {
 			}
 		}
 
-		CQLStatementIterator statementIterator = cqlGenerator.makeCQLforInsert(objectType, values, key, timestamp, ttl);
-		executeStatements(statementIterator);
-		return key;
+		return cqlGenerator.makeCQLforInsert(objectType, values, key, timestamp, ttl);
 	}
 
 	/**
@@ -371,7 +602,32 @@ public class ObjectMapper implements CObjectShardList {
 		CDefinition def = keyspaceDefinition.getDefinitions().get(objectType);
 		Map<String, Object> values = getByKey(objectType, key);
 		CQLStatementIterator statementIterator = cqlGenerator.makeCQLforDelete(objectType, key, values, null);
-		mapResults(statementIterator, def, 0L);
+		invalidateCachedObject(objectType, key);
+		try {
+			mapResults(statementIterator, def, 0L);
+		} finally {
+			invalidateCachedObject(objectType, key);
+		}
+	}
+
+	/**
+	 * Delete Object of type with id key without waiting for the writes to complete.
+	 * The object is read first to find its index rows; nothing is written if it does not exist.
+	 * @param objectType Type of object to delete
+	 * @param key Key of object to delete
+	 * @return Future of the key along with any statements that failed
+	 */
+	public ListenableFuture<WriteResult<UUID>> deleteAsync(final String objectType, final UUID key) {
+		return Futures.transform(getByKeyAsync(objectType, key), new AsyncFunction<Map<String, Object>, WriteResult<UUID>>() {
+			@Override
+			public ListenableFuture<WriteResult<UUID>> apply(Map<String, Object> values) {
+				if(values == null) {
+					return Futures.immediateFuture(new WriteResult<UUID>(key, Collections.<Throwable>emptyList()));
+				}
+				CQLStatementIterator statementIterator = cqlGenerator.makeCQLforDelete(objectType, key, values, null);
+				return withIds(executeWritesAsyncFor(objectType, key, statementIterator), key);
+			}
+		}, writeContinuationExecutor);
 	}
 
 	public void deleteObsoleteIndex(IndexUpdateRow row, CIndex index, Map<String,Object> indexValues){
@@ -390,6 +646,48 @@ public class ObjectMapper implements CObjectShardList {
 		cqlExecutor.executeSync(cql);
 	}
 
+	/**
+	 * Delete index entries that were made obsolete by later updates, without waiting for the deletes to complete
+	 * @param row Update row the obsolete values were read from
+	 * @param indexes Indexes to delete from
+	 * @param valuesToDelete Obsolete values to delete from each index
+	 * @return Future that completes when every delete has completed, or fails if any delete failed
+	 */
+	public ListenableFuture<List<ResultSet>> deleteObsoleteIndexesAsync(IndexUpdateRow row, List<CIndex> indexes, List<Map<String,Object>> valuesToDelete){
+		List<ListenableFuture<ResultSet>> deletes = Lists.newArrayList();
+		for(CIndex index : indexes){
+			for(Map<String,Object> values : valuesToDelete){
+				Statement cql = cqlGenerator.makeCQLforDeleteUUIDFromIndex_WorkaroundForUnpreparableTimestamp(
+					this.keyspaceDefinition.getName(),
+					keyspaceDefinition.getDefinitions().get(row.getObjectName()),
+					index,
+					row.getInstanceId(),
+					index.getIndexKeyAndValues(values),
+					row.getTimeStampOfMostCurrentUpdate());
+				deletes.add(cqlExecutor.executeAsync(cql));
+			}
+		}
+		return Futures.allAsList(deletes);
+	}
+
+	/**
+	 * Delete processed update columns as one batch, without waiting for it to complete.
+	 * The columns all belong to the same row, so the batch goes to a single partition.
+	 * @param rowKey Key of the update row
+	 * @param ids Ids of the update columns to delete
+	 * @return Future of the batch result
+	 */
+	public ListenableFuture<ResultSet> deleteObsoleteUpdateIndexColumnsAsync(IndexUpdateRowKey rowKey, List<UUID> ids){
+		if(ids.isEmpty()){
+			return Futures.immediateFuture(null);
+		}
+		List<CQLStatement> deletes = Lists.newArrayListWithCapacity(ids.size());
+		for(UUID id : ids){
+			deletes.add(cqlGenerator.makeCQLforDeleteObsoleteUpdateIndexColumn(rowKey, id));
+		}
+		return cqlExecutor.executeBatchAsync(deletes);
+	}
+
 	/**
 	 * Update objectType with key using values
 	 * @param objectType Type of object to update
@@ -412,8 +710,8 @@ public class ObjectMapper implements CObjectShardList {
 
 		//(2) Pass it all into the cql generator so it can create the right statements
 		CDefinition def = keyspaceDefinition.getDefinitions().get(objectType);
-		CQLStatementIterator statementIterator = cqlGenerator.makeCQLforUpdate(keyspaceDefinition.getName(), def, key, oldversion, values);
-		executeStatements(statementIterator);
+		CQLStatementIterator statementIterator = CObjectCQLGenerator.makeCQLforUpdate(keyspaceDefinition.getName(), def, key, oldversion, values, cqlGenerator.getShardIndexCache(), cqlGenerator.isBinaryIndexUpdates());
+		executeWritesFor(objectType, key, statementIterator);
 		return key;
 	}
 
@@ -422,6 +720,62 @@ public class ObjectMapper implements CObjectShardList {
 		return update(objectType, key, values, null);
 	}
 
+	/**
+	 * Update objectType with key using values without waiting for the writes to complete
+	 * @param objectType Type of object to update
+	 * @param key Key of object to update
+	 * @param values Values to update
+	 * @return Future of the key of the object along with any statements that failed
+	 */
+	public ListenableFuture<WriteResult<UUID>> updateAsync(final String objectType, final UUID key, final Map<String, Object> values) {
+		return Futures.transform(getByKeyAsync(objectType, key), new AsyncFunction<Map<String, Object>, WriteResult<UUID>>() {
+			@Override
+			public ListenableFuture<WriteResult<UUID>> apply(Map<String, Object> oldversion) throws Exception {
+				CQLStatementIterator statementIterator;
+				if(oldversion == null) {
+					// If we couldn't find the old version, the best we can do is an insert
+					logger.debug("Update requested for non-existent object, inserting instead");
+					statementIterator = makeCQLforInsert(objectType, values, key);
+				} else {
+					CDefinition def = keyspaceDefinition.getDefinitions().get(objectType);
+					statementIterator = CObjectCQLGenerator.makeCQLforUpdate(keyspaceDefinition.getName(), def, key, oldversion, values, cqlGenerator.getShardIndexCache(), cqlGenerator.isBinaryIndexUpdates());
+				}
+				return withIds(executeWritesAsyncFor(objectType, key, statementIterator), key);
+			}
+		}, writeContinuationExecutor);
+	}
+
+	private void executeWritesFor(String objectType, Object key, CQLStatementIterator statementIterator) throws RhombusException {
+		// Invalidate on both sides of the write so a read that overlaps it cannot leave the old version cached
+		invalidateCachedObject(objectType, key);
+		try {
+			executeStatements(Collections.singletonList(statementIterator), makeObjectKey(objectType, key));
+		} finally {
+			invalidateCachedObject(objectType, key);
+		}
+	}
+
+	/**
+	 * @return Key identifying one object, so the write coalescer can batch its writes with writes to other objects
+	 */
+	private static Object makeObjectKey(String objectType, Object key) {
+		return Arrays.asList(objectType, key);
+	}
+
+	private ListenableFuture<List<Throwable>> executeWritesAsyncFor(final String objectType, final Object key, CQLStatementIterator statementIterator) {
+		invalidateCachedObject(objectType, key);
+		ListenableFuture<List<Throwable>> result = executeStatementsAsync(Collections.singletonList(statementIterator), makeObjectKey(objectType, key));
+		if(objectCache != null) {
+			result.addListener(new Runnable() {
+				@Override
+				public void run() {
+					invalidateCachedObject(objectType, key);
+				}
+			}, MoreExecutors.sameThreadExecutor());
+		}
+		return result;
+	}
+
 
 	/**
 	 *
@@ -430,16 +784,57 @@ public class ObjectMapper implements CObjectShardList {
 	 * @return Object of type with key or null if it does not exist
 	 */
 	public Map<String, Object> getByKey(String objectType, Object key) throws RhombusException {
+		long cacheGeneration = 0L;
+		if(objectCache != null) {
+			Map<String, Object> cached = objectCache.get(objectType, key);
+			if(cached != null) {
+				return cached;
+			}
+			cacheGeneration = objectCache.getGeneration();
+		}
 		CDefinition def = keyspaceDefinition.getDefinitions().get(objectType);
 		CQLStatementIterator statementIterator = cqlGenerator.makeCQLforGet(objectType, key);
 		List<Map<String, Object>> results = mapResults(statementIterator, def, 1L);
 		if(results.size() > 0) {
+			if(objectCache != null) {
+				objectCache.put(objectType, key, results.get(0), cacheGeneration);
+			}
 			return results.get(0);
 		} else {
 			return null;
 		}
 	}
 
+	private ListenableFuture<Map<String, Object>> getByKeyAsync(final String objectType, final Object key) {
+		final ObjectCache cache = objectCache;
+		final long cacheGeneration;
+		if(cache != null) {
+			Map<String, Object> cached = cache.get(objectType, key);
+			if(cached != null) {
+				return Futures.immediateFuture(cached);
+			}
+			cacheGeneration = cache.getGeneration();
+		} else {
+			cacheGeneration = 0L;
+		}
+		final CDefinition def = keyspaceDefinition.getDefinitions().get(objectType);
+		CQLStatement statement = cqlGenerator.makeCQLforGet(objectType, key).next();
+		return Futures.transform(cqlExecutor.executeAsync(statement), new Function<ResultSet, Map<String, Object>>() {
+			@Override
+			public Map<String, Object> apply(ResultSet resultSet) {
+				Row row = resultSet.one();
+				if(row == null) {
+					return null;
+				}
+				Map<String, Object> result = mapResult(row, def);
+				if(cache != null) {
+					cache.put(objectType, key, result, cacheGeneration);
+				}
+				return result;
+			}
+		});
+	}
+
 	/**
 	 *
 	 * @param objectType Type of object to get
@@ -462,6 +857,86 @@ public class ObjectMapper implements CObjectShardList {
 		return mapResults(statementIterator, def, criteria.getLimit());
 	}
 
+	/**
+	 * Read the results of a list query lazily. Rows are fetched a page at a time as the stream is read, and each row
+	 * is mapped and checked against the client filters only when it is reached.
+	 * Unlike list, the criteria limit is not capped and a stream is not held to a maximum number of statements, so a
+	 * stream without a limit reads the whole range unless it is closed.
+	 * @param objectType Type of object to query
+	 * @param criteria Criteria to query by
+	 * @return Stream of objects that match the specified type and criteria. Close it if it is not read to the end.
+	 * @throws CQLGenerationException
+	 */
+	public ObjectStream stream(String objectType, Criteria criteria) throws CQLGenerationException {
+		final CDefinition def = keyspaceDefinition.getDefinitions().get(objectType);
+		long limit = criteria.getLimit();
+		long pageSize = (limit > 0 && limit < streamPageSize) ? limit : streamPageSize;
+		final CQLStatementIterator statementIterator = cqlGenerator.makeCQLforStream(objectType, criteria, pageSize);
+		CQLExecutorIterator cqlIterator = new CQLExecutorIterator(cqlExecutor, statementIterator);
+		cqlIterator.setPageSize(pageSize);
+		cqlIterator.setShardPrefetchCount(shardPrefetchCount);
+		final RowMapper compiledRowMapper = def.getRowMapper(statementIterator.getSelectedFields());
+		Function<Row, Map<String, Object>> rowMapper = new Function<Row, Map<String, Object>>() {
+			@Override
+			public Map<String, Object> apply(Row row) {
+				return mapRow(compiledRowMapper, row);
+			}
+		};
+		Predicate<Map<String, Object>> filter = null;
+		final Map<String, Object> clientFilters = statementIterator.getClientFilters();
+		if(clientFilters != null) {
+			filter = new Predicate<Map<String, Object>>() {
+				@Override
+				public boolean apply(Map<String, Object> result) {
+					return resultMatchesFilters(result, clientFilters);
+				}
+			};
+		}
+		return new ObjectStream(cqlIterator, rowMapper, filter, limit);
+	}
+
+	/**
+	 * Fetch one page of a list query. Pass the cursor from the returned page, along with the same criteria,
+	 * to fetch the page after it. Resuming from a cursor does not look up the shard index again and
+	 * does not re-read the shards before the one the cursor points at.
+	 * The criteria limit, if set, caps the total number of results across all pages.
+	 * @param objectType Type of object to query
+	 * @param criteria Criteria to query by
+	 * @param pageSize Maximum number of results to return in this page
+	 * @param cursor Cursor from the previous page, or null to fetch the first page
+	 * @return Page of objects that match the specified type and criteria. A page that comes back full may
+	 * be followed by an empty page.
+	 * @throws CQLGenerationException
+	 */
+	public ListPage listPage(String objectType, Criteria criteria, long pageSize, @Nullable ListCursor cursor) throws CQLGenerationException, RhombusException {
+		CDefinition def = keyspaceDefinition.getDefinitions().get(objectType);
+		long remaining = (cursor == null) ? criteria.getLimit() : cursor.getRemainingLimit();
+		long limit = (remaining > 0 && remaining < pageSize) ? remaining : pageSize;
+		CQLStatementIterator statementIterator = (cursor == null) ?
+				cqlGenerator.makeCQLforList(objectType, criteria, false) :
+				cqlGenerator.makeCQLforList(objectType, criteria, cursor);
+		CQLExecutorIterator cqlIterator = new CQLExecutorIterator(cqlExecutor, statementIterator);
+		if(cursor != null) {
+			cqlIterator.setResumeAfterId(cursor.getLastId());
+		}
+		List<Map<String, Object>> results = mapResults(cqlIterator, statementIterator.getClientFilters(), statementIterator.getSelectedFields(), def, limit);
+
+		ListCursor nextCursor = null;
+		boolean limitReached = remaining > 0 && results.size() >= remaining;
+		if(results.size() >= limit && !limitReached && cqlIterator.getLastRow() != null) {
+			long shardId = cqlIterator.getLastRowShardId();
+			List<Long> shardIds = null;
+			if(statementIterator instanceof BoundedLazyCQLStatementIterator) {
+				shardIds = ((BoundedLazyCQLStatementIterator)statementIterator).getShardIdsFrom(shardId);
+			}
+			CObjectOrdering ordering = (cursor != null) ? cursor.getOrdering() :
+					(criteria.getOrdering() != null ? criteria.getOrdering() : CObjectOrdering.DESCENDING);
+			nextCursor = new ListCursor(shardId, cqlIterator.getLastRow().getUUID("id"), ordering,
+					(remaining > 0) ? remaining - results.size() : 0L, shardIds);
+		}
+		return new ListPage(results, nextCursor);
+	}
+
 	/**
 	 * @param objectType Type of object to count
 	 * @param criteria Criteria to count by
@@ -469,11 +944,46 @@ public class ObjectMapper implements CObjectShardList {
 	 * @throws CQLGenerationException
 	 */
 	public long count(String objectType, Criteria criteria) throws CQLGenerationException, RhombusException {
+		return countWithShardTimings(objectType, criteria).getCount();
+	}
+
+	/**
+	 * Count the same way as count, also reporting how long each shard took.
+	 * Shards are counted in parallel, up to countConcurrency at a time, unless the criteria need client side filtering.
+	 * @param objectType Type of object to count
+	 * @param criteria Criteria to count by
+	 * @return Number of items matching the criteria along with the time each shard took, which is empty when the
+	 * criteria need client side filtering
+	 * @throws CQLGenerationException
+	 */
+	public CountResult countWithShardTimings(String objectType, Criteria criteria) throws CQLGenerationException, RhombusException {
 		CDefinition def = keyspaceDefinition.getDefinitions().get(objectType);
 		CQLStatementIterator statementIterator = cqlGenerator.makeCQLforList(objectType, criteria, true);
 		return mapCount(statementIterator, def, criteria.getLimit());
 	}
 
+	/**
+	 * Estimate the number of objects matching the criteria from the sketches of the index's shards, without reading
+	 * the index. The index must be marked as sketched and the criteria must name a value for each of its fields.
+	 * Shards the time range only partly covers are counted whole, and objects deleted or moved to other index values
+	 * are still counted.
+	 * @param objectType Type of object to count
+	 * @param criteria Criteria to count by
+	 * @return Estimated number of items matching the criteria, no more than the criteria limit if one is set
+	 * @throws CQLGenerationException If the criteria do not match a sketched index exactly
+	 */
+	public long countApproximate(String objectType, Criteria criteria) throws CQLGenerationException {
+		CQLStatement cql = cqlGenerator.makeCQLforCountApproximate(objectType, criteria);
+		ResultSet resultSet = cqlExecutor.executeSync(cql);
+		IndexSketch sketch = new IndexSketch();
+		for(Row row : resultSet) {
+			sketch.merge(row.getMap("registers", Integer.class, Integer.class));
+		}
+		long estimate = sketch.estimate();
+		long limit = criteria.getLimit();
+		return (limit > 0 && estimate > limit) ? limit : estimate;
+	}
+
 	public void visitObjects(String objectType, CObjectVisitor visitor){
 		CDefinition def = keyspaceDefinition.getDefinitions().get(objectType);
 		CQLStatement statement = this.cqlGenerator.makeCQLforTableScan(objectType);
@@ -481,9 +991,10 @@ public class ObjectMapper implements CObjectShardList {
 		s.setFetchSize(200);
 		ResultSet resultSet = session.execute(s);
 
+		RowMapper rowMapper = def.getRowMapper(null);
 		Iterator<Row> it = resultSet.iterator();
 		while(it.hasNext()){
-			Map<String,Object> obj = this.mapResult(it.next(),def);
+			Map<String,Object> obj = mapRow(rowMapper, it.next());
 			if(visitor.shouldInclude(obj)){
 				visitor.visit(obj);
 			}
@@ -502,6 +1013,102 @@ public class ObjectMapper implements CObjectShardList {
 		return mapResults(statementIterator, def, limit);
 	}
 
+	/**
+	 * Read one page of a token range scan, selecting only the given fields and mapping only the rows the filter accepts
+	 * @param objectType Type of the objects to scan
+	 * @param start Long token to start at, or String id of the object to start after
+	 * @param endToken Last token of the range
+	 * @param limit Number of rows to read
+	 * @param fields Fields to select along with the id, or null to select every column
+	 * @param rowFilter Filter run on each row before it is mapped, or null to map every row
+	 * @return The mapped objects, along with the id of the last row read so the next page can start after it
+	 */
+	public TableScanPage scanTable(String objectType, Object start, Long endToken, Long limit, @Nullable List<String> fields, @Nullable Predicate<Row> rowFilter) throws CQLGenerationException {
+		return scanTable(objectType, start, endToken, limit, fields, rowFilter, false);
+	}
+
+	/**
+	 * Like scanTable, optionally reading the write time of each object in the same query
+	 * @param withWriteTimes True to read the write time of the most recently written selected field of each object
+	 * @return The mapped objects and, if they were read, their write times
+	 */
+	public TableScanPage scanTable(String objectType, Object start, Long endToken, Long limit, @Nullable List<String> fields, @Nullable Predicate<Row> rowFilter, boolean withWriteTimes) throws CQLGenerationException {
+		CDefinition def = keyspaceDefinition.getDefinitions().get(objectType);
+		CQLStatementIterator statementIterator;
+		if(start instanceof Long) {
+			statementIterator = cqlGenerator.makeCQLForScanTableMinToken(objectType, (Long)start, endToken, limit, fields, withWriteTimes);
+		} else {
+			Object startId = JsonUtil.typedObjectFromValueAndFieldType(start, def.getPrimaryKeyCDataType());
+			statementIterator = cqlGenerator.makeCQLForScanTableMinId(objectType, startId, endToken, limit, fields, withWriteTimes);
+		}
+		ResultSet resultSet = cqlExecutor.executeSync(statementIterator.next());
+		List<Map<String, Object>> results = Lists.newArrayList();
+		List<Long> writeTimes = withWriteTimes ? Lists.<Long>newArrayList() : null;
+		RowMapper rowMapper = def.getRowMapper(statementIterator.getSelectedFields());
+		// Write times follow the fields, in the same order but without the id
+		int fieldCount = rowMapper.getFieldNames().length;
+		Object lastId = null;
+		int rowsRead = 0;
+		for(Row row : resultSet) {
+			rowsRead++;
+			lastId = rowMapper.getId(row);
+			if(rowFilter == null || rowFilter.apply(row)) {
+				results.add(mapRow(rowMapper, row));
+				if(withWriteTimes) {
+					writeTimes.add(getLatestWriteTime(row, fieldCount, 2 * fieldCount - 1));
+				}
+			}
+		}
+		return new TableScanPage(results, lastId, rowsRead, writeTimes);
+	}
+
+	/**
+	 * @return Latest of the write times in the columns from start up to end, or null if none of them is set
+	 */
+	@Nullable
+	private static Long getLatestWriteTime(Row row, int start, int end) {
+		Long writeTime = null;
+		for(int i = start; i < end; i++) {
+			if(!row.isNull(i) && (writeTime == null || row.getLong(i) > writeTime)) {
+				writeTime = row.getLong(i);
+			}
+		}
+		return writeTime;
+	}
+
+	/**
+	 * Tokens owned by each node, read from the same system tables the driver builds its token map from.
+	 * The peers table does not list the node that answers the query, so its tokens come from the local table.
+	 * @return Tokens of each node keyed by its address, or null if the cluster does not use the Murmur3 partitioner
+	 */
+	@Nullable
+	public Map<InetAddress, List<Long>> getTokensByHost() {
+		String partitioner = session.getCluster().getMetadata().getPartitioner();
+		if(partitioner == null || !partitioner.endsWith("Murmur3Partitioner")) {
+			return null;
+		}
+		Map<InetAddress, List<Long>> ret = Maps.newHashMap();
+		ResultSet peers = session.execute("SELECT peer, tokens FROM system.peers");
+		for(Row row : peers) {
+			ret.put(row.getInet("peer"), parseTokens(row.getSet("tokens", String.class)));
+		}
+		ResultSet local = session.execute("SELECT tokens FROM system.local WHERE key='local'");
+		InetAddress localAddress = local.getExecutionInfo().getQueriedHost().getAddress();
+		Row localRow = local.one();
+		if(localRow != null) {
+			ret.put(localAddress, parseTokens(localRow.getSet("tokens", String.class)));
+		}
+		return ret;
+	}
+
+	private static List<Long> parseTokens(Set<String> tokens) {
+		List<Long> ret = Lists.newArrayListWithCapacity(tokens.size());
+		for(String token : tokens) {
+			ret.add(Long.parseLong(token));
+		}
+		return ret;
+	}
+
 	public Long getTokenForId(String objectType, UUID id) {
 		CQLStatement statement = cqlGenerator.makeCQLForGetToken(id, objectType);
 		ResultSet results = cqlExecutor.executeSync(statement);
@@ -511,10 +1118,12 @@ public class ObjectMapper implements CObjectShardList {
 		return results.one().getLong(0);
 	}
 
-	protected SortedMap<String,Object> unpackIndexValuesFromJson(CDefinition def, String json) throws IOException, JsonMappingException {
-		com.fasterxml.jackson.databind.ObjectMapper om = new com.fasterxml.jackson.databind.ObjectMapper();
-		TreeMap<String,Object> jsonMap = om.readValue(json, TreeMap.class);
-		return JsonUtil.rhombusMapFromJsonMap(jsonMap,def);
+	/**
+	 * @param def Definition the index values belong to
+	 * @param indexValues Index values as stored in __index_updates, either as JSON or in the binary encoding
+	 */
+	protected SortedMap<String,Object> unpackIndexValuesFromJson(CDefinition def, String indexValues) throws IOException, JsonMappingException {
+		return IndexValuesCodec.decode(def, indexValues);
 	}
 
 	public IndexUpdateRow getNextUpdateIndexRow(@Nullable IndexUpdateRowKey lastInstanceKey) throws IOException, JsonMappingException {
@@ -525,9 +1134,63 @@ public class ObjectMapper implements CObjectShardList {
 			return null;
 		}
 		IndexUpdateRowKey nextInstanceKey = new IndexUpdateRowKey(resultSet.one());
-		CQLStatement cqlForRow = cqlGenerator.makeGetRowIndexUpdate(keyspaceDefinition.getName(), nextInstanceKey);
-		resultSet = cqlExecutor.executeSync(cqlForRow);
-		List<Row> results = resultSet.all();
+		return getUpdateIndexRow(nextInstanceKey);
+	}
+
+	/**
+	 * Read every update row whose key token is in a range, in token order. Each row is read in full, including a
+	 * row that is cut off by the limit.
+	 * @param startToken Lowest row key token to read, inclusive
+	 * @param endToken Highest row key token to read, inclusive
+	 * @param limit Number of update columns to read in one query
+	 * @return Update rows in token order, each with its token set. Empty once there are no rows left in the range.
+	 * @throws IOException If stored index values could not be parsed
+	 */
+	public List<IndexUpdateRow> getUpdateIndexRowsInTokenRange(long startToken, long endToken, long limit) throws IOException {
+		CQLStatement cql = cqlGenerator.makeCQLforIndexUpdateTableScan(startToken, endToken, limit);
+		List<Row> results = cqlExecutor.executeSync(cql).all();
+		List<IndexUpdateRow> ret = Lists.newArrayList();
+		int rowStart = 0;
+		for(int i = 1; i <= results.size(); i++){
+			if(i < results.size() && isSameUpdateRow(results.get(i), results.get(rowStart))){
+				continue;
+			}
+			long token = results.get(rowStart).getLong(0);
+			IndexUpdateRow row;
+			if(i == results.size() && results.size() >= limit){
+				// The limit may have cut this row off, so read all of it
+				row = getUpdateIndexRow(new IndexUpdateRowKey(results.get(rowStart)));
+			} else {
+				// Columns come back oldest first, rows are built newest first
+				row = makeIndexUpdateRow(Lists.reverse(results.subList(rowStart, i)));
+			}
+			if(row != null){
+				row.setToken(token);
+				ret.add(row);
+			}
+			rowStart = i;
+		}
+		return ret;
+	}
+
+	private static boolean isSameUpdateRow(Row a, Row b) {
+		return a.getLong(0) == b.getLong(0)
+				&& a.getUUID("instanceid").equals(b.getUUID("instanceid"))
+				&& a.getString("statictablename").equals(b.getString("statictablename"));
+	}
+
+	@Nullable
+	private IndexUpdateRow getUpdateIndexRow(IndexUpdateRowKey instanceKey) throws IOException {
+		CQLStatement cqlForRow = cqlGenerator.makeGetRowIndexUpdate(keyspaceDefinition.getName(), instanceKey);
+		return makeIndexUpdateRow(cqlExecutor.executeSync(cqlForRow).all());
+	}
+
+	/**
+	 * @param results Columns of a single update row, newest first
+	 * @return The update row, or null if there are no columns
+	 */
+	@Nullable
+	private IndexUpdateRow makeIndexUpdateRow(List<Row> results) throws IOException {
 		if(results.size() == 0 ){
 			return null;
 		}
@@ -541,7 +1204,6 @@ public class ObjectMapper implements CObjectShardList {
 			ids.add(update.getUUID("id"));
 		}
 
-
 		return new IndexUpdateRow(
 			objectName,
 			results.get(0).getUUID("instanceid"),
@@ -559,14 +1221,19 @@ public class ObjectMapper implements CObjectShardList {
 	 * @return Ordered resultset concatenating results from statements in statement iterator.
 	 */
 	private List<Map<String, Object>> mapResults(CQLStatementIterator statementIterator, CDefinition definition, Long limit) throws RhombusException {
+		CQLExecutorIterator cqlIterator = new CQLExecutorIterator(cqlExecutor, statementIterator);
+		return mapResults(cqlIterator, statementIterator.getClientFilters(), statementIterator.getSelectedFields(), definition, limit);
+	}
+
+	private List<Map<String, Object>> mapResults(CQLExecutorIterator cqlIterator, Map<String, Object> clientFilters, @Nullable List<String> selectedFields, CDefinition definition, Long limit) throws RhombusException {
 		List<Map<String, Object>> results = Lists.newArrayList();
+		RowMapper rowMapper = definition.getRowMapper(selectedFields);
 		int resultNumber = 0;
-		Map<String, Object> clientFilters = statementIterator.getClientFilters();
-		CQLExecutorIterator cqlIterator = new CQLExecutorIterator(cqlExecutor, statementIterator);
 		if(limit <= 0) {
 			limit = CObjectCQLGenerator.MAX_CQL_STATEMENT_LIMIT;
 		}
 		cqlIterator.setPageSize(limit);
+		cqlIterator.setShardPrefetchCount(shardPrefetchCount);
 		long nonMatching = 0;
 		long matching = 0;
 
@@ -577,7 +1244,7 @@ public class ObjectMapper implements CObjectShardList {
 			if (row == null){
 				continue;
 			}
-			Map<String, Object> result = mapResult(row, definition);
+			Map<String, Object> result = mapRow(rowMapper, row);
 
 			boolean resultMatchesFilters = true;
 
@@ -602,10 +1269,12 @@ public class ObjectMapper implements CObjectShardList {
 			}
 
 			if(cqlIterator.statementNumber > reasonableStatementLimit) {
+				cqlIterator.cancelReadAhead();
 				throw new RhombusException("Query attempted to execute more than " + reasonableStatementLimit + " statements.");
 			}
 
 		}
+		cqlIterator.cancelReadAhead();
 
 		return results;
 	}
@@ -627,28 +1296,12 @@ public class ObjectMapper implements CObjectShardList {
 		return true;
 	}
 
-	private Long mapCount(CQLStatementIterator statementIterator, CDefinition definition, Long limit) throws RhombusException {
+	private CountResult mapCount(CQLStatementIterator statementIterator, CDefinition definition, Long limit) throws RhombusException {
 		Long resultCount = 0L;
 		Map<String, Object> clientFilters = statementIterator.getClientFilters();
 
 		if (clientFilters == null){
-			int statementNumber = 0;
-			while (statementIterator.hasNext()){
-				statementIterator.nextShard();
-				CQLStatement cql = statementIterator.next();
-				ResultSet resultSet = cqlExecutor.executeSync(cql);
-				Long numResults = resultSet.one().getLong(0);
-				resultCount += numResults;
-				statementNumber++;
-				if((limit > 0 && resultCount >= limit)) {
-					logger.debug("Breaking from mapping count query results");
-					resultCount = limit;
-					break;
-				}
-				if(statementNumber > reasonableStatementLimit) {
-					throw new RhombusException("Query attempted to execute more than " + reasonableStatementLimit + " statements.");
-				}
-			}
+			return new ShardCounter(cqlExecutor, countConcurrency, countStatementLimit).count(statementIterator, limit);
 		} else {
 			// if filtering is true we will use the executorIterator to page through the result set
 			CQLExecutorIterator cqlIterator = new CQLExecutorIterator(cqlExecutor, (BaseCQLStatementIterator) statementIterator);
@@ -656,13 +1309,15 @@ public class ObjectMapper implements CObjectShardList {
 				limit = CObjectCQLGenerator.MAX_CQL_STATEMENT_LIMIT;
 			}
 			cqlIterator.setPageSize(limit);
+			cqlIterator.setShardPrefetchCount(shardPrefetchCount);
+			RowMapper rowMapper = definition.getRowMapper(statementIterator.getSelectedFields());
 			while (cqlIterator.hasNext()){
 				Row row = cqlIterator.next();
 				if (row == null){
 					continue;
 				}
 
-				Map<String, Object> result = mapResult(row, definition);
+				Map<String, Object> result = rowMapper.map(row);
 				boolean resultMatchesFilters = this.resultMatchesFilters(result, clientFilters);
 
 				if(resultMatchesFilters) {
@@ -675,11 +1330,13 @@ public class ObjectMapper implements CObjectShardList {
 				}
 
 				if(cqlIterator.statementNumber > reasonableStatementLimit) {
+					cqlIterator.cancelReadAhead();
 					throw new RhombusException("Query attempted to execute more than " + reasonableStatementLimit + " statements.");
 				}
 			}
+			cqlIterator.cancelReadAhead();
 		}
-		return resultCount;
+		return new CountResult(resultCount, resultCount >= limit, Collections.<Long, Long>emptyMap());
 	}
 
 
@@ -708,17 +1365,16 @@ public class ObjectMapper implements CObjectShardList {
 	 * @return Data contained in a row mapped to the object described in definition.
 	 */
 	private Map<String, Object> mapResult(Row row, CDefinition definition) {
-		Map<String, Object> result = Maps.newHashMap();
-		if(definition.getFields().containsKey("id")){
-			result.put("id",getFieldValue(row,definition.getField("id")));
-		}
-		else {
-			result.put("id", row.getUUID("id"));
-		}
-		for(CField field : definition.getFields().values()) {
-			result.put(field.getName(), getFieldValue(row, field));
-		}
-		return result;
+		return mapRow(definition.getRowMapper(null), row);
+	}
+
+	/**
+	 * @param rowMapper Mapper compiled for the query the row was read by
+	 * @param row The row to map
+	 * @return Data contained in the row, as a RhombusObject if compactResults is set
+	 */
+	private Map<String, Object> mapRow(RowMapper rowMapper, Row row) {
+		return compactResults ? rowMapper.mapCompact(row) : rowMapper.map(row);
 	}
 
 	public void prePrepareInsertStatements() throws CQLGenerationException {
@@ -735,62 +1391,14 @@ public class ObjectMapper implements CObjectShardList {
 		for( CField f : def.getFields().values() ){
 			values.put(f.getName(), f.getEmptyJavaObjectOfThisType());
 		}
-		CQLStatementIterator sti = cqlGenerator.makeCQLforInsert(def.getName(),values,UUIDs.timeBased(),0L);
+		// Bypass the shard index cache, which would skip preparing shard index inserts for shards it has seen
+		CQLStatementIterator sti = cqlGenerator.makeCQLforInsertWithoutShardIndexCache(def.getName(),values,UUIDs.timeBased(),0L);
 		while(sti.hasNext()){
 			CQLStatement cql = sti.next();
 			cqlExecutor.prepareStatement(session,cql);
 		}
 	}
 
-	private Object getFieldValue(Row row, CField field) {
-		if(row.isNull(field.getName())){
-			return null;
-		}
-		Object fieldValue;
-		switch(field.getType()) {
-			case ASCII:
-			case VARCHAR:
-			case TEXT:
-				fieldValue = row.getString(field.getName());
-				break;
-			case BIGINT:
-			case COUNTER:
-				fieldValue = row.getLong(field.getName());
-				break;
-			case BLOB:
-				fieldValue = row.getBytes(field.getName());
-				break;
-			case BOOLEAN:
-				fieldValue = row.getBool(field.getName());
-				break;
-			case DECIMAL:
-				fieldValue = row.getDecimal(field.getName());
-				break;
-			case DOUBLE:
-				fieldValue = row.getDouble(field.getName());
-				break;
-			case FLOAT:
-				fieldValue = row.getFloat(field.getName());
-				break;
-			case INT:
-				fieldValue = row.getInt(field.getName());
-				break;
-			case TIMESTAMP:
-				fieldValue = row.getDate(field.getName());
-				break;
-			case UUID:
-			case TIMEUUID:
-				fieldValue = row.getUUID(field.getName());
-				break;
-			case VARINT:
-				fieldValue = row.getVarint(field.getName());
-				break;
-			default:
-				fieldValue = null;
-		}
-		return (fieldValue == null ? null : fieldValue);
-	}
-
 	public Map<String, Object> coerceRhombusValuesFromJsonMap(String objectType, Map<String, Object> values) {
 		return JsonUtil.rhombusMapFromJsonMap(values, keyspaceDefinition.getDefinitions().get(objectType));
 	}
@@ -1039,9 +1647,29 @@ public class ObjectMapper implements CObjectShardList {
 	}
 
 	public void teardown() {
+		writeContinuationExecutor.shutdown();
+		if(writeCoalescer != null) {
+			writeCoalescer.shutdown();
+		}
+		if(shardListCache != null) {
+			shardListCache.shutdown();
+		}
 		session.close();
 	}
 
+	public boolean isCompactResults() {
+		return compactResults;
+	}
+
+	/**
+	 * @param compactResults If true, list, listPage, stream, getByKey and the scan methods return each object as an
+	 *                       immutable RhombusObject, which takes a fraction of the heap of a HashMap for the same row.
+	 *                       Callers must not modify the objects they are given.
+	 */
+	public void setCompactResults(boolean compactResults) {
+		this.compactResults = compactResults;
+	}
+
 	public boolean isCacheBoundedQueries() {
 		return cacheBoundedQueries;
 	}
@@ -1050,6 +1678,248 @@ public class ObjectMapper implements CObjectShardList {
 		this.cacheBoundedQueries = cacheBoundedQueries;
 	}
 
+	public int getCountConcurrency() {
+		return countConcurrency;
+	}
+
+	/**
+	 * @param countConcurrency Number of shards a count keeps in flight at once. 1 counts shards one at a time.
+	 */
+	public void setCountConcurrency(int countConcurrency) {
+		this.countConcurrency = Math.max(1, countConcurrency);
+	}
+
+	public int getCountStatementLimit() {
+		return countStatementLimit;
+	}
+
+	/**
+	 * Counts only read one row per shard, so they are held to this limit instead of the statement limit of list.
+	 * It does not apply to counts that need client side filtering.
+	 * @param countStatementLimit Number of shards a count may read, or 0 for no limit
+	 */
+	public void setCountStatementLimit(int countStatementLimit) {
+		this.countStatementLimit = countStatementLimit;
+	}
+
+	public long getStreamPageSize() {
+		return streamPageSize;
+	}
+
+	/**
+	 * @param streamPageSize Number of rows a stream reads per statement
+	 */
+	public void setStreamPageSize(long streamPageSize) {
+		this.streamPageSize = Math.max(1L, streamPageSize);
+	}
+
+	public int getShardPrefetchCount() {
+		return shardPrefetchCount;
+	}
+
+	/**
+	 * Set the number of shard queries list and count will keep in flight at once.
+	 * Rows are still returned in shard order; a value of 1 walks shards one at a time.
+	 * @param shardPrefetchCount Number of shards to read ahead
+	 */
+	public void setShardPrefetchCount(int shardPrefetchCount) {
+		this.shardPrefetchCount = Math.max(1, shardPrefetchCount);
+	}
+
+	public int getMaxInFlightStatements() {
+		return asyncStatementExecutor.getMaxInFlight();
+	}
+
+	/**
+	 * Limit the number of statements this object mapper has outstanding at once when executing async.
+	 * Callers block once the limit is reached until earlier statements complete.
+	 * @param maxInFlightStatements Maximum number of outstanding statements
+	 */
+	public void setMaxInFlightStatements(int maxInFlightStatements) {
+		this.asyncStatementExecutor = new AsyncStatementExecutor(cqlExecutor, maxInFlightStatements);
+		if(writeCoalescer != null) {
+			setWriteCoalescing(true);
+		}
+	}
+
+	public boolean isWriteCoalescing() {
+		return writeCoalescer != null;
+	}
+
+	/**
+	 * When enabled, async writes are buffered briefly and statements for the same partition are sent together as a
+	 * single partition UNLOGGED batch. Synchronous callers still send their own statements right away.
+	 * @param writeCoalescing true to coalesce writes
+	 */
+	public void setWriteCoalescing(boolean writeCoalescing) {
+		if(writeCoalescer != null) {
+			writeCoalescer.shutdown();
+			writeCoalescer = null;
+		}
+		if(writeCoalescing) {
+			writeCoalescer = new WriteCoalescer(asyncStatementExecutor, writeCoalescingWindowMillis, writeCoalescingMaxBatchSize, batchTimeout);
+		}
+	}
+
+	public long getWriteCoalescingWindowMillis() {
+		return writeCoalescingWindowMillis;
+	}
+
+	/**
+	 * @param writeCoalescingWindowMillis Milliseconds a write waits for others to the same partition before being sent
+	 */
+	public void setWriteCoalescingWindowMillis(long writeCoalescingWindowMillis) {
+		this.writeCoalescingWindowMillis = writeCoalescingWindowMillis;
+		if(writeCoalescer != null) {
+			setWriteCoalescing(true);
+		}
+	}
+
+	public int getWriteCoalescingMaxBatchSize() {
+		return writeCoalescingMaxBatchSize;
+	}
+
+	/**
+	 * @param writeCoalescingMaxBatchSize Number of statements at which a partition's batch is sent without waiting
+	 */
+	public void setWriteCoalescingMaxBatchSize(int writeCoalescingMaxBatchSize) {
+		this.writeCoalescingMaxBatchSize = writeCoalescingMaxBatchSize;
+		if(writeCoalescer != null) {
+			setWriteCoalescing(true);
+		}
+	}
+
+	/**
+	 * Inserts skip writing shard index rows that this object mapper has already written recently.
+	 * @param shardIndexCache Cache of written shard index rows, or null to write the shard index on every insert
+	 */
+	public void setShardIndexCache(@Nullable ShardIndexCache shardIndexCache) {
+		cqlGenerator.setShardIndexCache(shardIndexCache);
+		if(shardIndexCache != null) {
+			shardIndexCache.setShardListCache(shardListCache);
+		}
+	}
+
+	@Nullable
+	public ShardIndexCache getShardIndexCache() {
+		return cqlGenerator.getShardIndexCache();
+	}
+
+	public boolean isBinaryIndexUpdates() {
+		return cqlGenerator.isBinaryIndexUpdates();
+	}
+
+	/**
+	 * Updates write their index values to __index_updates in a compact binary encoding instead of JSON.
+	 * Both encodings are always readable, so only enable this once every process running the update processor
+	 * against the keyspace has been upgraded.
+	 * @param binaryIndexUpdates True to write the binary encoding
+	 */
+	public void setBinaryIndexUpdates(boolean binaryIndexUpdates) {
+		cqlGenerator.setBinaryIndexUpdates(binaryIndexUpdates);
+	}
+
+	public boolean isShardListCaching() {
+		return shardListCache != null;
+	}
+
+	/**
+	 * When enabled, unbounded list and count queries take their shard ids from memory instead of reading the shard
+	 * index first. Shards written through this object mapper are added as they are written when the shard index cache
+	 * is also enabled; shards written elsewhere are picked up by the background refresh.
+	 * @param shardListCaching true to cache shard lists
+	 */
+	public void setShardListCaching(boolean shardListCaching) {
+		if(shardListCache != null) {
+			shardListCache.shutdown();
+			shardListCache = null;
+		}
+		if(shardListCaching) {
+			shardListCache = new ShardListCache(keyspaceDefinition.getName(), new CObjectShardList() {
+				@Override
+				public List<Long> getShardIdList(CDefinition def, SortedMap<String, Object> indexValues, CObjectOrdering ordering, @Nullable UUID start, @Nullable UUID end) throws CQLGenerationException {
+					return readShardIdList(def, indexValues, ordering, start, end);
+				}
+			}, ShardListCache.DEFAULT_MAXIMUM_SIZE, shardListCacheRefreshSeconds, shardListCacheTtlSeconds);
+		}
+		ShardIndexCache shardIndexCache = cqlGenerator.getShardIndexCache();
+		if(shardIndexCache != null) {
+			shardIndexCache.setShardListCache(shardListCache);
+		}
+	}
+
+	@Nullable
+	public ShardListCache getShardListCache() {
+		return shardListCache;
+	}
+
+	public long getShardListCacheRefreshSeconds() {
+		return shardListCacheRefreshSeconds;
+	}
+
+	/**
+	 * @param shardListCacheRefreshSeconds Seconds after which a cached shard list is reloaded in the background
+	 */
+	public void setShardListCacheRefreshSeconds(long shardListCacheRefreshSeconds) {
+		this.shardListCacheRefreshSeconds = shardListCacheRefreshSeconds;
+		if(shardListCache != null) {
+			setShardListCaching(true);
+		}
+	}
+
+	public long getShardListCacheTtlSeconds() {
+		return shardListCacheTtlSeconds;
+	}
+
+	/**
+	 * @param shardListCacheTtlSeconds Seconds after which a cached shard list is dropped and read again before use
+	 */
+	public void setShardListCacheTtlSeconds(long shardListCacheTtlSeconds) {
+		this.shardListCacheTtlSeconds = shardListCacheTtlSeconds;
+		if(shardListCache != null) {
+			setShardListCaching(true);
+		}
+	}
+
+	/**
+	 * getByKey, update and delete serve objects from this cache when present. Writes through this object mapper
+	 * invalidate the objects they touch.
+	 * @param objectCache Cache of objects read by key, or null to always read from Cassandra
+	 */
+	public void setObjectCache(@Nullable ObjectCache objectCache) {
+		this.objectCache = objectCache;
+	}
+
+	@Nullable
+	public ObjectCache getObjectCache() {
+		return objectCache;
+	}
+
+	private void invalidateCachedObject(String objectType, Object key) {
+		ObjectCache cache = objectCache;
+		if(cache != null) {
+			cache.invalidate(objectType, key);
+		}
+	}
+
+	private void invalidateCachedObjects(Map<String, List<UUID>> ids) {
+		ObjectCache cache = objectCache;
+		if(cache != null) {
+			for(Map.Entry<String, List<UUID>> entry : ids.entrySet()) {
+				for(UUID id : entry.getValue()) {
+					cache.invalidate(entry.getKey(), id);
+				}
+			}
+		}
+	}
+
+	private void invalidateShardIndexCache() {
+		ShardIndexCache shardIndexCache = cqlGenerator.getShardIndexCache();
+		if(shardIndexCache != null) {
+			shardIndexCache.invalidateAll();
+		}
+	}
+
 	public void setCompaction(String strategy, Map<String,Object> options) throws CQLGenerationException, RhombusException {
 		CQLStatementIterator cql = cqlGenerator.makeCQLforCompaction(keyspaceDefinition, strategy, options);
 		executeStatements(cql);
@@ -0,0 +1,113 @@
+package com.pardot.rhombus;
+
+import com.datastax.driver.core.Row;
+import com.google.common.base.Function;
+import com.google.common.base.Predicate;
+import com.pardot.rhombus.cobject.statement.CQLExecutorIterator;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Pardot, an ExactTarget company
+ *
+ * Lazily maps the results of a list query as they are consumed. Only the page of rows being read is held in memory,
+ * and the next page is not fetched until the current one has been consumed, so a large range can be read in constant
+ * memory and the first object is available as soon as the first page arrives.
+ * Close the stream if it is not read to the end, so shard queries issued ahead of time are cancelled. A stream that
+ * has been read to the end closes itself.
+ * Not thread safe.
+ */
+public class ObjectStream implements Iterator<Map<String, Object>>, Closeable {
+
+	private final CQLExecutorIterator cqlIterator;
+	private final Function<Row, Map<String, Object>> rowMapper;
+	private final Predicate<Map<String, Object>> filter;
+	private final long limit;
+	private Map<String, Object> nextObject = null;
+	private long returned = 0;
+	private boolean closed = false;
+
+	/**
+	 * @param cqlIterator Iterator over the rows of the query
+	 * @param rowMapper Maps each row to an object
+	 * @param filter Filter objects must match to be returned, or null to return every object
+	 * @param limit Maximum number of objects to return, or 0 for no limit
+	 */
+	ObjectStream(CQLExecutorIterator cqlIterator, Function<Row, Map<String, Object>> rowMapper, @Nullable Predicate<Map<String, Object>> filter, long limit) {
+		this.cqlIterator = cqlIterator;
+		this.rowMapper = rowMapper;
+		this.filter = filter;
+		this.limit = limit;
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (nextObject != null) {
+			return true;
+		}
+		if (closed) {
+			return false;
+		}
+		if (limit > 0 && returned >= limit) {
+			close();
+			return false;
+		}
+		while (cqlIterator.hasNext()) {
+			Row row = cqlIterator.next();
+			if (row == null) {
+				continue;
+			}
+			Map<String, Object> object = rowMapper.apply(row);
+			if (filter == null || filter.apply(object)) {
+				nextObject = object;
+				return true;
+			}
+		}
+		close();
+		return false;
+	}
+
+	@Override
+	public Map<String, Object> next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		Map<String, Object> ret = nextObject;
+		nextObject = null;
+		returned++;
+		return ret;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException("Objects can not be removed from a stream");
+	}
+
+	/**
+	 * Stop reading. Objects already read ahead of the caller are discarded.
+	 */
+	@Override
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		nextObject = null;
+		cqlIterator.cancelReadAhead();
+	}
+
+	/**
+	 * @return Number of objects returned so far
+	 */
+	public long getReturned() {
+		return returned;
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+}
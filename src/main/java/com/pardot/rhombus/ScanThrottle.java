@@ -0,0 +1,208 @@
+package com.pardot.rhombus;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.RateLimiter;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Histogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Pardot, an ExactTarget company
+ *
+ * Limits how fast background jobs such as TableScanner and UpdateProcessor work against the cluster, so they leave
+ * room for foreground queries. Jobs sharing a throttle share its limits.
+ * Rows read and requests sent are limited by separate token buckets; a limit of 0 is unlimited.
+ * With a latency threshold set, both limits are halved each time a read takes longer than the threshold, down to
+ * MIN_BACKOFF of the configured limits, and recover a little with each read under it.
+ * Limits can be changed while jobs run, directly or over JMX once registerMBean has been called.
+ */
+public class ScanThrottle implements ScanThrottleMBean {
+
+	private static Logger logger = LoggerFactory.getLogger(ScanThrottle.class);
+
+	public static final double MIN_BACKOFF = 0.05;
+	private static final double BACKOFF_FACTOR = 0.5;
+	private static final double RECOVERY_FACTOR = 1.05;
+
+	private final String name;
+	private double rowsPerSecond;
+	private double requestsPerSecond;
+	private volatile long latencyThresholdMillis = 0L;
+	// Fraction of the configured limits currently allowed, guarded by this
+	private double backoff = 1.0;
+	private final RateLimiter rowLimiter = RateLimiter.create(Double.MAX_VALUE);
+	private final RateLimiter requestLimiter = RateLimiter.create(Double.MAX_VALUE);
+	private volatile boolean limitRows = false;
+	private volatile boolean limitRequests = false;
+	private final Histogram latency;
+
+	/**
+	 * @param name Name of the throttle, used to scope its metrics and JMX name
+	 * @param rowsPerSecond Rows to read per second, or 0 for no limit
+	 * @param requestsPerSecond Requests to send per second, or 0 for no limit
+	 */
+	public ScanThrottle(String name, double rowsPerSecond, double requestsPerSecond) {
+		Preconditions.checkNotNull(name);
+		this.name = name;
+		this.rowsPerSecond = rowsPerSecond;
+		this.requestsPerSecond = requestsPerSecond;
+		applyLimits();
+		this.latency = Metrics.defaultRegistry().newHistogram(ScanThrottle.class, "readLatencyMillis", name, true);
+		Metrics.defaultRegistry().newGauge(ScanThrottle.class, "backoff", name, new Gauge<Double>() {
+			@Override
+			public Double value() {
+				return getBackoff();
+			}
+		});
+		Metrics.defaultRegistry().newGauge(ScanThrottle.class, "rowsPerSecond", name, new Gauge<Double>() {
+			@Override
+			public Double value() {
+				return limitRows ? rowLimiter.getRate() : 0.0;
+			}
+		});
+		Metrics.defaultRegistry().newGauge(ScanThrottle.class, "requestsPerSecond", name, new Gauge<Double>() {
+			@Override
+			public Double value() {
+				return limitRequests ? requestLimiter.getRate() : 0.0;
+			}
+		});
+	}
+
+	/**
+	 * Register the throttle with the platform MBean server as com.pardot.rhombus:type=ScanThrottle,name=[name],
+	 * replacing any throttle already registered under the same name
+	 */
+	public void registerMBean() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = getObjectName();
+			try {
+				server.registerMBean(this, objectName);
+			} catch(InstanceAlreadyExistsException e) {
+				server.unregisterMBean(objectName);
+				server.registerMBean(this, objectName);
+			}
+		} catch(JMException e) {
+			logger.warn("Unable to register scan throttle {} with JMX", name, e);
+		}
+	}
+
+	public ObjectName getObjectName() throws JMException {
+		return new ObjectName("com.pardot.rhombus:type=ScanThrottle,name=" + ObjectName.quote(name));
+	}
+
+	/**
+	 * Wait until another request may be sent
+	 */
+	public void acquireRequest() {
+		if(limitRequests) {
+			requestLimiter.acquire();
+		}
+	}
+
+	/**
+	 * Wait until the given number of rows may be read. Call after a read with the number of rows it returned, so
+	 * the wait falls before the next read.
+	 * @param rows Number of rows read
+	 */
+	public void acquireRows(int rows) {
+		if(limitRows && rows > 0) {
+			rowLimiter.acquire(rows);
+		}
+	}
+
+	/**
+	 * @param millis How long a read took
+	 */
+	public void recordLatency(long millis) {
+		latency.update(millis);
+		long threshold = latencyThresholdMillis;
+		if(threshold <= 0) {
+			return;
+		}
+		synchronized(this) {
+			double previous = backoff;
+			if(millis > threshold) {
+				backoff = Math.max(MIN_BACKOFF, backoff * BACKOFF_FACTOR);
+			} else {
+				backoff = Math.min(1.0, backoff * RECOVERY_FACTOR);
+			}
+			if(backoff != previous) {
+				if(backoff < previous) {
+					logger.info("Read took {}ms, over the {}ms threshold; throttle {} backing off to {} of its limits", millis, threshold, name, backoff);
+				}
+				applyLimits();
+			}
+		}
+	}
+
+	private synchronized void applyLimits() {
+		limitRows = rowsPerSecond > 0;
+		if(limitRows) {
+			rowLimiter.setRate(rowsPerSecond * backoff);
+		}
+		limitRequests = requestsPerSecond > 0;
+		if(limitRequests) {
+			requestLimiter.setRate(requestsPerSecond * backoff);
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public synchronized double getRowsPerSecond() {
+		return rowsPerSecond;
+	}
+
+	@Override
+	public synchronized void setRowsPerSecond(double rowsPerSecond) {
+		this.rowsPerSecond = rowsPerSecond;
+		applyLimits();
+	}
+
+	@Override
+	public synchronized double getRequestsPerSecond() {
+		return requestsPerSecond;
+	}
+
+	@Override
+	public synchronized void setRequestsPerSecond(double requestsPerSecond) {
+		this.requestsPerSecond = requestsPerSecond;
+		applyLimits();
+	}
+
+	@Override
+	public long getLatencyThresholdMillis() {
+		return latencyThresholdMillis;
+	}
+
+	/**
+	 * @param latencyThresholdMillis Back off when a read takes longer than this, or 0 to never back off
+	 */
+	@Override
+	public synchronized void setLatencyThresholdMillis(long latencyThresholdMillis) {
+		this.latencyThresholdMillis = latencyThresholdMillis;
+		if(latencyThresholdMillis <= 0 && backoff != 1.0) {
+			backoff = 1.0;
+			applyLimits();
+		}
+	}
+
+	/**
+	 * @return Fraction of the configured limits currently allowed
+	 */
+	@Override
+	public synchronized double getBackoff() {
+		return backoff;
+	}
+}
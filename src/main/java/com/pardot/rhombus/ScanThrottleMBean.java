@@ -0,0 +1,23 @@
+package com.pardot.rhombus;
+
+/**
+ * Pardot, an ExactTarget company
+ *
+ * Attributes of a ScanThrottle exposed over JMX
+ */
+public interface ScanThrottleMBean {
+
+	double getRowsPerSecond();
+
+	void setRowsPerSecond(double rowsPerSecond);
+
+	double getRequestsPerSecond();
+
+	void setRequestsPerSecond(double requestsPerSecond);
+
+	long getLatencyThresholdMillis();
+
+	void setLatencyThresholdMillis(long latencyThresholdMillis);
+
+	double getBackoff();
+}
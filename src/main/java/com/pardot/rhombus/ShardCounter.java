@@ -0,0 +1,150 @@
+package com.pardot.rhombus;
+
+import com.datastax.driver.core.ResultSet;
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.pardot.rhombus.cobject.CQLExecutor;
+import com.pardot.rhombus.cobject.statement.CQLStatement;
+import com.pardot.rhombus.cobject.statement.CQLStatementIterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pardot, an ExactTarget company
+ *
+ * Runs the count(*) statement of each shard of a count query, keeping a bounded number in flight at once, and adds
+ * up the results as they come back in any order. Once the limit is reached the statements still in flight are
+ * cancelled and no more are sent.
+ * Not thread safe; use one counter per count.
+ */
+public class ShardCounter {
+
+	private static Logger logger = LoggerFactory.getLogger(ShardCounter.class);
+
+	public static final int DEFAULT_CONCURRENCY = 8;
+	public static final int DEFAULT_STATEMENT_LIMIT = 1000;
+
+	private final CQLExecutor cqlExecutor;
+	private final int concurrency;
+	private final int statementLimit;
+
+	/**
+	 * @param cqlExecutor Executor to send the statements with
+	 * @param concurrency Number of shard statements to keep in flight
+	 * @param statementLimit Number of shard statements a count may send, or 0 for no limit
+	 */
+	public ShardCounter(CQLExecutor cqlExecutor, int concurrency, int statementLimit) {
+		Preconditions.checkArgument(concurrency > 0, "Concurrency must be positive");
+		this.cqlExecutor = cqlExecutor;
+		this.concurrency = concurrency;
+		this.statementLimit = statementLimit;
+	}
+
+	/**
+	 * @param statementIterator Count statements, one per shard
+	 * @param limit Stop counting once this many objects have been counted, or 0 for no limit
+	 * @return Total of the shard counts, no more than the limit
+	 * @throws RhombusException If the query needs more statements than the statement limit, or is interrupted
+	 */
+	public CountResult count(CQLStatementIterator statementIterator, long limit) throws RhombusException {
+		BlockingQueue<ShardCount> completed = new LinkedBlockingQueue<ShardCount>();
+		Map<Long, Future<Long>> inFlight = Maps.newHashMap();
+		Map<Long, Long> shardMillis = Maps.newLinkedHashMap();
+		long total = 0L;
+		int statements = 0;
+		try {
+			while(true) {
+				while(inFlight.size() < concurrency && statementIterator.hasNext()) {
+					if(statementLimit > 0 && statements >= statementLimit) {
+						throw new RhombusException("Count query attempted to execute more than " + statementLimit + " statements.");
+					}
+					statementIterator.nextShard();
+					long shardId = statementIterator.getCurrentShardId();
+					inFlight.put(shardId, send(shardId, statementIterator.next(), completed));
+					statements++;
+				}
+				if(inFlight.isEmpty()) {
+					return new CountResult(total, false, shardMillis);
+				}
+				ShardCount shardCount = completed.take();
+				inFlight.remove(shardCount.shardId);
+				if(shardCount.error != null) {
+					throw Throwables.propagate(shardCount.error);
+				}
+				shardMillis.put(shardCount.shardId, shardCount.millis);
+				total += shardCount.count;
+				if(limit > 0 && total >= limit) {
+					logger.debug("Count reached its limit after {} of {} statements", statements - inFlight.size(), statements);
+					return new CountResult(limit, true, shardMillis);
+				}
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RhombusException(e);
+		} finally {
+			for(Future<Long> future : inFlight.values()) {
+				future.cancel(true);
+			}
+		}
+	}
+
+	/**
+	 * @param cql Count statement of one shard
+	 * @return Number of rows the statement counted
+	 */
+	protected ListenableFuture<Long> countShard(CQLStatement cql) {
+		return Futures.transform(cqlExecutor.executeAsync(cql), new Function<ResultSet, Long>() {
+			@Override
+			public Long apply(ResultSet resultSet) {
+				return resultSet.one().getLong(0);
+			}
+		});
+	}
+
+	private Future<Long> send(final long shardId, CQLStatement cql, final BlockingQueue<ShardCount> completed) {
+		final long startNanos = System.nanoTime();
+		ListenableFuture<Long> future = countShard(cql);
+		Futures.addCallback(future, new FutureCallback<Long>() {
+			@Override
+			public void onSuccess(Long count) {
+				completed.add(new ShardCount(shardId, count, elapsedMillis(), null));
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				completed.add(new ShardCount(shardId, 0L, elapsedMillis(), t));
+			}
+
+			private long elapsedMillis() {
+				return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+			}
+		}, MoreExecutors.sameThreadExecutor());
+		return future;
+	}
+
+	private static class ShardCount {
+		private final long shardId;
+		private final long count;
+		private final long millis;
+		private final Throwable error;
+
+		private ShardCount(long shardId, long count, long millis, Throwable error) {
+			this.shardId = shardId;
+			this.count = count;
+			this.millis = millis;
+			this.error = error;
+		}
+	}
+}
@@ -0,0 +1,71 @@
+package com.pardot.rhombus;
+
+import javax.annotation.Nullable;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pardot, an ExactTarget company
+ *
+ * One page of a token range scan. Rows a row filter rejected are not in the results, but still count towards the
+ * page, so the next page starts after the last row read rather than the last row returned.
+ * A scan that reads write times holds the write time of each result as well.
+ */
+public class TableScanPage {
+
+	private final List<Map<String, Object>> results;
+	private final Object lastId;
+	private final int rowsRead;
+	private final List<Long> writeTimes;
+
+	/**
+	 * @param results Objects mapped from the rows the filter accepted
+	 * @param lastId Id of the last row read, or null if the page was empty
+	 * @param rowsRead Number of rows read, including those the filter rejected
+	 */
+	public TableScanPage(List<Map<String, Object>> results, @Nullable Object lastId, int rowsRead) {
+		this(results, lastId, rowsRead, null);
+	}
+
+	/**
+	 * @param results Objects mapped from the rows the filter accepted
+	 * @param lastId Id of the last row read, or null if the page was empty
+	 * @param rowsRead Number of rows read, including those the filter rejected
+	 * @param writeTimes Write time of each result, or null if write times were not read
+	 */
+	public TableScanPage(List<Map<String, Object>> results, @Nullable Object lastId, int rowsRead, @Nullable List<Long> writeTimes) {
+		this.results = results;
+		this.lastId = lastId;
+		this.rowsRead = rowsRead;
+		this.writeTimes = writeTimes;
+	}
+
+	public List<Map<String, Object>> getResults() {
+		return results;
+	}
+
+	/**
+	 * @return Write time in microseconds of the most recently written selected field of each result, in the order of
+	 * the results and null for a result with no field but the id set, or null if the scan did not read write times
+	 */
+	@Nullable
+	public List<Long> getWriteTimes() {
+		return writeTimes;
+	}
+
+	@Nullable
+	public Object getLastId() {
+		return lastId;
+	}
+
+	public int getRowsRead() {
+		return rowsRead;
+	}
+
+	/**
+	 * @return True if no rows were read, so the range has been scanned to its end
+	 */
+	public boolean isEmpty() {
+		return rowsRead == 0;
+	}
+}
@@ -1,25 +1,40 @@
 package com.pardot.rhombus;
 
+import com.datastax.driver.core.DataType;
+import com.datastax.driver.core.Row;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Predicate;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.pardot.rhombus.cobject.CObjectTokenVisitor;
 import com.pardot.rhombus.cobject.CObjectTokenVisitorFactory;
+import org.apache.cassandra.dht.Murmur3Partitioner;
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.input.ReversedLinesFileReader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
 import java.math.BigInteger;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * User: Michael Frank
@@ -31,19 +46,50 @@ public class TableScanner {
 
 	public static final long minToken = Long.MIN_VALUE;
 	public static final long maxToken = Long.MAX_VALUE;
-	public final int maxSavepointLinesToCheck = 10;
+	public static final int DEFAULT_PREFETCH_DEPTH = 1;
+	public static final int DEFAULT_RANGES_PER_PARTITION = 16;
+	// Ranges narrower than this are not split further, the token lookup would cost more than it saves
+	public static final long MIN_SPLIT_TOKENS = 1L << 32;
+	private static final long IDLE_WAIT_MILLIS = 100L;
+	public static final String SAVEPOINT_FILENAME = "savepoint.bin";
+	private static final byte SAVEPOINT_VERSION = 1;
+	public static final int DEFAULT_CHECKPOINT_PAGES = 50;
+	public static final long DEFAULT_CHECKPOINT_INTERVAL_MILLIS = 30000L;
+	private static final Murmur3Partitioner partitioner = new Murmur3Partitioner();
+	private static final TableScanPage EMPTY_PAGE = new TableScanPage(Collections.<Map<String, Object>>emptyList(), null, 0);
 	private long batchSize = 200;
 	private int statementRetries = 5;
+	private int prefetchDepth = DEFAULT_PREFETCH_DEPTH;
+	private int rangesPerPartition = DEFAULT_RANGES_PER_PARTITION;
+	private boolean ringAligned = false;
+	private int checkpointPages = DEFAULT_CHECKPOINT_PAGES;
+	private long checkpointIntervalMillis = DEFAULT_CHECKPOINT_INTERVAL_MILLIS;
+	private volatile ScanThrottle throttle = null;
 
 	private ObjectMapper objectMapper;
 	private String objectType;
 	private final int numPartitions;
 	CObjectTokenVisitorFactory visitorFactory;
 	private ExecutorService executorService;
+	private ExecutorService prefetchExecutorService = null;
 	private File savepointDirectory;
-	private PrintWriter[] savepointWriters = null;
 	private final CountDownLatch shutdownLatch;
 
+	// Ranges waiting for a thread and ranges being scanned, guarded by rangeLock
+	private final Object rangeLock = new Object();
+	private final Deque<ScanRange> pendingRanges = new ArrayDeque<ScanRange>();
+	private final List<ScanRange> activeRanges = Lists.newArrayList();
+	private final List<ScanRange> failedRanges = Lists.newArrayList();
+	private final AtomicInteger nextRangeId = new AtomicInteger(0);
+
+	// Pages finished since progress was last saved, guarded by checkpointLock
+	private final Object checkpointLock = new Object();
+	private int pagesSinceCheckpoint = 0;
+	private long lastCheckpointMillis = 0L;
+
+	/**
+	 * @param numPartitions Number of threads to scan with. The ring is split into more ranges than this, see setRangesPerPartition.
+	 */
 	public TableScanner(ObjectMapper objectMapper, String objectType, int numPartitions, CObjectTokenVisitorFactory visitorFactory, String savepointDirectoryPath) {
 		Preconditions.checkNotNull(objectMapper);
 		Preconditions.checkNotNull(objectType);
@@ -61,21 +107,27 @@ public class TableScanner {
 		}
 	}
 
+	/**
+	 * Scan the whole table. Each thread takes ranges from a shared queue until none are left; a thread that finds the
+	 * queue empty asks the widest range still being scanned to split off its remaining second half.
+	 */
 	public void scan() {
-		List<Map.Entry<Long, Long>> ranges = makeRanges();
-		if (this.savepointDirectory != null) {
-			this.savepointWriters = this.makeSavepointWriters(this.numPartitions);
+		List<ScanRange> ranges = readSavepoints();
+		if (ranges == null) {
+			ranges = makeScanRanges();
+		}
+		pendingRanges.addAll(ranges);
+		lastCheckpointMillis = System.currentTimeMillis();
+		if (prefetchDepth > 0) {
+			prefetchExecutorService = Executors.newFixedThreadPool(numPartitions, new ThreadFactoryBuilder().setDaemon(true).setNameFormat("rhombus-table-scanner-prefetch-%d").build());
 		}
 
-		int rangeNum = 0;
-		for(final Map.Entry<Long, Long> range : ranges) {
-			final Integer partitionId = rangeNum;
-			rangeNum++;
-			final CObjectTokenVisitor visitor = visitorFactory.getInstance("" + rangeNum);
+		for(int partitionId = 0; partitionId < numPartitions; partitionId++) {
+			final CObjectTokenVisitor visitor = visitorFactory.getInstance("" + (partitionId + 1));
 			Runnable r = new Runnable() {
 				@Override
 				public void run() {
-					handle(range.getKey(), range.getValue(), visitor, partitionId);
+					work(visitor);
 				}
 			};
 			executorService.execute(r);
@@ -85,171 +137,444 @@ public class TableScanner {
 		} catch (InterruptedException e) {
 			e.printStackTrace();
 		} finally {
-			if (this.savepointWriters != null) {
-				for(int i = 0; i < numPartitions; i++) {
-					this.savepointWriters[i].close();
-				}
+			if (prefetchExecutorService != null) {
+				prefetchExecutorService.shutdownNow();
+				prefetchExecutorService = null;
 			}
+			checkpoint();
 		}
 	}
 
+	/**
+	 * @return Initial ranges of a scan that is not resumed from savepoints
+	 */
 	public List<Map.Entry<Long, Long>> makeRanges() {
-		Long[] savedStartTokens = this.readSavepoints();
+		int minRanges = numPartitions * rangesPerPartition;
+		if (ringAligned) {
+			Map<InetAddress, List<Long>> tokensByHost = objectMapper.getTokensByHost();
+			if (tokensByHost != null && !tokensByHost.isEmpty()) {
+				return makeRingRanges(tokensByHost, minRanges);
+			}
+			logger.warn("Unable to read token ownership from the cluster, splitting the ring evenly");
+		}
+		return makeTokenRanges(minRanges);
+	}
+
+	/**
+	 * Split the ring along the ranges owned by each node, so every query of a range is answered by one replica set.
+	 * A node owns the range from the token before each of its tokens, exclusive, to that token, inclusive.
+	 * Ranges are split evenly until there are at least minRanges of them, and ordered round robin by owner so the
+	 * threads of a scan start on different nodes.
+	 * @param tokensByHost Tokens owned by each node
+	 * @param minRanges Minimum number of ranges to make
+	 * @return Inclusive start and end token of each range, covering the whole ring
+	 */
+	public static <T> List<Map.Entry<Long, Long>> makeRingRanges(Map<T, List<Long>> tokensByHost, int minRanges) {
+		TreeMap<Long, T> ring = Maps.newTreeMap();
+		for(Map.Entry<T, List<Long>> host : tokensByHost.entrySet()) {
+			for(Long token : host.getValue()) {
+				ring.put(token, host.getKey());
+			}
+		}
+		Preconditions.checkArgument(!ring.isEmpty(), "No tokens to split the ring by");
+
+		// The owner of the first token also owns the range that wraps around from the last token
+		Map<T, List<Map.Entry<Long, Long>>> rangesByOwner = Maps.newLinkedHashMap();
+		int ownedRanges = 0;
+		long start = minToken;
+		for(Map.Entry<Long, T> token : ring.entrySet()) {
+			addOwnedRange(rangesByOwner, token.getValue(), start, token.getKey());
+			ownedRanges++;
+			if (token.getKey() == maxToken) {
+				break;
+			}
+			start = token.getKey() + 1;
+		}
+		if (ring.lastKey() != maxToken) {
+			addOwnedRange(rangesByOwner, ring.firstEntry().getValue(), ring.lastKey() + 1, maxToken);
+			ownedRanges++;
+		}
+
+		int splitsPerRange = (minRanges + ownedRanges - 1) / ownedRanges;
+		List<Iterator<Map.Entry<Long, Long>>> owners = Lists.newArrayList();
+		for(List<Map.Entry<Long, Long>> ranges : rangesByOwner.values()) {
+			List<Map.Entry<Long, Long>> split = Lists.newArrayList();
+			for(Map.Entry<Long, Long> range : ranges) {
+				split.addAll(splitRange(range.getKey(), range.getValue(), splitsPerRange));
+			}
+			owners.add(split.iterator());
+		}
+		List<Map.Entry<Long, Long>> ret = Lists.newArrayList();
+		while(!owners.isEmpty()) {
+			Iterator<Iterator<Map.Entry<Long, Long>>> it = owners.iterator();
+			while(it.hasNext()) {
+				Iterator<Map.Entry<Long, Long>> owner = it.next();
+				if (owner.hasNext()) {
+					ret.add(owner.next());
+				} else {
+					it.remove();
+				}
+			}
+		}
+		return ret;
+	}
+
+	private static <T> void addOwnedRange(Map<T, List<Map.Entry<Long, Long>>> rangesByOwner, T owner, long start, long end) {
+		List<Map.Entry<Long, Long>> ranges = rangesByOwner.get(owner);
+		if (ranges == null) {
+			ranges = Lists.newArrayList();
+			rangesByOwner.put(owner, ranges);
+		}
+		ranges.add(new AbstractMap.SimpleEntry<Long, Long>(start, end));
+	}
+
+	private static List<Map.Entry<Long, Long>> splitRange(long start, long end, int pieces) {
+		List<Map.Entry<Long, Long>> ret = Lists.newArrayList();
+		BigInteger length = BigInteger.valueOf(end).subtract(BigInteger.valueOf(start)).add(BigInteger.ONE);
+		BigInteger pieceLength = length.divide(BigInteger.valueOf(pieces)).max(BigInteger.ONE);
+		BigInteger pieceStart = BigInteger.valueOf(start);
+		BigInteger last = BigInteger.valueOf(end);
+		for(int i = 0; i < pieces - 1; i++) {
+			BigInteger pieceEnd = pieceStart.add(pieceLength).subtract(BigInteger.ONE);
+			if (pieceEnd.compareTo(last) >= 0) {
+				break;
+			}
+			ret.add(new AbstractMap.SimpleEntry<Long, Long>(pieceStart.longValue(), pieceEnd.longValue()));
+			pieceStart = pieceEnd.add(BigInteger.ONE);
+		}
+		ret.add(new AbstractMap.SimpleEntry<Long, Long>(pieceStart.longValue(), end));
+		return ret;
+	}
+
+	private List<ScanRange> makeScanRanges() {
+		List<ScanRange> ranges = Lists.newArrayList();
+		for(Map.Entry<Long, Long> range : makeRanges()) {
+			ranges.add(new ScanRange(nextRangeId.getAndIncrement(), range.getKey(), range.getValue(), null));
+		}
+		return ranges;
+	}
+
+	/**
+	 * Split the full token ring into evenly sized ranges
+	 * @param numPartitions Number of ranges to make
+	 * @return Inclusive start and end token of each range, in token order
+	 */
+	public static List<Map.Entry<Long, Long>> makeTokenRanges(int numPartitions) {
 		List<Map.Entry<Long, Long>> ranges = Lists.newArrayList();
 		BigInteger fullRange = BigInteger.valueOf(maxToken).subtract(BigInteger.valueOf(minToken)).add(BigInteger.ONE);
 		BigInteger rangeLength = fullRange.divide(BigInteger.valueOf(numPartitions));
 		BigInteger rangeStart = BigInteger.valueOf(minToken);
 		for(int i = 0 ; i < numPartitions - 1 ; i++) {
 			BigInteger rangeEnd = rangeStart.add(rangeLength).subtract(BigInteger.ONE);
-			// If we have a savepoint for this partition, use that start token instead of the default
-			if (savedStartTokens != null) {
-				rangeStart = BigInteger.valueOf(savedStartTokens[i]);
-			}
-			AbstractMap.SimpleEntry<Long, Long> range = new AbstractMap.SimpleEntry<Long, Long>(rangeStart.longValue(), rangeEnd.longValue());
-			ranges.add(range);
+			ranges.add(new AbstractMap.SimpleEntry<Long, Long>(rangeStart.longValue(), rangeEnd.longValue()));
 			rangeStart = rangeEnd.add(BigInteger.ONE);
 		}
-		BigInteger rangeEnd = BigInteger.valueOf(maxToken);
-		if (savedStartTokens != null) {
-			rangeStart = BigInteger.valueOf(savedStartTokens[numPartitions - 1]);
-		}
-		AbstractMap.SimpleEntry<Long, Long> range = new AbstractMap.SimpleEntry<Long, Long>(rangeStart.longValue(), rangeEnd.longValue());
-		ranges.add(range);
+		ranges.add(new AbstractMap.SimpleEntry<Long, Long>(rangeStart.longValue(), maxToken));
 		return ranges;
 	}
 
-	private Long[] readSavepoints() {
-		Long[] out = null;
-		if (this.savepointDirectory != null) {
-			File[] existingSavepoints = this.savepointDirectory.listFiles();
-			// Ensure we have the right number of existing savepoint files
-			if (existingSavepoints == null) {
-				logger.info("No savepoint files found in savepoint directory.");
-			} else if (existingSavepoints.length != numPartitions) {
-				logger.info("Found " + existingSavepoints.length + " files in savepoint directory, expected " + numPartitions);
-			} else {
-				// We have the right number of files, let's parse them
-				Map<String, File> files = Maps.newHashMap();
-				for (File savepoint : existingSavepoints) {
-					files.put(savepoint.getName(), savepoint);
+	/**
+	 * The savepoint file holds the start and end token of every range not yet scanned, and the token of the last object
+	 * visited in each range that has been started, so resuming needs no lookups.
+	 * @return Ranges left to scan, or null to start a new scan
+	 */
+	private List<ScanRange> readSavepoints() {
+		if (this.savepointDirectory == null) {
+			return null;
+		}
+		File savepointFile = new File(this.savepointDirectory, SAVEPOINT_FILENAME);
+		try {
+			if (!savepointFile.exists()) {
+				logger.info("No savepoint file found in savepoint directory.");
+				// Clear out files left by another version or command
+				FileUtils.cleanDirectory(this.savepointDirectory);
+				return null;
+			}
+			List<ScanRange> out = Lists.newArrayList();
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(savepointFile)));
+			try {
+				byte version = in.readByte();
+				if (version != SAVEPOINT_VERSION) {
+					throw new IOException("Unsupported savepoint version " + version);
 				}
-				out = new Long[numPartitions];
-				for(int partitionId = 0; partitionId < numPartitions; partitionId++) {
-					// If any of the savepoints are missing for our partitions, fail out from restoring from savepoints
-					if (!files.keySet().contains(TableScanner.getSavepointFilename(partitionId))) {
-						return null;
-					}
-					File savepointFile = files.get(TableScanner.getSavepointFilename(partitionId));
-					UUID lastUuid = null;
-					try {
-						ReversedLinesFileReader reader = new ReversedLinesFileReader(savepointFile);
-						int lineCounter = 0;
-						while (lastUuid == null && lineCounter < this.maxSavepointLinesToCheck) {
-							try {
-								lastUuid = UUID.fromString(reader.readLine());
-							} catch (IllegalArgumentException e) {
-								// Do nothing here, just let the line counter get incremented
-							}
-							lineCounter++;
-						}
-						if (lastUuid == null) {
-							logger.warn("Unable to parse UUID from the last " + this.maxSavepointLinesToCheck + " lines of savepoint file " + TableScanner.getSavepointFilename(partitionId));
-							return null;
-						}
-						reader.close();
-					} catch (IOException e) {
-						logger.error("Error reading savepoint file", e);
-						return null;
-					}
-					out[partitionId] = this.objectMapper.getTokenForId(this.objectType, lastUuid);
+				int count = in.readInt();
+				for(int i = 0; i < count; i++) {
+					long start = in.readLong();
+					long end = in.readLong();
+					Long position = in.readBoolean() ? in.readLong() : null;
+					out.add(new ScanRange(nextRangeId.getAndIncrement(), start, end, position));
 				}
+			} finally {
+				in.close();
+			}
+			logger.info("Read savepoint successfully, " + out.size() + " ranges left to scan");
+			return out;
+		} catch (IOException e) {
+			logger.warn("Unable to read savepoint, clearing the savepoint directory and starting over", e);
+			try {
+				FileUtils.cleanDirectory(this.savepointDirectory);
+			} catch (IOException ce) {
+				logger.error("Unable to clear savepoint directory", ce);
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Save progress once enough pages have finished or enough time has passed since the last save
+	 */
+	private void pageFinished() {
+		if (this.savepointDirectory == null) {
+			return;
+		}
+		synchronized (checkpointLock) {
+			pagesSinceCheckpoint++;
+			if (pagesSinceCheckpoint < checkpointPages && System.currentTimeMillis() - lastCheckpointMillis < checkpointIntervalMillis) {
+				return;
 			}
 		}
-		logger.info("Read savepoints successfully: " + Arrays.toString(out));
-		return out;
+		checkpoint();
 	}
 
 	/**
-	 * @param partitionId 0-based partition id
-	 * @return Savepoint filename
+	 * Replace the savepoint file with the progress of every range. The new file is written and synced beside the old
+	 * one and then renamed over it, so a crash leaves either the old savepoint or the new one.
 	 */
-	public static String getSavepointFilename(Integer partitionId) {
-		return "savepoint-" + partitionId.toString() + ".txt";
+	private void checkpoint() {
+		if (this.savepointDirectory == null) {
+			return;
+		}
+		synchronized (checkpointLock) {
+			List<ScanRange> ranges = Lists.newArrayList();
+			synchronized (rangeLock) {
+				for(ScanRange range : Iterables.concat(pendingRanges, activeRanges, failedRanges)) {
+					ranges.add(new ScanRange(range.id, range.start, range.end, range.position));
+				}
+			}
+			try {
+				File tempFile = new File(this.savepointDirectory, SAVEPOINT_FILENAME + ".tmp");
+				FileOutputStream fileOut = new FileOutputStream(tempFile);
+				try {
+					DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+					out.writeByte(SAVEPOINT_VERSION);
+					out.writeInt(ranges.size());
+					for(ScanRange range : ranges) {
+						out.writeLong(range.start);
+						out.writeLong(range.end);
+						out.writeBoolean(range.position != null);
+						if (range.position != null) {
+							out.writeLong(range.position);
+						}
+					}
+					out.flush();
+					fileOut.getChannel().force(true);
+				} finally {
+					fileOut.close();
+				}
+				File savepointFile = new File(this.savepointDirectory, SAVEPOINT_FILENAME);
+				if (!tempFile.renameTo(savepointFile)) {
+					// Renaming over an existing file fails on some platforms
+					savepointFile.delete();
+					if (!tempFile.renameTo(savepointFile)) {
+						throw new IOException("Unable to rename " + tempFile + " to " + savepointFile);
+					}
+				}
+			} catch (IOException e) {
+				logger.error("Unable to write savepoint", e);
+			}
+			pagesSinceCheckpoint = 0;
+			lastCheckpointMillis = System.currentTimeMillis();
+		}
 	}
 
-	private PrintWriter[] makeSavepointWriters(Integer partitionCount) {
-		PrintWriter[] out = new PrintWriter[partitionCount];
+	private void work(CObjectTokenVisitor visitor) {
+		visitor.setUp();
 		try {
-			this.readySafepointDirectory(partitionCount);
-			for(int i = 0; i < partitionCount; i++) {
-				// Build a writer for each partition thread
-				out[i] = new PrintWriter(new FileOutputStream(this.savepointDirectory.getName() + "/" + TableScanner.getSavepointFilename(i), true));
+			ScanRange range;
+			while((range = nextRange()) != null) {
+				boolean scanned = false;
+				try {
+					scanRange(range, visitor);
+					scanned = true;
+				} finally {
+					finishRange(range, scanned);
+				}
 			}
-		} catch (IOException e) {
-			return null;
+			visitor.cleanUp();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (RuntimeException e) {
+			// The range stays in the savepoint, so resuming scans the rest of it
+			logger.error("Table scan thread failed", e);
+		} finally {
+			shutdownLatch.countDown();
 		}
-		return out;
 	}
 
-	private void readySafepointDirectory(Integer partitionCount) throws IOException {
-		File[] fileArray = this.savepointDirectory.listFiles();
-		// If there are already files in the savepoint directory...
-		if (fileArray != null) {
-			// Let's find out if they match our config or not (i.e. probably from the same command run previously)
-			Map<String, File> files = Maps.newHashMap();
-			for (File savepoint : fileArray) {
-				files.put(savepoint.getName(), savepoint);
+	/**
+	 * @return The next range to scan, waiting for a range to be split off if none are pending, or null once every
+	 * range has been scanned
+	 */
+	private ScanRange nextRange() throws InterruptedException {
+		synchronized (rangeLock) {
+			while(true) {
+				ScanRange range = pendingRanges.poll();
+				if (range != null) {
+					activeRanges.add(range);
+					return range;
+				}
+				if (activeRanges.isEmpty()) {
+					return null;
+				}
+				requestSplit();
+				rangeLock.wait(IDLE_WAIT_MILLIS);
 			}
-			Set<String> requiredFilenames = Sets.newHashSet();
-			for(int i = 0; i < partitionCount; i++) {
-				requiredFilenames.add(TableScanner.getSavepointFilename(i));
+		}
+	}
+
+	private void finishRange(ScanRange range, boolean scanned) {
+		synchronized (rangeLock) {
+			activeRanges.remove(range);
+			if (!scanned) {
+				failedRanges.add(range);
 			}
+			rangeLock.notifyAll();
+		}
+	}
 
-			// If they don't have the right filenames, clean the directory out
-			if (!files.keySet().equals(requiredFilenames)) {
-				logger.info("Existing savepoint files don't match what we're looking for, clearing them out and starting over.");
-				FileUtils.cleanDirectory(this.savepointDirectory);
+	/**
+	 * Ask the widest range being scanned to split. The split happens on the thread scanning the range at its next page
+	 * boundary, so pages it has already read ahead can be thrown away.
+	 */
+	private void requestSplit() {
+		ScanRange widest = null;
+		BigInteger widestSpan = BigInteger.valueOf(MIN_SPLIT_TOKENS).shiftLeft(1);
+		for(ScanRange range : activeRanges) {
+			if (range.splitRequested) {
+				continue;
+			}
+			Long position = range.position;
+			BigInteger span = BigInteger.valueOf(range.end).subtract(BigInteger.valueOf((position == null) ? range.start : position));
+			if (span.compareTo(widestSpan) > 0) {
+				widest = range;
+				widestSpan = span;
 			}
-			logger.info("Appending savepoints to existing files.");
-			// Otherwise leave the files there, we can append to them
+		}
+		if (widest != null) {
+			widest.splitRequested = true;
 		}
 	}
 
-	public void handle(Long minToken, Long maxToken, CObjectTokenVisitor visitor, Integer partitionId) {
-		visitor.setUp();
-		List<Map<String, Object>> results = executeStatement(objectType, minToken, maxToken, batchSize);
-		while(results != null && results.size() > 0) {
-			visitResults(results, visitor);
-			String minUuid = String.valueOf(results.get(results.size() - 1).get("id"));
-			results = executeStatement(objectType, minUuid, maxToken, batchSize);
-			if (this.savepointWriters != null) {
-				// We've processed this range, so save our progress for later
-				this.savepointWriters[partitionId].append(minUuid);
-				this.savepointWriters[partitionId].append("\n");
-				this.savepointWriters[partitionId].flush();
+	private void scanRange(ScanRange range, CObjectTokenVisitor visitor) {
+		Long position = range.position;
+		if (position != null && position >= range.end) {
+			return;
+		}
+		List<String> fields = visitor.getSelectedFields();
+		Predicate<Row> rowFilter = visitor.getRowFilter();
+		boolean writeTimes = visitor.isReadingWriteTimes();
+		PageSource pages = makePageSource((position == null) ? range.start : position + 1, range.end, fields, rowFilter, writeTimes);
+		try {
+			TableScanPage page = pages.next();
+			while(!page.isEmpty()) {
+				visitResults(page, visitor);
+				visitor.finishPage();
+				Object lastId = page.getLastId();
+				// Only count the page as done once the visitor has finished with it
+				range.position = getToken(lastId);
+				pageFinished();
+				if (range.splitRequested && split(range)) {
+					// Pages already read ahead may run past the new end
+					pages.close();
+					pages = makePageSource(String.valueOf(lastId), range.end, fields, rowFilter, writeTimes);
+				}
+				page = pages.next();
 			}
+		} finally {
+			pages.close();
+		}
+	}
+
+	/**
+	 * Give the second half of the rest of the range to another thread
+	 * @param range Range being scanned by this thread
+	 * @return True if the range was split
+	 */
+	private boolean split(ScanRange range) {
+		range.splitRequested = false;
+		long position = range.position;
+		BigInteger remaining = BigInteger.valueOf(range.end).subtract(BigInteger.valueOf(position));
+		if (remaining.compareTo(BigInteger.valueOf(MIN_SPLIT_TOKENS).shiftLeft(1)) <= 0) {
+			return false;
+		}
+		long mid = BigInteger.valueOf(position).add(remaining.shiftRight(1)).longValue();
+		ScanRange tail = new ScanRange(nextRangeId.getAndIncrement(), mid + 1, range.end, null);
+		// Shrink this range and queue the tail together, so a savepoint always covers the whole ring
+		synchronized (rangeLock) {
+			range.end = mid;
+			pendingRanges.addFirst(tail);
+			rangeLock.notifyAll();
+		}
+		logger.debug("Split range {} at token {}, new range {}", range.id, mid, tail.id);
+		return true;
+	}
+
+	/**
+	 * @param id Id of an object
+	 * @return Token of the object's partition under the Murmur3 partitioner, which the scan's token ranges already assume
+	 */
+	static long getToken(Object id) {
+		ByteBuffer key;
+		if (id instanceof UUID) {
+			key = DataType.uuid().serialize(id);
+		} else if (id instanceof Long) {
+			key = DataType.bigint().serialize(id);
+		} else if (id instanceof Integer) {
+			key = DataType.cint().serialize(id);
+		} else if (id instanceof String) {
+			key = DataType.varchar().serialize(id);
+		} else {
+			throw new IllegalArgumentException("Unable to compute the token of id " + id + " of type " + ((id == null) ? null : id.getClass()));
 		}
-		visitor.cleanUp();
-		shutdownLatch.countDown();
+		return partitioner.getToken(key).token;
+	}
+
+	private PageSource makePageSource(Object start, Long end, @Nullable List<String> fields, @Nullable Predicate<Row> rowFilter, boolean writeTimes) {
+		return (prefetchExecutorService == null) ? new PageSource(start, end, fields, rowFilter, writeTimes) : new PrefetchingPageSource(start, end, fields, rowFilter, writeTimes);
 	}
 
-	private void visitResults(List<Map<String, Object>> results, CObjectTokenVisitor visitor) {
-		for(Map<String, Object> result : results) {
-			visitor.visit(result);
+	private void visitResults(TableScanPage page, CObjectTokenVisitor visitor) {
+		List<Map<String, Object>> results = page.getResults();
+		List<Long> writeTimes = page.getWriteTimes();
+		for(int i = 0; i < results.size(); i++) {
+			if(writeTimes == null) {
+				visitor.visit(results.get(i));
+			} else {
+				visitor.visit(results.get(i), writeTimes.get(i));
+			}
 		}
 	}
 
-	private List<Map<String, Object>> executeStatement(String objectType, Object minToken, Long maxToken, long batchSize) {
+	/**
+	 * Visitors that do not narrow the scan or read write times keep reading every column of every row
+	 */
+	private TableScanPage executeStatement(String objectType, Object minToken, Long maxToken, long batchSize, @Nullable List<String> fields, @Nullable Predicate<Row> rowFilter, boolean writeTimes) {
 		int retries = 0;
 		while(retries < statementRetries) {
 			try {
+				if(fields != null || rowFilter != null || writeTimes) {
+					return objectMapper.scanTable(objectType, minToken, maxToken, batchSize, fields, rowFilter, writeTimes);
+				}
 				List<Map<String, Object>> results;
 				if(Long.class.isAssignableFrom(minToken.getClass())) {
 					results = objectMapper.scanTableWithStartToken(objectType, (Long)minToken, maxToken, batchSize);
 				} else {
 					results = objectMapper.scanTableWithStartId(objectType, (String)minToken, maxToken, batchSize);
 				}
-				return results;
+				if(results == null || results.isEmpty()) {
+					return EMPTY_PAGE;
+				}
+				return new TableScanPage(results, results.get(results.size() - 1).get("id"), results.size());
 			} catch(Exception e) {
 				logger.error("Exception number " + retries + " executing statement", e);
 				retries++;
@@ -276,4 +601,221 @@ public class TableScanner {
 	public void setStatementRetries(int statementRetries) {
 		this.statementRetries = statementRetries;
 	}
+
+	public int getRangesPerPartition() {
+		return rangesPerPartition;
+	}
+
+	/**
+	 * @param rangesPerPartition Number of ranges to split the ring into for each thread when starting a new scan
+	 */
+	public void setRangesPerPartition(int rangesPerPartition) {
+		this.rangesPerPartition = rangesPerPartition;
+	}
+
+	public int getCheckpointPages() {
+		return checkpointPages;
+	}
+
+	/**
+	 * @param checkpointPages Save progress after this many pages have been finished across all threads
+	 */
+	public void setCheckpointPages(int checkpointPages) {
+		this.checkpointPages = checkpointPages;
+	}
+
+	public long getCheckpointIntervalMillis() {
+		return checkpointIntervalMillis;
+	}
+
+	/**
+	 * @param checkpointIntervalMillis Save progress after a page finishes if at least this long has passed since the last save
+	 */
+	public void setCheckpointIntervalMillis(long checkpointIntervalMillis) {
+		this.checkpointIntervalMillis = checkpointIntervalMillis;
+	}
+
+	@Nullable
+	public ScanThrottle getThrottle() {
+		return throttle;
+	}
+
+	/**
+	 * @param throttle Throttle to limit reads by, or null to read as fast as possible. Can be changed during a scan.
+	 */
+	public void setThrottle(@Nullable ScanThrottle throttle) {
+		this.throttle = throttle;
+	}
+
+	public boolean isRingAligned() {
+		return ringAligned;
+	}
+
+	/**
+	 * @param ringAligned True to split a new scan along the token ranges owned by each node instead of evenly.
+	 *                    Pages after the first of each range bind the id of an object in the range, so the driver's
+	 *                    token aware routing sends them to a replica of the range.
+	 */
+	public void setRingAligned(boolean ringAligned) {
+		this.ringAligned = ringAligned;
+	}
+
+	public int getPrefetchDepth() {
+		return prefetchDepth;
+	}
+
+	/**
+	 * @param prefetchDepth Number of pages each partition reads ahead of the page being visited, or 0 to read each
+	 *                      page only after the previous one has been visited. Takes effect on the next scan.
+	 */
+	public void setPrefetchDepth(int prefetchDepth) {
+		this.prefetchDepth = prefetchDepth;
+	}
+
+	/**
+	 * Reads the pages of one partition in order, each page starting after the last id of the page before it
+	 */
+	private class PageSource {
+		protected final Long maxToken;
+		private final List<String> fields;
+		private final Predicate<Row> rowFilter;
+		private final boolean writeTimes;
+		private Object nextStart;
+
+		/**
+		 * @param start Token to start at, or String id of the object to start after
+		 * @param fields Fields the visitor reads, or null for every field
+		 * @param rowFilter Filter the visitor runs on rows before they are mapped, or null
+		 * @param writeTimes True if the visitor reads write times
+		 */
+		private PageSource(Object start, Long maxToken, @Nullable List<String> fields, @Nullable Predicate<Row> rowFilter, boolean writeTimes) {
+			this.maxToken = maxToken;
+			this.fields = fields;
+			this.rowFilter = rowFilter;
+			this.writeTimes = writeTimes;
+			this.nextStart = start;
+		}
+
+		/**
+		 * @return Next page, empty once the partition has been read
+		 */
+		protected TableScanPage next() {
+			if (nextStart == null) {
+				return EMPTY_PAGE;
+			}
+			ScanThrottle throttle = TableScanner.this.throttle;
+			if (throttle != null) {
+				throttle.acquireRequest();
+			}
+			long startMillis = System.currentTimeMillis();
+			TableScanPage page = executeStatement(objectType, nextStart, maxToken, batchSize, fields, rowFilter, writeTimes);
+			if (throttle != null) {
+				throttle.recordLatency(System.currentTimeMillis() - startMillis);
+				// Rows the filter rejected were still read
+				throttle.acquireRows(page.getRowsRead());
+			}
+			nextStart = page.isEmpty() ? null : String.valueOf(page.getLastId());
+			return page;
+		}
+
+		protected void close() {
+		}
+	}
+
+	/**
+	 * Reads pages on a prefetch thread, so the next pages are already in memory or in flight while the current one
+	 * is visited. The next page only needs the last id of the page before it, so reading never waits on the visitor
+	 * until the queue is full.
+	 */
+	private class PrefetchingPageSource extends PageSource {
+		private final BlockingQueue<Page> queue = new ArrayBlockingQueue<Page>(prefetchDepth);
+		private final Future<?> fetcher;
+		private boolean finished = false;
+
+		private PrefetchingPageSource(Object start, Long maxToken, @Nullable List<String> fields, @Nullable Predicate<Row> rowFilter, boolean writeTimes) {
+			super(start, maxToken, fields, rowFilter, writeTimes);
+			fetcher = prefetchExecutorService.submit(new Runnable() {
+				@Override
+				public void run() {
+					fetchAll();
+				}
+			});
+		}
+
+		private void fetchAll() {
+			try {
+				TableScanPage page;
+				do {
+					page = super.next();
+					queue.put(new Page(page, null));
+				} while(!page.isEmpty());
+			} catch(InterruptedException e) {
+				// The partition stopped reading pages
+				Thread.currentThread().interrupt();
+			} catch(RuntimeException e) {
+				try {
+					queue.put(new Page(null, e));
+				} catch(InterruptedException ie) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+
+		@Override
+		protected TableScanPage next() {
+			if (finished) {
+				return EMPTY_PAGE;
+			}
+			Page page;
+			try {
+				page = queue.take();
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			}
+			if (page.error != null) {
+				finished = true;
+				throw page.error;
+			}
+			if (page.page.isEmpty()) {
+				finished = true;
+			}
+			return page.page;
+		}
+
+		@Override
+		protected void close() {
+			fetcher.cancel(true);
+		}
+	}
+
+	/**
+	 * Part of the ring scanned by one thread at a time. The end moves down when the range is split.
+	 */
+	private static class ScanRange {
+		private final int id;
+		private final long start;
+		// Only changed while holding rangeLock
+		private volatile long end;
+		// Token of the last object visited, or null if no page has been finished
+		private volatile Long position;
+		private volatile boolean splitRequested = false;
+
+		private ScanRange(int id, long start, long end, Long position) {
+			this.id = id;
+			this.start = start;
+			this.end = end;
+			this.position = position;
+		}
+	}
+
+	private static class Page {
+		private final TableScanPage page;
+		private final RuntimeException error;
+
+		private Page(TableScanPage page, RuntimeException error) {
+			this.page = page;
+			this.error = error;
+		}
+	}
 }
@@ -1,18 +1,42 @@
 package com.pardot.rhombus;
 
+import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.utils.UUIDs;
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.databind.JsonMappingException;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.pardot.rhombus.cobject.*;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Meter;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.input.ReversedLinesFileReader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.List;
-import java.util.Map;
-import java.util.UUID;
+import java.io.PrintWriter;
+import java.math.BigInteger;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Pardot, An ExactTarget Company
@@ -22,7 +46,19 @@ import java.util.UUID;
 public class UpdateProcessor {
 
 	private static Logger logger = LoggerFactory.getLogger(UpdateProcessor.class);
+	public static final int DEFAULT_PAGE_SIZE = 500;
+	public static final int DEFAULT_MAX_IN_FLIGHT_ROWS = 100;
+
 	private ObjectMapper objectMapper;
+	private int pageSize = DEFAULT_PAGE_SIZE;
+	private int maxInFlightRows = DEFAULT_MAX_IN_FLIGHT_ROWS;
+	private List<RangeProgress> rangeProgress = Collections.emptyList();
+	// Stop signal of the current or most recent parallel run
+	private volatile AtomicBoolean stopRequested = new AtomicBoolean(false);
+	// Unix timestamp in milliseconds of the oldest update found by the current or most recent parallel run
+	private final AtomicLong oldestEligibleUpdate = new AtomicLong(Long.MAX_VALUE);
+	private volatile ScanThrottle throttle = null;
+	private final Meter deletes = Metrics.defaultRegistry().newMeter(UpdateProcessor.class, "deletes", "deletes", TimeUnit.SECONDS);
 
 	public UpdateProcessor(ObjectMapper om){
 		this.objectMapper = om;
@@ -41,11 +77,12 @@ public class UpdateProcessor {
 	}
 
 	public void process(long rowLimit) throws IOException {
-		IndexUpdateRow row = objectMapper.getNextUpdateIndexRow(null);
+		IndexUpdateRow row = getNextUpdateIndexRow(null);
 		long examinedRows = 0l;
 		while(row != null){
+			acquireRequest();
 			processRow(row);
-			row = objectMapper.getNextUpdateIndexRow(row.getRowKey());
+			row = getNextUpdateIndexRow(row.getRowKey());
 			examinedRows++;
 			if(rowLimit > 0 && examinedRows >= rowLimit) {
 				break;
@@ -53,6 +90,281 @@ public class UpdateProcessor {
 		}
 	}
 
+	/**
+	 * Process every update row with an update older than the consistency horizon, like process, but split the token
+	 * ring into ranges that are processed concurrently. Each range reads update rows a page at a time in token order
+	 * and sends the deletes for a page asynchronously.
+	 * @param numRanges Number of token ranges to process concurrently
+	 * @param savepointDirectoryPath Directory to save the progress of each range in, so an interrupted run can resume,
+	 *                               or null to not save progress
+	 * @return True if every range was processed, false if the run was stopped early by requestStop
+	 * @throws IOException If stored index values could not be parsed or savepoints could not be read or written
+	 */
+	public boolean processInParallel(int numRanges, @Nullable String savepointDirectoryPath) throws IOException {
+		return processInParallel(numRanges, savepointDirectoryPath, new AtomicBoolean(false));
+	}
+
+	/**
+	 * Like processInParallel, but stopped by the caller's own signal as well as by requestStop. A signal that is set
+	 * before the run starts stops it before it processes anything, so a stop can not be lost to a run starting.
+	 * @param numRanges Number of token ranges to process concurrently
+	 * @param savepointDirectoryPath Directory to save the progress of each range in, or null to not save progress
+	 * @param stopSignal Set to true to stop the run. Each range finishes the page it is on and saves its progress first.
+	 * @return True if every range was processed, false if the run was stopped early
+	 * @throws IOException If stored index values could not be parsed or savepoints could not be read or written
+	 */
+	public boolean processInParallel(int numRanges, @Nullable String savepointDirectoryPath, final AtomicBoolean stopSignal) throws IOException {
+		stopRequested = stopSignal;
+		oldestEligibleUpdate.set(Long.MAX_VALUE);
+		List<Map.Entry<Long, Long>> ranges = TableScanner.makeTokenRanges(numRanges);
+		File savepointDirectory = null;
+		Long[] savedTokens = null;
+		if(savepointDirectoryPath != null) {
+			savepointDirectory = new File(savepointDirectoryPath);
+			savedTokens = readSavepoints(savepointDirectory, numRanges);
+		}
+		List<RangeProgress> progress = Lists.newArrayList();
+		for(int i = 0; i < numRanges; i++) {
+			Map.Entry<Long, Long> range = ranges.get(i);
+			progress.add(new RangeProgress(i, range.getKey(), range.getValue(), (savedTokens == null) ? null : savedTokens[i]));
+		}
+		this.rangeProgress = Collections.unmodifiableList(progress);
+		final Semaphore inFlightRows = new Semaphore(maxInFlightRows);
+		ExecutorService executorService = Executors.newFixedThreadPool(numRanges, new ThreadFactoryBuilder().setDaemon(true).setNameFormat("rhombus-update-processor-%d").build());
+		try {
+			List<Future<Void>> results = Lists.newArrayList();
+			for(final RangeProgress range : progress) {
+				final File savepointFile = (savepointDirectory == null) ? null : new File(savepointDirectory, getSavepointFilename(range.getRangeId()));
+				results.add(executorService.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						processRange(range, savepointFile, inFlightRows, stopSignal);
+						return null;
+					}
+				}));
+			}
+			for(Future<Void> result : results) {
+				try {
+					result.get();
+				} catch(ExecutionException e) {
+					if(e.getCause() instanceof IOException) {
+						throw (IOException)e.getCause();
+					}
+					throw new RuntimeException(e.getCause());
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException(e);
+				}
+			}
+		} finally {
+			executorService.shutdownNow();
+		}
+		for(RangeProgress range : progress) {
+			if(!range.isComplete()) {
+				return false;
+			}
+		}
+		if(savepointDirectory != null) {
+			// Start the next run from the beginning of the ring
+			FileUtils.cleanDirectory(savepointDirectory);
+		}
+		return true;
+	}
+
+	private IndexUpdateRow getNextUpdateIndexRow(@Nullable IndexUpdateRowKey lastInstanceKey) throws IOException {
+		ScanThrottle throttle = this.throttle;
+		if(throttle == null) {
+			return objectMapper.getNextUpdateIndexRow(lastInstanceKey);
+		}
+		throttle.acquireRequest();
+		long start = System.currentTimeMillis();
+		IndexUpdateRow row = objectMapper.getNextUpdateIndexRow(lastInstanceKey);
+		throttle.recordLatency(System.currentTimeMillis() - start);
+		throttle.acquireRows((row == null) ? 0 : 1);
+		return row;
+	}
+
+	private List<IndexUpdateRow> getUpdateIndexRowsInTokenRange(long startToken, long endToken) throws IOException {
+		ScanThrottle throttle = this.throttle;
+		if(throttle == null) {
+			return objectMapper.getUpdateIndexRowsInTokenRange(startToken, endToken, pageSize);
+		}
+		throttle.acquireRequest();
+		long start = System.currentTimeMillis();
+		List<IndexUpdateRow> rows = objectMapper.getUpdateIndexRowsInTokenRange(startToken, endToken, pageSize);
+		throttle.recordLatency(System.currentTimeMillis() - start);
+		throttle.acquireRows(rows.size());
+		return rows;
+	}
+
+	/**
+	 * Wait for the throttle, if any, before sending the deletes for one row
+	 */
+	private void acquireRequest() {
+		ScanThrottle throttle = this.throttle;
+		if(throttle != null) {
+			throttle.acquireRequest();
+		}
+	}
+
+	/**
+	 * Ask a running processInParallel to stop. Each range finishes the page it is on and saves its progress first.
+	 */
+	public void requestStop() {
+		stopRequested.set(true);
+	}
+
+	/**
+	 * @return Unix timestamp in milliseconds of the oldest update found by the current or most recent parallel run,
+	 * or null if it found none
+	 */
+	@Nullable
+	public Long getOldestEligibleUpdate() {
+		long oldest = oldestEligibleUpdate.get();
+		return (oldest == Long.MAX_VALUE) ? null : oldest;
+	}
+
+	private void processRange(RangeProgress range, @Nullable File savepointFile, final Semaphore inFlightRows, AtomicBoolean stopSignal) throws IOException, InterruptedException {
+		PrintWriter savepointWriter = (savepointFile == null) ? null : new PrintWriter(new FileOutputStream(savepointFile, true));
+		try {
+			while(!range.isComplete() && !stopSignal.get()) {
+				List<IndexUpdateRow> rows = getUpdateIndexRowsInTokenRange(range.getNextToken(), range.getEndToken());
+				if(rows.isEmpty()) {
+					range.complete();
+				} else {
+					long consistencyHorizon = UUIDs.unixTimestamp(objectMapper.getTimeUUIDAtEndOfConsistencyHorizion());
+					List<ListenableFuture<ResultSet>> deletes = Lists.newArrayList();
+					for(IndexUpdateRow row : rows) {
+						if(isEligible(row, consistencyHorizon)) {
+							recordEligibleUpdate(row);
+							acquireRequest();
+							inFlightRows.acquire();
+							ListenableFuture<ResultSet> delete = processRowAsync(row);
+							delete.addListener(new Runnable() {
+								@Override
+								public void run() {
+									inFlightRows.release();
+								}
+							}, MoreExecutors.sameThreadExecutor());
+							deletes.add(delete);
+						}
+					}
+					long failed = 0;
+					for(ListenableFuture<ResultSet> delete : deletes) {
+						try {
+							delete.get();
+						} catch(ExecutionException e) {
+							// The row keeps its update columns, so the next pass tries it again
+							logger.warn("Failed deleting obsolete index values", e.getCause());
+							failed++;
+						}
+					}
+					range.advance(rows.get(rows.size() - 1).getToken(), rows.size(), deletes.size() - failed, failed);
+				}
+				if(savepointWriter != null) {
+					savepointWriter.println(range.isComplete() ? range.getEndToken() : range.getLastToken());
+					savepointWriter.flush();
+				}
+				logger.info("Update range {} is {}% complete: {} rows examined, {} cleaned, {} failed",
+						range.getRangeId(), Math.round(range.getFractionComplete() * 100), range.getRowsExamined(), range.getRowsCleaned(), range.getRowsFailed());
+			}
+		} finally {
+			if(savepointWriter != null) {
+				savepointWriter.close();
+			}
+		}
+	}
+
+	private void recordEligibleUpdate(IndexUpdateRow row) {
+		long updateTime = UUIDs.unixTimestamp(row.getIds().get(row.getIds().size() - 1));
+		long oldest = oldestEligibleUpdate.get();
+		while(updateTime < oldest && !oldestEligibleUpdate.compareAndSet(oldest, updateTime)) {
+			oldest = oldestEligibleUpdate.get();
+		}
+	}
+
+	/**
+	 * @return Last token completed by each range, or null if the directory does not hold a savepoint for every range
+	 */
+	@Nullable
+	private Long[] readSavepoints(File savepointDirectory, int numRanges) throws IOException {
+		Set<String> requiredFilenames = Sets.newHashSet();
+		for(int i = 0; i < numRanges; i++) {
+			requiredFilenames.add(getSavepointFilename(i));
+		}
+		String[] existingFilenames = savepointDirectory.list();
+		if(existingFilenames == null) {
+			savepointDirectory.mkdir();
+			return null;
+		}
+		if(!requiredFilenames.equals(Sets.newHashSet(existingFilenames))) {
+			logger.info("Existing update savepoint files don't match {} ranges, starting over", numRanges);
+			FileUtils.cleanDirectory(savepointDirectory);
+			return null;
+		}
+		Long[] out = new Long[numRanges];
+		for(int i = 0; i < numRanges; i++) {
+			ReversedLinesFileReader reader = new ReversedLinesFileReader(new File(savepointDirectory, getSavepointFilename(i)));
+			try {
+				String line = reader.readLine();
+				while(line != null && line.trim().isEmpty()) {
+					line = reader.readLine();
+				}
+				out[i] = (line == null) ? null : Long.valueOf(line.trim());
+			} catch(NumberFormatException e) {
+				logger.warn("Unable to parse update savepoint for range {}", i);
+			} finally {
+				reader.close();
+			}
+		}
+		logger.info("Read update savepoints: {}", Arrays.toString(out));
+		return out;
+	}
+
+	/**
+	 * @param rangeId 0-based range id
+	 * @return Savepoint filename
+	 */
+	public static String getSavepointFilename(Integer rangeId) {
+		return "update-savepoint-" + rangeId.toString() + ".txt";
+	}
+
+	/**
+	 * @return Progress of each range of the current or most recent processInParallel run
+	 */
+	public List<RangeProgress> getRangeProgress() {
+		return rangeProgress;
+	}
+
+	public int getPageSize() {
+		return pageSize;
+	}
+
+	public void setPageSize(int pageSize) {
+		this.pageSize = pageSize;
+	}
+
+	@Nullable
+	public ScanThrottle getThrottle() {
+		return throttle;
+	}
+
+	/**
+	 * @param throttle Throttle to limit update row reads and the deletes sent for them by, or null to run as fast as
+	 *                 possible. Can be changed while processing.
+	 */
+	public void setThrottle(@Nullable ScanThrottle throttle) {
+		this.throttle = throttle;
+	}
+
+	public int getMaxInFlightRows() {
+		return maxInFlightRows;
+	}
+
+	public void setMaxInFlightRows(int maxInFlightRows) {
+		this.maxInFlightRows = maxInFlightRows;
+	}
+
 	public List<Map<String,Object>> getUpdatesThatHappenedWithinTimeframe(Long timeInNanos) throws IOException {
 		return getUpdatesThatHappenedWithinTimeframe(timeInNanos, 0l);
 	}
@@ -99,28 +411,87 @@ public class UpdateProcessor {
 	}
 
 	protected void processRow(IndexUpdateRow row){
-		if(row.getIndexValues().size() == 0){
+		RowCleanup cleanup = planRowCleanup(row);
+		if(cleanup == null){
 			return;
 		}
+		//delete the list of indexes with a timestamp of the current update
+		for(CIndex index : cleanup.indexes){
+			for(Map<String,Object> values: cleanup.valuesToDelete){
+				objectMapper.deleteObsoleteIndex(row,index, values);
+			}
+		}
+
+		//now delete the processed update columns in this row
+		for(UUID todelete: cleanup.updateIds){
+			objectMapper.deleteObsoleteUpdateIndexColumn(row.getRowKey(),todelete);
+		}
+		deletes.mark(cleanup.getDeleteCount());
+	}
+
+	/**
+	 * Same as processRow, but sends the deletes without waiting for them. The update columns are only deleted once
+	 * the obsolete index entries are gone, so a row whose index deletes fail is picked up again on the next pass.
+	 * @param row Update row to process
+	 * @return Future that completes once every delete for the row has completed
+	 */
+	protected ListenableFuture<ResultSet> processRowAsync(final IndexUpdateRow row){
+		final RowCleanup cleanup = planRowCleanup(row);
+		if(cleanup == null){
+			return Futures.immediateFuture(null);
+		}
+		ListenableFuture<List<ResultSet>> indexDeletes = objectMapper.deleteObsoleteIndexesAsync(row, cleanup.indexes, cleanup.valuesToDelete);
+		ListenableFuture<ResultSet> result = Futures.transform(indexDeletes, new AsyncFunction<List<ResultSet>, ResultSet>() {
+			@Override
+			public ListenableFuture<ResultSet> apply(List<ResultSet> results) {
+				return objectMapper.deleteObsoleteUpdateIndexColumnsAsync(row.getRowKey(), cleanup.updateIds);
+			}
+		});
+		Futures.addCallback(result, new FutureCallback<ResultSet>() {
+			@Override
+			public void onSuccess(ResultSet resultSet) {
+				deletes.mark(cleanup.getDeleteCount());
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Work out which index entries and update columns of a row are obsolete
+	 * @param row Update row, newest update first. The newest update is removed from it.
+	 * @return Deletes to make, or null if there is nothing to delete
+	 */
+	@Nullable
+	private RowCleanup planRowCleanup(IndexUpdateRow row){
+		if(row.getIndexValues().size() == 0){
+			return null;
+		}
 		if(row.getIndexValues().size() == 1){
 			//if this is older than the consistency horizon, just delete it
 			Long consistencyHorizon = UUIDs.unixTimestamp(objectMapper.getTimeUUIDAtEndOfConsistencyHorizion());
 			if(row.getTimeStampOfMostCurrentUpdate() > consistencyHorizon){
-				objectMapper.deleteObsoleteUpdateIndexColumn(row.getRowKey(),row.getIds().get(0));
+				return new RowCleanup(Collections.<CIndex>emptyList(), Collections.<Map<String,Object>>emptyList(), Lists.newArrayList(row.getIds().get(0)));
 			}
-			return;
+			return null;
 		}
 
 		//make a list of all the updated indexes and subtract all the indexes that are current
 		Map<String,Object> mostRecentUpdate = row.getIndexValues().get(0);
 		row.getIndexValues().remove(0);
 		row.getIds().remove(0);
-		List<CIndex> listOfIndexesToDelete = Lists.newArrayList();
-		List<Map<String,Object>> listOfValuesToDelete = Lists.newArrayList();
+		Set<CIndex> indexesToDelete = Sets.newLinkedHashSet();
+		List<Map<String,Object>> valuesToDelete = Lists.newArrayList();
 		for(Map<String,Object> update: row.getIndexValues()){
 			if(!areIndexValuesEqual(mostRecentUpdate, update)){
-				listOfValuesToDelete.add(update);
-				listOfIndexesToDelete.addAll(
+				//if any of the values are null we can skip it because its not actually a written index
+				if(!areAnyValuesNull(update)){
+					valuesToDelete.add(update);
+				}
+				indexesToDelete.addAll(
 					getListOfEffectedIndexes(objectMapper.getKeyspaceDefinition().getDefinitions().get(row.getObjectName()),
 						mostRecentUpdate,
 						update
@@ -128,21 +499,17 @@ public class UpdateProcessor {
 				);
 			}
 		}
-		//delete the list of indexes with a timestamp of the current update
-		for(CIndex index : listOfIndexesToDelete){
-			for(Map<String,Object> values: listOfValuesToDelete){
-				//if any of the values are null we can skip it because its not actually a written index
-				if(!areAnyValuesNull(values)){
-					objectMapper.deleteObsoleteIndex(row,index, values);
-				}
-			}
-		}
-
-		//now delete the processed update columns in this row
-		for(UUID todelete: row.getIds()){
-			objectMapper.deleteObsoleteUpdateIndexColumn(row.getRowKey(),todelete);
-		}
+		return new RowCleanup(Lists.newArrayList(indexesToDelete), valuesToDelete, row.getIds());
+	}
 
+	/**
+	 * @param row Update row, newest update first
+	 * @param consistencyHorizon Unix timestamp in milliseconds of the end of the consistency horizon
+	 * @return True if the row has an update older than the consistency horizon, which is what process looks for
+	 */
+	protected boolean isEligible(IndexUpdateRow row, long consistencyHorizon){
+		List<UUID> ids = row.getIds();
+		return !ids.isEmpty() && UUIDs.unixTimestamp(ids.get(ids.size() - 1)) < consistencyHorizon;
 	}
 
 	protected boolean areAnyValuesNull(Map<String,Object> indexValues){
@@ -178,6 +545,112 @@ public class UpdateProcessor {
 		return true;
 	}
 
+	private static class RowCleanup {
+		private final List<CIndex> indexes;
+		private final List<Map<String,Object>> valuesToDelete;
+		private final List<UUID> updateIds;
+
+		private RowCleanup(List<CIndex> indexes, List<Map<String,Object>> valuesToDelete, List<UUID> updateIds) {
+			this.indexes = indexes;
+			this.valuesToDelete = valuesToDelete;
+			this.updateIds = updateIds;
+		}
+
+		private long getDeleteCount() {
+			return ((long)indexes.size() * valuesToDelete.size()) + updateIds.size();
+		}
+	}
+
+	/**
+	 * Progress of one token range of a parallel run
+	 */
+	public static class RangeProgress {
+		private final int rangeId;
+		private final long startToken;
+		private final long endToken;
+		private volatile Long lastToken;
+		private volatile boolean complete = false;
+		private final AtomicLong rowsExamined = new AtomicLong(0);
+		private final AtomicLong rowsCleaned = new AtomicLong(0);
+		private final AtomicLong rowsFailed = new AtomicLong(0);
+
+		private RangeProgress(int rangeId, long startToken, long endToken, @Nullable Long savedToken) {
+			this.rangeId = rangeId;
+			this.startToken = startToken;
+			this.endToken = endToken;
+			this.lastToken = savedToken;
+			this.complete = (savedToken != null && savedToken >= endToken);
+		}
+
+		private void advance(long lastToken, long examined, long cleaned, long failed) {
+			this.lastToken = lastToken;
+			this.rowsExamined.addAndGet(examined);
+			this.rowsCleaned.addAndGet(cleaned);
+			this.rowsFailed.addAndGet(failed);
+			if(lastToken >= endToken) {
+				complete = true;
+			}
+		}
+
+		private void complete() {
+			this.complete = true;
+		}
+
+		private long getNextToken() {
+			return (lastToken == null) ? startToken : lastToken + 1;
+		}
+
+		public int getRangeId() {
+			return rangeId;
+		}
+
+		public long getStartToken() {
+			return startToken;
+		}
+
+		public long getEndToken() {
+			return endToken;
+		}
+
+		/**
+		 * @return Token of the last row processed, or null if no rows have been processed
+		 */
+		public Long getLastToken() {
+			return lastToken;
+		}
+
+		public boolean isComplete() {
+			return complete;
+		}
+
+		/**
+		 * @return Fraction of the range's tokens that have been processed, between 0 and 1
+		 */
+		public double getFractionComplete() {
+			if(complete) {
+				return 1.0;
+			}
+			if(lastToken == null) {
+				return 0.0;
+			}
+			BigInteger done = BigInteger.valueOf(lastToken).subtract(BigInteger.valueOf(startToken));
+			BigInteger total = BigInteger.valueOf(endToken).subtract(BigInteger.valueOf(startToken));
+			return done.doubleValue() / total.doubleValue();
+		}
+
+		public long getRowsExamined() {
+			return rowsExamined.get();
+		}
+
+		public long getRowsCleaned() {
+			return rowsCleaned.get();
+		}
+
+		public long getRowsFailed() {
+			return rowsFailed.get();
+		}
+	}
+
 	public void displayListResults(List<Map<String,Object>> results){
 		System.out.println(" Difference | Type | Instance | New Values | Old Values");
 		System.out.println("--------------------------------------------------------");
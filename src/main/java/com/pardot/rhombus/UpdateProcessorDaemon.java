@@ -0,0 +1,171 @@
+package com.pardot.rhombus;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Timer;
+import com.yammer.metrics.core.TimerContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Pardot, an ExactTarget company
+ *
+ * Runs UpdateProcessor.processInParallel over and over, so obsolete index entries are removed shortly after they
+ * pass the consistency horizon instead of building up between one-off runs.
+ * Each sweep starts a fixed delay after the previous one ends. Publishes the backlog and lag found by the most recent
+ * sweep as gauges; the processor itself meters deletes per second.
+ */
+public class UpdateProcessorDaemon {
+
+	private static Logger logger = LoggerFactory.getLogger(UpdateProcessorDaemon.class);
+
+	public static final long DEFAULT_SWEEP_DELAY_SECONDS = 60L;
+
+	private final UpdateProcessor updateProcessor;
+	private final int numRanges;
+	private final String savepointDirectoryPath;
+	private long sweepDelaySeconds = DEFAULT_SWEEP_DELAY_SECONDS;
+	private ScheduledExecutorService scheduler = null;
+	// Passed to every sweep of the current run, so a shutdown that lands while a sweep is starting still stops it
+	private volatile AtomicBoolean stopping = new AtomicBoolean(false);
+	private volatile long lastBacklog = 0L;
+	private volatile Long lastOldestUpdate = null;
+	private final Timer sweeps;
+
+	/**
+	 * @param updateProcessor Processor to run
+	 * @param numRanges Number of token ranges to process concurrently in each sweep
+	 * @param savepointDirectoryPath Directory to save the progress of a sweep in, so a restarted daemon picks up where
+	 *                               it stopped, or null to start every sweep from the beginning
+	 */
+	public UpdateProcessorDaemon(UpdateProcessor updateProcessor, int numRanges, @Nullable String savepointDirectoryPath) {
+		Preconditions.checkNotNull(updateProcessor);
+		this.updateProcessor = updateProcessor;
+		this.numRanges = numRanges;
+		this.savepointDirectoryPath = savepointDirectoryPath;
+		this.sweeps = Metrics.defaultRegistry().newTimer(UpdateProcessorDaemon.class, "sweeps", TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+		Metrics.defaultRegistry().newGauge(UpdateProcessorDaemon.class, "backlog", new Gauge<Long>() {
+			@Override
+			public Long value() {
+				return lastBacklog;
+			}
+		});
+		Metrics.defaultRegistry().newGauge(UpdateProcessorDaemon.class, "lagMillis", new Gauge<Long>() {
+			@Override
+			public Long value() {
+				return getLagMillis();
+			}
+		});
+	}
+
+	/**
+	 * Start sweeping in the background. Does nothing if the daemon is already running.
+	 */
+	public synchronized void start() {
+		if(scheduler != null) {
+			return;
+		}
+		final AtomicBoolean stopSignal = new AtomicBoolean(false);
+		stopping = stopSignal;
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("rhombus-update-processor-daemon-%d").build());
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				sweep(stopSignal);
+			}
+		}, 0L, sweepDelaySeconds, TimeUnit.SECONDS);
+		logger.info("Started update processor daemon with {} ranges, sweeping every {}s", numRanges, sweepDelaySeconds);
+	}
+
+	/**
+	 * Stop sweeping. A sweep in progress finishes the pages it is on and saves its progress before this returns.
+	 * @param timeout Longest time to wait for the sweep in progress
+	 * @param unit Unit of timeout
+	 * @return True if the daemon stopped within the timeout
+	 * @throws InterruptedException If interrupted while waiting
+	 */
+	public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+		ScheduledExecutorService running;
+		AtomicBoolean stopSignal;
+		synchronized(this) {
+			running = scheduler;
+			stopSignal = stopping;
+			scheduler = null;
+		}
+		if(running == null) {
+			return true;
+		}
+		stopSignal.set(true);
+		running.shutdown();
+		boolean stopped = running.awaitTermination(timeout, unit);
+		logger.info("Update processor daemon {}", stopped ? "stopped" : "did not stop in time");
+		return stopped;
+	}
+
+	public synchronized boolean isRunning() {
+		return scheduler != null;
+	}
+
+	/**
+	 * Run one sweep now, on the calling thread
+	 */
+	protected void sweep() {
+		sweep(stopping);
+	}
+
+	private void sweep(AtomicBoolean stopSignal) {
+		if(stopSignal.get()) {
+			return;
+		}
+		TimerContext context = sweeps.time();
+		try {
+			boolean complete = updateProcessor.processInParallel(numRanges, savepointDirectoryPath, stopSignal);
+			long backlog = 0L;
+			for(UpdateProcessor.RangeProgress range : updateProcessor.getRangeProgress()) {
+				backlog += range.getRowsCleaned() + range.getRowsFailed();
+			}
+			lastBacklog = backlog;
+			lastOldestUpdate = updateProcessor.getOldestEligibleUpdate();
+			logger.info("Update processor sweep {}: {} rows to clean, lag {}ms", complete ? "complete" : "stopped", backlog, getLagMillis());
+		} catch(Exception e) {
+			// Keep the daemon alive, the next sweep will try again
+			logger.error("Update processor sweep failed", e);
+		} finally {
+			context.stop();
+		}
+	}
+
+	/**
+	 * @return Number of rows with obsolete updates found by the most recent sweep
+	 */
+	public long getBacklog() {
+		return lastBacklog;
+	}
+
+	/**
+	 * @return Age in milliseconds of the oldest update found by the most recent sweep, or 0 if it found none
+	 */
+	public long getLagMillis() {
+		Long oldest = lastOldestUpdate;
+		return (oldest == null) ? 0L : Math.max(0L, System.currentTimeMillis() - oldest);
+	}
+
+	public long getSweepDelaySeconds() {
+		return sweepDelaySeconds;
+	}
+
+	/**
+	 * @param sweepDelaySeconds Seconds to wait between the end of one sweep and the start of the next. Takes effect on the next start.
+	 */
+	public void setSweepDelaySeconds(long sweepDelaySeconds) {
+		this.sweepDelaySeconds = sweepDelaySeconds;
+	}
+}
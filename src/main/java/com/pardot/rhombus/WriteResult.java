@@ -0,0 +1,37 @@
+package com.pardot.rhombus;
+
+import java.util.List;
+
+/**
+ * Pardot, an ExactTarget company
+ *
+ * Outcome of an asynchronous write: the ids written along with the failures of any statements that did not succeed.
+ */
+public class WriteResult<T> {
+
+	private final T ids;
+	private final List<Throwable> failures;
+
+	public WriteResult(T ids, List<Throwable> failures) {
+		this.ids = ids;
+		this.failures = failures;
+	}
+
+	/**
+	 * @return Id or ids of the objects written
+	 */
+	public T getIds() {
+		return ids;
+	}
+
+	/**
+	 * @return Failures of individual statements, empty if every statement succeeded
+	 */
+	public List<Throwable> getFailures() {
+		return failures;
+	}
+
+	public boolean isSuccessful() {
+		return failures.isEmpty();
+	}
+}
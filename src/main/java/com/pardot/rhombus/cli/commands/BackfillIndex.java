@@ -0,0 +1,98 @@
+package com.pardot.rhombus.cli.commands;
+
+import com.pardot.rhombus.IndexBackfiller;
+import com.pardot.rhombus.RhombusException;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pardot, an ExactTarget company
+ *
+ * Writes existing objects into an index added by RunMigration
+ */
+public class BackfillIndex extends RcliWithExistingKeyspace {
+
+	private static Logger logger = LoggerFactory.getLogger(BackfillIndex.class);
+
+	public Options getCommandOptions(){
+		Options ret = super.getCommandOptions();
+		Option objectType = OptionBuilder.withArgName("type")
+				.hasArg()
+				.withDescription("Object type to backfill")
+				.create( "objectType" );
+		Option index = OptionBuilder.withArgName("key")
+				.hasArg()
+				.withDescription("Key of the index to backfill, for example foreignid:type")
+				.create( "index" );
+		Option partitions = OptionBuilder.withArgName("count")
+				.hasArg()
+				.withDescription("Number of token ranges to scan in parallel (default 1)")
+				.create( "partitions" );
+		Option savepointDirectory = OptionBuilder.withArgName("directory")
+				.hasArg()
+				.withDescription("Directory to save progress in, so the backfill can be resumed")
+				.create( "savepointDirectory" );
+		Option batchSize = OptionBuilder.withArgName("size")
+				.hasArg()
+				.withDescription("Number of objects to read per page (default 200)")
+				.create( "batchSize" );
+		Option ringAligned = OptionBuilder.withDescription("Scan along the token ranges owned by each node instead of splitting the ring evenly")
+				.create( "ringAligned" );
+		ret.addOption(objectType);
+		ret.addOption(index);
+		ret.addOption(partitions);
+		ret.addOption(savepointDirectory);
+		ret.addOption(batchSize);
+		ret.addOption(ringAligned);
+		return ret;
+	}
+
+	public boolean executeCommand(CommandLine cl){
+		boolean ret = false;
+		try {
+			ret = super.executeCommand(cl);
+		} catch (Exception e) {
+			System.out.println("Exception executing command");
+			e.printStackTrace();
+		}
+		if(!ret){
+			return false;
+		}
+
+		if(!(cl.hasOption("objectType") && cl.hasOption("index"))){
+			displayHelpMessage();
+			return false;
+		}
+
+		try{
+			int partitions = cl.hasOption("partitions") ? Integer.parseInt(cl.getOptionValue("partitions")) : 1;
+			IndexBackfiller backfiller = new IndexBackfiller(
+					this.objectMapper,
+					cl.getOptionValue("objectType"),
+					cl.getOptionValue("index"),
+					partitions,
+					cl.getOptionValue("savepointDirectory"));
+			if(cl.hasOption("batchSize")) {
+				backfiller.setBatchSize(Integer.parseInt(cl.getOptionValue("batchSize")));
+			}
+			backfiller.setRingAligned(cl.hasOption("ringAligned"));
+			backfiller.backfill();
+			System.out.println("Scanned " + backfiller.getObjectsScanned() + " objects, wrote " + backfiller.getObjectsWritten() + ", failed " + backfiller.getFailedWrites());
+			return backfiller.getFailedWrites() == 0;
+		}
+		catch (RhombusException e){
+			System.out.println(e.getMessage());
+			return false;
+		}
+		catch (Exception e){
+			System.out.println("Error encountered while backfilling index");
+			logger.error("Error backfilling index", e);
+			return false;
+		}
+	}
+
+}
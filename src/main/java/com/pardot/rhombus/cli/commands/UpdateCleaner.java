@@ -2,7 +2,9 @@ package com.pardot.rhombus.cli.commands;
 
 import com.google.common.collect.Maps;
 import com.pardot.rhombus.RhombusException;
+import com.pardot.rhombus.ScanThrottle;
 import com.pardot.rhombus.UpdateProcessor;
+import com.pardot.rhombus.UpdateProcessorDaemon;
 import com.pardot.rhombus.cobject.CQLGenerationException;
 import com.pardot.rhombus.cobject.IndexUpdateRowKey;
 import org.apache.commons.cli.CommandLine;
@@ -13,6 +15,8 @@ import org.apache.commons.cli.Options;
 import java.io.IOException;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * User: Rob Righter
@@ -37,6 +41,42 @@ public class UpdateCleaner extends RcliWithExistingKeyspace {
 		Option rowLimit = OptionBuilder.create( "rowLimit" );
 		ret.addOption(rowLimit);
 
+		OptionBuilder.withArgName("count");
+		OptionBuilder.hasArg();
+		OptionBuilder.withDescription("Process update fixes in count token ranges concurrently (ignores rowLimit)");
+		Option partitions = OptionBuilder.create( "partitions" );
+		ret.addOption(partitions);
+
+		OptionBuilder.withArgName("directory");
+		OptionBuilder.hasArg();
+		OptionBuilder.withDescription("Directory to save the progress of each token range in, so processing can be resumed");
+		Option savepointDirectory = OptionBuilder.create( "savepointDirectory" );
+		ret.addOption(savepointDirectory);
+
+		OptionBuilder.withArgName("delaySeconds");
+		OptionBuilder.hasArg();
+		OptionBuilder.withDescription("Keep processing update fixes until stopped, waiting delaySeconds between passes");
+		Option daemon = OptionBuilder.create( "daemon" );
+		ret.addOption(daemon);
+
+		OptionBuilder.withArgName("rows");
+		OptionBuilder.hasArg();
+		OptionBuilder.withDescription("Read at most this many update rows per second (adjustable over JMX)");
+		Option rowsPerSecond = OptionBuilder.create( "rowsPerSecond" );
+		ret.addOption(rowsPerSecond);
+
+		OptionBuilder.withArgName("requests");
+		OptionBuilder.hasArg();
+		OptionBuilder.withDescription("Send at most this many reads and row cleanups per second (adjustable over JMX)");
+		Option requestsPerSecond = OptionBuilder.create( "requestsPerSecond" );
+		ret.addOption(requestsPerSecond);
+
+		OptionBuilder.withArgName("millis");
+		OptionBuilder.hasArg();
+		OptionBuilder.withDescription("Slow down while reads take longer than millis");
+		Option latencyThreshold = OptionBuilder.create( "latencyThreshold" );
+		ret.addOption(latencyThreshold);
+
 		return ret;
 	}
 
@@ -54,6 +94,16 @@ public class UpdateCleaner extends RcliWithExistingKeyspace {
 		try{
 			getConnectionManager().setDefaultKeyspace(keyspaceDefinition);
 			UpdateProcessor up = new UpdateProcessor(this.objectMapper);
+			if(cl.hasOption("rowsPerSecond") || cl.hasOption("requestsPerSecond") || cl.hasOption("latencyThreshold")) {
+				ScanThrottle throttle = new ScanThrottle("UpdateCleaner",
+						cl.hasOption("rowsPerSecond") ? Double.parseDouble(cl.getOptionValue("rowsPerSecond")) : 0,
+						cl.hasOption("requestsPerSecond") ? Double.parseDouble(cl.getOptionValue("requestsPerSecond")) : 0);
+				if(cl.hasOption("latencyThreshold")) {
+					throttle.setLatencyThresholdMillis(Long.parseLong(cl.getOptionValue("latencyThreshold")));
+				}
+				throttle.registerMBean();
+				up.setThrottle(throttle);
+			}
 
 			boolean didwork = false;
 			long rowLimit = 0;
@@ -67,8 +117,37 @@ public class UpdateCleaner extends RcliWithExistingKeyspace {
 				didwork = true;
 			}
 
+			if(cl.hasOption("daemon")){
+				int partitions = cl.hasOption("partitions") ? Integer.parseInt(cl.getOptionValue("partitions")) : 1;
+				final UpdateProcessorDaemon daemon = new UpdateProcessorDaemon(up, partitions, cl.getOptionValue("savepointDirectory"));
+				daemon.setSweepDelaySeconds(Long.parseLong(cl.getOptionValue("daemon")));
+				final CountDownLatch stopped = new CountDownLatch(1);
+				Runtime.getRuntime().addShutdownHook(new Thread() {
+					@Override
+					public void run() {
+						try {
+							daemon.shutdown(5, TimeUnit.MINUTES);
+						} catch(InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+						stopped.countDown();
+					}
+				});
+				daemon.start();
+				try {
+					stopped.await();
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return true;
+			}
+
 			if(cl.hasOption("p")){
-				up.process(rowLimit);
+				if(cl.hasOption("partitions")) {
+					up.processInParallel(Integer.parseInt(cl.getOptionValue("partitions")), cl.getOptionValue("savepointDirectory"));
+				} else {
+					up.process(rowLimit);
+				}
 				didwork = true;
 			}
 
@@ -12,8 +12,10 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Pardot, An ExactTarget Company.
@@ -22,6 +24,8 @@ import java.util.*;
  */
 public class CDefinition {
 
+	private static final int MAX_CACHED_ROW_MAPPERS = 1000;
+
 	private String name;
 
 	@JsonSerialize(using = MapToListSerializer.class)
@@ -35,6 +39,15 @@ public class CDefinition {
 	@JsonIgnore
 	private SortedMap<String, CIndex> indexesIndexedByFields;
 
+	@JsonIgnore
+	private volatile InsertPlan insertPlan;
+
+	@JsonIgnore
+	private volatile RowMapper rowMapper;
+
+	@JsonIgnore
+	private final ConcurrentMap<List<String>, RowMapper> selectedFieldsRowMappers = Maps.newConcurrentMap();
+
 	private boolean allowNullPrimaryKeyInserts = false;
 
 	public CDefinition(){
@@ -60,6 +73,9 @@ public class CDefinition {
 		for(CField field : fields) {
 			this.fields.put(field.getName(), field);
 		}
+		this.insertPlan = null;
+		this.rowMapper = null;
+		this.selectedFieldsRowMappers.clear();
 	}
 	public Map<String, CIndex> getIndexes() {
 		return indexes;
@@ -71,6 +87,7 @@ public class CDefinition {
 			this.indexes.put(index.getName(), index);
 			this.indexesIndexedByFields.put(index.getKey(),index);
 		}
+		this.insertPlan = null;
 	}
 
 	public boolean isAllowNullPrimaryKeyInserts() {
@@ -81,6 +98,43 @@ public class CDefinition {
 		this.allowNullPrimaryKeyInserts = allowNullPrimaryKeyInserts;
 	}
 
+	/**
+	 * @return Insert plan for this definition, compiled on first use and again if the fields or indexes change
+	 */
+	@JsonIgnore
+	public InsertPlan getInsertPlan(){
+		InsertPlan plan = insertPlan;
+		if(plan == null || !plan.isCurrentFor(this)) {
+			plan = new InsertPlan(this);
+			insertPlan = plan;
+		}
+		return plan;
+	}
+
+	/**
+	 * @param selectedFields Names of the columns a query selected, or null if it selected every column
+	 * @return Row mapper for results of the query, compiled on first use and again if the fields change
+	 */
+	@JsonIgnore
+	public RowMapper getRowMapper(@Nullable List<String> selectedFields){
+		if(selectedFields == null) {
+			RowMapper mapper = rowMapper;
+			if(mapper == null || !mapper.isCurrentFor(this)) {
+				mapper = new RowMapper(this, null);
+				rowMapper = mapper;
+			}
+			return mapper;
+		}
+		RowMapper mapper = selectedFieldsRowMappers.get(selectedFields);
+		if(mapper == null) {
+			mapper = new RowMapper(this, selectedFields);
+			if(selectedFieldsRowMappers.size() < MAX_CACHED_ROW_MAPPERS) {
+				selectedFieldsRowMappers.putIfAbsent(Lists.newArrayList(selectedFields), mapper);
+			}
+		}
+		return mapper;
+	}
+
 	@JsonIgnore
 	public Collection<String> getRequiredFields(){
 		Map<String,String> ret = Maps.newHashMap();
@@ -21,6 +21,8 @@ public class CIndex {
 
 	private TimebasedShardingStrategy shardingStrategy;
 
+	private boolean sketch = false;
+
 	public CIndex() {
 
 	}
@@ -68,6 +70,17 @@ public class CIndex {
 		this.shardingStrategy = shardingStrategy;
 	}
 
+	/**
+	 * @return true if inserts into this index also update a sketch of each shard, so the index can be counted approximately
+	 */
+	public boolean isSketch() {
+		return sketch;
+	}
+
+	public void setSketch(boolean sketch) {
+		this.sketch = sketch;
+	}
+
 	@JsonIgnore
 	public String getName() {
 		return getKey();
@@ -4,12 +4,13 @@ import com.datastax.driver.core.Statement;
 import com.datastax.driver.core.querybuilder.Delete;
 import com.datastax.driver.core.querybuilder.QueryBuilder;
 import com.datastax.driver.core.utils.UUIDs;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Joiner;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Range;
+import com.google.common.collect.Sets;
 import com.pardot.rhombus.Criteria;
+import com.pardot.rhombus.ListCursor;
 import com.pardot.rhombus.cobject.shardingstrategy.ShardStrategyException;
 import com.pardot.rhombus.cobject.shardingstrategy.ShardingStrategyNone;
 import com.pardot.rhombus.cobject.statement.*;
@@ -34,6 +35,7 @@ public class CObjectCQLGenerator {
 
 	protected static final String KEYSPACE_DEFINITIONS_TABLE_NAME = "__keyspace_definitions";
 	protected static final String INDEX_UPDATES_TABLE_NAME = "__index_updates";
+	protected static final String INDEX_SKETCHES_TABLE_NAME = "__index_sketches";
 	public static final Long MAX_CQL_STATEMENT_LIMIT = 1000l;
 
 	protected static final String TEMPLATE_CREATE_STATIC = "CREATE TABLE \"%s\".\"%s\" (id %s PRIMARY KEY, %s);";
@@ -41,6 +43,10 @@ public class CObjectCQLGenerator {
 	protected static final String TEMPLATE_CREATE_KEYSPACE_LIST = "CREATE TABLE \"%s\".\"" + KEYSPACE_DEFINITIONS_TABLE_NAME + "\" (id uuid, name varchar, def varchar, PRIMARY KEY ((name), id));";
 	protected static final String TEMPLATE_CREATE_WIDE_INDEX = "CREATE TABLE \"%s\".\"%s\" (shardid bigint, tablename varchar, indexvalues varchar, targetrowkey varchar, PRIMARY KEY ((tablename, indexvalues),shardid) );";
 	protected static final String TEMPLATE_CREATE_INDEX_UPDATES = "CREATE TABLE \"%s\".\"" + INDEX_UPDATES_TABLE_NAME + "\" (id timeuuid, statictablename varchar, instanceid timeuuid, indexvalues varchar, PRIMARY KEY ((statictablename,instanceid),id))";
+	protected static final String TEMPLATE_CREATE_INDEX_SKETCHES = "CREATE TABLE \"%s\".\"" + INDEX_SKETCHES_TABLE_NAME + "\" (tablename varchar, indexvalues varchar, shardid bigint, registers map<int,int>, PRIMARY KEY ((tablename, indexvalues), shardid));";
+	// The register value is also the write timestamp, so the highest value written to each register is the one kept
+	protected static final String TEMPLATE_UPDATE_INDEX_SKETCH = "UPDATE \"%s\".\"" + INDEX_SKETCHES_TABLE_NAME + "\" USING TIMESTAMP ? SET registers[?] = ? WHERE tablename = ? AND indexvalues = ? AND shardid = ?;";
+	protected static final String TEMPLATE_SELECT_INDEX_SKETCHES = "SELECT shardid, registers FROM \"%s\".\"" + INDEX_SKETCHES_TABLE_NAME + "\" WHERE tablename = ? AND indexvalues = ?%s;";
 	protected static final String TEMPLATE_TRUNCATE_INDEX_UPDATES = "TRUNCATE \"%s\".\"" + INDEX_UPDATES_TABLE_NAME + "\";";
 	protected static final String TEMPLATE_DROP = "DROP TABLE \"%s\".\"%s\";";
 	protected static final String TEMPLATE_TRUNCATE = "TRUNCATE \"%s\".\"%s\";";
@@ -58,10 +64,11 @@ public class CObjectCQLGenerator {
 	protected static final String TEMPLATE_SELECT_FIRST_ELIGIBLE_INDEX_UPDATE = "SELECT statictablename,instanceid FROM \"%s\".\"" + INDEX_UPDATES_TABLE_NAME + "\" WHERE id < ? limit 1 allow filtering;";
 	protected static final String TEMPLATE_SELECT_NEXT_ELIGIBLE_INDEX_UPDATE = "SELECT statictablename,instanceid FROM \"%s\".\"" + INDEX_UPDATES_TABLE_NAME + "\" where token(statictablename,instanceid) > token(?,?) and id < ? limit 1 allow filtering;";
 	protected static final String TEMPLATE_SELECT_ROW_INDEX_UPDATE = "SELECT * FROM \"%s\".\"" + INDEX_UPDATES_TABLE_NAME + "\" where statictablename = ? and instanceid = ? order by id DESC;";
+	protected static final String TEMPLATE_SCAN_INDEX_UPDATES = "SELECT token(statictablename,instanceid), statictablename, instanceid, id, indexvalues FROM \"%s\".\"" + INDEX_UPDATES_TABLE_NAME + "\" WHERE token(statictablename,instanceid) >= ? AND token(statictablename,instanceid) <= ? LIMIT %d;";
 	protected static final String TEMPLATE_SET_COMPACTION_LEVELED = "ALTER TABLE \"%s\".\"%s\" WITH compaction = { 'class' :  'LeveledCompactionStrategy',  'sstable_size_in_mb' : %d }";
 	protected static final String TEMPLATE_SET_COMPACTION_TIERED = "ALTER TABLE \"%s\".\"%s\" WITH compaction = { 'class' :  'SizeTieredCompactionStrategy',  'min_threshold' : %d }";
-	protected static final String TEMPLATE_SCAN_TABLE_MIN_TOKEN = "SELECT * FROM \"%s\".\"%s\" WHERE token(id) >= ? AND token(id) <= ? LIMIT %d;";
-	protected static final String TEMPLATE_SCAN_TABLE_MIN_ID = "SELECT * FROM \"%s\".\"%s\" WHERE token(id) > token(?) AND token(id) <= ? LIMIT %d;";
+	protected static final String TEMPLATE_SCAN_TABLE_MIN_TOKEN = "SELECT %s FROM \"%s\".\"%s\" WHERE token(id) >= ? AND token(id) <= ? LIMIT %d;";
+	protected static final String TEMPLATE_SCAN_TABLE_MIN_ID = "SELECT %s FROM \"%s\".\"%s\" WHERE token(id) > token(?) AND token(id) <= ? LIMIT %d;";
 	protected static final String TEMPLATE_SELECT_TOKEN = "SELECT token(id) FROM \"%s\".\"%s\" WHERE id = ? LIMIT 1;";
 	protected static final String TEMPLATE_TABLE_SCAN = "SELECT * FROM \"%s\".\"%s\";";
 	protected static final String TEMPLATE_ADD_FIELD = "ALTER TABLE \"%s\".\"%s\" add %s %s";
@@ -70,6 +77,8 @@ public class CObjectCQLGenerator {
 	protected CObjectShardList shardList;
 	private Integer consistencyHorizon;
 	private String keyspace;
+	private ShardIndexCache shardIndexCache;
+	private boolean binaryIndexUpdates = false;
 
 	/**
 	 * Single Param constructor, mostly for testing convenience. Use the other constructor.
@@ -93,6 +102,30 @@ public class CObjectCQLGenerator {
 		setShardList(shardList);
 	}
 
+	/**
+	 * @param shardIndexCache - Cache used to skip shard index inserts for shards already recorded, or null to always insert
+	 */
+	public void setShardIndexCache(@Nullable ShardIndexCache shardIndexCache){
+		this.shardIndexCache = shardIndexCache;
+	}
+
+	@Nullable
+	public ShardIndexCache getShardIndexCache(){
+		return shardIndexCache;
+	}
+
+	/**
+	 * @param binaryIndexUpdates - Write index values to __index_updates in the binary encoding instead of JSON.
+	 *                           Only enable once every reader of the keyspace can decode it.
+	 */
+	public void setBinaryIndexUpdates(boolean binaryIndexUpdates){
+		this.binaryIndexUpdates = binaryIndexUpdates;
+	}
+
+	public boolean isBinaryIndexUpdates(){
+		return binaryIndexUpdates;
+	}
+
 	/**
 	 * Set the Definitions to be used
 	 * @param objectDefinitions - A map where the key is the CDefinition.name and the value is the CDefinition.
@@ -203,7 +236,7 @@ public class CObjectCQLGenerator {
 	 */
 	@NotNull
 	public CQLStatementIterator makeCQLforInsert(String objType, Map<String,Object> data) throws CQLGenerationException {
-		return makeCQLforInsert(this.keyspace, this.definitions.get(objType), data);
+		return makeCQLforInsert(this.keyspace, this.definitions.get(objType), data, null, null, null, shardIndexCache);
 	}
 
 	/**
@@ -226,7 +259,7 @@ public class CObjectCQLGenerator {
 	 */
 	@NotNull
 	public CQLStatementIterator makeCQLforInsert(String objType, Map<String,Object> data, Object key, Long timestamp) throws CQLGenerationException {
-		return makeCQLforInsert(this.keyspace, this.definitions.get(objType), data, key, timestamp, null);
+		return makeCQLforInsert(this.keyspace, this.definitions.get(objType), data, key, timestamp, null, shardIndexCache);
 	}
 
 	/**
@@ -241,7 +274,22 @@ public class CObjectCQLGenerator {
 	 */
 	@NotNull
 	public CQLStatementIterator makeCQLforInsert(String objType, Map<String,Object> data, Object key, Long timestamp, Integer ttl) throws CQLGenerationException {
-		return makeCQLforInsert(this.keyspace, this.definitions.get(objType), data, key, timestamp, ttl);
+		return makeCQLforInsert(this.keyspace, this.definitions.get(objType), data, key, timestamp, ttl, shardIndexCache);
+	}
+
+	/**
+	 * Make every statement an insert could need, including shard index inserts the shard index cache would skip,
+	 * for example to prepare them ahead of time
+	 * @param objType - The name of the Object type aka CDefinition.name
+	 * @param data - A map of fieldnames to values representing the data to insert
+	 * @param key - A UUID key
+	 * @param timestamp - The timestamp
+	 * @return Iterator of CQL statements that need to be executed for this task.
+	 * @throws CQLGenerationException
+	 */
+	@NotNull
+	public CQLStatementIterator makeCQLforInsertWithoutShardIndexCache(String objType, Map<String,Object> data, Object key, Long timestamp) throws CQLGenerationException {
+		return makeCQLforInsert(this.keyspace, this.definitions.get(objType), data, key, timestamp, null, null);
 	}
 
 	/**
@@ -284,13 +332,71 @@ public class CObjectCQLGenerator {
 		CObjectOrdering ordering = (criteria.getOrdering() != null ? criteria.getOrdering(): CObjectOrdering.DESCENDING);
 		UUID endUuid = (criteria.getEndUuid() == null ? UUIDs.startOf(DateTime.now().getMillis()) : criteria.getEndUuid());
 		return makeCQLforList(this.keyspace, shardList, definition, criteria.getIndexKeys(), ordering, criteria.getStartUuid(),
-				endUuid, criteria.getLimit(), criteria.getInclusive(), countOnly, criteria.getAllowFiltering());
+				endUuid, criteria.getLimit(), criteria.getInclusive(), countOnly, criteria.getAllowFiltering(), null, criteria.getFields());
+	}
+
+	/**
+	 * Make the statements for a list query that is read a page at a time. Every statement is limited to a page, even
+	 * when the criteria have no limit, so no shard is read in one go. The caller applies the criteria limit.
+	 * @param objType - The name of the Object type aka CDefinition.name
+	 * @param criteria - The criteria object describing which rows to retrieve
+	 * @param pageSize - Number of rows to read per statement
+	 * @return Iterator of CQL statements that need to be executed for this task.
+	 */
+	@NotNull
+	public CQLStatementIterator makeCQLforStream(String objType, Criteria criteria, long pageSize) throws CQLGenerationException {
+		CDefinition definition = this.definitions.get(objType);
+		CObjectOrdering ordering = (criteria.getOrdering() != null ? criteria.getOrdering(): CObjectOrdering.DESCENDING);
+		UUID endUuid = (criteria.getEndUuid() == null ? UUIDs.startOf(DateTime.now().getMillis()) : criteria.getEndUuid());
+		return makeCQLforList(this.keyspace, shardList, definition, criteria.getIndexKeys(), ordering, criteria.getStartUuid(),
+				endUuid, pageSize, criteria.getInclusive(), false, criteria.getAllowFiltering(), null, criteria.getFields());
+	}
+
+	/**
+	 * Make the statements for the remainder of a list query that was paged through with a cursor.
+	 * The shard index is not consulted again; the shards still to be read come from the cursor.
+	 * @param objType - The name of the Object type aka CDefinition.name
+	 * @param criteria - The criteria the cursor was produced from
+	 * @param cursor - Position of the last row returned for these criteria
+	 * @return Iterator of CQL statements starting at the cursor's shard
+	 */
+	@NotNull
+	public CQLStatementIterator makeCQLforList(String objType, Criteria criteria, final ListCursor cursor) throws CQLGenerationException {
+		CDefinition definition = this.definitions.get(objType);
+		UUID endUuid = (criteria.getEndUuid() == null ? UUIDs.startOf(DateTime.now().getMillis()) : criteria.getEndUuid());
+		CObjectShardList cursorShardList = new CObjectShardList() {
+			@Override
+			public List<Long> getShardIdList(CDefinition def, SortedMap<String, Object> indexValues, CObjectOrdering ordering, @Nullable UUID start, @Nullable UUID end) throws CQLGenerationException {
+				return (cursor.getShardIds() == null) ? Lists.newArrayList(cursor.getShardId()) : cursor.getShardIds();
+			}
+		};
+		return makeCQLforList(this.keyspace, cursorShardList, definition, criteria.getIndexKeys(), cursor.getOrdering(), criteria.getStartUuid(),
+				endUuid, criteria.getLimit(), criteria.getInclusive(), false, criteria.getAllowFiltering(), cursor.getShardId(), criteria.getFields());
 	}
 
 	@NotNull
 	protected static CQLStatementIterator makeCQLforList(String keyspace, CObjectShardList shardList, CDefinition def, SortedMap<String,Object> indexValues,
 														 CObjectOrdering ordering, @Nullable UUID start, @Nullable UUID end, Long limit,
 														 boolean inclusive, boolean countOnly, boolean allowFiltering) throws CQLGenerationException {
+		return makeCQLforList(keyspace, shardList, def, indexValues, ordering, start, end, limit, inclusive, countOnly, allowFiltering, null);
+	}
+
+	@NotNull
+	protected static CQLStatementIterator makeCQLforList(String keyspace, CObjectShardList shardList, CDefinition def, SortedMap<String,Object> indexValues,
+														 CObjectOrdering ordering, @Nullable UUID start, @Nullable UUID end, Long limit,
+														 boolean inclusive, boolean countOnly, boolean allowFiltering, @Nullable Long resumeShardId) throws CQLGenerationException {
+		return makeCQLforList(keyspace, shardList, def, indexValues, ordering, start, end, limit, inclusive, countOnly, allowFiltering, resumeShardId, null);
+	}
+
+	/**
+	 * @param resumeShardId - If not null, skip the shards that come before this one in the query's ordering
+	 * @param fields - If not null, only select these fields along with the id and any fields needed for client filters
+	 */
+	@NotNull
+	protected static CQLStatementIterator makeCQLforList(String keyspace, CObjectShardList shardList, CDefinition def, SortedMap<String,Object> indexValues,
+														 CObjectOrdering ordering, @Nullable UUID start, @Nullable UUID end, Long limit,
+														 boolean inclusive, boolean countOnly, boolean allowFiltering, @Nullable Long resumeShardId,
+														 @Nullable List<String> fields) throws CQLGenerationException {
 		// Get matching index from definition
 		CIndex i = def.getIndex(indexValues, allowFiltering);
 		if(i == null){
@@ -341,13 +447,19 @@ public class CObjectCQLGenerator {
 			limitCQL = "LIMIT %d";
 		}
 
-		// TODO: if we feel like it's worth the trouble, for count queries with client side filters, only select the fields needed to satisfy the filters
-		// note that doing so will also require modifying ObjectMapper.mapResult() so it only maps fields that exist in the row
+		// If this was a count query and filtering was allowed and client filters weren't defined, just do a count query because we don't need to apply filters
+		// Otherwise if this was a count query, but allowFiltering was true and we have client-side filters to apply, select just the fields needed to apply the filters
+		String selectCQL = "*";
+		List<String> selectedFields = null;
+		if(countOnly && !(allowFiltering && hasClientFilters)) {
+			selectCQL = "count(*)";
+		} else if(countOnly || fields != null) {
+			selectedFields = makeSelectedFields(def, countOnly ? Collections.<String>emptyList() : fields, clientFilters);
+			selectCQL = makeCommaList(selectedFields);
+		}
 		String CQLTemplate = String.format(
 				TEMPLATE_SELECT_WIDE,
-				// If this was a count query and filtering was allowed and client filters weren't defined, just do a count query because we don't need to apply filters
-				// Otherwise if this was a count query, but allowFiltering was true and we have client-side filters to apply, do a full row query so we can apply the filters
-				countOnly && !(allowFiltering && hasClientFilters) ? "count(*)":"*",
+				selectCQL,
 				keyspace,
 				makeTableName(def, i),
 				"?",
@@ -365,6 +477,10 @@ public class CObjectCQLGenerator {
 			//the query is either bounded or unsharded, so we do not need to check the shardindex
 			try {
 				Range<Long> shardIdRange = i.getShardingStrategy().getShardKeyRange(startTime,endTime);
+				if(resumeShardId != null) {
+					Range<Long> remaining = (ordering == CObjectOrdering.ASCENDING) ? Range.atLeast(resumeShardId) : Range.atMost(resumeShardId);
+					shardIdRange = shardIdRange.isConnected(remaining) ? shardIdRange.intersection(remaining) : Range.closedOpen(resumeShardId, resumeShardId);
+				}
 				returnIterator = new UnboundableCQLStatementIterator(shardIdRange, limit, ordering, templateCQLStatement, def.getName());
 			}
 			catch(ShardStrategyException e){
@@ -382,6 +498,7 @@ public class CObjectCQLGenerator {
 
 		// Set the client filters on the returned iterator so the client can take care of them
 		returnIterator.setClientFilters(clientFilters);
+		returnIterator.setSelectedFields(selectedFields);
 		return returnIterator;
 	}
 
@@ -417,7 +534,8 @@ public class CObjectCQLGenerator {
 		return CQLStatement.make(
 				String.format(TEMPLATE_DELETE_OBSOLETE_UPDATE_INDEX_COLUMN, this.keyspace),
 				INDEX_UPDATES_TABLE_NAME,
-				Arrays.asList(rowKey.getObjectName(), rowKey.getInstanceId(), id).toArray());
+				Arrays.asList(rowKey.getObjectName(), rowKey.getInstanceId(), id).toArray(),
+				makeRoutingKey(INDEX_UPDATES_TABLE_NAME, rowKey.getObjectName(), rowKey.getInstanceId()));
 	}
 
 	/**
@@ -497,6 +615,19 @@ public class CObjectCQLGenerator {
 				Arrays.asList(instanceKey.getObjectName(),instanceKey.getInstanceId()).toArray());
 	}
 
+	/**
+	 *
+	 * @param startToken - Lowest row key token to read, inclusive
+	 * @param endToken - Highest row key token to read, inclusive
+	 * @param limit - Maximum number of update columns to read
+	 * @return CQLStatement of the single CQL statement required to read the update rows in a token range, in token order
+	 */
+	public CQLStatement makeCQLforIndexUpdateTableScan(long startToken, long endToken, long limit){
+		return CQLStatement.make(String.format(TEMPLATE_SCAN_INDEX_UPDATES, keyspace, limit),
+				INDEX_UPDATES_TABLE_NAME,
+				Arrays.asList(Long.valueOf(startToken), Long.valueOf(endToken)).toArray());
+	}
+
 	/**
 	 *
 	 * @param def - CIndex for the index for which to pull the shard list
@@ -532,6 +663,24 @@ public class CObjectCQLGenerator {
 		return CQLStatement.make(query, CObjectShardList.SHARD_INDEX_TABLE_NAME, values.toArray());
 	}
 
+	/**
+	 * @return The id, then the requested fields, then any client filter fields not already requested
+	 */
+	private static List<String> makeSelectedFields(CDefinition def, List<String> fields, @Nullable Map<String, Object> clientFilters) throws CQLGenerationException {
+		Set<String> selected = Sets.newLinkedHashSet();
+		selected.add("id");
+		for(String field : fields) {
+			if(def.getField(field) == null) {
+				throw new CQLGenerationException(String.format("Cannot select field %s, which is not part of CDefinition %s", field, def.getName()));
+			}
+			selected.add(field);
+		}
+		if(clientFilters != null) {
+			selected.addAll(clientFilters.keySet());
+		}
+		return Lists.newArrayList(selected);
+	}
+
 	private CQLStatementIterator makeCQLforLeveledCompaction(CKeyspaceDefinition keyspaceDefinition, Integer sstableSize){
 		List ret =  Lists.newArrayList();
 		//global tables
@@ -606,7 +755,52 @@ public class CObjectCQLGenerator {
 		return CQLStatement.make(String.format(TEMPLATE_TRUNCATE_INDEX_UPDATES, this.keyspace), INDEX_UPDATES_TABLE_NAME);
 	}
 
+	public CQLStatement makeCQLforIndexSketchTableCreate(){
+		return CQLStatement.make(String.format(TEMPLATE_CREATE_INDEX_SKETCHES, this.keyspace), INDEX_SKETCHES_TABLE_NAME);
+	}
+
+	public CQLStatement makeCQLforIndexSketchTableTruncate(){
+		return CQLStatement.make(String.format(TEMPLATE_TRUNCATE, this.keyspace, INDEX_SKETCHES_TABLE_NAME), INDEX_SKETCHES_TABLE_NAME);
+	}
+
+	/**
+	 * Read the sketches of the shards of an index the criteria span. Shards the criteria only partly cover are read whole.
+	 * @param objType - The name of the Object type aka CDefinition.name
+	 * @param criteria - Criteria naming the values of every field of a sketched index
+	 * @return Single CQL statement needed to read the sketches
+	 * @throws CQLGenerationException If the criteria do not match a sketched index exactly
+	 */
+	public CQLStatement makeCQLforCountApproximate(String objType, Criteria criteria) throws CQLGenerationException {
+		CDefinition def = this.definitions.get(objType);
+		SortedMap<String, Object> indexValues = criteria.getIndexKeys();
+		CIndex i = def.getIndex(indexValues, false);
+		if(i == null || !i.isSketch()){
+			throw new CQLGenerationException(String.format("Could not find a sketched index on CDefinition %s matching the criteria", def.getName()));
+		}
+		List<Object> values = Lists.newArrayList();
+		values.add(makeTableName(def, i));
+		values.add(makeIndexValuesString(indexValues.values()));
+		String whereCQL = "";
+		if(criteria.getStartUuid() != null){
+			whereCQL += " AND shardid >= ?";
+			values.add(Long.valueOf(i.getShardingStrategy().getShardKey(criteria.getStartUuid())));
+		}
+		if(criteria.getEndUuid() != null){
+			whereCQL += " AND shardid <= ?";
+			values.add(Long.valueOf(i.getShardingStrategy().getShardKey(criteria.getEndUuid())));
+		}
+		return CQLStatement.make(String.format(TEMPLATE_SELECT_INDEX_SKETCHES, keyspace, whereCQL), INDEX_SKETCHES_TABLE_NAME, values.toArray());
+	}
+
 	public static CQLStatementIterator makeCQLforUpdate(String keyspace, CDefinition def, UUID key, Map<String,Object> oldValues, Map<String, Object> newValues) throws CQLGenerationException {
+		return makeCQLforUpdate(keyspace, def, key, oldValues, newValues, null);
+	}
+
+	public static CQLStatementIterator makeCQLforUpdate(String keyspace, CDefinition def, UUID key, Map<String,Object> oldValues, Map<String, Object> newValues, @Nullable ShardIndexCache shardIndexCache) throws CQLGenerationException {
+		return makeCQLforUpdate(keyspace, def, key, oldValues, newValues, shardIndexCache, false);
+	}
+
+	public static CQLStatementIterator makeCQLforUpdate(String keyspace, CDefinition def, UUID key, Map<String,Object> oldValues, Map<String, Object> newValues, @Nullable ShardIndexCache shardIndexCache, boolean binaryIndexUpdates) throws CQLGenerationException {
 		List<CQLStatement> ret = Lists.newArrayList();
 		//(1) Detect if there are any changed index values in values
 		List<CIndex> affectedIndexes = getAffectedIndexes(def, oldValues, newValues);
@@ -659,7 +853,7 @@ public class CObjectCQLGenerator {
 					continue;
 				}
 			}
-			addCQLStatmentsForIndexInsert(keyspace, true, ret, def, completeValues, i, key, fieldsAndValues,null, null);
+			addCQLStatmentsForIndexInsert(keyspace, true, ret, def, completeValues, i, key, fieldsAndValues,null, null, shardIndexCache);
 		}
 
 		//(6) Insert into the existing indexes without the shard index addition
@@ -686,7 +880,7 @@ public class CObjectCQLGenerator {
 		));
 
 		//(8) Insert a snapshot of the updated values for this id into the __index_updates
-		ret.add(makeInsertUpdateIndexStatement(keyspace, def, key, def.makeIndexValues(completeValues)));
+		ret.add(makeInsertUpdateIndexStatement(keyspace, def, key, def.makeIndexValues(completeValues), binaryIndexUpdates));
 
 		return new BoundedCQLStatementIterator(ret);
 	}
@@ -766,7 +960,27 @@ public class CObjectCQLGenerator {
 				(ttl == null) ? "" : (" USING TTL "+ttl)//(" AND TTL "+ttl) //Revert this back to AND when timestamps are preparable
 		);
 
-		return CQLStatement.make(query, tableName, values.toArray());
+		return CQLStatement.make(query, tableName, values.toArray(), makeRoutingKey(tableName, id));
+	}
+
+	/**
+	 * @param tableName Table the statement writes to
+	 * @param partitionKeyValues Values of the table's partition key columns
+	 * @return Key that is equal for statements writing to the same partition of the same table
+	 */
+	public static List<Object> makeRoutingKey(String tableName, Object... partitionKeyValues){
+		List<Object> ret = Lists.newArrayListWithCapacity(partitionKeyValues.length + 1);
+		ret.add(tableName);
+		ret.addAll(Arrays.asList(partitionKeyValues));
+		return ret;
+	}
+
+	private static List<Object> makeWideRoutingKey(String tableName, long shardId, List<Object> indexValues){
+		List<Object> ret = Lists.newArrayListWithCapacity(indexValues.size() + 2);
+		ret.add(tableName);
+		ret.add(Long.valueOf(shardId));
+		ret.addAll(indexValues);
+		return ret;
 	}
 
 	public UUID getTimeUUIDAtEndOfConsistencyHorizion(){
@@ -775,19 +989,21 @@ public class CObjectCQLGenerator {
 	}
 
 	public static CQLStatement makeInsertUpdateIndexStatement(String keyspace, CDefinition def, UUID instanceId, Map<String,Object> indexvalues) throws CQLGenerationException {
+		return makeInsertUpdateIndexStatement(keyspace, def, instanceId, indexvalues, false);
+	}
+
+	/**
+	 * @param binaryIndexUpdates - Encode the index values with IndexValuesCodec.encodeBinary instead of as JSON
+	 */
+	public static CQLStatement makeInsertUpdateIndexStatement(String keyspace, CDefinition def, UUID instanceId, Map<String,Object> indexvalues, boolean binaryIndexUpdates) throws CQLGenerationException {
 		UUID id = UUIDs.timeBased();
 		String tableName = makeTableName(def,null);
-		String indexValuesAsJson;
-		try{
-			ObjectMapper om = new ObjectMapper();
-			indexValuesAsJson = om.writeValueAsString(indexvalues);
-		}
-		catch (Exception e){
-			throw new CQLGenerationException(e.getMessage());
-		}
+		String encodedIndexValues = binaryIndexUpdates ?
+				IndexValuesCodec.encodeBinary(def, indexvalues) : IndexValuesCodec.encodeJson(indexvalues);
 		return CQLStatement.make(String.format(TEMPLATE_INSERT_INDEX_UPDATES,keyspace),
 				tableName,
-				Arrays.asList(id, tableName, instanceId, indexValuesAsJson).toArray() );
+				Arrays.asList(id, tableName, instanceId, encodedIndexValues).toArray(),
+				makeRoutingKey(INDEX_UPDATES_TABLE_NAME, tableName, instanceId));
 	}
 
 	protected static CQLStatement makeInsertStatementWide(String keyspace, String tableName, List<String> fields, List<Object> values, Object uuid, long shardid, Long timestamp, Integer ttl){
@@ -796,21 +1012,44 @@ public class CObjectCQLGenerator {
 		fields.add(0,"id");
 		values.add(0,uuid);
 
+		String using;
+		if(timestamp == null){
+			using = (ttl == null) ? "" : (" USING TTL "+ttl);
+		} else {
+			//The timestamp is bound after every value
+			using = " USING TIMESTAMP ?" + ((ttl == null) ? "" : (" AND TTL "+ttl));
+		}
 		String query = String.format(
 				TEMPLATE_INSERT_WIDE,
 				keyspace,
 				tableName,
 				makeCommaList(fields),
 				makeCommaList(values,true),
-				//timestamp.toString(), //add timestamp back when timestamps become preparable
-				(ttl == null) ? "" : (" USING TTL "+ttl)//(" AND TTL "+ttl) //Revert this back to AND when timestamps are preparable
+				using
 		);
+		Object[] boundValues = values.toArray(new Object[values.size() + ((timestamp == null) ? 0 : 1)]);
+		if(timestamp != null){
+			boundValues[values.size()] = timestamp;
+		}
 
-		return CQLStatement.make(query, tableName, values.toArray());
+		return CQLStatement.make(query, tableName, boundValues);
 	}
 
 	protected static CQLStatement makeInsertStatementWideIndex(String keyspace, String tableName, String targetTableName, long shardId, List indexValues, Long timestamp) throws CQLGenerationException {
-		String indexValuesString = makeIndexValuesString(indexValues);
+		return makeInsertStatementWideIndex(keyspace, tableName, targetTableName, shardId, makeIndexValuesString(indexValues), timestamp);
+	}
+
+	/**
+	 * @param statement Statement to check
+	 * @return true if the statement inserts a shard index row, with values of index table name, index values and shard id
+	 */
+	public static boolean isShardIndexInsert(CQLStatement statement) {
+		return CObjectShardList.SHARD_INDEX_TABLE_NAME.equals(statement.getObjectName())
+				&& statement.getValues() != null
+				&& statement.getQuery().startsWith("INSERT");
+	}
+
+	protected static CQLStatement makeInsertStatementWideIndex(String keyspace, String tableName, String targetTableName, long shardId, String indexValuesString, Long timestamp) {
 		Object[] values = {targetTableName, indexValuesString, Long.valueOf(shardId), shardId+":"+indexValuesString};
 		return CQLStatement.make(
 				String.format(
@@ -820,7 +1059,8 @@ public class CObjectCQLGenerator {
 						//timestamp.toString() //Add back timestamp when timestamps become preparable
 				),
 				tableName,
-				values);
+				values,
+				makeRoutingKey(tableName, targetTableName, indexValuesString));
 	}
 
 	public static CQLStatementIterator makeCQLforInsertKeyspaceDefinition(@NotNull String keyspace, @NotNull String name, @NotNull String keyspaceDefinition, @NotNull UUID id) throws CQLGenerationException{
@@ -836,6 +1076,10 @@ public class CObjectCQLGenerator {
 	}
 
 	protected static CQLStatementIterator makeCQLforInsert(@NotNull String keyspace, @NotNull CDefinition def, @NotNull Map<String,Object> data, @Nullable Object uuid, Long timestamp, Integer ttl) throws CQLGenerationException{
+		return makeCQLforInsert(keyspace, def, data, uuid, timestamp, ttl, null);
+	}
+
+	protected static CQLStatementIterator makeCQLforInsert(@NotNull String keyspace, @NotNull CDefinition def, @NotNull Map<String,Object> data, @Nullable Object uuid, Long timestamp, Integer ttl, @Nullable ShardIndexCache shardIndexCache) throws CQLGenerationException{
 		List<CQLStatement> ret = Lists.newArrayList();
 		if(uuid == null){
 			uuid = UUIDs.timeBased();
@@ -846,37 +1090,71 @@ public class CObjectCQLGenerator {
 		if(!validateData(def, data)){
 			throw new CQLGenerationException("Invalid Insert Requested. Missing Field(s)");
 		}
-		Map<String,ArrayList> fieldsAndValues = makeFieldAndValueList(def,data);
+		InsertPlan plan = def.getInsertPlan();
+		//Bind the present field values once, leaving room at the front for the id and shard id
+		List<String> fieldNames = plan.getFieldNames();
+		BitSet presentFields = new BitSet(fieldNames.size());
+		Object[] boundValues = new Object[fieldNames.size() + 2];
+		int valueCount = 2;
+		for(int f = 0; f < fieldNames.size(); f++){
+			String fieldName = fieldNames.get(f);
+			if(data.containsKey(fieldName)){
+				presentFields.set(f);
+				boundValues[valueCount++] = data.get(fieldName);
+			}
+		}
 		//Static Table
-		ret.add(makeInsertStatementStatic(
-				keyspace,
-				makeTableName(def,null),
-				(List<String>)fieldsAndValues.get("fields").clone(),
-				(List<Object>)fieldsAndValues.get("values").clone(),
-				uuid,
-				timestamp,
-				ttl
+		Object[] staticValues = new Object[valueCount - 1];
+		staticValues[0] = uuid;
+		System.arraycopy(boundValues, 2, staticValues, 1, valueCount - 2);
+		ret.add(CQLStatement.make(
+				plan.getInsertQuery(keyspace, plan.getStaticTableName(), false, presentFields, ttl),
+				plan.getStaticTableName(),
+				staticValues,
+				makeRoutingKey(plan.getStaticTableName(), uuid)
 		));
 		//Index Tables
-		if(def.getIndexes() != null) {
-			for(CIndex i : def.getIndexes().values()){
-				if(def.isAllowNullPrimaryKeyInserts()){
-					//check if we have the necessary primary fields to insert on this index. If not just continue;
-					if(!i.validateIndexKeys(i.getIndexKeyAndValues(data))){
-						continue;
-					}
+		for(InsertPlan.IndexPlan indexPlan : plan.getIndexPlans()){
+			CIndex i = indexPlan.getIndex();
+			if(def.isAllowNullPrimaryKeyInserts()){
+				//check if we have the necessary primary fields to insert on this index. If not just continue;
+				if(!i.validateIndexKeys(i.getIndexKeyAndValues(data))){
+					continue;
 				}
-				//insert it into the index
-				addCQLStatmentsForIndexInsert(keyspace, true, ret, def,data,i,uuid,fieldsAndValues,timestamp,ttl);
+			}
+			//insert it into the index
+			long shardId = i.getShardingStrategy().getShardKey(uuid);
+			Object[] wideValues = new Object[valueCount];
+			System.arraycopy(boundValues, 0, wideValues, 0, valueCount);
+			wideValues[0] = uuid;
+			wideValues[1] = Long.valueOf(shardId);
+			ret.add(CQLStatement.make(
+					plan.getInsertQuery(keyspace, indexPlan.getTableName(), true, presentFields, ttl),
+					indexPlan.getTableName(),
+					wideValues,
+					makeWideRoutingKey(indexPlan.getTableName(), shardId, i.getIndexValues(data))
+			));
+			if(indexPlan.isSharded()){
+				addShardIndexInsert(keyspace, ret, indexPlan.getTableName(), shardId, i.getIndexValues(data), timestamp, shardIndexCache);
+			}
+			if(i.isSketch()){
+				addIndexSketchUpdate(keyspace, ret, indexPlan.getTableName(), shardId, i.getIndexValues(data), uuid);
 			}
 		}
 		return new BoundedCQLStatementIterator(ret);
 	}
 
 	public static void addCQLStatmentsForIndexInsert(String keyspace, boolean includeShardInsert, List<CQLStatement> statementListToAddTo, CDefinition def, @NotNull Map<String,Object> data, CIndex i, Object uuid, Map<String,ArrayList> fieldsAndValues,Long timestamp, Integer ttl) throws CQLGenerationException {
+		addCQLStatmentsForIndexInsert(keyspace, includeShardInsert, statementListToAddTo, def, data, i, uuid, fieldsAndValues, timestamp, ttl, null);
+	}
+
+	/**
+	 * @param shardIndexCache - If not null, the shard index insert is skipped when the cache has already recorded it
+	 */
+	public static void addCQLStatmentsForIndexInsert(String keyspace, boolean includeShardInsert, List<CQLStatement> statementListToAddTo, CDefinition def, @NotNull Map<String,Object> data, CIndex i, Object uuid, Map<String,ArrayList> fieldsAndValues,Long timestamp, Integer ttl, @Nullable ShardIndexCache shardIndexCache) throws CQLGenerationException {
 		//insert it into the index
 		long shardId = i.getShardingStrategy().getShardKey(uuid);
-		statementListToAddTo.add(makeInsertStatementWide(
+		CQLStatement wideInsert = makeInsertStatementWide(
 				keyspace,
 				makeTableName(def,i),
 				(List<String>)fieldsAndValues.get("fields").clone(),
@@ -885,18 +1163,42 @@ public class CObjectCQLGenerator {
 				shardId,
 				timestamp,
 				ttl
-		));
+		);
+		wideInsert.setRoutingKey(makeWideRoutingKey(makeTableName(def,i), shardId, i.getIndexValues(data)));
+		statementListToAddTo.add(wideInsert);
 		if( includeShardInsert && (!(i.getShardingStrategy() instanceof ShardingStrategyNone))){
-			//record that we have made an insert into that shard
-			statementListToAddTo.add(makeInsertStatementWideIndex(
-					keyspace,
-					CObjectShardList.SHARD_INDEX_TABLE_NAME,
-					makeTableName(def,i),
-					shardId,
-					i.getIndexValues(data),
-					timestamp
-			));
+			addShardIndexInsert(keyspace, statementListToAddTo, makeTableName(def,i), shardId, i.getIndexValues(data), timestamp, shardIndexCache);
+		}
+		if(i.isSketch()){
+			addIndexSketchUpdate(keyspace, statementListToAddTo, makeTableName(def,i), shardId, i.getIndexValues(data), uuid);
+		}
+	}
+
+	/**
+	 * Add the id to the sketch of its shard. Adding an id more than once has no effect, so this is safe to repeat.
+	 */
+	private static void addIndexSketchUpdate(String keyspace, List<CQLStatement> statementListToAddTo, String indexTableName, long shardId, List indexValues, Object uuid) throws CQLGenerationException {
+		long hash = IndexSketch.hash(uuid);
+		int rank = IndexSketch.rankOf(hash);
+		Object[] values = {Long.valueOf(rank), Integer.valueOf(IndexSketch.registerOf(hash)), Integer.valueOf(rank), indexTableName, makeIndexValuesString(indexValues), Long.valueOf(shardId)};
+		statementListToAddTo.add(CQLStatement.make(String.format(TEMPLATE_UPDATE_INDEX_SKETCH, keyspace), INDEX_SKETCHES_TABLE_NAME, values));
+	}
+
+	private static void addShardIndexInsert(String keyspace, List<CQLStatement> statementListToAddTo, String indexTableName, long shardId, List indexValues, Long timestamp, @Nullable ShardIndexCache shardIndexCache) throws CQLGenerationException {
+		String indexValuesString = makeIndexValuesString(indexValues);
+		if(shardIndexCache != null && shardIndexCache.isRecorded(indexTableName, indexValuesString, shardId)){
+			//this shard has already been recorded
+			return;
 		}
+		//record that we have made an insert into that shard
+		statementListToAddTo.add(makeInsertStatementWideIndex(
+				keyspace,
+				CObjectShardList.SHARD_INDEX_TABLE_NAME,
+				indexTableName,
+				shardId,
+				indexValuesString,
+				timestamp
+		));
 	}
 
 	protected static CQLStatement makeCQLforTableScan(String keyspace, CDefinition def){
@@ -910,28 +1212,91 @@ public class CObjectCQLGenerator {
 	}
 
 	public CQLStatementIterator makeCQLForScanTableMinToken(String objectType, Long startToken, Long endToken, Long limit) {
-		String cql = String.format(TEMPLATE_SCAN_TABLE_MIN_TOKEN, this.keyspace, objectType, limit);
-		Object[] values = new Object[2];
-		values[0] = startToken;
-		values[1] = endToken;
-		CQLStatement statement = CQLStatement.make(cql, objectType, values);
-		List<CQLStatement> ret = Lists.newArrayList();
-		ret.add(statement);
-		return new BoundedCQLStatementIterator(ret);
+		return makeCQLForScanTable(TEMPLATE_SCAN_TABLE_MIN_TOKEN, objectType, startToken, endToken, limit, null, false);
+	}
+
+	/**
+	 * @param fields Fields to select along with the id, or null to select every column
+	 * @throws CQLGenerationException If a field is not part of the object type
+	 */
+	public CQLStatementIterator makeCQLForScanTableMinToken(String objectType, Long startToken, Long endToken, Long limit, @Nullable List<String> fields) throws CQLGenerationException {
+		return makeCQLForScanTableMinToken(objectType, startToken, endToken, limit, fields, false);
+	}
+
+	/**
+	 * @param fields Fields to select along with the id, or null to select every column
+	 * @param withWriteTimes True to also select the write time of every selected field but the id, after the fields and in the same order
+	 * @throws CQLGenerationException If a field is not part of the object type
+	 */
+	public CQLStatementIterator makeCQLForScanTableMinToken(String objectType, Long startToken, Long endToken, Long limit, @Nullable List<String> fields, boolean withWriteTimes) throws CQLGenerationException {
+		return makeCQLForScanTable(TEMPLATE_SCAN_TABLE_MIN_TOKEN, objectType, startToken, endToken, limit, makeScanSelectedFields(objectType, fields, withWriteTimes), withWriteTimes);
 	}
 
 	public CQLStatementIterator makeCQLForScanTableMinId(String objectType, Object startId, Long endToken, Long limit) {
-		String cql = String.format(TEMPLATE_SCAN_TABLE_MIN_ID, this.keyspace, objectType, limit);
+		return makeCQLForScanTable(TEMPLATE_SCAN_TABLE_MIN_ID, objectType, startId, endToken, limit, null, false);
+	}
+
+	/**
+	 * @param fields Fields to select along with the id, or null to select every column
+	 * @throws CQLGenerationException If a field is not part of the object type
+	 */
+	public CQLStatementIterator makeCQLForScanTableMinId(String objectType, Object startId, Long endToken, Long limit, @Nullable List<String> fields) throws CQLGenerationException {
+		return makeCQLForScanTableMinId(objectType, startId, endToken, limit, fields, false);
+	}
+
+	/**
+	 * @param fields Fields to select along with the id, or null to select every column
+	 * @param withWriteTimes True to also select the write time of every selected field but the id, after the fields and in the same order
+	 * @throws CQLGenerationException If a field is not part of the object type
+	 */
+	public CQLStatementIterator makeCQLForScanTableMinId(String objectType, Object startId, Long endToken, Long limit, @Nullable List<String> fields, boolean withWriteTimes) throws CQLGenerationException {
+		return makeCQLForScanTable(TEMPLATE_SCAN_TABLE_MIN_ID, objectType, startId, endToken, limit, makeScanSelectedFields(objectType, fields, withWriteTimes), withWriteTimes);
+	}
+
+	@Nullable
+	private List<String> makeScanSelectedFields(String objectType, @Nullable List<String> fields, boolean withWriteTimes) throws CQLGenerationException {
+		if(fields == null && !withWriteTimes) {
+			return null;
+		}
+		CDefinition def = this.definitions.get(objectType);
+		if(def == null) {
+			throw new CQLGenerationException("Unable to scan unknown object type " + objectType);
+		}
+		if(fields == null) {
+			// Write times can only be selected by name, so name every field in the order the RowMapper maps them
+			return Arrays.asList(def.getRowMapper(null).getFieldNames());
+		}
+		return makeSelectedFields(def, fields, null);
+	}
+
+	private CQLStatementIterator makeCQLForScanTable(String template, String objectType, Object start, Long endToken, Long limit, @Nullable List<String> selectedFields, boolean withWriteTimes) {
+		String selectCQL;
+		if(selectedFields == null) {
+			selectCQL = "*";
+		} else if(withWriteTimes) {
+			List<String> selectors = Lists.newArrayList(selectedFields);
+			for(String field : selectedFields) {
+				if(!field.equals("id")) {
+					selectors.add("writetime(" + field + ")");
+				}
+			}
+			selectCQL = makeCommaList(selectors);
+		} else {
+			selectCQL = makeCommaList(selectedFields);
+		}
+		String cql = String.format(template, selectCQL, this.keyspace, objectType, limit);
 		Object[] values = new Object[2];
-		values[0] = startId;
+		values[0] = start;
 		values[1] = endToken;
 		CQLStatement statement = CQLStatement.make(cql, objectType, values);
 		List<CQLStatement> ret = Lists.newArrayList();
 		ret.add(statement);
-		return new BoundedCQLStatementIterator(ret);
+		BoundedCQLStatementIterator returnIterator = new BoundedCQLStatementIterator(ret);
+		returnIterator.setSelectedFields(selectedFields);
+		return returnIterator;
 	}
 
-	public CQLStatement makeCQLForGetToken(UUID key, String cdefName){
+	public CQLStatement makeCQLForGetToken(Object key, String cdefName){
 		String statement = String.format(TEMPLATE_SELECT_TOKEN, this.keyspace, cdefName);
 		Object[] values = {key};
 		return CQLStatement.make(statement, cdefName, values);
@@ -964,12 +1329,14 @@ public class CObjectCQLGenerator {
 				//timestamp, //Add back when timestamps become preparable
 				"id = ?"),
 				makeTableName(def, null),
-				values);
+				values,
+				makeRoutingKey(makeTableName(def, null), uuid));
 	}
 
 
 	public static CQLStatement makeCQLforDeleteUUIDFromIndex(String keyspace, CDefinition def, CIndex index, UUID uuid, Map<String,Object> indexValues, Long timestamp){
-		List values = Lists.newArrayList( uuid, Long.valueOf(index.getShardingStrategy().getShardKey(uuid)) );
+		long shardId = index.getShardingStrategy().getShardKey(uuid);
+		List values = Lists.newArrayList( uuid, Long.valueOf(shardId) );
 		CQLStatement wheres = makeAndedEqualList(def, indexValues);
 		values.addAll(Arrays.asList(wheres.getValues()));
 		String whereCQL = String.format( "id = ? AND shardid = ? AND %s", wheres.getQuery());
@@ -979,7 +1346,7 @@ public class CObjectCQLGenerator {
 				makeTableName(def,index),
 				//timestamp, //Add back when timestamps become preparable
 				whereCQL);
-		return CQLStatement.make(query, makeTableName(def,index), values.toArray());
+		return CQLStatement.make(query, makeTableName(def,index), values.toArray(), makeWideRoutingKey(makeTableName(def,index), shardId, index.getIndexValues(indexValues)));
 	}
 
 	public static Statement makeCQLforDeleteUUIDFromIndex_WorkaroundForUnpreparableTimestamp(String keyspace, CDefinition def, CIndex index, UUID uuid, Map<String,Object> indexValues, Long timestamp){
@@ -1126,7 +1493,8 @@ public class CObjectCQLGenerator {
 			return objName;
 		}
 		else{
-			return makeIndexTableName(def,index);
+			String tableName = def.getInsertPlan().getIndexTableName(index);
+			return (tableName == null) ? makeIndexTableName(def,index) : tableName;
 		}
 	}
 
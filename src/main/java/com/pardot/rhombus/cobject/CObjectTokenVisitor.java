@@ -1,8 +1,12 @@
 package com.pardot.rhombus.cobject;
 
+import com.datastax.driver.core.Row;
+import com.google.common.base.Predicate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -26,6 +30,54 @@ public abstract class CObjectTokenVisitor {
 
 	public abstract void cleanUp();
 
+	/**
+	 * Called after each page of results has been visited, before the scanner saves its progress.
+	 * Visitors that write asynchronously should wait for their writes here so a savepoint never gets ahead of them.
+	 */
+	public void finishPage() {
+	}
+
+	/**
+	 * Fields this visitor reads. A table scan selects only these fields and the id, so objects passed to visit hold
+	 * nothing else.
+	 * @return Names of the fields to select, or null to select every field
+	 */
+	@Nullable
+	public List<String> getSelectedFields() {
+		return null;
+	}
+
+	/**
+	 * Filter a table scan runs on each row before mapping it to an object, so rows this visitor would skip anyway
+	 * are never mapped. Rows it rejects are not passed to visit and do not count as visited.
+	 * It may be run on a prefetch thread while this visitor visits an earlier page, so it should only look at the row.
+	 * @return Filter on the selected columns of each row, or null to map every row
+	 */
+	@Nullable
+	public Predicate<Row> getRowFilter() {
+		return null;
+	}
+
+	/**
+	 * Whether a table scan should read the write time of each object in the same query as the object and pass it to
+	 * visit(object, writeTime). Write times can only be selected by name, so a visitor that selects every field has
+	 * each field named in the scan query.
+	 * @return True to read write times
+	 */
+	public boolean isReadingWriteTimes() {
+		return false;
+	}
+
+	/**
+	 * Called instead of visit(object) by a table scan that reads write times. Ignores the write time unless overridden.
+	 * @param object Object as read
+	 * @param writeTime Write time in microseconds of the object's most recently written selected field, or null if no
+	 *                  selected field but the id is set
+	 */
+	public void visit(Map<String, Object> object, @Nullable Long writeTime) {
+		visit(object);
+	}
+
 	public CObjectTokenVisitor(String name) {
 		this.name = name;
 	}
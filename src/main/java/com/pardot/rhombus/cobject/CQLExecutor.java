@@ -139,6 +139,14 @@ public class CQLExecutor {
 		}
 	}
 
+	public ResultSetFuture executeAsync(Statement cql){
+		if(logCql) {
+			logger.debug("Executing QueryBuilder Query: {}", cql.toString());
+		}
+		com.yammer.metrics.Metrics.defaultRegistry().newMeter(CQLExecutor.class, "statement.executed", "executed", TimeUnit.SECONDS).mark();
+		return session.executeAsync(cql);
+	}
+
 	public void executeBatch(List<CQLStatementIterator> statementIterators) {
 		BatchStatement batchStatement = new BatchStatement(BatchStatement.Type.UNLOGGED);
 		for(CQLStatementIterator statementIterator : statementIterators) {
@@ -155,6 +163,25 @@ public class CQLExecutor {
 		}
 	}
 
+	/**
+	 * Send statements as one UNLOGGED batch without waiting for it to complete.
+	 * Callers should only group statements that write to the same partition, otherwise the coordinator has to fan out.
+	 * @param statements Preparable statements to send together
+	 * @return Future of the batch result
+	 */
+	public ResultSetFuture executeBatchAsync(List<CQLStatement> statements) {
+		BatchStatement batchStatement = new BatchStatement(BatchStatement.Type.UNLOGGED);
+		for(CQLStatement statement : statements) {
+			if(logCql) {
+				logger.debug("Batching CQL: {}", statement.getQuery());
+				logger.debug("With values: {}", Arrays.asList(statement.getValues()));
+			}
+			batchStatement.add(getBoundStatement(session, statement));
+		}
+		com.yammer.metrics.Metrics.defaultRegistry().newMeter(CQLExecutor.class, "batch.executed", "executed", TimeUnit.SECONDS).mark();
+		return session.executeAsync(batchStatement);
+	}
+
 	public void executeBatch(CQLStatementIterator statementIterator) {
 		List<CQLStatementIterator> statementIterators = Lists.newArrayList();
 		statementIterators.add(statementIterator);
@@ -0,0 +1,116 @@
+package com.pardot.rhombus.cobject;
+
+import com.datastax.driver.core.DataType;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Pardot, an ExactTarget company
+ *
+ * HyperLogLog sketch of the ids written to one shard of an index, used to estimate how many objects a range of
+ * shards holds without reading them.
+ * Each id sets one register to the position of the first one bit in its hash, if that is higher than the register
+ * already holds. Registers are stored as cells of a map column, written with their value as the write timestamp,
+ * so Cassandra keeps the highest value of each register without reading it first and writing the same id again
+ * changes nothing.
+ */
+public class IndexSketch {
+
+	/**
+	 * Number of hash bits used to pick a register. Changing it invalidates every stored sketch.
+	 */
+	public static final int PRECISION = 10;
+	public static final int REGISTERS = 1 << PRECISION;
+
+	private static final HashFunction hashFunction = Hashing.murmur3_128();
+	private static final double ALPHA = 0.7213 / (1.0 + 1.079 / REGISTERS);
+
+	private final int[] registers = new int[REGISTERS];
+
+	/**
+	 * @param id Id of an object
+	 * @return 64 bit hash of the id
+	 */
+	public static long hash(Object id) {
+		ByteBuffer key;
+		if(id instanceof UUID) {
+			key = DataType.uuid().serialize(id);
+		} else if(id instanceof Long) {
+			key = DataType.bigint().serialize(id);
+		} else if(id instanceof Integer) {
+			key = DataType.cint().serialize(id);
+		} else {
+			key = DataType.varchar().serialize(String.valueOf(id));
+		}
+		byte[] bytes = new byte[key.remaining()];
+		key.get(bytes);
+		return hashFunction.hashBytes(bytes).asLong();
+	}
+
+	/**
+	 * @param hash Hash of an id
+	 * @return Register the id sets
+	 */
+	public static int registerOf(long hash) {
+		return (int)(hash >>> (64 - PRECISION));
+	}
+
+	/**
+	 * @param hash Hash of an id
+	 * @return Value the id sets its register to, from 1 to 65 - PRECISION
+	 */
+	public static int rankOf(long hash) {
+		// Set a stop bit so the rank is bounded when the remaining bits are all zero
+		long remaining = (hash << PRECISION) | (1L << (PRECISION - 1));
+		return Long.numberOfLeadingZeros(remaining) + 1;
+	}
+
+	/**
+	 * Add an id to this sketch
+	 * @param id Id of an object
+	 */
+	public void add(Object id) {
+		long hash = hash(id);
+		merge(registerOf(hash), rankOf(hash));
+	}
+
+	/**
+	 * Add the registers of a stored sketch to this one
+	 * @param stored Register values keyed by register, as read from the sketch table
+	 */
+	public void merge(Map<Integer, Integer> stored) {
+		for(Map.Entry<Integer, Integer> entry : stored.entrySet()) {
+			merge(entry.getKey(), entry.getValue());
+		}
+	}
+
+	private void merge(int register, int rank) {
+		if(register >= 0 && register < REGISTERS && rank > registers[register]) {
+			registers[register] = rank;
+		}
+	}
+
+	/**
+	 * @return Estimated number of distinct ids added, with a standard error of about 3%.
+	 * Small counts are estimated from the number of empty registers, so they are close to exact.
+	 */
+	public long estimate() {
+		double sum = 0.0;
+		int empty = 0;
+		for(int register : registers) {
+			sum += 1.0 / (1L << register);
+			if(register == 0) {
+				empty++;
+			}
+		}
+		double estimate = ALPHA * REGISTERS * REGISTERS / sum;
+		if(estimate <= 2.5 * REGISTERS && empty > 0) {
+			estimate = REGISTERS * Math.log((double)REGISTERS / empty);
+		}
+		return Math.round(estimate);
+	}
+}
@@ -16,6 +16,7 @@ public class IndexUpdateRow {
 	private IndexUpdateRowKey rowKey;
 	private Long timeStampOfMostCurrentUpdate;
 	private List<UUID> ids;
+	private Long token;
 
 	public IndexUpdateRow(String objectName, UUID instanceId, Long timeStampOfMostCurrentUpdate, List<SortedMap<String,Object>> indexValues, List<UUID> ids){
 		this.rowKey = new IndexUpdateRowKey(objectName, instanceId);
@@ -64,4 +65,15 @@ public class IndexUpdateRow {
 		this.ids = ids;
 	}
 
+	/**
+	 * @return Token of the row key, or null if the row was not read by token
+	 */
+	public Long getToken() {
+		return token;
+	}
+
+	public void setToken(Long token) {
+		this.token = token;
+	}
+
 }
@@ -0,0 +1,246 @@
+package com.pardot.rhombus.cobject;
+
+import com.datastax.driver.core.DataType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+import com.google.common.io.BaseEncoding;
+import com.pardot.rhombus.util.JsonUtil;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Pardot, an ExactTarget company
+ *
+ * Encodes the index values stored in __index_updates.indexvalues.
+ * Values were originally stored as JSON, which has to be parsed into a map and then coerced back to each field's type.
+ * The binary encoding is smaller and is read straight into each field's type, without going through an intermediate map.
+ * The column is still varchar, so binary values are base64 encoded behind a prefix that JSON never starts with.
+ * decode reads both encodings.
+ */
+public class IndexValuesCodec {
+
+	public static final String BINARY_PREFIX = "~";
+	public static final byte BINARY_VERSION = 1;
+
+	private static final BaseEncoding BASE64 = BaseEncoding.base64().omitPadding();
+	// Jackson mappers are thread safe once configured
+	private static final ObjectMapper jsonMapper = new ObjectMapper();
+	private static final Map<CField.CDataType, DataType> dataTypes = new EnumMap<CField.CDataType, DataType>(CField.CDataType.class);
+	static {
+		dataTypes.put(CField.CDataType.ASCII, DataType.ascii());
+		dataTypes.put(CField.CDataType.BIGINT, DataType.bigint());
+		dataTypes.put(CField.CDataType.BLOB, DataType.blob());
+		dataTypes.put(CField.CDataType.BOOLEAN, DataType.cboolean());
+		dataTypes.put(CField.CDataType.COUNTER, DataType.counter());
+		dataTypes.put(CField.CDataType.DECIMAL, DataType.decimal());
+		dataTypes.put(CField.CDataType.DOUBLE, DataType.cdouble());
+		dataTypes.put(CField.CDataType.FLOAT, DataType.cfloat());
+		dataTypes.put(CField.CDataType.INT, DataType.cint());
+		dataTypes.put(CField.CDataType.TEXT, DataType.text());
+		dataTypes.put(CField.CDataType.TIMESTAMP, DataType.timestamp());
+		dataTypes.put(CField.CDataType.UUID, DataType.uuid());
+		dataTypes.put(CField.CDataType.VARCHAR, DataType.varchar());
+		dataTypes.put(CField.CDataType.VARINT, DataType.varint());
+		dataTypes.put(CField.CDataType.TIMEUUID, DataType.timeuuid());
+	}
+
+	/**
+	 * @param indexValues Index values to encode
+	 * @return JSON encoding, readable by every version of decode
+	 * @throws CQLGenerationException If the values could not be written as JSON
+	 */
+	public static String encodeJson(Map<String, Object> indexValues) throws CQLGenerationException {
+		try {
+			return jsonMapper.writeValueAsString(indexValues);
+		} catch(IOException e) {
+			throw new CQLGenerationException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Each value is written with its field name, so values stay readable after the definition gains new index fields.
+	 * Lengths and integer values are written as variable length integers; other values in their Cassandra serialized form.
+	 * Values are coerced to their field's type first, the same way the JSON reader coerces them.
+	 * @param def Definition the values belong to
+	 * @param indexValues Index values to encode, usually from CDefinition.makeIndexValues. Fields that are not in the
+	 *                    definition are dropped, as they are when JSON is read back.
+	 * @return Binary encoding
+	 * @throws CQLGenerationException If a value can not be converted to its field's type
+	 */
+	public static String encodeBinary(CDefinition def, Map<String, Object> indexValues) throws CQLGenerationException {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeByte(BINARY_VERSION);
+			writeVarLong(out, countKnownFields(def, indexValues));
+			for(Map.Entry<String, Object> entry : indexValues.entrySet()) {
+				CField field = def.getField(entry.getKey());
+				if(field == null) {
+					continue;
+				}
+				writeBytes(out, entry.getKey().getBytes(Charsets.UTF_8));
+				if(entry.getValue() == null) {
+					// Lengths are written plus one so zero can mark null
+					writeVarLong(out, 0L);
+				} else {
+					writeBytes(out, serialize(field, coerce(entry.getValue(), field)));
+				}
+			}
+			out.close();
+			return BINARY_PREFIX + BASE64.encode(bytes.toByteArray());
+		} catch(IOException e) {
+			// Writing to a byte array does not throw
+			throw new IllegalStateException(e);
+		} catch(RuntimeException e) {
+			throw new CQLGenerationException("Unable to encode index values for " + def.getName() + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @param def Definition the values belong to
+	 * @param encoded Values as stored, in either encoding
+	 * @return Index values converted to their field types
+	 * @throws IOException If the values can not be parsed
+	 */
+	public static SortedMap<String, Object> decode(CDefinition def, String encoded) throws IOException {
+		if(encoded.startsWith(BINARY_PREFIX)) {
+			return decodeBinary(def, encoded);
+		}
+		TreeMap<String, Object> jsonMap = jsonMapper.readValue(encoded, TreeMap.class);
+		return JsonUtil.rhombusMapFromJsonMap(jsonMap, def);
+	}
+
+	private static SortedMap<String, Object> decodeBinary(CDefinition def, String encoded) throws IOException {
+		byte[] bytes;
+		try {
+			bytes = BASE64.decode(encoded.substring(BINARY_PREFIX.length()));
+		} catch(IllegalArgumentException e) {
+			throw new IOException("Index values are not valid base64", e);
+		}
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+		byte version = in.readByte();
+		if(version != BINARY_VERSION) {
+			throw new IOException("Unsupported index values version " + version);
+		}
+		long count = readVarLong(in);
+		SortedMap<String, Object> ret = Maps.newTreeMap();
+		for(long i = 0; i < count; i++) {
+			String name = new String(readBytes(in), Charsets.UTF_8);
+			byte[] value = readBytes(in);
+			CField field = def.getField(name);
+			if(field == null) {
+				// Field was removed from the definition since the values were written
+				continue;
+			}
+			ret.put(name, (value == null) ? null : deserialize(field, value));
+		}
+		return ret;
+	}
+
+	private static byte[] serialize(CField field, Object value) throws IOException {
+		switch(field.getType()) {
+			case INT:
+			case BIGINT:
+			case COUNTER:
+			case TIMESTAMP:
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream(10);
+				DataOutputStream out = new DataOutputStream(bytes);
+				long longValue = (value instanceof Date) ? ((Date)value).getTime() : ((Number)value).longValue();
+				// Zigzag encode so small negative values stay short
+				writeVarLong(out, (longValue << 1) ^ (longValue >> 63));
+				return bytes.toByteArray();
+			default:
+				ByteBuffer buffer = dataTypes.get(field.getType()).serialize(value);
+				byte[] ret = new byte[buffer.remaining()];
+				buffer.get(ret);
+				return ret;
+		}
+	}
+
+	private static Object deserialize(CField field, byte[] value) throws IOException {
+		switch(field.getType()) {
+			case INT:
+			case BIGINT:
+			case COUNTER:
+			case TIMESTAMP:
+				long zigzag = readVarLong(new DataInputStream(new ByteArrayInputStream(value)));
+				long longValue = (zigzag >>> 1) ^ -(zigzag & 1);
+				if(field.getType() == CField.CDataType.INT) {
+					return (int)longValue;
+				} else if(field.getType() == CField.CDataType.TIMESTAMP) {
+					return new Date(longValue);
+				}
+				return longValue;
+			default:
+				return dataTypes.get(field.getType()).deserialize(ByteBuffer.wrap(value));
+		}
+	}
+
+	private static void writeBytes(DataOutputStream out, byte[] value) throws IOException {
+		writeVarLong(out, value.length + 1L);
+		out.write(value);
+	}
+
+	@Nullable
+	private static byte[] readBytes(DataInputStream in) throws IOException {
+		long length = readVarLong(in) - 1;
+		if(length < 0) {
+			return null;
+		}
+		if(length > in.available()) {
+			throw new IOException("Index values are truncated");
+		}
+		byte[] ret = new byte[(int)length];
+		in.readFully(ret);
+		return ret;
+	}
+
+	private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+		while((value & ~0x7FL) != 0) {
+			out.writeByte((int)((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.writeByte((int)value);
+	}
+
+	private static long readVarLong(DataInputStream in) throws IOException {
+		long ret = 0L;
+		for(int shift = 0; shift < 64; shift += 7) {
+			byte b = in.readByte();
+			ret |= (long)(b & 0x7F) << shift;
+			if((b & 0x80) == 0) {
+				return ret;
+			}
+		}
+		throw new IOException("Malformed variable length integer in index values");
+	}
+
+	private static int countKnownFields(CDefinition def, Map<String, Object> indexValues) {
+		int count = 0;
+		for(String name : indexValues.keySet()) {
+			if(def.getField(name) != null) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private static Object coerce(Object value, CField field) {
+		if(field.getType() == CField.CDataType.BLOB) {
+			return value;
+		}
+		return JsonUtil.typedObjectFromValueAndField(value, field);
+	}
+}
@@ -0,0 +1,204 @@
+package com.pardot.rhombus.cobject;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.pardot.rhombus.cobject.shardingstrategy.ShardingStrategyNone;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Pardot, an ExactTarget company
+ *
+ * Everything about inserting into a CDefinition's tables that does not depend on the values being inserted:
+ * table names, column order and the insert query for each combination of columns present.
+ * Compiled once per CDefinition (see CDefinition.getInsertPlan) so the insert path only has to bind values.
+ */
+public class InsertPlan {
+
+	private static final int MAX_CACHED_QUERIES = 1000;
+
+	private final String staticTableName;
+	private final int fieldCount;
+	private final List<String> fieldNames;
+	private final List<IndexPlan> indexPlans;
+	private final ConcurrentMap<QueryKey, String> queries = Maps.newConcurrentMap();
+
+	public InsertPlan(CDefinition def) {
+		this.staticTableName = def.getName();
+		this.fieldCount = (def.getFields() == null) ? 0 : def.getFields().size();
+		ImmutableList.Builder<String> fieldNamesBuilder = ImmutableList.builder();
+		if(def.getFields() != null) {
+			for(CField f : def.getFields().values()) {
+				if(!f.getName().equals("id")) {
+					fieldNamesBuilder.add(f.getName());
+				}
+			}
+		}
+		this.fieldNames = fieldNamesBuilder.build();
+		ImmutableList.Builder<IndexPlan> indexPlansBuilder = ImmutableList.builder();
+		if(def.getIndexes() != null) {
+			for(CIndex i : def.getIndexes().values()) {
+				indexPlansBuilder.add(new IndexPlan(i, CObjectCQLGenerator.makeIndexTableName(def, i)));
+			}
+		}
+		this.indexPlans = indexPlansBuilder.build();
+	}
+
+	/**
+	 * @param def Definition this plan was compiled from
+	 * @return false if the definition's fields or indexes have been changed in place since this plan was compiled
+	 */
+	public boolean isCurrentFor(CDefinition def) {
+		int currentFieldCount = (def.getFields() == null) ? 0 : def.getFields().size();
+		int currentIndexCount = (def.getIndexes() == null) ? 0 : def.getIndexes().size();
+		if(currentFieldCount != fieldCount || currentIndexCount != indexPlans.size()) {
+			return false;
+		}
+		for(IndexPlan indexPlan : indexPlans) {
+			if(def.getIndexes().get(indexPlan.index.getName()) != indexPlan.index) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public String getStaticTableName() {
+		return staticTableName;
+	}
+
+	/**
+	 * @return Names of the non-id fields, in the order their values are bound
+	 */
+	public List<String> getFieldNames() {
+		return fieldNames;
+	}
+
+	/**
+	 * @return One plan per index, in the definition's index order
+	 */
+	public List<IndexPlan> getIndexPlans() {
+		return indexPlans;
+	}
+
+	/**
+	 * @param index Index to look up
+	 * @return Table name of the index, or null if the index is not part of this definition
+	 */
+	public String getIndexTableName(CIndex index) {
+		for(IndexPlan indexPlan : indexPlans) {
+			if(indexPlan.index == index) {
+				return indexPlan.tableName;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param keyspace Keyspace of the table
+	 * @param tableName Table to insert into
+	 * @param wide true for an index table, which has a shardid column after the id
+	 * @param presentFields Positions in getFieldNames of the fields being inserted
+	 * @param ttl Time to live in seconds, or null
+	 * @return Insert query binding id, then shardid for wide tables, then the present fields in order
+	 */
+	public String getInsertQuery(String keyspace, String tableName, boolean wide, BitSet presentFields, Integer ttl) {
+		QueryKey key = new QueryKey(keyspace, tableName, wide, presentFields, ttl);
+		String query = queries.get(key);
+		if(query == null) {
+			query = buildInsertQuery(key);
+			// Per-object TTLs can produce any number of distinct queries, so stop remembering new ones past a point
+			if(queries.size() < MAX_CACHED_QUERIES) {
+				String existing = queries.putIfAbsent(key, query);
+				if(existing != null) {
+					query = existing;
+				}
+			}
+		}
+		return query;
+	}
+
+	private String buildInsertQuery(QueryKey key) {
+		StringBuilder columns = new StringBuilder("id");
+		StringBuilder placeholders = new StringBuilder("?");
+		if(key.wide) {
+			columns.append(", shardid");
+			placeholders.append(", ?");
+		}
+		for(int f = key.presentFields.nextSetBit(0); f >= 0; f = key.presentFields.nextSetBit(f + 1)) {
+			columns.append(", ").append(fieldNames.get(f));
+			placeholders.append(", ?");
+		}
+		return String.format(
+				key.wide ? CObjectCQLGenerator.TEMPLATE_INSERT_WIDE : CObjectCQLGenerator.TEMPLATE_INSERT_STATIC,
+				key.keyspace,
+				key.tableName,
+				columns.toString(),
+				placeholders.toString(),
+				(key.ttl == null) ? "" : (" USING TTL " + key.ttl)
+		);
+	}
+
+	public static class IndexPlan {
+		private final CIndex index;
+		private final String tableName;
+		private final boolean sharded;
+
+		private IndexPlan(CIndex index, String tableName) {
+			this.index = index;
+			this.tableName = tableName;
+			this.sharded = !(index.getShardingStrategy() instanceof ShardingStrategyNone);
+		}
+
+		public CIndex getIndex() {
+			return index;
+		}
+
+		public String getTableName() {
+			return tableName;
+		}
+
+		/**
+		 * @return true if inserts into this index are recorded in the shard index
+		 */
+		public boolean isSharded() {
+			return sharded;
+		}
+	}
+
+	private static class QueryKey {
+		private final String keyspace;
+		private final String tableName;
+		private final boolean wide;
+		private final BitSet presentFields;
+		private final Integer ttl;
+
+		private QueryKey(String keyspace, String tableName, boolean wide, BitSet presentFields, Integer ttl) {
+			this.keyspace = keyspace;
+			this.tableName = tableName;
+			this.wide = wide;
+			this.presentFields = presentFields;
+			this.ttl = ttl;
+		}
+
+		@Override
+		public boolean equals(Object otherObject) {
+			if(otherObject == null || this.getClass() != otherObject.getClass()) {
+				return false;
+			}
+			final QueryKey other = (QueryKey)otherObject;
+			return this.wide == other.wide
+					&& Objects.equal(this.keyspace, other.keyspace)
+					&& Objects.equal(this.tableName, other.tableName)
+					&& Objects.equal(this.presentFields, other.presentFields)
+					&& Objects.equal(this.ttl, other.ttl);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hashCode(keyspace, tableName, wide, presentFields, ttl);
+		}
+	}
+}
@@ -0,0 +1,162 @@
+package com.pardot.rhombus.cobject;
+
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Maps;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Meter;
+
+import javax.annotation.Nullable;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pardot, an ExactTarget company
+ *
+ * Bounded cache of objects read by key, keyed by (object type, id).
+ * Writes through the object mapper invalidate the object rather than populating it, so the cache only ever holds
+ * values exactly as they were read back from Cassandra. Writes from other processes are only seen once an entry expires.
+ * Immutable RhombusObjects are cached and returned as they are; any other map is copied on the way in and out.
+ */
+public class ObjectCache {
+
+	public static final long DEFAULT_MAXIMUM_SIZE = 10000L;
+	public static final long DEFAULT_EXPIRE_AFTER_WRITE_SECONDS = 60L;
+
+	private final Cache<ObjectKey, Map<String, Object>> objects;
+	// Bumped on every invalidation so a read that raced with a write does not cache what it read
+	private final AtomicLong generation = new AtomicLong(0L);
+	private final Meter hits;
+	private final Meter misses;
+
+	/**
+	 * @param name Scope to register the metrics under, usually the keyspace name
+	 */
+	public ObjectCache(String name) {
+		this(name, DEFAULT_MAXIMUM_SIZE, DEFAULT_EXPIRE_AFTER_WRITE_SECONDS);
+	}
+
+	/**
+	 * @param name Scope to register the metrics under, usually the keyspace name
+	 * @param maximumSize Maximum number of objects to hold
+	 * @param expireAfterWriteSeconds Seconds after which an object is read again
+	 */
+	public ObjectCache(String name, long maximumSize, long expireAfterWriteSeconds) {
+		this.objects = CacheBuilder.newBuilder()
+				.maximumSize(maximumSize)
+				.expireAfterWrite(expireAfterWriteSeconds, TimeUnit.SECONDS)
+				.build();
+		this.hits = Metrics.defaultRegistry().newMeter(ObjectCache.class, "hits", name, "hits", TimeUnit.SECONDS);
+		this.misses = Metrics.defaultRegistry().newMeter(ObjectCache.class, "misses", name, "misses", TimeUnit.SECONDS);
+		Metrics.defaultRegistry().newGauge(ObjectCache.class, "hitRate", name, new Gauge<Double>() {
+			@Override
+			public Double value() {
+				long total = hits.count() + misses.count();
+				return (total == 0) ? 0.0 : ((double)hits.count()) / total;
+			}
+		});
+		Metrics.defaultRegistry().newGauge(ObjectCache.class, "size", name, new Gauge<Long>() {
+			@Override
+			public Long value() {
+				return objects.size();
+			}
+		});
+	}
+
+	/**
+	 * @param objectType Type of the object
+	 * @param key Id of the object
+	 * @return The cached object if it is a RhombusObject, otherwise a copy of it, or null if it is not cached
+	 */
+	@Nullable
+	public Map<String, Object> get(String objectType, Object key) {
+		Map<String, Object> object = objects.getIfPresent(new ObjectKey(objectType, key));
+		if(object == null) {
+			misses.mark();
+			return null;
+		}
+		hits.mark();
+		return copyIfMutable(object);
+	}
+
+	/**
+	 * @return Token to pass to put, taken before reading the object
+	 */
+	public long getGeneration() {
+		return generation.get();
+	}
+
+	/**
+	 * Cache an object that was just read, unless any object was invalidated since the read started
+	 * @param objectType Type of the object
+	 * @param key Id of the object
+	 * @param object Object as read
+	 * @param readGeneration Value of getGeneration from before the read
+	 */
+	public void put(String objectType, Object key, Map<String, Object> object, long readGeneration) {
+		if(object == null) {
+			return;
+		}
+		ObjectKey objectKey = new ObjectKey(objectType, key);
+		objects.put(objectKey, copyIfMutable(object));
+		if(generation.get() != readGeneration) {
+			// A write may have landed between the read and the put
+			objects.invalidate(objectKey);
+		}
+	}
+
+	/**
+	 * Forget an object, for example because it is being written
+	 * @param objectType Type of the object
+	 * @param key Id of the object
+	 */
+	public void invalidate(String objectType, Object key) {
+		generation.incrementAndGet();
+		objects.invalidate(new ObjectKey(objectType, key));
+	}
+
+	/**
+	 * Forget every object, for example after tables are truncated
+	 */
+	public void invalidateAll() {
+		generation.incrementAndGet();
+		objects.invalidateAll();
+	}
+
+	public long size() {
+		return objects.size();
+	}
+
+	private static Map<String, Object> copyIfMutable(Map<String, Object> object) {
+		return (object instanceof RhombusObject) ? object : Maps.<String, Object>newHashMap(object);
+	}
+
+	private static class ObjectKey {
+		private final String objectType;
+		private final String key;
+
+		private ObjectKey(String objectType, Object key) {
+			this.objectType = objectType;
+			// Ids may be passed as UUIDs or as their string form
+			this.key = String.valueOf(key);
+		}
+
+		@Override
+		public boolean equals(Object otherObject) {
+			if(otherObject == null || this.getClass() != otherObject.getClass()) {
+				return false;
+			}
+			final ObjectKey other = (ObjectKey)otherObject;
+			return Objects.equal(this.objectType, other.objectType)
+					&& Objects.equal(this.key, other.key);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hashCode(objectType, key);
+		}
+	}
+}
@@ -0,0 +1,93 @@
+package com.pardot.rhombus.cobject;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Pardot, an ExactTarget company
+ *
+ * Immutable object read from Cassandra, mapped by a RowMapper (see RowMapper.mapCompact).
+ * Field names and positions live in the mapper and are shared by every object it maps, so an object holds only
+ * arrays of values: numeric and boolean fields unboxed in a long array, everything else in an object array.
+ * It is a Map of field name to value like the HashMaps ObjectMapper returns otherwise, with a key for every
+ * mapped field whether or not it is null, and compares equal to a HashMap with the same entries.
+ * Values are boxed again each time a numeric or boolean field is read.
+ */
+public class RhombusObject extends AbstractMap<String, Object> {
+
+	private final RowMapper schema;
+	private final long[] primitives;
+	private final Object[] objects;
+	private final long[] nulls;
+	private transient Set<Map.Entry<String, Object>> entrySet = null;
+
+	RhombusObject(RowMapper schema, long[] primitives, Object[] objects, long[] nulls) {
+		this.schema = schema;
+		this.primitives = primitives;
+		this.objects = objects;
+		this.nulls = nulls;
+	}
+
+	@Override
+	public int size() {
+		return schema.size();
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return schema.getPosition(key) >= 0;
+	}
+
+	@Override
+	public Object get(Object key) {
+		int position = schema.getPosition(key);
+		return (position < 0) ? null : schema.getValue(position, primitives, objects, nulls);
+	}
+
+	@Override
+	public Set<Map.Entry<String, Object>> entrySet() {
+		if(entrySet == null) {
+			entrySet = new EntrySet();
+		}
+		return entrySet;
+	}
+
+	private class EntrySet extends AbstractSet<Map.Entry<String, Object>> {
+		@Override
+		public int size() {
+			return schema.size();
+		}
+
+		@Override
+		public Iterator<Map.Entry<String, Object>> iterator() {
+			return new Iterator<Map.Entry<String, Object>>() {
+				private int position = 0;
+
+				@Override
+				public boolean hasNext() {
+					return position < schema.size();
+				}
+
+				@Override
+				public Map.Entry<String, Object> next() {
+					if(!hasNext()) {
+						throw new NoSuchElementException();
+					}
+					Map.Entry<String, Object> entry = new SimpleImmutableEntry<String, Object>(schema.getName(position),
+							schema.getValue(position, primitives, objects, nulls));
+					position++;
+					return entry;
+				}
+
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException("RhombusObject is immutable");
+				}
+			};
+		}
+	}
+}
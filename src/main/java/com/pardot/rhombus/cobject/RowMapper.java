@@ -0,0 +1,295 @@
+package com.pardot.rhombus.cobject;
+
+import com.datastax.driver.core.ColumnDefinitions;
+import com.datastax.driver.core.Row;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+import javax.annotation.Nullable;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pardot, an ExactTarget company
+ *
+ * Maps rows of a CDefinition's tables to objects, reading each cell by position rather than by name.
+ * The fields to map and their types are worked out once per CDefinition and selected field list
+ * (see CDefinition.getRowMapper), and the position of each field is looked up once per result set,
+ * so mapping a row is a flat loop over the fields with no per cell name lookups.
+ * A mapper is also the schema shared by the RhombusObjects it maps, which hold only the values of one row.
+ * Thread safe.
+ */
+public class RowMapper {
+
+	private final String[] names;
+	private final CField.CDataType[] types;
+	private final ImmutableMap<String, Integer> positions;
+	// Where each field is stored in a RhombusObject: an index into its primitives if the field is primitive,
+	// otherwise an index into its objects
+	private final int[] slots;
+	private final boolean[] primitive;
+	private final int primitiveCount;
+	private volatile Layout layout = null;
+
+	/**
+	 * @param def Definition to map rows on to
+	 * @param selectedFields Names of the columns the query selected, or null if it selected every column
+	 */
+	public RowMapper(CDefinition def, @Nullable List<String> selectedFields) {
+		int capacity = 1 + ((selectedFields == null) ? def.getFields().size() : selectedFields.size());
+		String[] names = new String[capacity];
+		CField.CDataType[] types = new CField.CDataType[capacity];
+		// The id always comes first, so getId can read it without a lookup
+		CField idField = def.getField("id");
+		names[0] = "id";
+		types[0] = (idField == null) ? CField.CDataType.UUID : idField.getType();
+		int count = 1;
+		Iterable<String> fieldNames = (selectedFields == null) ? def.getFields().keySet() : selectedFields;
+		for(String fieldName : fieldNames) {
+			if(fieldName.equals("id")) {
+				continue;
+			}
+			CField field = def.getField(fieldName);
+			if(field == null) {
+				throw new IllegalArgumentException(String.format("Cannot map field %s, which is not part of CDefinition %s", fieldName, def.getName()));
+			}
+			names[count] = fieldName;
+			types[count] = field.getType();
+			count++;
+		}
+		this.names = new String[count];
+		this.types = new CField.CDataType[count];
+		System.arraycopy(names, 0, this.names, 0, count);
+		System.arraycopy(types, 0, this.types, 0, count);
+
+		ImmutableMap.Builder<String, Integer> positionsBuilder = ImmutableMap.builder();
+		this.slots = new int[count];
+		this.primitive = new boolean[count];
+		int primitiveCount = 0;
+		int objectCount = 0;
+		for(int i = 0; i < count; i++) {
+			positionsBuilder.put(this.names[i], i);
+			primitive[i] = isPrimitive(this.types[i]);
+			slots[i] = primitive[i] ? primitiveCount++ : objectCount++;
+		}
+		this.positions = positionsBuilder.build();
+		this.primitiveCount = primitiveCount;
+	}
+
+	/**
+	 * @param row The row to map
+	 * @return Data contained in the row, keyed by field name
+	 */
+	public Map<String, Object> map(Row row) {
+		int[] indexes = getIndexes(row);
+		Map<String, Object> result = Maps.newHashMapWithExpectedSize(names.length);
+		for(int i = 0; i < names.length; i++) {
+			result.put(names[i], getValue(row, indexes[i], types[i]));
+		}
+		return result;
+	}
+
+	/**
+	 * @param row The row to map
+	 * @return Data contained in the row as an immutable RhombusObject, which stores numeric and boolean fields
+	 * unboxed and shares its field names with every other object this maps
+	 */
+	public RhombusObject mapCompact(Row row) {
+		int[] indexes = getIndexes(row);
+		long[] primitives = new long[primitiveCount];
+		Object[] objects = new Object[names.length - primitiveCount];
+		long[] nulls = (primitiveCount == 0) ? null : new long[(primitiveCount + 63) / 64];
+		for(int i = 0; i < names.length; i++) {
+			int index = indexes[i];
+			if(!primitive[i]) {
+				objects[slots[i]] = getValue(row, index, types[i]);
+			} else if(row.isNull(index)) {
+				nulls[slots[i] >> 6] |= 1L << slots[i];
+			} else {
+				primitives[slots[i]] = getPrimitive(row, index, types[i]);
+			}
+		}
+		return new RhombusObject(this, primitives, objects, nulls);
+	}
+
+	/**
+	 * @param row The row to read
+	 * @return Id of the object in the row
+	 */
+	public Object getId(Row row) {
+		return getValue(row, getIndexes(row)[0], types[0]);
+	}
+
+	/**
+	 * @param def Definition this mapper was compiled from without a selected field list
+	 * @return false if the definition's fields have been changed in place since this mapper was compiled
+	 */
+	boolean isCurrentFor(CDefinition def) {
+		int fieldCount = def.getFields().size() + (def.getFields().containsKey("id") ? 0 : 1);
+		if(fieldCount != names.length) {
+			return false;
+		}
+		for(int i = 1; i < names.length; i++) {
+			if(!def.getFields().containsKey(names[i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return Names of the fields this maps, id first
+	 */
+	public String[] getFieldNames() {
+		return names.clone();
+	}
+
+	int size() {
+		return names.length;
+	}
+
+	String getName(int position) {
+		return names[position];
+	}
+
+	/**
+	 * @return Position of the field in this mapper's fields, or -1 if it does not map the field
+	 */
+	int getPosition(Object name) {
+		Integer position = positions.get(name);
+		return (position == null) ? -1 : position;
+	}
+
+	/**
+	 * @return Value of the field at position in the values of one row
+	 */
+	Object getValue(int position, long[] primitives, Object[] objects, long[] nulls) {
+		int slot = slots[position];
+		if(!primitive[position]) {
+			return objects[slot];
+		}
+		if((nulls[slot >> 6] & (1L << slot)) != 0) {
+			return null;
+		}
+		long bits = primitives[slot];
+		switch(types[position]) {
+			case BIGINT:
+			case COUNTER:
+				return bits;
+			case INT:
+				return (int)bits;
+			case DOUBLE:
+				return Double.longBitsToDouble(bits);
+			case FLOAT:
+				return Float.intBitsToFloat((int)bits);
+			case BOOLEAN:
+				return bits != 0L;
+			default:
+				throw new IllegalStateException("Field " + names[position] + " is not stored as a primitive");
+		}
+	}
+
+	private static boolean isPrimitive(CField.CDataType type) {
+		switch(type) {
+			case BIGINT:
+			case COUNTER:
+			case INT:
+			case DOUBLE:
+			case FLOAT:
+			case BOOLEAN:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	private static long getPrimitive(Row row, int index, CField.CDataType type) {
+		switch(type) {
+			case BIGINT:
+			case COUNTER:
+				return row.getLong(index);
+			case INT:
+				return row.getInt(index);
+			case DOUBLE:
+				return Double.doubleToRawLongBits(row.getDouble(index));
+			case FLOAT:
+				return Float.floatToRawIntBits(row.getFloat(index));
+			case BOOLEAN:
+				return row.getBool(index) ? 1L : 0L;
+			default:
+				throw new IllegalArgumentException("Type " + type + " is not stored as a primitive");
+		}
+	}
+
+	/**
+	 * @return Position of each field in the row's columns, resolved again only when the row is from a different result set
+	 */
+	private int[] getIndexes(Row row) {
+		ColumnDefinitions columns = row.getColumnDefinitions();
+		Layout current = layout;
+		if(current == null || current.columns != columns) {
+			current = new Layout(columns, names);
+			layout = current;
+		}
+		return current.indexes;
+	}
+
+	/**
+	 * @param row The row to read
+	 * @param index Position of the column in the row
+	 * @param type Type of the field stored in the column
+	 * @return Value of the column, or null if it is not set
+	 */
+	public static Object getValue(Row row, int index, CField.CDataType type) {
+		if(row.isNull(index)) {
+			return null;
+		}
+		switch(type) {
+			case ASCII:
+			case VARCHAR:
+			case TEXT:
+				return row.getString(index);
+			case BIGINT:
+			case COUNTER:
+				return row.getLong(index);
+			case BLOB:
+				return row.getBytes(index);
+			case BOOLEAN:
+				return row.getBool(index);
+			case DECIMAL:
+				return row.getDecimal(index);
+			case DOUBLE:
+				return row.getDouble(index);
+			case FLOAT:
+				return row.getFloat(index);
+			case INT:
+				return row.getInt(index);
+			case TIMESTAMP:
+				return row.getDate(index);
+			case UUID:
+			case TIMEUUID:
+				return row.getUUID(index);
+			case VARINT:
+				return row.getVarint(index);
+			default:
+				return null;
+		}
+	}
+
+	private static class Layout {
+		private final ColumnDefinitions columns;
+		private final int[] indexes;
+
+		private Layout(ColumnDefinitions columns, String[] names) {
+			this.columns = columns;
+			this.indexes = new int[names.length];
+			for(int i = 0; i < names.length; i++) {
+				int index = columns.getIndexOf(names[i]);
+				if(index < 0) {
+					throw new IllegalArgumentException(names[i] + " is not a column defined in this metadata");
+				}
+				indexes[i] = index;
+			}
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package com.pardot.rhombus.cobject;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.pardot.rhombus.cobject.statement.CQLStatement;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Meter;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pardot, an ExactTarget company
+ *
+ * Remembers which (index table, index values, shard id) rows have already been written to the shard index
+ * so that repeated inserts into a known shard do not rewrite the same shard index row.
+ * A row is only remembered once the write that carried it has succeeded, so concurrent inserts into a new shard
+ * each write the row until one of them completes, and a failed write leaves the row to be written again.
+ * Entries expire after a fixed time, which bounds how long a lost shard index write can go unrepaired.
+ */
+public class ShardIndexCache {
+
+	public static final long DEFAULT_MAXIMUM_SIZE = 100000L;
+	public static final long DEFAULT_EXPIRE_AFTER_WRITE_SECONDS = 3600L;
+
+	private final Cache<String, Boolean> recorded;
+	private final Meter hits;
+	private final Meter misses;
+	private volatile ShardListCache shardListCache = null;
+
+	/**
+	 * @param name Scope to register the metrics under, usually the keyspace name
+	 */
+	public ShardIndexCache(String name) {
+		this(name, DEFAULT_MAXIMUM_SIZE, DEFAULT_EXPIRE_AFTER_WRITE_SECONDS);
+	}
+
+	/**
+	 * @param name Scope to register the metrics under, usually the keyspace name
+	 * @param maximumSize Maximum number of shard index rows to remember
+	 * @param expireAfterWriteSeconds Seconds after which a remembered row is written again
+	 */
+	public ShardIndexCache(String name, long maximumSize, long expireAfterWriteSeconds) {
+		this.recorded = CacheBuilder.newBuilder()
+				.maximumSize(maximumSize)
+				.expireAfterWrite(expireAfterWriteSeconds, TimeUnit.SECONDS)
+				.build();
+		this.hits = Metrics.defaultRegistry().newMeter(ShardIndexCache.class, "hits", name, "hits", TimeUnit.SECONDS);
+		this.misses = Metrics.defaultRegistry().newMeter(ShardIndexCache.class, "misses", name, "misses", TimeUnit.SECONDS);
+		Metrics.defaultRegistry().newGauge(ShardIndexCache.class, "hitRate", name, new Gauge<Double>() {
+			@Override
+			public Double value() {
+				long total = hits.count() + misses.count();
+				return (total == 0) ? 0.0 : ((double)hits.count()) / total;
+			}
+		});
+	}
+
+	/**
+	 * Check whether a shard index row is about to be written needlessly. Does not record the row; call markRecorded
+	 * once the write succeeds.
+	 * @param tableName Name of the index table the shard belongs to
+	 * @param indexValuesString Index values as stored in the shard index
+	 * @param shardId Shard id
+	 * @return true if the row was already recorded and does not need to be written again
+	 */
+	public boolean isRecorded(String tableName, String indexValuesString, long shardId) {
+		addToShardListCache(tableName, indexValuesString, shardId);
+		if(recorded.getIfPresent(makeKey(tableName, indexValuesString, shardId)) != null) {
+			hits.mark();
+			return true;
+		}
+		misses.mark();
+		return false;
+	}
+
+	/**
+	 * Record that a shard index row has been written
+	 * @param tableName Name of the index table the shard belongs to
+	 * @param indexValuesString Index values as stored in the shard index
+	 * @param shardId Shard id
+	 */
+	public void markRecorded(String tableName, String indexValuesString, long shardId) {
+		addToShardListCache(tableName, indexValuesString, shardId);
+		recorded.put(makeKey(tableName, indexValuesString, shardId), Boolean.TRUE);
+	}
+
+	/**
+	 * Record the shard index rows inserted by statements that have all been written successfully
+	 * @param statements Statements that were written, of which only the shard index inserts are recorded
+	 */
+	public void markRecorded(Iterable<CQLStatement> statements) {
+		for(CQLStatement statement : statements) {
+			if(CObjectCQLGenerator.isShardIndexInsert(statement)) {
+				Object[] values = statement.getValues();
+				markRecorded((String)values[0], (String)values[1], (Long)values[2]);
+			}
+		}
+	}
+
+	private void addToShardListCache(String tableName, String indexValuesString, long shardId) {
+		ShardListCache listCache = shardListCache;
+		if(listCache != null) {
+			listCache.addShard(tableName, indexValuesString, shardId);
+		}
+	}
+
+	private static String makeKey(String tableName, String indexValuesString, long shardId) {
+		return tableName + ":" + shardId + ":" + indexValuesString;
+	}
+
+	/**
+	 * @param shardListCache Shard list cache to tell about every shard recorded, or null
+	 */
+	public void setShardListCache(@Nullable ShardListCache shardListCache) {
+		this.shardListCache = shardListCache;
+	}
+
+	/**
+	 * Forget everything recorded so far, for example after the shard index is truncated
+	 */
+	public void invalidateAll() {
+		recorded.invalidateAll();
+	}
+
+	public long size() {
+		return recorded.size();
+	}
+}
@@ -0,0 +1,213 @@
+package com.pardot.rhombus.cobject;
+
+import com.google.common.base.Objects;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Meter;
+
+import javax.annotation.Nullable;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.SortedMap;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pardot, an ExactTarget company
+ *
+ * Caches the shard ids recorded in the shard index for each (index table, index values), so unbounded list and
+ * count queries do not have to read the shard index first. Each entry holds every shard in ascending order, which
+ * serves both orderings and any start/end bounds.
+ * Shards written by this process are added to loaded entries as they are recorded (see addShard). Entries are
+ * refreshed in the background once they are older than the refresh interval, which picks up shards written by
+ * other processes, and are dropped entirely after the expiry time.
+ */
+public class ShardListCache implements CObjectShardList {
+
+	public static final long DEFAULT_MAXIMUM_SIZE = 10000L;
+	public static final long DEFAULT_REFRESH_AFTER_WRITE_SECONDS = 60L;
+	public static final long DEFAULT_EXPIRE_AFTER_WRITE_SECONDS = 3600L;
+
+	private final CObjectShardList delegate;
+	private final LoadingCache<ShardListKey, NavigableSet<Long>> shardLists;
+	private final ExecutorService refreshExecutor;
+	private final Meter hits;
+	private final Meter misses;
+	private final Meter refreshes;
+
+	/**
+	 * @param name Scope to register the metrics under, usually the keyspace name
+	 * @param delegate Shard list that reads the shard index
+	 */
+	public ShardListCache(String name, CObjectShardList delegate) {
+		this(name, delegate, DEFAULT_MAXIMUM_SIZE, DEFAULT_REFRESH_AFTER_WRITE_SECONDS, DEFAULT_EXPIRE_AFTER_WRITE_SECONDS);
+	}
+
+	/**
+	 * @param name Scope to register the metrics under, usually the keyspace name
+	 * @param delegate Shard list that reads the shard index
+	 * @param maximumSize Maximum number of shard lists to hold
+	 * @param refreshAfterWriteSeconds Seconds after which a shard list is reloaded in the background the next time it is used
+	 * @param expireAfterWriteSeconds Seconds after which a shard list is dropped and must be read again before use
+	 */
+	public ShardListCache(String name, CObjectShardList delegate, long maximumSize, long refreshAfterWriteSeconds, long expireAfterWriteSeconds) {
+		this.delegate = delegate;
+		this.refreshExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("rhombus-shard-list-refresh-%d").build());
+		this.shardLists = CacheBuilder.newBuilder()
+				.maximumSize(maximumSize)
+				.refreshAfterWrite(refreshAfterWriteSeconds, TimeUnit.SECONDS)
+				.expireAfterWrite(expireAfterWriteSeconds, TimeUnit.SECONDS)
+				.build(new CacheLoader<ShardListKey, NavigableSet<Long>>() {
+					@Override
+					public NavigableSet<Long> load(ShardListKey key) throws Exception {
+						return readShardIds(key);
+					}
+
+					@Override
+					public ListenableFuture<NavigableSet<Long>> reload(final ShardListKey key, final NavigableSet<Long> oldValue) {
+						ListenableFutureTask<NavigableSet<Long>> task = ListenableFutureTask.create(new Callable<NavigableSet<Long>>() {
+							@Override
+							public NavigableSet<Long> call() throws Exception {
+								refreshes.mark();
+								NavigableSet<Long> shardIds = readShardIds(key);
+								// Shards are never removed from the shard index, so keep any added locally while reading
+								shardIds.addAll(oldValue);
+								return shardIds;
+							}
+						});
+						refreshExecutor.execute(task);
+						return task;
+					}
+				});
+		this.hits = Metrics.defaultRegistry().newMeter(ShardListCache.class, "hits", name, "hits", TimeUnit.SECONDS);
+		this.misses = Metrics.defaultRegistry().newMeter(ShardListCache.class, "misses", name, "misses", TimeUnit.SECONDS);
+		this.refreshes = Metrics.defaultRegistry().newMeter(ShardListCache.class, "refreshes", name, "refreshes", TimeUnit.SECONDS);
+		Metrics.defaultRegistry().newGauge(ShardListCache.class, "hitRate", name, new Gauge<Double>() {
+			@Override
+			public Double value() {
+				long total = hits.count() + misses.count();
+				return (total == 0) ? 0.0 : ((double)hits.count()) / total;
+			}
+		});
+	}
+
+	@Override
+	public List<Long> getShardIdList(CDefinition def, SortedMap<String, Object> indexValues, CObjectOrdering ordering, @Nullable UUID start, @Nullable UUID end) throws CQLGenerationException {
+		CIndex i = def.getIndex(indexValues, false);
+		if(i == null) {
+			// Let the shard index query report the problem
+			return delegate.getShardIdList(def, indexValues, ordering, start, end);
+		}
+		ShardListKey key = new ShardListKey(
+				CObjectCQLGenerator.makeTableName(def, i),
+				CObjectCQLGenerator.makeIndexValuesString(indexValues.values()),
+				def,
+				indexValues);
+		if(shardLists.getIfPresent(key) != null) {
+			hits.mark();
+		} else {
+			misses.mark();
+		}
+		NavigableSet<Long> shardIds;
+		try {
+			// Going through get rather than getIfPresent is what schedules the background refresh
+			shardIds = shardLists.get(key);
+		} catch(ExecutionException e) {
+			if(e.getCause() instanceof CQLGenerationException) {
+				throw (CQLGenerationException)e.getCause();
+			}
+			throw new CQLGenerationException(e.getCause().getMessage());
+		}
+		if(start != null) {
+			shardIds = shardIds.tailSet(Long.valueOf(i.getShardingStrategy().getShardKey(start)), true);
+		}
+		if(end != null) {
+			shardIds = shardIds.headSet(Long.valueOf(i.getShardingStrategy().getShardKey(end)), true);
+		}
+		if(ordering == CObjectOrdering.DESCENDING) {
+			shardIds = shardIds.descendingSet();
+		}
+		return Lists.newArrayList(shardIds);
+	}
+
+	/**
+	 * Add a shard that is being written to the shard index. Only shard lists that are already loaded are changed.
+	 * @param tableName Name of the index table the shard belongs to
+	 * @param indexValuesString Index values as stored in the shard index
+	 * @param shardId Shard id
+	 */
+	public void addShard(String tableName, String indexValuesString, long shardId) {
+		NavigableSet<Long> shardIds = shardLists.getIfPresent(new ShardListKey(tableName, indexValuesString, null, null));
+		if(shardIds != null) {
+			shardIds.add(Long.valueOf(shardId));
+		}
+	}
+
+	/**
+	 * Forget every shard list, for example after the shard index is truncated
+	 */
+	public void invalidateAll() {
+		shardLists.invalidateAll();
+	}
+
+	public long size() {
+		return shardLists.size();
+	}
+
+	/**
+	 * Stop the background refresh thread
+	 */
+	public void shutdown() {
+		refreshExecutor.shutdown();
+	}
+
+	private NavigableSet<Long> readShardIds(ShardListKey key) throws CQLGenerationException {
+		return new ConcurrentSkipListSet<Long>(delegate.getShardIdList(key.def, key.indexValues, CObjectOrdering.ASCENDING, null, null));
+	}
+
+	/**
+	 * Identifies a shard list by index table and index values. The definition and index values are only carried
+	 * along so the list can be loaded.
+	 */
+	private static class ShardListKey {
+		private final String tableName;
+		private final String indexValuesString;
+		private final CDefinition def;
+		private final SortedMap<String, Object> indexValues;
+
+		private ShardListKey(String tableName, String indexValuesString, CDefinition def, SortedMap<String, Object> indexValues) {
+			this.tableName = tableName;
+			this.indexValuesString = indexValuesString;
+			this.def = def;
+			this.indexValues = (indexValues == null) ? null : Maps.newTreeMap(indexValues);
+		}
+
+		@Override
+		public boolean equals(Object otherObject) {
+			if(otherObject == null || this.getClass() != otherObject.getClass()) {
+				return false;
+			}
+			final ShardListKey other = (ShardListKey)otherObject;
+			return Objects.equal(this.tableName, other.tableName)
+					&& Objects.equal(this.indexValuesString, other.indexValuesString);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hashCode(tableName, indexValuesString);
+		}
+	}
+}
@@ -0,0 +1,287 @@
+package com.pardot.rhombus.cobject.async;
+
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.pardot.rhombus.RhombusException;
+import com.pardot.rhombus.RhombusTimeoutException;
+import com.pardot.rhombus.cobject.CQLExecutor;
+import com.pardot.rhombus.cobject.statement.CQLStatement;
+import com.pardot.rhombus.cobject.statement.CQLStatementIterator;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Timer;
+import com.yammer.metrics.core.TimerContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pardot, an ExactTarget company
+ *
+ * Executes statements asynchronously from the calling thread, keeping at most a fixed number of statements
+ * in flight across all callers. When the limit is reached the caller blocks until a statement completes.
+ * Completion callbacks run on the driver's threads, so no threads are created per statement.
+ */
+public class AsyncStatementExecutor {
+
+	private static Logger logger = LoggerFactory.getLogger(AsyncStatementExecutor.class);
+	public static final int DEFAULT_MAX_IN_FLIGHT = 512;
+
+	private final CQLExecutor cqlExecutor;
+	private final int maxInFlight;
+	private final Semaphore permits;
+
+	public AsyncStatementExecutor(CQLExecutor cqlExecutor) {
+		this(cqlExecutor, DEFAULT_MAX_IN_FLIGHT);
+	}
+
+	/**
+	 * @param cqlExecutor Executor used to bind and send statements
+	 * @param maxInFlight Maximum number of statements outstanding at once
+	 */
+	public AsyncStatementExecutor(CQLExecutor cqlExecutor, int maxInFlight) {
+		this.cqlExecutor = cqlExecutor;
+		this.maxInFlight = Math.max(1, maxInFlight);
+		this.permits = new Semaphore(this.maxInFlight);
+	}
+
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+
+	/**
+	 * @return Number of statements currently outstanding
+	 */
+	public int getInFlight() {
+		return maxInFlight - permits.availablePermits();
+	}
+
+	/**
+	 * Execute every statement from every iterator and wait for all of them to complete
+	 * @param statementIterators Bounded statement iterators to execute
+	 * @param timeout Milliseconds to wait for all statements to be sent and completed
+	 * @return Failures of individual statements, empty if all succeeded
+	 * @throws RhombusTimeoutException if the statements do not complete within the timeout
+	 */
+	public List<Throwable> execute(List<CQLStatementIterator> statementIterators, long timeout) throws RhombusException {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		Completion completion = send(statementIterators, deadline);
+		List<Throwable> failures;
+		try {
+			failures = completion.result.get(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+		} catch (TimeoutException e) {
+			throw timeout(completion);
+		} catch (ExecutionException e) {
+			// The only way the result fails is running out of time waiting for a permit
+			throw timeout(completion);
+		} catch (InterruptedException e) {
+			logger.warn("Interrupted while executing statements asynch", e);
+			completion.cancel();
+			Thread.currentThread().interrupt();
+			return Lists.newArrayList(completion.failures);
+		}
+		for(Throwable t : failures) {
+			logger.warn("Completed executing statements, but found future failure: ", t);
+		}
+		return failures;
+	}
+
+	/**
+	 * Send every statement from every iterator without waiting for them to complete.
+	 * The calling thread only blocks while the in-flight limit is reached.
+	 * @param statementIterators Bounded statement iterators to execute
+	 * @param timeout Milliseconds to wait for the in-flight limit to allow each statement to be sent
+	 * @return Future of the failures of individual statements, empty if all succeeded. The future fails with
+	 * RhombusTimeoutException if a statement could not be sent within the timeout.
+	 */
+	public ListenableFuture<List<Throwable>> executeAsync(List<CQLStatementIterator> statementIterators, long timeout) {
+		final Completion completion = send(statementIterators, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout));
+		Futures.addCallback(completion.result, new FutureCallback<List<Throwable>>() {
+			@Override
+			public void onSuccess(List<Throwable> failures) {
+				for(Throwable t : failures) {
+					logger.warn("Completed executing statements, but found future failure: ", t);
+				}
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				if(completion.sendTimedOut) {
+					timeout(completion);
+				}
+			}
+		});
+		return completion.result;
+	}
+
+	/**
+	 * Send statements as a single UNLOGGED batch without waiting for it to complete. The batch counts as one
+	 * statement against the in-flight limit.
+	 * @param statements Preparable statements that all write to the same partition
+	 * @param timeout Milliseconds to wait for the in-flight limit to allow the batch to be sent
+	 * @return Future of the failure of the batch, empty if it succeeded. The future fails with
+	 * RhombusTimeoutException if the batch could not be sent within the timeout.
+	 */
+	public ListenableFuture<List<Throwable>> executeBatchAsync(List<CQLStatement> statements, long timeout) {
+		Completion completion = new Completion();
+		try {
+			if(!permits.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+				timeout(completion);
+				completion.result.setException(new RhombusTimeoutException("Timout executing statements asynch"));
+				return completion.result;
+			}
+		} catch (InterruptedException e) {
+			logger.warn("Interrupted while executing batch asynch", e);
+			Thread.currentThread().interrupt();
+			completion.result.setException(e);
+			return completion.result;
+		}
+		final TimerContext asyncExecTimerContext = Metrics.defaultRegistry().newTimer(AsyncStatementExecutor.class, "asyncBatchExec." + statements.get(0).getObjectName()).time();
+		completion.started();
+		ResultSetFuture future;
+		try {
+			future = cqlExecutor.executeBatchAsync(statements);
+		} catch (RuntimeException re) {
+			logger.error("RuntimeException while executing batch of {} statements\n {}", statements.size(), re);
+			asyncExecTimerContext.stop();
+			completion.finished(re);
+			permits.release();
+			completion.allSent();
+			return completion.result;
+		}
+		track(future, asyncExecTimerContext, completion);
+		completion.allSent();
+		return completion.result;
+	}
+
+	private Completion send(List<CQLStatementIterator> statementIterators, long deadline) {
+		Completion completion = new Completion();
+		try {
+			for(CQLStatementIterator statementIterator : statementIterators) {
+				while(statementIterator.hasNext()) {
+					CQLStatement statement = statementIterator.next();
+					long remaining = deadline - System.nanoTime();
+					if(!permits.tryAcquire(Math.max(0L, remaining), TimeUnit.NANOSECONDS)) {
+						completion.sendTimedOut = true;
+						completion.result.setException(new RhombusTimeoutException("Timout executing statements asynch"));
+						return completion;
+					}
+					send(statement, completion);
+				}
+			}
+		} catch (InterruptedException e) {
+			logger.warn("Interrupted while executing statements asynch", e);
+			completion.cancel();
+			Thread.currentThread().interrupt();
+		}
+		completion.allSent();
+		return completion;
+	}
+
+	private RhombusTimeoutException timeout(Completion completion) {
+		Metrics.defaultRegistry().newMeter(AsyncStatementExecutor.class, "asyncTimeout", "asyncTimeout", TimeUnit.SECONDS).mark();
+		completion.cancel();
+		for(Throwable t : completion.failures) {
+			logger.warn("Timeout executing statements. Found future failure: ", t);
+		}
+		return new RhombusTimeoutException("Timout executing statements asynch");
+	}
+
+	private void send(CQLStatement statement, final Completion completion) {
+		String methodName = "NULL";
+		String cql = statement.getQuery();
+		int firstSpace = cql.indexOf(" ");
+		if(firstSpace > 0) {
+			methodName = cql.substring(0, firstSpace);
+		}
+		Timer asyncExecTimer = Metrics.defaultRegistry().newTimer(AsyncStatementExecutor.class, "asyncExec." + methodName + "." + statement.getObjectName());
+		TimerContext asyncExecTimerContext = asyncExecTimer.time();
+		completion.started();
+		ResultSetFuture future;
+		try {
+			future = cqlExecutor.executeAsync(statement);
+		} catch (RuntimeException re) {
+			logger.error("RuntimeException while executing statement {}\n {}", statement.getQuery(), re);
+			asyncExecTimerContext.stop();
+			completion.finished(re);
+			permits.release();
+			return;
+		}
+		track(future, asyncExecTimerContext, completion);
+	}
+
+	private void track(ResultSetFuture future, final TimerContext asyncExecTimerContext, final Completion completion) {
+		completion.futures.add(future);
+		Futures.addCallback(future, new FutureCallback<ResultSet>() {
+			@Override
+			public void onSuccess(final ResultSet result) {
+				asyncExecTimerContext.stop();
+				permits.release();
+				Host queriedHost = result.getExecutionInfo().getQueriedHost();
+				Metrics.defaultRegistry().newMeter(AsyncStatementExecutor.class, "queriedhost." + queriedHost.getDatacenter(), queriedHost.getDatacenter(), TimeUnit.SECONDS).mark();
+				completion.finished(null);
+			}
+
+			@Override
+			public void onFailure(final Throwable t) {
+				asyncExecTimerContext.stop();
+				permits.release();
+				completion.finished(t);
+			}
+		}, MoreExecutors.sameThreadExecutor());
+	}
+
+	/**
+	 * Completion barrier shared by all of the statements in one call to execute
+	 */
+	private static class Completion {
+		// Starts at one so the result cannot complete until every statement has been sent
+		private final AtomicInteger outstanding = new AtomicInteger(1);
+		private final List<ResultSetFuture> futures = Collections.synchronizedList(Lists.<ResultSetFuture>newArrayList());
+		private final List<Throwable> failures = Collections.synchronizedList(Lists.<Throwable>newArrayList());
+		private final SettableFuture<List<Throwable>> result = SettableFuture.create();
+		private volatile boolean sendTimedOut = false;
+
+		private void started() {
+			outstanding.incrementAndGet();
+		}
+
+		private void finished(Throwable failure) {
+			if(failure != null) {
+				failures.add(failure);
+			}
+			if(outstanding.decrementAndGet() == 0) {
+				result.set(Collections.unmodifiableList(Lists.newArrayList(failures)));
+			}
+		}
+
+		private void allSent() {
+			finished(null);
+		}
+
+		private void cancel() {
+			synchronized(futures) {
+				for(ResultSetFuture future : futures) {
+					try {
+						future.cancel(true);
+					} catch(Exception e) {
+						logger.warn("Exception when cancelling future", e);
+					}
+				}
+			}
+		}
+	}
+}
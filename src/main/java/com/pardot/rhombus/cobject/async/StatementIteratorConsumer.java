@@ -23,7 +23,9 @@ import static com.google.common.util.concurrent.Uninterruptibles.awaitUninterrup
  * Pardot, an ExactTarget company
  * User: Michael Frank
  * Date: 6/21/13
+ * @deprecated Use AsyncStatementExecutor, which bounds the number of statements in flight and does not hop threads
  */
+@Deprecated
 public class StatementIteratorConsumer {
 
 	private static Logger logger = LoggerFactory.getLogger(StatementIteratorConsumer.class);
@@ -78,6 +80,13 @@ public class StatementIteratorConsumer {
 		}
 	}
 
+	/**
+	 * @return true if any statement failed to execute
+	 */
+	public boolean hasExecutionExceptions() {
+		return !executionExceptions.isEmpty();
+	}
+
 	private void cancelFutures() {
 		for(Future future : futures) {
 			try {
@@ -104,6 +113,7 @@ public class StatementIteratorConsumer {
 			future = this.cqlExecutor.executeAsync(statement);
 		} catch (RuntimeException re) {
 			logger.error("RuntimeException while executing statement {}\n {}", statement.getQuery(), re);
+			executionExceptions.add(re);
 			shutdownLatch.countDown();
 			return;
 		}
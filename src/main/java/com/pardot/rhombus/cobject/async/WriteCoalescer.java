@@ -0,0 +1,272 @@
+package com.pardot.rhombus.cobject.async;
+
+import com.google.common.base.Function;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.pardot.rhombus.cobject.statement.BoundedCQLStatementIterator;
+import com.pardot.rhombus.cobject.statement.CQLStatement;
+import com.pardot.rhombus.cobject.statement.CQLStatementIterator;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.Meter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pardot, an ExactTarget company
+ *
+ * Buffers write statements for a short window and sends the ones that share a routing key (see
+ * CQLStatement.getRoutingKey) as a single partition UNLOGGED batch, so the coordinator never has to fan a batch out.
+ * A group is sent as soon as it reaches the size cap, otherwise when the window closes.
+ * Statements without a routing key are sent individually right away.
+ * Every statement in a batch gets the same write timestamp, so a delete and an insert of the same cell from two
+ * callers would leave the delete winning whatever order the callers wrote in. Statements from different submissions
+ * therefore only share a batch when they were submitted for different objects. A submission that may conflict with
+ * another sends the batch it would have joined first and starts a new one.
+ */
+public class WriteCoalescer {
+
+	private static Logger logger = LoggerFactory.getLogger(WriteCoalescer.class);
+	public static final long DEFAULT_WINDOW_MILLIS = 5L;
+	public static final int DEFAULT_MAX_BATCH_SIZE = 50;
+
+	private final AsyncStatementExecutor statementExecutor;
+	private final long windowMillis;
+	private final int maxBatchSize;
+	private final long timeout;
+	private final ScheduledExecutorService flushExecutor;
+	private final Meter batchMeter;
+	private final Histogram batchSizes;
+
+	private final Object lock = new Object();
+	private Map<Object, PendingBatch> pending = Maps.newLinkedHashMap();
+	private boolean flushScheduled = false;
+
+	/**
+	 * @param statementExecutor Executor used to send batches, which also bounds the number in flight
+	 * @param windowMillis Milliseconds to wait for more statements with the same routing key
+	 * @param maxBatchSize Maximum number of statements in one batch
+	 * @param timeout Milliseconds to wait for the in-flight limit to allow a batch to be sent
+	 */
+	public WriteCoalescer(AsyncStatementExecutor statementExecutor, long windowMillis, int maxBatchSize, long timeout) {
+		this.statementExecutor = statementExecutor;
+		this.windowMillis = Math.max(0L, windowMillis);
+		this.maxBatchSize = Math.max(1, maxBatchSize);
+		this.timeout = timeout;
+		this.flushExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("rhombus-write-coalescer-%d").build());
+		this.batchMeter = Metrics.defaultRegistry().newMeter(WriteCoalescer.class, "coalescedBatches", "batches", TimeUnit.SECONDS);
+		this.batchSizes = Metrics.defaultRegistry().newHistogram(WriteCoalescer.class, "coalescedBatchSize");
+	}
+
+	public long getWindowMillis() {
+		return windowMillis;
+	}
+
+	public int getMaxBatchSize() {
+		return maxBatchSize;
+	}
+
+	/**
+	 * Add statements to the buffer. They are not batched with statements from other submissions.
+	 * @param statementIterators Bounded statement iterators to execute
+	 * @return Future of the failures of every batch or statement these statements were sent in, empty if all succeeded
+	 */
+	public ListenableFuture<List<Throwable>> submit(List<CQLStatementIterator> statementIterators) {
+		return submit(statementIterators, null);
+	}
+
+	/**
+	 * Add statements to the buffer
+	 * @param statementIterators Bounded statement iterators to execute
+	 * @param objectKey Key of the only object the statements write, such as its type and id, so they can be batched
+	 *                  with statements submitted for other objects. Null if the statements may write any object.
+	 * @return Future of the failures of every batch or statement these statements were sent in, empty if all succeeded
+	 */
+	public ListenableFuture<List<Throwable>> submit(List<CQLStatementIterator> statementIterators, @Nullable Object objectKey) {
+		Object submission = new Object();
+		List<ListenableFuture<List<Throwable>>> results = Lists.newArrayList();
+		Map<PendingBatch, Boolean> joined = new IdentityHashMap<PendingBatch, Boolean>();
+		List<CQLStatement> individual = Lists.newArrayList();
+		List<PendingBatch> full = Lists.newArrayList();
+		boolean scheduleFlush = false;
+		synchronized(lock) {
+			for(CQLStatementIterator statementIterator : statementIterators) {
+				while(statementIterator.hasNext()) {
+					CQLStatement statement = statementIterator.next();
+					Object routingKey = statement.getRoutingKey();
+					if(routingKey == null || !statement.isPreparable()) {
+						individual.add(statement);
+						continue;
+					}
+					PendingBatch batch = pending.get(routingKey);
+					if(batch != null && !batch.canJoin(submission, objectKey)) {
+						pending.remove(routingKey);
+						full.add(batch);
+						batch = null;
+					}
+					if(batch == null) {
+						batch = new PendingBatch();
+						pending.put(routingKey, batch);
+					}
+					batch.join(submission, objectKey);
+					batch.statements.add(statement);
+					if(joined.put(batch, Boolean.TRUE) == null) {
+						results.add(batch.result);
+					}
+					if(batch.statements.size() >= maxBatchSize) {
+						pending.remove(routingKey);
+						full.add(batch);
+					}
+				}
+			}
+			if(!pending.isEmpty() && !flushScheduled) {
+				flushScheduled = true;
+				scheduleFlush = true;
+			}
+		}
+		if(scheduleFlush) {
+			flushExecutor.schedule(new Runnable() {
+				@Override
+				public void run() {
+					flushWindow();
+				}
+			}, windowMillis, TimeUnit.MILLISECONDS);
+		}
+		if(!individual.isEmpty()) {
+			List<CQLStatementIterator> individualIterators = Lists.newArrayList();
+			individualIterators.add(new BoundedCQLStatementIterator(individual));
+			results.add(statementExecutor.executeAsync(individualIterators, timeout));
+		}
+		for(PendingBatch batch : full) {
+			send(batch);
+		}
+		return Futures.transform(Futures.allAsList(results), new Function<List<List<Throwable>>, List<Throwable>>() {
+			@Override
+			public List<Throwable> apply(List<List<Throwable>> failureLists) {
+				List<Throwable> failures = Lists.newArrayList();
+				for(List<Throwable> failureList : failureLists) {
+					failures.addAll(failureList);
+				}
+				return failures;
+			}
+		});
+	}
+
+	/**
+	 * Send every buffered statement now rather than waiting for the window to close
+	 */
+	public void flush() {
+		List<PendingBatch> batches;
+		synchronized(lock) {
+			batches = Lists.newArrayList(pending.values());
+			pending = Maps.newLinkedHashMap();
+		}
+		for(PendingBatch batch : batches) {
+			send(batch);
+		}
+	}
+
+	/**
+	 * Send everything still buffered and stop the flush thread
+	 */
+	public void shutdown() {
+		flush();
+		flushExecutor.shutdown();
+	}
+
+	/**
+	 * @return Number of statements waiting to be sent
+	 */
+	public int getPendingCount() {
+		synchronized(lock) {
+			int count = 0;
+			for(PendingBatch batch : pending.values()) {
+				count += batch.statements.size();
+			}
+			return count;
+		}
+	}
+
+	private void flushWindow() {
+		synchronized(lock) {
+			flushScheduled = false;
+		}
+		try {
+			flush();
+		} catch(RuntimeException e) {
+			logger.error("Exception flushing coalesced writes", e);
+		}
+	}
+
+	private void send(final PendingBatch batch) {
+		batchMeter.mark();
+		batchSizes.update(batch.statements.size());
+		ListenableFuture<List<Throwable>> sent;
+		if(batch.statements.size() == 1) {
+			// No point wrapping a single statement in a batch
+			sent = statementExecutor.executeAsync(Collections.<CQLStatementIterator>singletonList(new BoundedCQLStatementIterator(batch.statements)), timeout);
+		} else {
+			sent = statementExecutor.executeBatchAsync(batch.statements, timeout);
+		}
+		Futures.addCallback(sent, new FutureCallback<List<Throwable>>() {
+			@Override
+			public void onSuccess(List<Throwable> failures) {
+				batch.result.set(failures);
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				batch.result.setException(t);
+			}
+		});
+	}
+
+	/**
+	 * Statements buffered for one routing key
+	 */
+	private static class PendingBatch {
+		private final List<CQLStatement> statements = Lists.newArrayList();
+		private final SettableFuture<List<Throwable>> result = SettableFuture.create();
+		// Submission that joined for each object key, and every submission that joined
+		private final Map<Object, Object> submissionsByObjectKey = Maps.newHashMap();
+		private final Map<Object, Boolean> submissions = new IdentityHashMap<Object, Boolean>();
+		private boolean anyObject = false;
+
+		/**
+		 * @return true if statements from submission cannot write the same cells as statements already in this batch
+		 */
+		private boolean canJoin(Object submission, @Nullable Object objectKey) {
+			if(submissions.isEmpty() || (submissions.size() == 1 && submissions.containsKey(submission))) {
+				return true;
+			}
+			if(objectKey == null || anyObject) {
+				return false;
+			}
+			Object joined = submissionsByObjectKey.get(objectKey);
+			return joined == null || joined == submission;
+		}
+
+		private void join(Object submission, @Nullable Object objectKey) {
+			submissions.put(submission, Boolean.TRUE);
+			if(objectKey == null) {
+				anyObject = true;
+			} else {
+				submissionsByObjectKey.put(objectKey, submission);
+			}
+		}
+	}
+}
@@ -3,6 +3,7 @@ package com.pardot.rhombus.cobject.statement;
 import com.pardot.rhombus.cobject.CObjectOrdering;
 import com.pardot.rhombus.cobject.statement.CQLStatement;
 
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 
@@ -13,6 +14,7 @@ import java.util.UUID;
  */
 public abstract class BaseCQLStatementIterator implements CQLStatementIterator {
 	private Map<String, Object> clientFilters;
+	private List<String> selectedFields;
 	protected long limit = 0;
 	protected long currentShardId = -1;
 	protected UUID nextUuid = null;
@@ -28,6 +30,17 @@ public abstract class BaseCQLStatementIterator implements CQLStatementIterator {
 		this.clientFilters = clientFilters;
 	}
 
+	/**
+	 * @return Names of the columns the statements select, or null if they select every column
+	 */
+	public List<String> getSelectedFields() {
+		return selectedFields;
+	}
+
+	public void setSelectedFields(List<String> selectedFields) {
+		this.selectedFields = selectedFields;
+	}
+
 	public void setLimit(long limit){
 		this.limit = limit;
 	}
@@ -41,6 +54,19 @@ public abstract class BaseCQLStatementIterator implements CQLStatementIterator {
 		currentShardId = 1;
 	}
 
+	public long getCurrentShardId(){
+		return currentShardId;
+	}
+
+	/**
+	 * Point the iterator back at a shard it has already handed out, so that
+	 * paging within that shard can continue after later shards were requested
+	 * @param shardId Shard id previously returned by nextShard
+	 */
+	public void setCurrentShardId(long shardId){
+		this.currentShardId = shardId;
+	}
+
 	protected boolean hasStartUuid(String query){
 
 		if (query.contains("id >")){
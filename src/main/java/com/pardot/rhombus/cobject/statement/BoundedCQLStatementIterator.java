@@ -3,6 +3,7 @@ package com.pardot.rhombus.cobject.statement;
 import com.google.common.collect.Lists;
 import com.pardot.rhombus.cobject.CQLGenerationException;
 
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 
@@ -23,6 +24,13 @@ public class BoundedCQLStatementIterator extends BaseCQLStatementIterator {
 		this.statementIterator = CQLStatements.iterator();
 	}
 
+	/**
+	 * @return Every statement of this iterator, including those already returned by next
+	 */
+	public List<CQLStatement> getStatements() {
+		return Collections.unmodifiableList(cqlStatements);
+	}
+
 	public boolean allStatementsPreparable() {
 		for(CQLStatement cqlStatement : cqlStatements) {
 			if(!cqlStatement.isPreparable()) {
@@ -21,6 +21,7 @@ public class BoundedLazyCQLStatementIterator extends BaseCQLStatementIterator {
 	private long numberRemaining = 0;
 	private long size = 0;
 	private CQLStatement CQLTemplate = null;
+	private List<Long> shardIds;
 	private Iterator<Long> shardIdIterator;
 	private String objectName;
 
@@ -29,6 +30,7 @@ public class BoundedLazyCQLStatementIterator extends BaseCQLStatementIterator {
 		this.limit = limit;
 		this.numberRemaining = this.limit;
 		this.CQLTemplate = CQLTemplate;
+		this.shardIds = shardIds;
 		this.shardIdIterator = shardIds.iterator();
 		this.setObjectName(objectName);
 	}
@@ -102,6 +104,18 @@ public class BoundedLazyCQLStatementIterator extends BaseCQLStatementIterator {
 		return size;
 	}
 
+	/**
+	 * @param shardId Shard to start from
+	 * @return The shard ids this iterator covers from shardId onwards, in iteration order
+	 */
+	public List<Long> getShardIdsFrom(long shardId){
+		int index = shardIds.indexOf(shardId);
+		if(index < 0) {
+			return Lists.newArrayList();
+		}
+		return Lists.newArrayList(shardIds.subList(index, shardIds.size()));
+	}
+
 	@Override
 	public void remove() {
 		//To change body of implemented methods use File | Settings | File Templates.
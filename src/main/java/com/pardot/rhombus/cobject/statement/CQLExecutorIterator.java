@@ -1,8 +1,12 @@
 package com.pardot.rhombus.cobject.statement;
 
 import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
 import com.datastax.driver.core.Row;
+import com.datastax.driver.core.exceptions.NoHostAvailableException;
+import com.datastax.driver.core.exceptions.QueryExecutionException;
 import com.google.common.collect.Lists;
+import com.pardot.rhombus.RhombusTimeoutException;
 import com.pardot.rhombus.cobject.CQLExecutor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -23,6 +27,12 @@ public class CQLExecutorIterator implements Iterator {
 	private CQLStatementIterator statementIterator;
 	boolean moreResultsInShard = false;
 	public int statementNumber = 0;
+	private int shardPrefetchCount = 1;
+	private long pageShardId = -1;
+	private final LinkedList<PendingShard> pendingShards = Lists.newLinkedList();
+	private UUID resumeAfterId = null;
+	private Row lastRow = null;
+	private long lastRowShardId = -1;
 
 	public CQLExecutorIterator(CQLExecutor cqlExecutor, CQLStatementIterator statementIterator){
 		this.cqlExecutor = cqlExecutor;
@@ -53,19 +63,24 @@ public class CQLExecutorIterator implements Iterator {
 	public Row next(){
 		// If our current page within this shard has more results, just return one from this page
 		if(page != null && nextItem < pageSize && page.size() > nextItem) {
-			nextItem++;
-			return page.get(nextItem - 1);
+			return nextFromPage();
 		}
 		// If not, fetch more results and try again
 		fetchIfNeeded();
 		if(page != null && nextItem < pageSize && page.size() > nextItem) {
-			nextItem++;
-			return page.get(nextItem - 1);
+			return nextFromPage();
 		} else {
 			return null;
 		}
 	}
 
+	private Row nextFromPage() {
+		nextItem++;
+		lastRow = page.get(nextItem - 1);
+		lastRowShardId = pageShardId;
+		return lastRow;
+	}
+
 	private void fetchIfNeeded() {
 		// Just to be safe, make sure that we don't have anything remaining in the current page for this shard
 		if(page != null && nextItem < pageSize && page.size() > nextItem) {
@@ -76,6 +91,8 @@ public class CQLExecutorIterator implements Iterator {
 			// If we are within a shard already, get more results from this shard
 			Row row = page.get(nextItem);
 			UUID uuid = row.getUUID("id");
+			// The statement iterator may have been advanced past this shard by read-ahead
+			statementIterator.setCurrentShardId(pageShardId);
 			statementIterator.setNextUuid(uuid);
 			CQLStatement cql = statementIterator.next();
 			ResultSet resultSet = cqlExecutor.executeSync(cql);
@@ -93,29 +110,109 @@ public class CQLExecutorIterator implements Iterator {
 			page = null;
 			moreResultsInShard = false;
 
+			if (shardPrefetchCount > 1) {
+				fetchNextShardWithReadAhead();
+				return;
+			}
+
 			// Start going through the remaining shards until we find one with results or hit the last one
 			while (statementIterator.hasNext()) {
 				// Move to the next shard in the iterator and reset the limits and stuff
 				statementIterator.setLimit(pageSize + 1l);
 				statementIterator.nextShard();
-				statementIterator.setNextUuid(null);
+				UUID resumeId = resumeAfterId;
+				statementIterator.setNextUuid(resumeId);
+				resumeAfterId = null;
 				CQLStatement cql = statementIterator.next();
 				ResultSet resultSet = cqlExecutor.executeSync(cql);
 				statementNumber++;
 				if (!resultSet.isExhausted()) {
+					pageShardId = statementIterator.getCurrentShardId();
 					populatePage(resultSet);
 					if (page.size() > pageSize) {
 						moreResultsInShard = true;
 					} else {
 						moreResultsInShard = false;
 					}
+					if (skipResumedRow(resumeId)) {
+						return;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Keep up to shardPrefetchCount shard queries in flight and hand their results out in shard order.
+	 * Shards that come back empty are skipped without paying a round trip each.
+	 */
+	private void fetchNextShardWithReadAhead() {
+		fillReadAheadQueue();
+		while (!pendingShards.isEmpty()) {
+			PendingShard pending = pendingShards.removeFirst();
+			ResultSet resultSet = awaitResultSet(pending.future);
+			// Count shards as they are read rather than issued, so read-ahead does not bring the statement limit closer
+			statementNumber++;
+			fillReadAheadQueue();
+			if (!resultSet.isExhausted()) {
+				pageShardId = pending.shardId;
+				populatePage(resultSet);
+				moreResultsInShard = (page.size() > pageSize);
+				if (skipResumedRow(pending.resumeId)) {
 					return;
 				}
 			}
 		}
 	}
 
+	private void fillReadAheadQueue() {
+		while (pendingShards.size() < shardPrefetchCount && statementIterator.hasNext()) {
+			statementIterator.setLimit(pageSize + 1l);
+			statementIterator.nextShard();
+			UUID resumeId = resumeAfterId;
+			statementIterator.setNextUuid(resumeId);
+			resumeAfterId = null;
+			CQLStatement cql = statementIterator.next();
+			pendingShards.addLast(new PendingShard(statementIterator.getCurrentShardId(), resumeId, cqlExecutor.executeAsync(cql)));
+		}
+	}
+
+	private ResultSet awaitResultSet(ResultSetFuture future) {
+		try {
+			return future.getUninterruptibly();
+		} catch(NoHostAvailableException e) {
+			cancelReadAhead();
+			throw new RhombusTimeoutException(e);
+		} catch(QueryExecutionException e2) {
+			cancelReadAhead();
+			throw new RhombusTimeoutException(e2);
+		}
+	}
+
+	/**
+	 * Cancel any shard queries that were issued ahead of time but whose results are no longer needed
+	 */
+	public void cancelReadAhead() {
+		for (PendingShard pending : pendingShards) {
+			pending.future.cancel(true);
+		}
+		pendingShards.clear();
+	}
+
+	/**
+	 * A resumed shard query is inclusive of the id we resumed from, which the caller has already seen.
+	 * @param resumeId Id the query was resumed from, or null
+	 * @return true if the current page still has rows to hand out
+	 */
+	private boolean skipResumedRow(UUID resumeId) {
+		if (resumeId != null && resumeId.equals(page.get(0).getUUID("id"))) {
+			nextItem = 1;
+		}
+		return page.size() > nextItem;
+	}
+
 	private void populatePage(ResultSet resultSet){
+		nextItem = 0;
 		page = Lists.newArrayList();
 		for(Row row : resultSet) {
 			page.add(row);
@@ -141,4 +238,50 @@ public class CQLExecutorIterator implements Iterator {
 	public long getPageSize(){
 		return pageSize;
 	}
+
+	/**
+	 * Start iterating just after a row returned by an earlier iteration over the same shards.
+	 * Must be called before the first call to hasNext or next.
+	 * @param id Id of the last row the caller has already seen
+	 */
+	public void setResumeAfterId(UUID id){
+		this.resumeAfterId = id;
+	}
+
+	/**
+	 * @return The last row handed out by next, or null if none has been
+	 */
+	public Row getLastRow(){
+		return lastRow;
+	}
+
+	/**
+	 * @return Shard id the last row handed out by next was read from
+	 */
+	public long getLastRowShardId(){
+		return lastRowShardId;
+	}
+
+	/**
+	 * @param shardPrefetchCount Number of shard queries to keep in flight at once. 1 disables read-ahead.
+	 */
+	public void setShardPrefetchCount(int shardPrefetchCount){
+		this.shardPrefetchCount = Math.max(1, shardPrefetchCount);
+	}
+
+	public int getShardPrefetchCount(){
+		return shardPrefetchCount;
+	}
+
+	private static class PendingShard {
+		private final long shardId;
+		private final UUID resumeId;
+		private final ResultSetFuture future;
+
+		private PendingShard(long shardId, UUID resumeId, ResultSetFuture future) {
+			this.shardId = shardId;
+			this.resumeId = resumeId;
+			this.future = future;
+		}
+	}
 }
@@ -8,6 +8,7 @@ public class CQLStatement implements Comparable<CQLStatement>{
 	private String query;
 	private String objectName;
 	private Object[] values;
+	private Object routingKey;
 
 	public static CQLStatement make(String query, String objectName){
 		return new CQLStatement(query, objectName);
@@ -17,6 +18,12 @@ public class CQLStatement implements Comparable<CQLStatement>{
 		return new CQLStatement(query, objectName, values);
 	}
 
+	public static CQLStatement make(String query, String objectName, Object[] values, Object routingKey){
+		CQLStatement ret = new CQLStatement(query, objectName, values);
+		ret.setRoutingKey(routingKey);
+		return ret;
+	}
+
 	private CQLStatement(){
 
 	}
@@ -49,6 +56,18 @@ public class CQLStatement implements Comparable<CQLStatement>{
 		this.values = values;
 	}
 
+	/**
+	 * @return Key identifying the table and partition this statement writes to, or null if it is not known.
+	 * Statements with equal routing keys can be sent together as a single partition batch.
+	 */
+	public Object getRoutingKey() {
+		return routingKey;
+	}
+
+	public void setRoutingKey(Object routingKey) {
+		this.routingKey = routingKey;
+	}
+
 	public boolean isPreparable() {
 		return (values != null);
 	}
@@ -1,6 +1,7 @@
 package com.pardot.rhombus.cobject.statement;
 
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 
@@ -13,10 +14,14 @@ public interface CQLStatementIterator extends Iterator<CQLStatement>{
 
 	public void setClientFilters(Map<String, Object> clientFilters);
 	public Map<String, Object> getClientFilters();
+	public void setSelectedFields(List<String> selectedFields);
+	public List<String> getSelectedFields();
 	public boolean hasNext(long currentResultCount);
 	public boolean isBounded();
 	public long size();
 	public void nextShard();
 	public void setLimit(long limit);
 	public void setNextUuid(UUID uuid);
+	public long getCurrentShardId();
+	public void setCurrentShardId(long shardId);
 }
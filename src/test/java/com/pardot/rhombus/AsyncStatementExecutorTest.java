@@ -0,0 +1,180 @@
+package com.pardot.rhombus;
+
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.pardot.rhombus.cobject.CQLExecutor;
+import com.pardot.rhombus.cobject.async.AsyncStatementExecutor;
+import com.pardot.rhombus.cobject.statement.BoundedCQLStatementIterator;
+import com.pardot.rhombus.cobject.statement.CQLStatement;
+import com.pardot.rhombus.cobject.statement.CQLStatementIterator;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Pardot, an ExactTarget company
+ */
+public class AsyncStatementExecutorTest {
+
+	private static class TestResultSetFuture extends AbstractFuture<ResultSet> implements ResultSetFuture {
+		@Override
+		public boolean set(ResultSet value) {
+			return super.set(value);
+		}
+
+		@Override
+		public boolean setException(Throwable throwable) {
+			return super.setException(throwable);
+		}
+
+		@Override
+		public ResultSet getUninterruptibly() {
+			try {
+				return get();
+			} catch(Exception e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		@Override
+		public ResultSet getUninterruptibly(long timeout, TimeUnit unit) throws TimeoutException {
+			try {
+				return get(timeout, unit);
+			} catch(ExecutionException e) {
+				throw new RuntimeException(e);
+			} catch(InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	private List<CQLStatementIterator> makeStatements(int iteratorCount, int statementsPerIterator) {
+		List<CQLStatementIterator> ret = Lists.newArrayList();
+		for(int i = 0; i < iteratorCount; i++) {
+			List<CQLStatement> statements = Lists.newArrayList();
+			for(int j = 0; j < statementsPerIterator; j++) {
+				statements.add(CQLStatement.make("INSERT INTO \"ks\".\"t\" (id) VALUES (?);", "t", new Object[]{j}));
+			}
+			ret.add(new BoundedCQLStatementIterator(statements));
+		}
+		return ret;
+	}
+
+	@Test
+	public void testLimitsStatementsInFlight() throws Exception {
+		final ResultSet resultSet = mock(ResultSet.class, RETURNS_DEEP_STUBS);
+		final AtomicInteger inFlight = new AtomicInteger(0);
+		final AtomicInteger maxSeen = new AtomicInteger(0);
+		final ScheduledExecutorService completer = Executors.newSingleThreadScheduledExecutor();
+		CQLExecutor cqlExecutor = mock(CQLExecutor.class);
+		when(cqlExecutor.executeAsync(any(CQLStatement.class))).thenAnswer(new Answer<ResultSetFuture>() {
+			@Override
+			public ResultSetFuture answer(InvocationOnMock invocation) throws Throwable {
+				final TestResultSetFuture future = new TestResultSetFuture();
+				int current = inFlight.incrementAndGet();
+				if(current > maxSeen.get()) {
+					maxSeen.set(current);
+				}
+				completer.schedule(new Runnable() {
+					@Override
+					public void run() {
+						inFlight.decrementAndGet();
+						future.set(resultSet);
+					}
+				}, 2, TimeUnit.MILLISECONDS);
+				return future;
+			}
+		});
+
+		AsyncStatementExecutor executor = new AsyncStatementExecutor(cqlExecutor, 3);
+		List<Throwable> failures = executor.execute(makeStatements(4, 5), 10000L);
+
+		assertTrue(failures.isEmpty());
+		verify(cqlExecutor, times(20)).executeAsync(any(CQLStatement.class));
+		assertTrue("Saw " + maxSeen.get() + " statements in flight", maxSeen.get() <= 3);
+		assertEquals(0, executor.getInFlight());
+		completer.shutdown();
+	}
+
+	@Test
+	public void testReturnsFailures() throws Exception {
+		CQLExecutor cqlExecutor = mock(CQLExecutor.class);
+		when(cqlExecutor.executeAsync(any(CQLStatement.class))).thenAnswer(new Answer<ResultSetFuture>() {
+			@Override
+			public ResultSetFuture answer(InvocationOnMock invocation) throws Throwable {
+				TestResultSetFuture future = new TestResultSetFuture();
+				future.setException(new IllegalStateException("failed"));
+				return future;
+			}
+		});
+
+		AsyncStatementExecutor executor = new AsyncStatementExecutor(cqlExecutor, 2);
+		List<Throwable> failures = executor.execute(makeStatements(2, 2), 10000L);
+
+		assertEquals(4, failures.size());
+		assertEquals(0, executor.getInFlight());
+	}
+
+	@Test
+	public void testExecuteAsyncDoesNotWait() throws Exception {
+		final ResultSet resultSet = mock(ResultSet.class, RETURNS_DEEP_STUBS);
+		final List<TestResultSetFuture> futures = Lists.newArrayList();
+		CQLExecutor cqlExecutor = mock(CQLExecutor.class);
+		when(cqlExecutor.executeAsync(any(CQLStatement.class))).thenAnswer(new Answer<ResultSetFuture>() {
+			@Override
+			public ResultSetFuture answer(InvocationOnMock invocation) throws Throwable {
+				TestResultSetFuture future = new TestResultSetFuture();
+				futures.add(future);
+				return future;
+			}
+		});
+
+		AsyncStatementExecutor executor = new AsyncStatementExecutor(cqlExecutor, 10);
+		ListenableFuture<List<Throwable>> result = executor.executeAsync(makeStatements(2, 2), 1000L);
+		assertEquals(4, futures.size());
+		assertFalse(result.isDone());
+
+		for(TestResultSetFuture future : futures) {
+			future.set(resultSet);
+		}
+		assertTrue(result.isDone());
+		assertTrue(result.get().isEmpty());
+	}
+
+	@Test
+	public void testTimesOutAndReleasesPermits() throws Exception {
+		final List<TestResultSetFuture> futures = Lists.newArrayList();
+		CQLExecutor cqlExecutor = mock(CQLExecutor.class);
+		when(cqlExecutor.executeAsync(any(CQLStatement.class))).thenAnswer(new Answer<ResultSetFuture>() {
+			@Override
+			public ResultSetFuture answer(InvocationOnMock invocation) throws Throwable {
+				TestResultSetFuture future = new TestResultSetFuture();
+				futures.add(future);
+				return future;
+			}
+		});
+
+		AsyncStatementExecutor executor = new AsyncStatementExecutor(cqlExecutor, 2);
+		try {
+			executor.execute(makeStatements(1, 3), 50L);
+			fail("Expected a timeout");
+		} catch(RhombusTimeoutException e) {
+			// expected
+		}
+		assertEquals("Only the permitted statements should have been sent", 2, futures.size());
+		for(TestResultSetFuture future : futures) {
+			assertTrue(future.isCancelled());
+		}
+		assertEquals(0, executor.getInFlight());
+	}
+}
@@ -4,6 +4,8 @@ import com.google.common.base.Joiner;
 import com.pardot.rhombus.cobject.CDefinition;
 import com.pardot.rhombus.cobject.CField;
 import com.pardot.rhombus.cobject.CIndex;
+import com.pardot.rhombus.cobject.InsertPlan;
+import com.pardot.rhombus.cobject.shardingstrategy.ShardingStrategyNone;
 import com.pardot.rhombus.helpers.TestHelpers;
 import junit.framework.TestCase;
 
@@ -55,6 +57,22 @@ public class CDefinitionTest extends TestCase{
 		assertFalse(def1.equals(def2));
 	}
 
+	public void testInsertPlanRecompiledWhenIndexesChange() throws IOException {
+		String json = TestHelpers.readFileToString(this.getClass(), "CObjectCQLGeneratorTestData.js");
+		CDefinition def = CDefinition.fromJsonString(json);
+		InsertPlan plan = def.getInsertPlan();
+		assertSame(plan, def.getInsertPlan());
+		assertEquals(def.getIndexes().size(), plan.getIndexPlans().size());
+		assertEquals(def.getFields().size(), plan.getFieldNames().size());
+
+		CIndex newIndex = new CIndex("data1", new ShardingStrategyNone());
+		def.getIndexes().put(newIndex.getName(), newIndex);
+		InsertPlan newPlan = def.getInsertPlan();
+		assertNotSame(plan, newPlan);
+		assertNotNull(newPlan.getIndexTableName(newIndex));
+		assertTrue(newPlan.getIndexTableName(newIndex).startsWith(def.getName()));
+	}
+
 	public void testGetMostSelectiveMatchingIndexMostSelective() throws IOException {
 		String json = TestHelpers.readFileToString(this.getClass(), "CObjectCQLGeneratorTestData.js");
 		CDefinition definition = CDefinition.fromJsonString(json);
@@ -246,6 +246,175 @@ public class CObjectCQLGeneratorTest  extends TestCase {
 			//foreign has shard strategy None so we dont expect an insert into the shard index table
 		}
 
+		public void testMakeCQLforInsertWithShardIndexCache() throws CQLGenerationException, CObjectParseException, IOException {
+			String json = TestHelpers.readFileToString(this.getClass(), "CObjectCQLGeneratorTestData.js");
+			CDefinition def = CDefinition.fromJsonString(json);
+			Map<String, Object> data = TestHelpers.getTestObject(0);
+			UUID uuid = UUID.fromString("ada375b0-a2d9-11e2-99a3-3f36d3955e43");
+			ShardIndexCache cache = new ShardIndexCache(KEYSPACE_NAME);
+
+			List<CQLStatement> actual = toList(Subject.makeCQLforInsert(KEYSPACE_NAME, def, data, uuid, Long.valueOf(1), null, cache));
+			assertEquals("First insert should write both shard index rows", 6, actual.size());
+			assertEquals("Shard index rows are not recorded until they are written", 0, cache.size());
+			actual = toList(Subject.makeCQLforInsert(KEYSPACE_NAME, def, data, uuid, Long.valueOf(1), null, cache));
+			assertEquals("An insert racing the first should also write both shard index rows", 6, actual.size());
+
+			cache.markRecorded(actual);
+			assertEquals(2, cache.size());
+			UUID sameShardUuid = UUID.fromString("ada375b1-a2d9-11e2-99a3-3f36d3955e43");
+			actual = toList(Subject.makeCQLforInsert(KEYSPACE_NAME, def, data, sameShardUuid, Long.valueOf(1), null, cache));
+			assertEquals("Second insert into the same shards should skip the shard index rows", 4, actual.size());
+			for(CQLStatement statement : actual) {
+				assertFalse(statement.getQuery().contains(CObjectShardList.SHARD_INDEX_TABLE_NAME));
+			}
+
+			cache.invalidateAll();
+			actual = toList(Subject.makeCQLforInsert(KEYSPACE_NAME, def, data, sameShardUuid, Long.valueOf(1), null, cache));
+			assertEquals("Insert after invalidation should write the shard index rows again", 6, actual.size());
+		}
+
+		public void testMakeCQLforInsertWithSketchedIndex() throws CQLGenerationException, CObjectParseException, IOException {
+			String json = TestHelpers.readFileToString(this.getClass(), "CObjectCQLGeneratorTestData.js");
+			CDefinition def = CDefinition.fromJsonString(json);
+			CIndex index = def.getIndexes().get("instance:type");
+			index.setSketch(true);
+			Map<String, Object> data = TestHelpers.getTestObject(0);
+			UUID uuid = UUID.fromString("ada375b0-a2d9-11e2-99a3-3f36d3955e43");
+
+			List<CQLStatement> actual = toList(Subject.makeCQLforInsert(KEYSPACE_NAME, def, data, uuid, Long.valueOf(1), null, null));
+			assertEquals("Insert should also update the sketch of the index's shard", 7, actual.size());
+			CQLStatement sketchUpdate = null;
+			for(CQLStatement statement : actual) {
+				if(statement.getQuery().contains(INDEX_SKETCHES_TABLE_NAME)) {
+					assertNull("Only the sketched index should update a sketch", sketchUpdate);
+					sketchUpdate = statement;
+				}
+			}
+			assertEquals("UPDATE \"testspace\".\"__index_sketches\" USING TIMESTAMP ? SET registers[?] = ? WHERE tablename = ? AND indexvalues = ? AND shardid = ?;", sketchUpdate.getQuery());
+			long hash = IndexSketch.hash(uuid);
+			Object[] expectedValues = {Long.valueOf(IndexSketch.rankOf(hash)), IndexSketch.registerOf(hash), IndexSketch.rankOf(hash),
+					makeTableName(def, index), makeIndexValuesString(index.getIndexValues(data)), Long.valueOf(index.getShardingStrategy().getShardKey(uuid))};
+			assertEquals(Arrays.asList(expectedValues), Arrays.asList(sketchUpdate.getValues()));
+		}
+
+		public void testMakeCQLforCountApproximate() throws CQLGenerationException, IOException {
+			String json = TestHelpers.readFileToString(this.getClass(), "CObjectCQLGeneratorTestData.js");
+			CDefinition def = CDefinition.fromJsonString(json);
+			def.getIndexes().get("instance:type").setSketch(true);
+			Map<String, CDefinition> definitions = Maps.newHashMap();
+			definitions.put(def.getName(), def);
+			CObjectCQLGenerator generator = new CObjectCQLGenerator(KEYSPACE_NAME, definitions, null, 1000);
+
+			Criteria criteria = new Criteria();
+			SortedMap<String, Object> indexKeys = Maps.newTreeMap();
+			indexKeys.put("type", 5);
+			indexKeys.put("instance", 222222L);
+			criteria.setIndexKeys(indexKeys);
+			criteria.setEndUuid(UUID.fromString("ada375b0-a2d9-11e2-99a3-3f36d3955e43"));
+			CQLStatement statement = generator.makeCQLforCountApproximate(def.getName(), criteria);
+			assertEquals("SELECT shardid, registers FROM \"testspace\".\"__index_sketches\" WHERE tablename = ? AND indexvalues = ? AND shardid <= ?;", statement.getQuery());
+			assertEquals(3, statement.getValues().length);
+
+			// Indexes without sketches can not be counted approximately
+			indexKeys = Maps.newTreeMap();
+			indexKeys.put("foreignid", 777L);
+			criteria.setIndexKeys(indexKeys);
+			try {
+				generator.makeCQLforCountApproximate(def.getName(), criteria);
+				fail("Expected CQLGenerationException");
+			} catch(CQLGenerationException e) {
+				// expected
+			}
+		}
+
+		public void testMakeCQLforListWithFields() throws CQLGenerationException, IOException {
+			String json = TestHelpers.readFileToString(this.getClass(), "CObjectCQLGeneratorTestData.js");
+			CDefinition def = CDefinition.fromJsonString(json);
+			CObjectShardList shardIdLists = new ShardListMock(Arrays.asList(1L,2L,3L));
+			UUID stop = UUID.fromString("ada375b0-a2d9-11e2-99a3-3f36d3955e43");
+			TreeMap<String,Object> indexkeys = Maps.newTreeMap();
+			indexkeys.put("foreignid","777");
+			indexkeys.put("type", "5");
+			indexkeys.put("instance", "222222");
+
+			CQLStatementIterator iterator = CObjectCQLGenerator.makeCQLforList(KEYSPACE_NAME, shardIdLists, def, indexkeys, CObjectOrdering.DESCENDING, null, stop, 10l, true, false, false, null, Arrays.asList("data1", "data2"));
+			assertEquals(
+					"SELECT id, data1, data2 FROM \"testspace\".\"testtypef9bf3332bb4ec879849ec43c67776131\" WHERE shardid = ? AND foreignid = ? AND instance = ? AND type = ? AND id <= ? ORDER BY id DESC LIMIT 10 ALLOW FILTERING;",
+					iterator.next().getQuery());
+			assertEquals(Arrays.asList("id", "data1", "data2"), iterator.getSelectedFields());
+
+			// Fields used by client filters are always selected
+			indexkeys.put("data3", "filtered");
+			iterator = CObjectCQLGenerator.makeCQLforList(KEYSPACE_NAME, shardIdLists, def, indexkeys, CObjectOrdering.DESCENDING, null, stop, 10l, true, false, true, null, Arrays.asList("data1"));
+			assertEquals(Arrays.asList("id", "data1", "data3"), iterator.getSelectedFields());
+			assertTrue(iterator.next().getQuery().startsWith("SELECT id, data1, data3 FROM"));
+
+			// Counts with client filters only select what the filters need
+			iterator = CObjectCQLGenerator.makeCQLforList(KEYSPACE_NAME, shardIdLists, def, indexkeys, CObjectOrdering.DESCENDING, null, stop, 10l, true, true, true);
+			assertEquals(Arrays.asList("id", "data3"), iterator.getSelectedFields());
+
+			// Without a projection every column is selected
+			indexkeys.remove("data3");
+			iterator = CObjectCQLGenerator.makeCQLforList(KEYSPACE_NAME, shardIdLists, def, indexkeys, CObjectOrdering.DESCENDING, null, stop, 10l, true, false, false);
+			assertNull(iterator.getSelectedFields());
+			assertTrue(iterator.next().getQuery().startsWith("SELECT * FROM"));
+
+			try {
+				CObjectCQLGenerator.makeCQLforList(KEYSPACE_NAME, shardIdLists, def, indexkeys, CObjectOrdering.DESCENDING, null, stop, 10l, true, false, false, null, Arrays.asList("nosuchfield"));
+				fail("Selecting an unknown field should fail");
+			} catch(CQLGenerationException e) {
+				// expected
+			}
+		}
+
+		public void testMakeCQLForScanTableWithFields() throws CQLGenerationException, IOException {
+			String json = TestHelpers.readFileToString(this.getClass(), "CObjectCQLGeneratorTestData.js");
+			CDefinition def = CDefinition.fromJsonString(json);
+			Map<String, CDefinition> definitions = Maps.newHashMap();
+			definitions.put(def.getName(), def);
+			CObjectCQLGenerator generator = new CObjectCQLGenerator(KEYSPACE_NAME, definitions, null, 1000);
+
+			CQLStatementIterator iterator = generator.makeCQLForScanTableMinToken(def.getName(), Long.MIN_VALUE, Long.MAX_VALUE, 100l, Arrays.asList("data1"));
+			assertEquals(Arrays.asList("id", "data1"), iterator.getSelectedFields());
+			assertEquals("SELECT id, data1 FROM \"testspace\".\"testtype\" WHERE token(id) >= ? AND token(id) <= ? LIMIT 100;", iterator.next().getQuery());
+
+			iterator = generator.makeCQLForScanTableMinId(def.getName(), UUID.randomUUID(), Long.MAX_VALUE, 100l, Arrays.asList("data1"));
+			assertTrue(iterator.next().getQuery().startsWith("SELECT id, data1 FROM"));
+
+			// Without a projection every column is selected
+			iterator = generator.makeCQLForScanTableMinToken(def.getName(), Long.MIN_VALUE, Long.MAX_VALUE, 100l);
+			assertNull(iterator.getSelectedFields());
+			assertTrue(iterator.next().getQuery().startsWith("SELECT * FROM"));
+
+			try {
+				generator.makeCQLForScanTableMinToken(def.getName(), Long.MIN_VALUE, Long.MAX_VALUE, 100l, Arrays.asList("nosuchfield"));
+				fail("Selecting an unknown field should fail");
+			} catch(CQLGenerationException e) {
+				// expected
+			}
+		}
+
+		public void testMakeCQLForScanTableWithWriteTimes() throws CQLGenerationException, IOException {
+			String json = TestHelpers.readFileToString(this.getClass(), "CObjectCQLGeneratorTestData.js");
+			CDefinition def = CDefinition.fromJsonString(json);
+			Map<String, CDefinition> definitions = Maps.newHashMap();
+			definitions.put(def.getName(), def);
+			CObjectCQLGenerator generator = new CObjectCQLGenerator(KEYSPACE_NAME, definitions, null, 1000);
+
+			CQLStatementIterator iterator = generator.makeCQLForScanTableMinToken(def.getName(), Long.MIN_VALUE, Long.MAX_VALUE, 100l, Arrays.asList("data1"), true);
+			assertEquals(Arrays.asList("id", "data1"), iterator.getSelectedFields());
+			assertEquals("SELECT id, data1, writetime(data1) FROM \"testspace\".\"testtype\" WHERE token(id) >= ? AND token(id) <= ? LIMIT 100;", iterator.next().getQuery());
+
+			// Every field is named, in the order the RowMapper maps them
+			iterator = generator.makeCQLForScanTableMinId(def.getName(), UUID.randomUUID(), Long.MAX_VALUE, 100l, null, true);
+			String[] fields = def.getRowMapper(null).getFieldNames();
+			assertEquals(Arrays.asList(fields), iterator.getSelectedFields());
+			String query = iterator.next().getQuery();
+			assertTrue(query.startsWith("SELECT id, " + fields[1] + ", "));
+			assertTrue(query.contains(", writetime(" + fields[1] + ")"));
+			assertFalse(query.contains("writetime(id)"));
+		}
+
 		public void testMakeCQLforCreate() throws CObjectParseException, IOException {
 			String json = TestHelpers.readFileToString(this.getClass(), "CObjectCQLGeneratorTestData.js");
 			CDefinition def = CDefinition.fromJsonString(json);
@@ -497,7 +666,7 @@ public class CObjectCQLGeneratorTest  extends TestCase {
 
 		}
 
-		public void testMakeCQLforGet() throws CObjectParseException,CObjectParseException, CQLGenerationException, IOException {
+	public void testMakeCQLforGet() throws CObjectParseException,CObjectParseException, CQLGenerationException, IOException {
 			String json = TestHelpers.readFileToString(this.getClass(), "CObjectCQLGeneratorTestData.js");
 			CDefinition def = CDefinition.fromJsonString(json);
 
@@ -944,6 +1113,36 @@ public class CObjectCQLGeneratorTest  extends TestCase {
 		s.testMakeCQLforInsert();
 	}
 
+	public void testMakeCQLforInsertWithShardIndexCache() throws CQLGenerationException, CObjectParseException, IOException {
+		Subject s = new Subject(0);
+		s.testMakeCQLforInsertWithShardIndexCache();
+	}
+
+	public void testMakeCQLforListWithFields() throws CQLGenerationException, IOException {
+		Subject s = new Subject(0);
+		s.testMakeCQLforListWithFields();
+	}
+
+	public void testMakeCQLForScanTableWithFields() throws CQLGenerationException, IOException {
+		Subject s = new Subject(0);
+		s.testMakeCQLForScanTableWithFields();
+	}
+
+	public void testMakeCQLForScanTableWithWriteTimes() throws CQLGenerationException, IOException {
+		Subject s = new Subject(0);
+		s.testMakeCQLForScanTableWithWriteTimes();
+	}
+
+	public void testMakeCQLforInsertWithSketchedIndex() throws CQLGenerationException, CObjectParseException, IOException {
+		Subject s = new Subject(0);
+		s.testMakeCQLforInsertWithSketchedIndex();
+	}
+
+	public void testMakeCQLforCountApproximate() throws CQLGenerationException, IOException {
+		Subject s = new Subject(0);
+		s.testMakeCQLforCountApproximate();
+	}
+
 	public void testMakeCQLforGet() throws CQLGenerationException, CObjectParseException, IOException {
 		Subject s = new Subject(0);
 		s.testMakeCQLforGet();
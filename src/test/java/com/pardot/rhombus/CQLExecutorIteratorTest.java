@@ -1,5 +1,8 @@
 package com.pardot.rhombus;
 
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Row;
 import com.datastax.driver.core.Session;
 import com.datastax.driver.core.utils.UUIDs;
 import com.google.common.collect.Lists;
@@ -12,12 +15,16 @@ import com.pardot.rhombus.cobject.statement.CQLExecutorIterator;
 import com.pardot.rhombus.cobject.statement.CQLStatementIterator;
 import com.pardot.rhombus.cobject.statement.UnboundableCQLStatementIterator;
 import com.pardot.rhombus.cobject.statement.BaseCQLStatementIterator;
+import com.pardot.rhombus.cobject.statement.BoundedLazyCQLStatementIterator;
+import com.pardot.rhombus.cobject.statement.CQLStatement;
 import com.pardot.rhombus.helpers.ConnectionManagerTester;
 import com.pardot.rhombus.helpers.TestHelpers;
 import com.pardot.rhombus.util.JsonUtil;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -28,6 +35,7 @@ import java.util.*;
 import static org.junit.Assert.*;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.mockito.Mockito.*;
 
 
 /**
@@ -309,6 +317,63 @@ public class CQLExecutorIteratorTest  extends TestCase {
 			cqlExecutorIterator.setPageSize((nDataItems/5));
 
 
+			for (int i=0 ; i< nDataItems; i++ ){
+				assertTrue(cqlExecutorIterator.hasNext());
+				assertNotNull(cqlExecutorIterator.next());
+			}
+
+			assertFalse(cqlExecutorIterator.hasNext());
+		}
+
+		public void test5PagesWithShardPrefetch() throws Exception {
+
+			//Get a connection manager based on the test properties
+			ConnectionManagerTester cm = TestHelpers.getTestConnectionManager();
+			cm.setLogCql(true);
+			cm.buildCluster(true);
+
+			CObjectShardList shardIdLists = new ShardListMock(Arrays.asList(1L,2L,3L,4L,5L));
+
+			//Build our keyspace definition object
+			CKeyspaceDefinition definition = JsonUtil.objectFromJsonResource(CKeyspaceDefinition.class, this.getClass().getClassLoader(), "MultiInsertKeyspace.js");
+
+			//Rebuild the keyspace and get the object mapper
+			cm.buildKeyspace(definition, true);
+
+			ObjectMapper om = cm.getObjectMapper(definition);
+			om.setLogCql(true);
+
+			// Set up test data
+			// we will insert 200 objects
+			int nDataItems = 200;
+
+			List<Map<String, Object>> values2 = generateNObjects(nDataItems);
+
+			List<Map<String, Object>> updatedValues2 = Lists.newArrayList();
+			for (Map<String, Object> baseValue : values2) {
+				updatedValues2.add(JsonUtil.rhombusMapFromJsonMap(baseValue, definition.getDefinitions().get("object2")));
+			}
+
+			Map<String, List<Map<String, Object>>> multiInsertMap = Maps.newHashMap();
+			multiInsertMap.put("object2", updatedValues2);
+
+			//Insert data
+			om.insertBatchMixed(multiInsertMap);
+
+			// generate a executorIterator
+			SortedMap<String, Object> indexValues = Maps.newTreeMap();
+			indexValues.put("account_id", UUID.fromString("00000003-0000-0030-0040-000000030000"));
+			indexValues.put("user_id", UUID.fromString("00000003-0000-0030-0040-000000030000"));
+
+			UUID stop = UUID.fromString(uuidList.get(nDataItems-1));
+			CDefinition cDefinition = definition.getDefinitions().get("object2");
+			BaseCQLStatementIterator unBoundedIterator = (BaseCQLStatementIterator) CObjectCQLGenerator.makeCQLforList(KEYSPACE_NAME, shardIdLists, cDefinition, indexValues, CObjectOrdering.DESCENDING, null, stop, 10l, true, false, false);
+			Session session = cm.getRhombusSession(definition);
+			CQLExecutor cqlExecutor = new CQLExecutor(session, true, definition.getConsistencyLevel());
+			CQLExecutorIterator cqlExecutorIterator = new CQLExecutorIterator(cqlExecutor, unBoundedIterator);
+			cqlExecutorIterator.setPageSize((nDataItems/5));
+			cqlExecutorIterator.setShardPrefetchCount(3);
+
 			for (int i=0 ; i< nDataItems; i++ ){
 				assertTrue(cqlExecutorIterator.hasNext());
 				assertNotNull(cqlExecutorIterator.next());
@@ -353,4 +418,39 @@ public class CQLExecutorIteratorTest  extends TestCase {
 		Subject s = new Subject(0);
 		s.test5Pages();
 	}
+
+	public void test5PagesWithShardPrefetch() throws Exception {
+		Subject s = new Subject(0);
+		s.test5PagesWithShardPrefetch();
+	}
+
+	public void testReadAheadCountsStatementsAsRead() throws Exception {
+		ResultSet shard = mock(ResultSet.class);
+		final Row row = mock(Row.class);
+		when(shard.isExhausted()).thenReturn(false);
+		when(shard.iterator()).thenAnswer(new Answer<Iterator<Row>>() {
+			@Override
+			public Iterator<Row> answer(InvocationOnMock invocation) {
+				return Lists.newArrayList(row).iterator();
+			}
+		});
+		ResultSetFuture future = mock(ResultSetFuture.class);
+		when(future.getUninterruptibly()).thenReturn(shard);
+		CQLExecutor cqlExecutor = mock(CQLExecutor.class);
+		when(cqlExecutor.executeAsync(any(CQLStatement.class))).thenReturn(future);
+
+		CQLStatement template = CQLStatement.make("SELECT * FROM \"testspace\".\"testtype\" WHERE shardid = ? LIMIT %d;", "testtype", new Object[0]);
+		CQLStatementIterator statements = new BoundedLazyCQLStatementIterator(Arrays.asList(1L, 2L, 3L, 4L, 5L), template, 0L, "testtype");
+		CQLExecutorIterator cqlExecutorIterator = new CQLExecutorIterator(cqlExecutor, statements);
+		cqlExecutorIterator.setPageSize(10L);
+		cqlExecutorIterator.setShardPrefetchCount(3);
+
+		assertNotNull(cqlExecutorIterator.next());
+		// Four shards have been issued, three of them still in flight, but only the one read counts towards the statement limit
+		verify(cqlExecutor, times(4)).executeAsync(any(CQLStatement.class));
+		assertEquals(1, cqlExecutorIterator.statementNumber);
+		assertNotNull(cqlExecutorIterator.next());
+		assertEquals(2, cqlExecutorIterator.statementNumber);
+		cqlExecutorIterator.cancelReadAhead();
+	}
 }
@@ -0,0 +1,125 @@
+package com.pardot.rhombus;
+
+import com.datastax.driver.core.utils.UUIDs;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
+import com.pardot.rhombus.cobject.CDefinition;
+import com.pardot.rhombus.cobject.CKeyspaceDefinition;
+import com.pardot.rhombus.cobject.CObjectTokenVisitor;
+import com.pardot.rhombus.cobject.statement.CQLStatement;
+import com.pardot.rhombus.cobject.statement.CQLStatementIterator;
+import com.pardot.rhombus.helpers.TestHelpers;
+import junit.framework.TestCase;
+import org.mockito.ArgumentCaptor;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.mockito.Mockito.*;
+
+/**
+ * Pardot, an ExactTarget company
+ */
+public class IndexBackfillerTest extends TestCase {
+
+	private ObjectMapper mockObjectMapper() throws Exception {
+		String json = TestHelpers.readFileToString(this.getClass(), "CObjectCQLGeneratorTestData.js");
+		CKeyspaceDefinition keyspaceDefinition = mock(CKeyspaceDefinition.class);
+		when(keyspaceDefinition.getName()).thenReturn("testspace");
+		ObjectMapper objectMapper = mock(ObjectMapper.class);
+		when(objectMapper.getDefinition("testtype")).thenReturn(CDefinition.fromJsonString(json));
+		when(objectMapper.getKeyspaceDefinition()).thenReturn(keyspaceDefinition);
+		return objectMapper;
+	}
+
+	private Map<String, Object> makeObject() {
+		Map<String, Object> object = Maps.newHashMap();
+		object.put("id", UUIDs.timeBased());
+		object.put("foreignid", Long.valueOf(777));
+		object.put("type", Integer.valueOf(5));
+		object.put("instance", Long.valueOf(222222));
+		object.put("filtered", null);
+		object.put("data1", "one");
+		return object;
+	}
+
+	public void testWritesOnlyTheNewIndex() throws Exception {
+		// Index fields are matched in any order
+		IndexBackfiller backfiller = new IndexBackfiller(mockObjectMapper(), "testtype", "instance:type", 1, null);
+		List<CQLStatement> statements = backfiller.makeCQLforIndexInsert(makeObject(), 1234L);
+		assertEquals(2, statements.size());
+		String wideTable = statements.get(0).getObjectName();
+		assertTrue(statements.get(0).getQuery().startsWith("INSERT INTO \"testspace\".\"" + wideTable + "\""));
+		assertFalse(wideTable.equals("testtype"));
+		// Columns that were never set are not written
+		assertFalse(statements.get(0).getQuery().contains("filtered"));
+		assertTrue(statements.get(1).getQuery().contains("__shardindex"));
+	}
+
+	public void testWritesAtTheWriteTimeOfTheObject() throws Exception {
+		IndexBackfiller backfiller = new IndexBackfiller(mockObjectMapper(), "testtype", "instance:type", 1, null);
+		CQLStatement insert = backfiller.makeCQLforIndexInsert(makeObject(), 1234L).get(0);
+		assertTrue(insert.getQuery().endsWith(" USING TIMESTAMP ?;"));
+		Object[] values = insert.getValues();
+		assertEquals(1234L, values[values.length - 1]);
+	}
+
+	public void testSkipsObjectsMissingIndexValues() throws Exception {
+		IndexBackfiller backfiller = new IndexBackfiller(mockObjectMapper(), "testtype", "type:instance", 1, null);
+		Map<String, Object> object = makeObject();
+		object.put("instance", null);
+		assertNull(backfiller.makeCQLforIndexInsert(object, 1234L));
+	}
+
+	public void testWritesWithTheWriteTimeReadByTheScan() throws Exception {
+		ObjectMapper objectMapper = mockObjectMapper();
+		when(objectMapper.executeStatementsAsync(anyListOf(CQLStatementIterator.class))).thenReturn(Futures.immediateFuture(Collections.<Throwable>emptyList()));
+		IndexBackfiller backfiller = new IndexBackfiller(objectMapper, "testtype", "instance:type", 1, null);
+		long written = backfiller.getObjectsWritten();
+		CObjectTokenVisitor visitor = backfiller.makeVisitor("1");
+		assertTrue(visitor.isReadingWriteTimes());
+
+		// An object with no field set has no write time and nothing to index
+		visitor.visit(makeObject(), null);
+		verify(objectMapper, never()).executeStatementsAsync(anyListOf(CQLStatementIterator.class));
+
+		visitor.visit(makeObject(), 1234L);
+		visitor.finishPage();
+		ArgumentCaptor<List> writes = ArgumentCaptor.forClass(List.class);
+		verify(objectMapper).executeStatementsAsync(writes.capture());
+		CQLStatement insert = ((CQLStatementIterator)writes.getValue().get(0)).next();
+		Object[] values = insert.getValues();
+		assertEquals(1234L, values[values.length - 1]);
+		assertEquals(written + 1, backfiller.getObjectsWritten());
+	}
+
+	public void testCountsWritesThatFailEveryRetry() throws Exception {
+		ObjectMapper objectMapper = mockObjectMapper();
+		Map<String, Object> object = makeObject();
+		List<Throwable> failures = Collections.<Throwable>singletonList(new RuntimeException("write failed"));
+		when(objectMapper.executeStatementsAsync(anyListOf(CQLStatementIterator.class))).thenReturn(Futures.immediateFuture(failures));
+
+		IndexBackfiller backfiller = new IndexBackfiller(objectMapper, "testtype", "instance:type", 1, null);
+		backfiller.setWriteRetries(2);
+		// Meters are shared by every backfiller of the same index
+		long written = backfiller.getObjectsWritten();
+		long failed = backfiller.getFailedWrites();
+		CObjectTokenVisitor visitor = backfiller.makeVisitor("1");
+		visitor.visit(object, 1234L);
+		visitor.finishPage();
+		assertEquals(failed + 1, backfiller.getFailedWrites());
+		assertEquals(written, backfiller.getObjectsWritten());
+		// The first write and both retries
+		verify(objectMapper, times(3)).executeStatementsAsync(anyListOf(CQLStatementIterator.class));
+	}
+
+	public void testUnknownIndex() throws Exception {
+		try {
+			new IndexBackfiller(mockObjectMapper(), "testtype", "data1", 1, null);
+			fail("Expected an exception for an index that does not exist");
+		} catch(RhombusException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package com.pardot.rhombus;
+
+import com.datastax.driver.core.utils.UUIDs;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.pardot.rhombus.cobject.IndexSketch;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Pardot, an ExactTarget company
+ */
+public class IndexSketchTest {
+
+	@Test
+	public void testEmpty() {
+		assertEquals(0L, new IndexSketch().estimate());
+	}
+
+	@Test
+	public void testSmallCountsAreNearlyExact() {
+		// Fixed ids, so the estimate does not depend on which registers random ids happen to collide in.
+		// Linear counting of 100 ids in 1024 registers has a standard error of about 2.2, so allow three of them.
+		IndexSketch sketch = new IndexSketch();
+		for(long i = 0; i < 100; i++) {
+			sketch.add(i);
+		}
+		assertTrue(Math.abs(sketch.estimate() - 100L) <= 7L);
+	}
+
+	@Test
+	public void testLargeCountsAreWithinError() {
+		IndexSketch sketch = new IndexSketch();
+		int count = 200000;
+		for(int i = 0; i < count; i++) {
+			sketch.add(UUIDs.random());
+		}
+		// Four standard errors
+		assertTrue(Math.abs(sketch.estimate() - count) < count * 0.13);
+	}
+
+	@Test
+	public void testMergingStoredRegistersKeepsTheHighest() {
+		List<UUID> ids = Lists.newArrayList();
+		for(int i = 0; i < 5000; i++) {
+			ids.add(UUIDs.random());
+		}
+		IndexSketch direct = new IndexSketch();
+		// Two shards, written the way the sketch table keeps them, with an id written to both
+		Map<Integer, Integer> first = Maps.newHashMap();
+		Map<Integer, Integer> second = Maps.newHashMap();
+		for(int i = 0; i < ids.size(); i++) {
+			direct.add(ids.get(i));
+			store(i < 3000 ? first : second, ids.get(i));
+		}
+		store(second, ids.get(0));
+
+		IndexSketch merged = new IndexSketch();
+		merged.merge(first);
+		merged.merge(second);
+		assertEquals(direct.estimate(), merged.estimate());
+		// Adding the same ids again changes nothing
+		for(UUID id : ids) {
+			direct.add(id);
+		}
+		assertEquals(merged.estimate(), direct.estimate());
+	}
+
+	private static void store(Map<Integer, Integer> registers, UUID id) {
+		long hash = IndexSketch.hash(id);
+		Integer register = IndexSketch.registerOf(hash);
+		int rank = IndexSketch.rankOf(hash);
+		Integer stored = registers.get(register);
+		if(stored == null || rank > stored) {
+			registers.put(register, rank);
+		}
+	}
+}
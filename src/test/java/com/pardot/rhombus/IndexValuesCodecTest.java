@@ -0,0 +1,86 @@
+package com.pardot.rhombus;
+
+import com.pardot.rhombus.cobject.CDefinition;
+import com.pardot.rhombus.cobject.CKeyspaceDefinition;
+import com.pardot.rhombus.cobject.IndexValuesCodec;
+import com.pardot.rhombus.helpers.TestHelpers;
+import com.pardot.rhombus.util.JsonUtil;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Pardot, an ExactTarget company
+ */
+public class IndexValuesCodecTest {
+
+	private CDefinition makeDefinition() throws Exception {
+		String json = TestHelpers.readFileToString(this.getClass(), "CObjectCQLGeneratorTestData.js");
+		return CDefinition.fromJsonString(json);
+	}
+
+	@Test
+	public void testBinaryRoundTrip() throws Exception {
+		CDefinition def = makeDefinition();
+		Map<String, Object> values = new TreeMap<String, Object>();
+		// Integers for bigint fields are widened, the same as values read back from JSON
+		values.put("foreignid", 777);
+		values.put("instance", 222222L);
+		values.put("type", 9);
+		values.put("data1", null);
+
+		String encoded = IndexValuesCodec.encodeBinary(def, values);
+		assertTrue(encoded.startsWith(IndexValuesCodec.BINARY_PREFIX));
+
+		SortedMap<String, Object> decoded = IndexValuesCodec.decode(def, encoded);
+		Map<String, Object> expected = new TreeMap<String, Object>();
+		expected.put("foreignid", 777L);
+		expected.put("instance", 222222L);
+		expected.put("type", 9);
+		expected.put("data1", null);
+		assertEquals(expected, decoded);
+	}
+
+	@Test
+	public void testDecodeJson() throws Exception {
+		CDefinition def = makeDefinition();
+		SortedMap<String, Object> decoded = IndexValuesCodec.decode(def, "{\"foreignid\":777,\"instance\":222222,\"type\":9}");
+		Map<String, Object> expected = new TreeMap<String, Object>();
+		expected.put("foreignid", 777L);
+		expected.put("instance", 222222L);
+		expected.put("type", 9);
+		assertEquals(expected, decoded);
+	}
+
+	@Test
+	public void testEveryTypeMatchesJson() throws Exception {
+		CKeyspaceDefinition keyspace = CKeyspaceDefinition.fromJsonFile("ObjectMapperTypeTestKeyspace.js");
+		CDefinition def = keyspace.getDefinitions().get("testobjecttype");
+		List<Map<String, Object>> values = JsonUtil.rhombusMapFromResource(this.getClass().getClassLoader(), "ObjectMapperTypeTestData.js");
+		Map<String, Object> object = values.get(0);
+
+		String json = IndexValuesCodec.encodeJson(object);
+		String binary = IndexValuesCodec.encodeBinary(def, object);
+		assertEquals(IndexValuesCodec.decode(def, json), IndexValuesCodec.decode(def, binary));
+		assertTrue(binary.length() < json.length());
+	}
+
+	@Test
+	public void testUnsupportedVersion() throws Exception {
+		CDefinition def = makeDefinition();
+		try {
+			IndexValuesCodec.decode(def, IndexValuesCodec.BINARY_PREFIX + "fwAA");
+			fail("Expected IOException");
+		} catch(IOException e) {
+			// expected
+		}
+	}
+}
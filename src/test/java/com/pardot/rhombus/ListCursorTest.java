@@ -0,0 +1,41 @@
+package com.pardot.rhombus;
+
+import com.datastax.driver.core.utils.UUIDs;
+import com.google.common.collect.Lists;
+import com.pardot.rhombus.cobject.CObjectOrdering;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Pardot, an ExactTarget company
+ */
+public class ListCursorTest {
+
+	@Test
+	public void testTokenRoundTripWithShardList() throws Exception {
+		ListCursor cursor = new ListCursor(160L, UUIDs.timeBased(), CObjectOrdering.DESCENDING, 25L, Lists.newArrayList(160L, 158L, 12L));
+		ListCursor decoded = ListCursor.fromToken(cursor.toToken());
+		assertEquals(cursor, decoded);
+	}
+
+	@Test
+	public void testTokenRoundTripWithoutShardList() throws Exception {
+		ListCursor cursor = new ListCursor(3L, UUIDs.timeBased(), CObjectOrdering.ASCENDING, 0L, null);
+		ListCursor decoded = ListCursor.fromToken(cursor.toToken());
+		assertEquals(cursor, decoded);
+		assertNull(decoded.getShardIds());
+	}
+
+	@Test
+	public void testInvalidToken() {
+		try {
+			ListCursor.fromToken("not a cursor");
+			fail("Expected RhombusException");
+		} catch(RhombusException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package com.pardot.rhombus;
+
+import com.datastax.driver.core.ColumnDefinitions;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.utils.UUIDs;
+import com.google.common.collect.Maps;
+import com.pardot.rhombus.cobject.CDefinition;
+import com.pardot.rhombus.cobject.ObjectCache;
+import com.pardot.rhombus.cobject.RhombusObject;
+import com.pardot.rhombus.cobject.RowMapper;
+import com.pardot.rhombus.helpers.TestHelpers;
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Pardot, an ExactTarget company
+ */
+public class ObjectCacheTest extends TestCase {
+
+	private Map<String, Object> makeObject(UUID id) {
+		Map<String, Object> object = Maps.newHashMap();
+		object.put("id", id);
+		object.put("value", "one");
+		return object;
+	}
+
+	public void testPutAndGet() {
+		ObjectCache cache = new ObjectCache("ObjectCacheTest");
+		UUID id = UUIDs.timeBased();
+		assertNull(cache.get("testtype", id));
+
+		cache.put("testtype", id, makeObject(id), cache.getGeneration());
+		Map<String, Object> cached = cache.get("testtype", id);
+		assertEquals(makeObject(id), cached);
+		// Ids passed as strings find the same object
+		assertEquals(makeObject(id), cache.get("testtype", id.toString()));
+		assertNull(cache.get("othertype", id));
+
+		// Changing a returned object does not change the cached one
+		cached.put("value", "two");
+		assertEquals("one", cache.get("testtype", id).get("value"));
+	}
+
+	public void testInvalidate() {
+		ObjectCache cache = new ObjectCache("ObjectCacheTest");
+		UUID id = UUIDs.timeBased();
+		cache.put("testtype", id, makeObject(id), cache.getGeneration());
+		cache.invalidate("testtype", id);
+		assertNull(cache.get("testtype", id));
+	}
+
+	public void testReadThatRacesWithWriteIsNotCached() {
+		ObjectCache cache = new ObjectCache("ObjectCacheTest");
+		UUID id = UUIDs.timeBased();
+		long readGeneration = cache.getGeneration();
+		// A write invalidates the object while the read is in progress
+		cache.invalidate("testtype", id);
+		cache.put("testtype", id, makeObject(id), readGeneration);
+		assertNull(cache.get("testtype", id));
+		assertEquals(0, cache.size());
+	}
+
+	public void testCompactObjectIsNotCopied() throws Exception {
+		CDefinition def = CDefinition.fromJsonString(TestHelpers.readFileToString(this.getClass(), "CObjectCQLGeneratorTestData.js"));
+		RowMapper mapper = def.getRowMapper(Arrays.asList("id", "data1"));
+		ColumnDefinitions columns = mock(ColumnDefinitions.class);
+		when(columns.getIndexOf("id")).thenReturn(0);
+		when(columns.getIndexOf("data1")).thenReturn(1);
+		UUID id = UUIDs.timeBased();
+		Row row = mock(Row.class);
+		when(row.getColumnDefinitions()).thenReturn(columns);
+		when(row.getUUID(0)).thenReturn(id);
+		when(row.getString(1)).thenReturn("one");
+		RhombusObject object = mapper.mapCompact(row);
+
+		ObjectCache cache = new ObjectCache("ObjectCacheTest");
+		cache.put("testtype", id, object, cache.getGeneration());
+		assertSame(object, cache.get("testtype", id));
+	}
+}
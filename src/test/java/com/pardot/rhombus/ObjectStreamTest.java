@@ -0,0 +1,104 @@
+package com.pardot.rhombus;
+
+import com.datastax.driver.core.Row;
+import com.google.common.base.Function;
+import com.google.common.base.Predicate;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.pardot.rhombus.cobject.statement.CQLExecutorIterator;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.*;
+
+/**
+ * Pardot, an ExactTarget company
+ */
+public class ObjectStreamTest {
+
+	@Test
+	public void testFiltersAsRowsAreRead() {
+		Row one = mock(Row.class);
+		Row two = mock(Row.class);
+		Row three = mock(Row.class);
+		CQLExecutorIterator cqlIterator = mock(CQLExecutorIterator.class);
+		when(cqlIterator.hasNext()).thenReturn(true, true, true, false);
+		when(cqlIterator.next()).thenReturn(one, two, three);
+
+		ObjectStream stream = new ObjectStream(cqlIterator, mapper(one, two, three), new Predicate<Map<String, Object>>() {
+			@Override
+			public boolean apply(Map<String, Object> object) {
+				return !object.get("id").equals(2);
+			}
+		}, 0L);
+
+		assertEquals(1, stream.next().get("id"));
+		// Nothing past the first object has been read yet
+		verify(cqlIterator, times(1)).next();
+		assertEquals(3, stream.next().get("id"));
+		assertFalse(stream.hasNext());
+		assertTrue(stream.isClosed());
+		verify(cqlIterator).cancelReadAhead();
+		assertEquals(2, stream.getReturned());
+		try {
+			stream.next();
+			fail("Expected NoSuchElementException");
+		} catch(NoSuchElementException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testStopsAtLimit() {
+		Row one = mock(Row.class);
+		Row two = mock(Row.class);
+		CQLExecutorIterator cqlIterator = mock(CQLExecutorIterator.class);
+		when(cqlIterator.hasNext()).thenReturn(true);
+		when(cqlIterator.next()).thenReturn(one, two);
+
+		ObjectStream stream = new ObjectStream(cqlIterator, mapper(one, two), null, 1L);
+		List<Object> ids = Lists.newArrayList();
+		while(stream.hasNext()) {
+			ids.add(stream.next().get("id"));
+		}
+		assertEquals(Lists.<Object>newArrayList(1), ids);
+		verify(cqlIterator, times(1)).next();
+		verify(cqlIterator).cancelReadAhead();
+	}
+
+	@Test
+	public void testCloseCancelsReadAhead() {
+		Row one = mock(Row.class);
+		CQLExecutorIterator cqlIterator = mock(CQLExecutorIterator.class);
+		when(cqlIterator.hasNext()).thenReturn(true);
+		when(cqlIterator.next()).thenReturn(one);
+
+		ObjectStream stream = new ObjectStream(cqlIterator, mapper(one), null, 0L);
+		assertTrue(stream.hasNext());
+		stream.close();
+		stream.close();
+		assertFalse(stream.hasNext());
+		verify(cqlIterator, times(1)).cancelReadAhead();
+	}
+
+	/**
+	 * @return Mapper giving each row an id of its position in rows, starting at 1
+	 */
+	private static Function<Row, Map<String, Object>> mapper(final Row... rows) {
+		return new Function<Row, Map<String, Object>>() {
+			@Override
+			public Map<String, Object> apply(Row row) {
+				Map<String, Object> object = Maps.newHashMap();
+				object.put("id", Lists.newArrayList(rows).indexOf(row) + 1);
+				return object;
+			}
+		};
+	}
+}
@@ -0,0 +1,153 @@
+package com.pardot.rhombus;
+
+import com.datastax.driver.core.ColumnDefinitions;
+import com.datastax.driver.core.Row;
+import com.pardot.rhombus.cobject.CDefinition;
+import com.pardot.rhombus.cobject.RhombusObject;
+import com.pardot.rhombus.cobject.RowMapper;
+import com.pardot.rhombus.helpers.TestHelpers;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.*;
+
+/**
+ * Pardot, an ExactTarget company
+ */
+public class RowMapperTest {
+
+	@Test
+	public void testMapsSelectedFieldsByPosition() throws Exception {
+		CDefinition def = makeDefinition();
+		RowMapper mapper = def.getRowMapper(Arrays.asList("id", "data1", "foreignid"));
+		ColumnDefinitions columns = makeColumns("id", "data1", "foreignid");
+		UUID id = UUID.randomUUID();
+		Row row = mock(Row.class);
+		when(row.getColumnDefinitions()).thenReturn(columns);
+		when(row.getUUID(0)).thenReturn(id);
+		when(row.getString(1)).thenReturn("one");
+		when(row.isNull(2)).thenReturn(true);
+
+		Map<String, Object> result = mapper.map(row);
+		assertEquals(3, result.size());
+		assertEquals(id, result.get("id"));
+		assertEquals("one", result.get("data1"));
+		assertNull(result.get("foreignid"));
+		assertEquals(id, mapper.getId(row));
+		verify(row, never()).getString(anyString());
+		verify(row, never()).isNull(anyString());
+	}
+
+	@Test
+	public void testResolvesColumnsOncePerResultSet() throws Exception {
+		CDefinition def = makeDefinition();
+		RowMapper mapper = def.getRowMapper(Arrays.asList("id", "data1"));
+		ColumnDefinitions columns = makeColumns("id", "data1");
+		Row one = mock(Row.class);
+		Row two = mock(Row.class);
+		when(one.getColumnDefinitions()).thenReturn(columns);
+		when(two.getColumnDefinitions()).thenReturn(columns);
+		mapper.map(one);
+		mapper.map(two);
+		verify(columns, times(1)).getIndexOf("data1");
+
+		// A result set with its columns in a different order is resolved again
+		ColumnDefinitions reordered = makeColumns("data1", "id");
+		Row three = mock(Row.class);
+		when(three.getColumnDefinitions()).thenReturn(reordered);
+		when(three.getString(0)).thenReturn("three");
+		assertEquals("three", mapper.map(three).get("data1"));
+	}
+
+	@Test
+	public void testMapperCachedPerSelectedFields() throws Exception {
+		CDefinition def = makeDefinition();
+		RowMapper all = def.getRowMapper(null);
+		assertSame(all, def.getRowMapper(null));
+		assertEquals(def.getFields().size() + 1, all.getFieldNames().length);
+		RowMapper selected = def.getRowMapper(Arrays.asList("id", "data1"));
+		assertSame(selected, def.getRowMapper(Arrays.asList("id", "data1")));
+		assertNotSame(all, selected);
+		assertEquals("id", selected.getFieldNames()[0]);
+		assertEquals(2, selected.getFieldNames().length);
+	}
+
+	@Test
+	public void testCompactObjectMatchesMap() throws Exception {
+		CDefinition def = makeDefinition();
+		RowMapper mapper = def.getRowMapper(Arrays.asList("id", "foreignid", "type", "filtered", "data1", "data2"));
+		ColumnDefinitions columns = makeColumns("id", "foreignid", "type", "filtered", "data1", "data2");
+		UUID id = UUID.randomUUID();
+		Row row = mock(Row.class);
+		when(row.getColumnDefinitions()).thenReturn(columns);
+		when(row.getUUID(0)).thenReturn(id);
+		when(row.getLong(1)).thenReturn(-5L);
+		when(row.getInt(2)).thenReturn(7);
+		when(row.isNull(3)).thenReturn(true);
+		when(row.getString(4)).thenReturn("four");
+		when(row.isNull(5)).thenReturn(true);
+
+		RhombusObject compact = mapper.mapCompact(row);
+		Map<String, Object> expected = mapper.map(row);
+		assertEquals(expected, compact);
+		assertEquals(compact, expected);
+		assertEquals(expected.hashCode(), compact.hashCode());
+		assertEquals(6, compact.size());
+		assertEquals(-5L, compact.get("foreignid"));
+		assertEquals(7, compact.get("type"));
+		assertNull(compact.get("filtered"));
+		assertTrue(compact.containsKey("filtered"));
+		assertEquals("four", compact.get("data1"));
+		assertNull(compact.get("data2"));
+		assertFalse(compact.containsKey("data3"));
+		assertNull(compact.get("data3"));
+	}
+
+	@Test
+	public void testCompactObjectIsImmutable() throws Exception {
+		CDefinition def = makeDefinition();
+		RowMapper mapper = def.getRowMapper(Arrays.asList("id", "foreignid"));
+		ColumnDefinitions columns = makeColumns("id", "foreignid");
+		Row row = mock(Row.class);
+		when(row.getColumnDefinitions()).thenReturn(columns);
+		when(row.getUUID(0)).thenReturn(UUID.randomUUID());
+		when(row.getLong(1)).thenReturn(1L);
+		RhombusObject compact = mapper.mapCompact(row);
+		try {
+			compact.put("foreignid", 2L);
+			fail("Expected UnsupportedOperationException");
+		} catch(UnsupportedOperationException e) {
+			// expected
+		}
+		try {
+			compact.clear();
+			fail("Expected UnsupportedOperationException");
+		} catch(UnsupportedOperationException e) {
+			// expected
+		}
+		assertEquals(1L, compact.get("foreignid"));
+	}
+
+	private CDefinition makeDefinition() throws Exception {
+		String json = TestHelpers.readFileToString(this.getClass(), "CObjectCQLGeneratorTestData.js");
+		return CDefinition.fromJsonString(json);
+	}
+
+	private static ColumnDefinitions makeColumns(String... names) {
+		ColumnDefinitions columns = mock(ColumnDefinitions.class);
+		for(int i = 0; i < names.length; i++) {
+			when(columns.getIndexOf(names[i])).thenReturn(i);
+		}
+		return columns;
+	}
+}
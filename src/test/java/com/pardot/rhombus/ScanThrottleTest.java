@@ -0,0 +1,73 @@
+package com.pardot.rhombus;
+
+import org.junit.Test;
+
+import javax.management.Attribute;
+import javax.management.MBeanServer;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Pardot, an ExactTarget company
+ */
+public class ScanThrottleTest {
+
+	@Test
+	public void testUnlimitedDoesNotWait() {
+		ScanThrottle throttle = new ScanThrottle("unlimited", 0, 0);
+		long start = System.currentTimeMillis();
+		for(int i = 0; i < 1000; i++) {
+			throttle.acquireRequest();
+			throttle.acquireRows(1000);
+		}
+		assertTrue(System.currentTimeMillis() - start < 500);
+	}
+
+	@Test
+	public void testLimitsRows() {
+		ScanThrottle throttle = new ScanThrottle("rows", 100, 0);
+		long start = System.currentTimeMillis();
+		// The first acquire is free, the next has to wait for the 50 rows it paid for
+		throttle.acquireRows(50);
+		throttle.acquireRows(1);
+		assertTrue(System.currentTimeMillis() - start >= 400);
+	}
+
+	@Test
+	public void testBacksOffAndRecovers() {
+		ScanThrottle throttle = new ScanThrottle("backoff", 100, 10);
+		throttle.setLatencyThresholdMillis(50);
+		throttle.recordLatency(100);
+		assertEquals(0.5, throttle.getBackoff(), 0.0001);
+		throttle.recordLatency(100);
+		assertEquals(0.25, throttle.getBackoff(), 0.0001);
+		for(int i = 0; i < 100; i++) {
+			throttle.recordLatency(10);
+		}
+		assertEquals(1.0, throttle.getBackoff(), 0.0001);
+		for(int i = 0; i < 100; i++) {
+			throttle.recordLatency(100);
+		}
+		assertEquals(ScanThrottle.MIN_BACKOFF, throttle.getBackoff(), 0.0001);
+
+		// Turning the threshold off lifts the backoff
+		throttle.setLatencyThresholdMillis(0);
+		assertEquals(1.0, throttle.getBackoff(), 0.0001);
+	}
+
+	@Test
+	public void testAdjustOverJmx() throws Exception {
+		ScanThrottle throttle = new ScanThrottle("jmx", 100, 10);
+		throttle.registerMBean();
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			server.setAttribute(throttle.getObjectName(), new Attribute("RowsPerSecond", 250.0));
+			assertEquals(250.0, throttle.getRowsPerSecond(), 0.0001);
+			assertEquals(10.0, (Double)server.getAttribute(throttle.getObjectName(), "RequestsPerSecond"), 0.0001);
+		} finally {
+			server.unregisterMBean(throttle.getObjectName());
+		}
+	}
+}
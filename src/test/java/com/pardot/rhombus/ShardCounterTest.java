@@ -0,0 +1,130 @@
+package com.pardot.rhombus;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.pardot.rhombus.cobject.statement.BoundedLazyCQLStatementIterator;
+import com.pardot.rhombus.cobject.statement.CQLStatement;
+import com.pardot.rhombus.cobject.statement.CQLStatementIterator;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Pardot, an ExactTarget company
+ */
+public class ShardCounterTest {
+
+	@Test
+	public void testAddsUpEveryShard() throws Exception {
+		RecordingCounter counter = new RecordingCounter(2, 0, 4L);
+		CountResult result = counter.count(makeStatements(1L, 2L, 3L), 0L);
+		assertEquals(12L, result.getCount());
+		assertFalse(result.isLimitReached());
+		assertEquals(Arrays.asList(1L, 2L, 3L), Lists.newArrayList(result.getShardMillis().keySet()));
+	}
+
+	@Test
+	public void testStopsAtLimit() throws Exception {
+		RecordingCounter counter = new RecordingCounter(2, 0, 3L);
+		CountResult result = counter.count(makeStatements(1L, 2L, 3L, 4L, 5L), 5L);
+		assertEquals(5L, result.getCount());
+		assertTrue(result.isLimitReached());
+		// The third shard was sent when the first finished, the limit was reached before the rest were needed
+		assertEquals(Arrays.asList(1L, 2L, 3L), counter.sent);
+	}
+
+	@Test
+	public void testKeepsConcurrencyInFlight() throws Exception {
+		final PendingCounter counter = new PendingCounter(2);
+		final CQLStatementIterator statements = makeStatements(1L, 2L, 3L);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<CountResult> result = executor.submit(new Callable<CountResult>() {
+				@Override
+				public CountResult call() throws Exception {
+					return counter.count(statements, 0L);
+				}
+			});
+			counter.awaitSent(2);
+			Thread.sleep(50L);
+			assertEquals(2, counter.pending.size());
+			// Shards finishing out of order still count
+			counter.pending.get(1).set(5L);
+			counter.awaitSent(3);
+			counter.pending.get(0).set(1L);
+			counter.pending.get(2).set(2L);
+			assertEquals(8L, result.get(5, TimeUnit.SECONDS).getCount());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testStatementLimit() throws Exception {
+		RecordingCounter counter = new RecordingCounter(2, 2, 1L);
+		try {
+			counter.count(makeStatements(1L, 2L, 3L), 0L);
+			fail("Expected RhombusException");
+		} catch(RhombusException e) {
+			// expected
+		}
+	}
+
+	private static CQLStatementIterator makeStatements(Long... shardIds) {
+		CQLStatement template = CQLStatement.make("SELECT count(*) FROM \"testspace\".\"testtype\" WHERE shardid = ? LIMIT %d;", "testtype", new Object[0]);
+		return new BoundedLazyCQLStatementIterator(Arrays.asList(shardIds), template, 0L, "testtype");
+	}
+
+	private static class RecordingCounter extends ShardCounter {
+		private final long countPerShard;
+		private final List<Long> sent = Lists.newArrayList();
+
+		private RecordingCounter(int concurrency, int statementLimit, long countPerShard) {
+			super(null, concurrency, statementLimit);
+			this.countPerShard = countPerShard;
+		}
+
+		@Override
+		protected ListenableFuture<Long> countShard(CQLStatement cql) {
+			sent.add((Long)cql.getValues()[0]);
+			SettableFuture<Long> ret = SettableFuture.create();
+			ret.set(countPerShard);
+			return ret;
+		}
+	}
+
+	private static class PendingCounter extends ShardCounter {
+		private final List<SettableFuture<Long>> pending = Lists.newCopyOnWriteArrayList();
+
+		private PendingCounter(int concurrency) {
+			super(null, concurrency, 0);
+		}
+
+		@Override
+		protected ListenableFuture<Long> countShard(CQLStatement cql) {
+			SettableFuture<Long> ret = SettableFuture.create();
+			pending.add(ret);
+			return ret;
+		}
+
+		private void awaitSent(int count) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + 5000L;
+			while(pending.size() < count && System.currentTimeMillis() < deadline) {
+				Thread.sleep(5L);
+			}
+			assertEquals(count, pending.size());
+		}
+	}
+}
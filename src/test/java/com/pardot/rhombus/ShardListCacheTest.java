@@ -0,0 +1,99 @@
+package com.pardot.rhombus;
+
+import com.datastax.driver.core.utils.UUIDs;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.pardot.rhombus.cobject.*;
+import com.pardot.rhombus.helpers.TestHelpers;
+import junit.framework.TestCase;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import javax.annotation.Nullable;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pardot, an ExactTarget company
+ */
+public class ShardListCacheTest extends TestCase {
+
+	private static class CountingShardList implements CObjectShardList {
+		private final List<Long> shardIds;
+		private final AtomicInteger reads = new AtomicInteger(0);
+
+		private CountingShardList(List<Long> shardIds) {
+			this.shardIds = shardIds;
+		}
+
+		@Override
+		public List<Long> getShardIdList(CDefinition def, SortedMap<String, Object> indexValues, CObjectOrdering ordering, @Nullable UUID start, @Nullable UUID end) throws CQLGenerationException {
+			reads.incrementAndGet();
+			return shardIds;
+		}
+	}
+
+	private CDefinition def;
+	private CIndex index;
+	private SortedMap<String, Object> indexValues;
+
+	@Override
+	protected void setUp() throws Exception {
+		String json = TestHelpers.readFileToString(this.getClass(), "CObjectCQLGeneratorTestData.js");
+		def = CDefinition.fromJsonString(json);
+		indexValues = Maps.newTreeMap();
+		indexValues.put("type", Integer.valueOf(5));
+		indexValues.put("instance", Long.valueOf(222222));
+		index = def.getIndex(indexValues, false);
+	}
+
+	private UUID uuidForMonth(int month) {
+		return UUIDs.startOf(new DateTime(2013, month, 15, 0, 0, DateTimeZone.UTC).getMillis());
+	}
+
+	private Long shardForMonth(int month) {
+		return Long.valueOf(index.getShardingStrategy().getShardKey(uuidForMonth(month)));
+	}
+
+	public void testServesRepeatListsFromMemory() throws Exception {
+		CountingShardList delegate = new CountingShardList(Lists.newArrayList(shardForMonth(1), shardForMonth(3), shardForMonth(5)));
+		ShardListCache cache = new ShardListCache("ShardListCacheTest", delegate);
+
+		assertEquals(Lists.newArrayList(shardForMonth(1), shardForMonth(3), shardForMonth(5)),
+				cache.getShardIdList(def, indexValues, CObjectOrdering.ASCENDING, null, null));
+		assertEquals(Lists.newArrayList(shardForMonth(5), shardForMonth(3), shardForMonth(1)),
+				cache.getShardIdList(def, indexValues, CObjectOrdering.DESCENDING, null, null));
+		assertEquals(1, delegate.reads.get());
+
+		// Bounds are applied to the cached list the same way the shard index query applies them
+		assertEquals(Lists.newArrayList(shardForMonth(3), shardForMonth(5)),
+				cache.getShardIdList(def, indexValues, CObjectOrdering.ASCENDING, uuidForMonth(2), null));
+		assertEquals(Lists.newArrayList(shardForMonth(3), shardForMonth(1)),
+				cache.getShardIdList(def, indexValues, CObjectOrdering.DESCENDING, null, uuidForMonth(4)));
+		assertEquals(1, delegate.reads.get());
+
+		cache.invalidateAll();
+		cache.getShardIdList(def, indexValues, CObjectOrdering.ASCENDING, null, null);
+		assertEquals(2, delegate.reads.get());
+		cache.shutdown();
+	}
+
+	public void testAddsShardsRecordedLocally() throws Exception {
+		CountingShardList delegate = new CountingShardList(Lists.newArrayList(shardForMonth(1)));
+		ShardListCache cache = new ShardListCache("ShardListCacheTest", delegate);
+		ShardIndexCache shardIndexCache = new ShardIndexCache("ShardListCacheTest");
+		shardIndexCache.setShardListCache(cache);
+
+		cache.getShardIdList(def, indexValues, CObjectOrdering.ASCENDING, null, null);
+		shardIndexCache.markRecorded(
+				CObjectCQLGenerator.makeTableName(def, index),
+				CObjectCQLGenerator.makeIndexValuesString(indexValues.values()),
+				shardForMonth(2));
+		assertEquals(Lists.newArrayList(shardForMonth(1), shardForMonth(2)),
+				cache.getShardIdList(def, indexValues, CObjectOrdering.ASCENDING, null, null));
+		assertEquals(1, delegate.reads.get());
+		cache.shutdown();
+	}
+}
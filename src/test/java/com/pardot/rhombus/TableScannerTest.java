@@ -1,10 +1,23 @@
 package com.pardot.rhombus;
 
+import com.datastax.driver.core.Row;
+import com.google.common.base.Predicate;
+import com.pardot.rhombus.cobject.CObjectTokenVisitor;
 import com.pardot.rhombus.cobject.CObjectTokenVisitorFactory;
 import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
 
 import static org.mockito.Mockito.*;
 
@@ -17,6 +30,7 @@ public class TableScannerTest extends TestCase {
 
 	public void testSimpleRange() {
 		TableScanner scanner = new TableScanner(mockObjectMapper(), "testtype", 2, mockVisitorFactory(), null);
+		scanner.setRangesPerPartition(1);
 		List<Map.Entry<Long, Long>> ranges = scanner.makeRanges();
 		assertEquals(2, ranges.size());
 		assertEquals(Long.valueOf(Long.MIN_VALUE), ranges.get(0).getKey());
@@ -28,6 +42,7 @@ public class TableScannerTest extends TestCase {
 	public void testRanges() {
 		for(int i = 1 ; i < 17 ; i++) {
 			TableScanner scanner = new TableScanner(mockObjectMapper(), "testtype", i, mockVisitorFactory(), null);
+			scanner.setRangesPerPartition(1);
 			List<Map.Entry<Long, Long>> ranges = scanner.makeRanges();
 			assertEquals(i, ranges.size());
 			assertEquals(Long.valueOf(Long.MIN_VALUE), ranges.get(0).getKey());
@@ -41,6 +56,323 @@ public class TableScannerTest extends TestCase {
 		}
 	}
 
+	public void testScanVisitsEveryPageInOrder() throws Exception {
+		for(int prefetchDepth = 0 ; prefetchDepth < 3 ; prefetchDepth++) {
+			ObjectMapper objectMapper = mockObjectMapper();
+			when(objectMapper.scanTableWithStartToken("testtype", Long.MIN_VALUE, Long.MAX_VALUE, 2l)).thenReturn(makePage(1, 2));
+			when(objectMapper.scanTableWithStartId("testtype", "2", Long.MAX_VALUE, 2l)).thenReturn(makePage(3, 4));
+			when(objectMapper.scanTableWithStartId("testtype", "4", Long.MAX_VALUE, 2l)).thenReturn(makePage(5));
+			when(objectMapper.scanTableWithStartId("testtype", "5", Long.MAX_VALUE, 2l)).thenReturn(new ArrayList<Map<String, Object>>());
+
+			final RecordingVisitor visitor = new RecordingVisitor();
+			TableScanner scanner = new TableScanner(objectMapper, "testtype", 1, new CObjectTokenVisitorFactory() {
+				@Override
+				public CObjectTokenVisitor getInstance(String name) {
+					return visitor;
+				}
+			}, null);
+			scanner.setBatchSize(2);
+			scanner.setRangesPerPartition(1);
+			scanner.setPrefetchDepth(prefetchDepth);
+			scanner.scan();
+
+			assertEquals(Arrays.<Object>asList(1, 2, 3, 4, 5), visitor.visited);
+			assertEquals(3, visitor.pagesFinished);
+			assertTrue(visitor.cleanedUp);
+		}
+	}
+
+	public void testNarrowedScanContinuesPastFilteredRows() throws Exception {
+		final List<String> fields = Arrays.asList("data1");
+		final Predicate<Row> rowFilter = new Predicate<Row>() {
+			@Override
+			public boolean apply(Row row) {
+				return false;
+			}
+		};
+		ObjectMapper objectMapper = mockObjectMapper();
+		// The filter rejected every row of the first page, the next page still starts after its last row
+		when(objectMapper.scanTable("testtype", Long.MIN_VALUE, Long.MAX_VALUE, 2l, fields, rowFilter, false)).thenReturn(new TableScanPage(new ArrayList<Map<String, Object>>(), 2, 2));
+		when(objectMapper.scanTable("testtype", "2", Long.MAX_VALUE, 2l, fields, rowFilter, false)).thenReturn(new TableScanPage(makePage(4), 4, 2));
+		when(objectMapper.scanTable("testtype", "4", Long.MAX_VALUE, 2l, fields, rowFilter, false)).thenReturn(new TableScanPage(new ArrayList<Map<String, Object>>(), null, 0));
+
+		final RecordingVisitor visitor = new RecordingVisitor() {
+			@Override
+			public List<String> getSelectedFields() {
+				return fields;
+			}
+
+			@Override
+			public Predicate<Row> getRowFilter() {
+				return rowFilter;
+			}
+		};
+		TableScanner scanner = new TableScanner(objectMapper, "testtype", 1, new CObjectTokenVisitorFactory() {
+			@Override
+			public CObjectTokenVisitor getInstance(String name) {
+				return visitor;
+			}
+		}, null);
+		scanner.setBatchSize(2);
+		scanner.setRangesPerPartition(1);
+		scanner.scan();
+
+		assertEquals(Arrays.<Object>asList(4), visitor.visited);
+		assertEquals(2, visitor.pagesFinished);
+		verify(objectMapper, never()).scanTableWithStartToken(anyString(), anyLong(), anyLong(), anyLong());
+	}
+
+	public void testPassesWriteTimesToVisitorsThatReadThem() throws Exception {
+		ObjectMapper objectMapper = mockObjectMapper();
+		when(objectMapper.scanTable("testtype", Long.MIN_VALUE, Long.MAX_VALUE, 2l, null, null, true)).thenReturn(new TableScanPage(makePage(1, 2), 2, 2, Arrays.asList(10L, null)));
+		when(objectMapper.scanTable("testtype", "2", Long.MAX_VALUE, 2l, null, null, true)).thenReturn(new TableScanPage(new ArrayList<Map<String, Object>>(), null, 0, new ArrayList<Long>()));
+
+		final List<Long> writeTimes = new ArrayList<Long>();
+		final RecordingVisitor visitor = new RecordingVisitor() {
+			@Override
+			public boolean isReadingWriteTimes() {
+				return true;
+			}
+
+			@Override
+			public void visit(Map<String, Object> object, Long writeTime) {
+				writeTimes.add(writeTime);
+				super.visit(object, writeTime);
+			}
+		};
+		TableScanner scanner = new TableScanner(objectMapper, "testtype", 1, new CObjectTokenVisitorFactory() {
+			@Override
+			public CObjectTokenVisitor getInstance(String name) {
+				return visitor;
+			}
+		}, null);
+		scanner.setBatchSize(2);
+		scanner.setRangesPerPartition(1);
+		scanner.scan();
+
+		assertEquals(Arrays.<Object>asList(1, 2), visitor.visited);
+		assertEquals(Arrays.asList(10L, null), writeTimes);
+		verify(objectMapper, never()).scanTableWithStartToken(anyString(), anyLong(), anyLong(), anyLong());
+	}
+
+	public void testDefaultRangesPerPartition() {
+		TableScanner scanner = new TableScanner(mockObjectMapper(), "testtype", 4, mockVisitorFactory(), null);
+		assertEquals(4 * TableScanner.DEFAULT_RANGES_PER_PARTITION, scanner.makeRanges().size());
+	}
+
+	public void testRingRanges() {
+		Map<String, List<Long>> tokensByHost = new HashMap<String, List<Long>>();
+		tokensByHost.put("a", Arrays.asList(-100l, 100l));
+		tokensByHost.put("b", Arrays.asList(0l, 200l));
+		List<Map.Entry<Long, Long>> ranges = TableScanner.makeRingRanges(tokensByHost, 1);
+		assertEquals(5, ranges.size());
+		assertCoversRing(ranges);
+		// No range crosses a token, so each has a single owner
+		for(Map.Entry<Long, Long> range : ranges) {
+			for(Long token : Arrays.asList(-100l, 0l, 100l, 200l)) {
+				assertFalse(range.getKey() <= token && token < range.getValue());
+			}
+		}
+		// Owners alternate so the first ranges handed out are on different hosts
+		assertEquals(Long.valueOf(Long.MIN_VALUE), ranges.get(0).getKey());
+		assertEquals(Long.valueOf(-100l), ranges.get(0).getValue());
+		assertEquals(Long.valueOf(-99l), ranges.get(1).getKey());
+		assertEquals(Long.valueOf(0l), ranges.get(1).getValue());
+	}
+
+	public void testRingRangesAreSplitToMinimum() {
+		Map<String, List<Long>> tokensByHost = new HashMap<String, List<Long>>();
+		tokensByHost.put("a", Arrays.asList(Long.MAX_VALUE / 2));
+		tokensByHost.put("b", Arrays.asList(Long.MAX_VALUE));
+		List<Map.Entry<Long, Long>> ranges = TableScanner.makeRingRanges(tokensByHost, 8);
+		assertEquals(8, ranges.size());
+		assertCoversRing(ranges);
+	}
+
+	public void testRingAlignedFallsBackToEvenRanges() {
+		TableScanner scanner = new TableScanner(mockObjectMapper(), "testtype", 2, mockVisitorFactory(), null);
+		scanner.setRangesPerPartition(1);
+		scanner.setRingAligned(true);
+		assertEquals(TableScanner.makeTokenRanges(2), scanner.makeRanges());
+	}
+
+	private void assertCoversRing(List<Map.Entry<Long, Long>> ranges) {
+		List<Map.Entry<Long, Long>> sorted = new ArrayList<Map.Entry<Long, Long>>(ranges);
+		Collections.sort(sorted, new Comparator<Map.Entry<Long, Long>>() {
+			@Override
+			public int compare(Map.Entry<Long, Long> a, Map.Entry<Long, Long> b) {
+				return a.getKey().compareTo(b.getKey());
+			}
+		});
+		assertEquals(Long.valueOf(Long.MIN_VALUE), sorted.get(0).getKey());
+		for(int i = 1; i < sorted.size(); i++) {
+			assertEquals(Long.valueOf(sorted.get(i - 1).getValue() + 1), sorted.get(i).getKey());
+		}
+		assertEquals(Long.valueOf(Long.MAX_VALUE), sorted.get(sorted.size() - 1).getValue());
+	}
+
+	public void testIdleThreadSplitsSlowRange() throws Exception {
+		ObjectMapper objectMapper = mockObjectMapper();
+		// Pick a first object far enough from the end of its range to leave room for a split
+		int firstId = 0;
+		while(TableScanner.getToken(firstId) > Long.MIN_VALUE / 2) {
+			firstId++;
+		}
+		final List<Map<String, Object>> firstPage = makePage(firstId);
+		long position = TableScanner.getToken(firstId);
+		long mid = position + ((-1l - position) >> 1);
+		// The first range is slow to return its first page, so the other thread runs out of work and asks it to split
+		when(objectMapper.scanTableWithStartToken("testtype", Long.MIN_VALUE, -1l, 2l)).thenAnswer(new Answer<List<Map<String, Object>>>() {
+			@Override
+			public List<Map<String, Object>> answer(InvocationOnMock invocation) throws Throwable {
+				Thread.sleep(500);
+				return firstPage;
+			}
+		});
+		when(objectMapper.scanTableWithStartId("testtype", String.valueOf(firstId), mid, 2l)).thenReturn(makePage(-2));
+		when(objectMapper.scanTableWithStartToken("testtype", mid + 1, -1l, 2l)).thenReturn(makePage(-3));
+		// Read ahead before the split, so it must be thrown away rather than visited twice
+		when(objectMapper.scanTableWithStartId("testtype", String.valueOf(firstId), -1l, 2l)).thenReturn(makePage(-3));
+
+		final List<Object> visited = Collections.synchronizedList(new ArrayList<Object>());
+		TableScanner scanner = new TableScanner(objectMapper, "testtype", 2, new CObjectTokenVisitorFactory() {
+			@Override
+			public CObjectTokenVisitor getInstance(String name) {
+				return new RecordingVisitor(visited);
+			}
+		}, null);
+		scanner.setBatchSize(2);
+		scanner.setRangesPerPartition(1);
+		scanner.scan();
+
+		Collections.sort((List)visited);
+		assertEquals(Arrays.<Object>asList(-3, -2, firstId), visited);
+	}
+
+	public void testResumeSkipsCompletedRanges() throws Exception {
+		File savepointDirectory = new File(FileUtils.getTempDirectory(), "rhombus-table-scanner-test-" + System.nanoTime());
+		try {
+			ObjectMapper objectMapper = mockObjectMapper();
+			when(objectMapper.scanTableWithStartToken("testtype", Long.MIN_VALUE, Long.MAX_VALUE, 2l)).thenReturn(makePage(1));
+			final RecordingVisitor visitor = new RecordingVisitor();
+			CObjectTokenVisitorFactory factory = new CObjectTokenVisitorFactory() {
+				@Override
+				public CObjectTokenVisitor getInstance(String name) {
+					return visitor;
+				}
+			};
+			TableScanner scanner = new TableScanner(objectMapper, "testtype", 1, factory, savepointDirectory.getPath());
+			scanner.setBatchSize(2);
+			scanner.setRangesPerPartition(1);
+			scanner.scan();
+			assertEquals(Arrays.<Object>asList(1), visitor.visited);
+
+			TableScanner resumed = new TableScanner(objectMapper, "testtype", 1, factory, savepointDirectory.getPath());
+			resumed.setBatchSize(2);
+			resumed.scan();
+			assertEquals(Arrays.<Object>asList(1), visitor.visited);
+			verify(objectMapper, times(1)).scanTableWithStartToken(anyString(), anyLong(), anyLong(), anyLong());
+		} finally {
+			FileUtils.deleteDirectory(savepointDirectory);
+		}
+	}
+
+	public void testResumeFromTokenAfterFailure() throws Exception {
+		File savepointDirectory = new File(FileUtils.getTempDirectory(), "rhombus-table-scanner-test-" + System.nanoTime());
+		try {
+			ObjectMapper objectMapper = mockObjectMapper();
+			when(objectMapper.scanTableWithStartToken("testtype", Long.MIN_VALUE, Long.MAX_VALUE, 2l)).thenReturn(makePage(1, 2));
+			when(objectMapper.scanTableWithStartId("testtype", "2", Long.MAX_VALUE, 2l)).thenReturn(makePage(3, 4));
+			final RecordingVisitor failing = new RecordingVisitor() {
+				@Override
+				public void applyAction(Map<String, Object> object) {
+					if(object.get("id").equals(3)) {
+						throw new RuntimeException("visitor failed");
+					}
+					super.applyAction(object);
+				}
+			};
+			TableScanner scanner = new TableScanner(objectMapper, "testtype", 1, new CObjectTokenVisitorFactory() {
+				@Override
+				public CObjectTokenVisitor getInstance(String name) {
+					return failing;
+				}
+			}, savepointDirectory.getPath());
+			scanner.setBatchSize(2);
+			scanner.setRangesPerPartition(1);
+			scanner.setCheckpointPages(1);
+			scanner.scan();
+			assertEquals(Arrays.<Object>asList(1, 2), failing.visited);
+			assertTrue(new File(savepointDirectory, TableScanner.SAVEPOINT_FILENAME).exists());
+
+			// Resumes after the last finished page using the saved token, without looking anything up
+			long resumeToken = TableScanner.getToken(2) + 1;
+			when(objectMapper.scanTableWithStartToken("testtype", resumeToken, Long.MAX_VALUE, 2l)).thenReturn(makePage(3, 4));
+			final RecordingVisitor visitor = new RecordingVisitor();
+			TableScanner resumed = new TableScanner(objectMapper, "testtype", 1, new CObjectTokenVisitorFactory() {
+				@Override
+				public CObjectTokenVisitor getInstance(String name) {
+					return visitor;
+				}
+			}, savepointDirectory.getPath());
+			resumed.setBatchSize(2);
+			resumed.scan();
+			assertEquals(Arrays.<Object>asList(3, 4), visitor.visited);
+			verify(objectMapper, never()).getTokenForId(anyString(), any(UUID.class));
+		} finally {
+			FileUtils.deleteDirectory(savepointDirectory);
+		}
+	}
+
+	private List<Map<String, Object>> makePage(int... ids) {
+		List<Map<String, Object>> page = new ArrayList<Map<String, Object>>();
+		for(int id : ids) {
+			Map<String, Object> object = new HashMap<String, Object>();
+			object.put("id", id);
+			page.add(object);
+		}
+		return page;
+	}
+
+	private static class RecordingVisitor extends CObjectTokenVisitor {
+		private final List<Object> visited;
+		private int pagesFinished = 0;
+		private boolean cleanedUp = false;
+
+		RecordingVisitor() {
+			this(new ArrayList<Object>());
+		}
+
+		RecordingVisitor(List<Object> visited) {
+			super("recording");
+			this.visited = visited;
+		}
+
+		@Override
+		public void applyAction(Map<String, Object> object) {
+			visited.add(object.get("id"));
+		}
+
+		@Override
+		public boolean shouldInclude(Map<String, Object> object) {
+			return true;
+		}
+
+		@Override
+		public void finishPage() {
+			pagesFinished++;
+		}
+
+		@Override
+		public void setUp() {
+		}
+
+		@Override
+		public void cleanUp() {
+			cleanedUp = true;
+		}
+	}
+
 	private ObjectMapper mockObjectMapper() {
 		return mock(ObjectMapper.class);
 	}
@@ -0,0 +1,53 @@
+package com.pardot.rhombus;
+
+import junit.framework.TestCase;
+import org.mockito.ArgumentCaptor;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.*;
+
+/**
+ * Pardot, an ExactTarget company
+ */
+public class UpdateProcessorDaemonTest extends TestCase {
+
+	private UpdateProcessor.RangeProgress mockRange(long cleaned, long failed) {
+		UpdateProcessor.RangeProgress range = mock(UpdateProcessor.RangeProgress.class);
+		when(range.getRowsCleaned()).thenReturn(cleaned);
+		when(range.getRowsFailed()).thenReturn(failed);
+		return range;
+	}
+
+	public void testSweepPublishesBacklogAndLag() throws Exception {
+		UpdateProcessor processor = mock(UpdateProcessor.class);
+		when(processor.processInParallel(anyInt(), anyString(), any(AtomicBoolean.class))).thenReturn(true);
+		List<UpdateProcessor.RangeProgress> ranges = Arrays.asList(mockRange(3, 1), mockRange(2, 0));
+		when(processor.getRangeProgress()).thenReturn(ranges);
+		when(processor.getOldestEligibleUpdate()).thenReturn(System.currentTimeMillis() - 10000L);
+
+		UpdateProcessorDaemon daemon = new UpdateProcessorDaemon(processor, 2, null);
+		assertEquals(0L, daemon.getLagMillis());
+		daemon.sweep();
+		assertEquals(6L, daemon.getBacklog());
+		assertTrue(daemon.getLagMillis() >= 10000L);
+	}
+
+	public void testStartAndShutdown() throws Exception {
+		UpdateProcessor processor = mock(UpdateProcessor.class);
+		UpdateProcessorDaemon daemon = new UpdateProcessorDaemon(processor, 2, null);
+		daemon.start();
+		assertTrue(daemon.isRunning());
+		ArgumentCaptor<AtomicBoolean> stopSignal = ArgumentCaptor.forClass(AtomicBoolean.class);
+		verify(processor, timeout(5000)).processInParallel(eq(2), (String)isNull(), stopSignal.capture());
+		assertFalse(stopSignal.getValue().get());
+		assertTrue(daemon.shutdown(5, TimeUnit.SECONDS));
+		assertFalse(daemon.isRunning());
+		assertTrue(stopSignal.getValue().get());
+	}
+}
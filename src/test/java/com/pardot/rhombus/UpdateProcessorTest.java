@@ -1,14 +1,34 @@
 package com.pardot.rhombus;
 
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.utils.UUIDs;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.pardot.rhombus.cobject.CDefinition;
 import com.pardot.rhombus.cobject.CIndex;
+import com.pardot.rhombus.cobject.CKeyspaceDefinition;
+import com.pardot.rhombus.cobject.IndexUpdateRow;
+import com.pardot.rhombus.cobject.IndexUpdateRowKey;
 import com.pardot.rhombus.helpers.TestHelpers;
 import junit.framework.TestCase;
+import org.mockito.ArgumentCaptor;
 
 import java.io.IOException;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.SortedMap;
+import java.util.UUID;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyList;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 /**
  * Created by rrighter on 4/21/14.
@@ -72,6 +92,51 @@ public class UpdateProcessorTest extends TestCase {
 		assertFalse(subject.TESTareAnyValuesNull(a));
 	}
 
+	public void testProcessRowAsync() throws Exception {
+		String json = TestHelpers.readFileToString(this.getClass(), "CObjectCQLGeneratorTestData.js");
+		CDefinition def = CDefinition.fromJsonString(json);
+		CKeyspaceDefinition keyspaceDefinition = mock(CKeyspaceDefinition.class);
+		Map<String, CDefinition> definitions = Maps.newHashMap();
+		definitions.put("testtype", def);
+		when(keyspaceDefinition.getDefinitions()).thenReturn(definitions);
+		ObjectMapper om = mock(ObjectMapper.class);
+		when(om.getKeyspaceDefinition()).thenReturn(keyspaceDefinition);
+		when(om.deleteObsoleteIndexesAsync(any(IndexUpdateRow.class), anyListOf(CIndex.class), anyList()))
+				.thenReturn(Futures.immediateFuture(Collections.<ResultSet>emptyList()));
+		when(om.deleteObsoleteUpdateIndexColumnsAsync(any(IndexUpdateRowKey.class), anyListOf(UUID.class)))
+				.thenReturn(Futures.<ResultSet>immediateFuture(null));
+
+		SortedMap<String,Object> current = Maps.newTreeMap();
+		current.put("foreignid", 3L);
+		current.put("type", 1);
+		current.put("instance", 2L);
+		SortedMap<String,Object> obsolete = Maps.newTreeMap(current);
+		obsolete.put("instance", 5L);
+		List<UUID> ids = Lists.newArrayList(UUIDs.timeBased(), UUIDs.timeBased(), UUIDs.timeBased());
+		List<UUID> olderIds = Lists.newArrayList(ids.get(1), ids.get(2));
+		IndexUpdateRow row = new IndexUpdateRow("testtype", UUIDs.timeBased(), 0L,
+				Lists.newArrayList(current, obsolete, Maps.newTreeMap(current)), ids);
+
+		Subject subject = new Subject(om);
+		subject.TESTprocessRowAsync(row).get();
+		ArgumentCaptor<List> indexes = ArgumentCaptor.forClass(List.class);
+		ArgumentCaptor<List> values = ArgumentCaptor.forClass(List.class);
+		verify(om).deleteObsoleteIndexesAsync(eq(row), indexes.capture(), values.capture());
+		assertEquals(2, indexes.getValue().size());
+		assertEquals(Lists.newArrayList(obsolete), values.getValue());
+		verify(om).deleteObsoleteUpdateIndexColumnsAsync(row.getRowKey(), olderIds);
+	}
+
+	public void testIsEligible() {
+		Subject subject = new Subject(null);
+		UUID older = UUIDs.startOf(1000L);
+		UUID newer = UUIDs.startOf(5000L);
+		IndexUpdateRow row = new IndexUpdateRow("testtype", UUIDs.timeBased(), 0L,
+				Lists.<SortedMap<String,Object>>newArrayList(), Lists.newArrayList(newer, older));
+		assertTrue(subject.TESTisEligible(row, 2000L));
+		assertFalse(subject.TESTisEligible(row, 1000L));
+	}
+
 
 	private class Subject extends UpdateProcessor {
 
@@ -93,6 +158,16 @@ public class UpdateProcessorTest extends TestCase {
 		{
 			return this.areAnyValuesNull(indexValues);
 		}
+
+		public ListenableFuture<ResultSet> TESTprocessRowAsync(IndexUpdateRow row)
+		{
+			return this.processRowAsync(row);
+		}
+
+		public boolean TESTisEligible(IndexUpdateRow row, long consistencyHorizon)
+		{
+			return this.isEligible(row, consistencyHorizon);
+		}
 	}
 
 
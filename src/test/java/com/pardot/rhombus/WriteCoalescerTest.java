@@ -0,0 +1,137 @@
+package com.pardot.rhombus;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.pardot.rhombus.cobject.CObjectCQLGenerator;
+import com.pardot.rhombus.cobject.async.AsyncStatementExecutor;
+import com.pardot.rhombus.cobject.async.WriteCoalescer;
+import com.pardot.rhombus.cobject.statement.BoundedCQLStatementIterator;
+import com.pardot.rhombus.cobject.statement.CQLStatement;
+import com.pardot.rhombus.cobject.statement.CQLStatementIterator;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.*;
+
+/**
+ * Pardot, an ExactTarget company
+ */
+public class WriteCoalescerTest {
+
+	private AsyncStatementExecutor makeExecutor() {
+		AsyncStatementExecutor executor = mock(AsyncStatementExecutor.class);
+		ListenableFuture<List<Throwable>> success = Futures.immediateFuture(Collections.<Throwable>emptyList());
+		when(executor.executeBatchAsync(anyListOf(CQLStatement.class), anyLong())).thenReturn(success);
+		when(executor.executeAsync(anyListOf(CQLStatementIterator.class), anyLong())).thenReturn(success);
+		return executor;
+	}
+
+	private CQLStatement makeStatement(String table, Object id, Object routingKey) {
+		return CQLStatement.make("INSERT INTO \"ks\".\"" + table + "\" (id) VALUES (?);", table, new Object[]{id}, routingKey);
+	}
+
+	private List<CQLStatementIterator> iterate(CQLStatement... statements) {
+		List<CQLStatementIterator> ret = Lists.newArrayList();
+		ret.add(new BoundedCQLStatementIterator(Lists.newArrayList(statements)));
+		return ret;
+	}
+
+	@Test
+	public void testGroupsStatementsByRoutingKey() throws Exception {
+		AsyncStatementExecutor executor = makeExecutor();
+		WriteCoalescer coalescer = new WriteCoalescer(executor, 60000L, 50, 1000L);
+
+		ListenableFuture<List<Throwable>> first = coalescer.submit(iterate(
+				makeStatement("a", 1, CObjectCQLGenerator.makeRoutingKey("a", 1L, "x")),
+				makeStatement("a", 2, CObjectCQLGenerator.makeRoutingKey("a", 1L, "x")),
+				makeStatement("a", 3, CObjectCQLGenerator.makeRoutingKey("a", 2L, "x"))), "object1");
+		ListenableFuture<List<Throwable>> second = coalescer.submit(iterate(
+				makeStatement("a", 4, CObjectCQLGenerator.makeRoutingKey("a", 1L, "x"))), "object2");
+		assertEquals(4, coalescer.getPendingCount());
+		assertFalse(first.isDone());
+		verifyZeroInteractions(executor);
+
+		coalescer.flush();
+		assertEquals(0, coalescer.getPendingCount());
+		ArgumentCaptor<List> batch = ArgumentCaptor.forClass(List.class);
+		verify(executor, times(1)).executeBatchAsync(batch.capture(), anyLong());
+		assertEquals(3, batch.getValue().size());
+		// The lone statement for the second partition is not wrapped in a batch
+		verify(executor, times(1)).executeAsync(anyListOf(CQLStatementIterator.class), anyLong());
+		assertTrue(first.get().isEmpty());
+		assertTrue(second.get().isEmpty());
+		coalescer.shutdown();
+	}
+
+	@Test
+	public void testSendsFullBatchWithoutWaiting() throws Exception {
+		AsyncStatementExecutor executor = makeExecutor();
+		WriteCoalescer coalescer = new WriteCoalescer(executor, 60000L, 2, 1000L);
+
+		ListenableFuture<List<Throwable>> result = coalescer.submit(iterate(
+				makeStatement("a", 1, CObjectCQLGenerator.makeRoutingKey("a", 1)),
+				makeStatement("a", 2, CObjectCQLGenerator.makeRoutingKey("a", 1)),
+				makeStatement("a", 3, null)));
+		verify(executor, times(1)).executeBatchAsync(anyListOf(CQLStatement.class), anyLong());
+		// Statements without a routing key go straight out
+		verify(executor, times(1)).executeAsync(anyListOf(CQLStatementIterator.class), anyLong());
+		assertEquals(0, coalescer.getPendingCount());
+		assertTrue(result.get().isEmpty());
+		coalescer.shutdown();
+	}
+
+	@Test
+	public void testFlushesWhenWindowCloses() throws Exception {
+		AsyncStatementExecutor executor = makeExecutor();
+		WriteCoalescer coalescer = new WriteCoalescer(executor, 10L, 50, 1000L);
+
+		ListenableFuture<List<Throwable>> result = coalescer.submit(iterate(
+				makeStatement("a", 1, CObjectCQLGenerator.makeRoutingKey("a", 1)),
+				makeStatement("a", 2, CObjectCQLGenerator.makeRoutingKey("a", 1))));
+		assertTrue(result.get(5, TimeUnit.SECONDS).isEmpty());
+		verify(executor, times(1)).executeBatchAsync(anyListOf(CQLStatement.class), anyLong());
+		coalescer.shutdown();
+	}
+
+	@Test
+	public void testDoesNotBatchWritesToTheSameObjectFromDifferentCallers() throws Exception {
+		AsyncStatementExecutor executor = makeExecutor();
+		WriteCoalescer coalescer = new WriteCoalescer(executor, 60000L, 50, 1000L);
+		Object routingKey = CObjectCQLGenerator.makeRoutingKey("a", 1L, "x");
+
+		// Two updates of the same object would get the same write timestamp in one batch
+		coalescer.submit(iterate(makeStatement("a", 1, routingKey), makeStatement("a", 2, routingKey)), "object1");
+		verifyZeroInteractions(executor);
+		coalescer.submit(iterate(makeStatement("a", 3, routingKey), makeStatement("a", 4, routingKey)), "object1");
+		ArgumentCaptor<List> batch = ArgumentCaptor.forClass(List.class);
+		verify(executor, times(1)).executeBatchAsync(batch.capture(), anyLong());
+		assertEquals(2, batch.getValue().size());
+		assertEquals(1, ((CQLStatement)batch.getValue().get(0)).getValues()[0]);
+		assertEquals(2, coalescer.getPendingCount());
+		coalescer.shutdown();
+	}
+
+	@Test
+	public void testDoesNotBatchWritesOfUnknownObjectsFromDifferentCallers() throws Exception {
+		AsyncStatementExecutor executor = makeExecutor();
+		WriteCoalescer coalescer = new WriteCoalescer(executor, 60000L, 50, 1000L);
+		Object routingKey = CObjectCQLGenerator.makeRoutingKey("a", 1L, "x");
+
+		coalescer.submit(iterate(makeStatement("a", 1, routingKey), makeStatement("a", 2, routingKey)), "object1");
+		coalescer.submit(iterate(makeStatement("a", 3, routingKey), makeStatement("a", 4, routingKey)));
+		verify(executor, times(1)).executeBatchAsync(anyListOf(CQLStatement.class), anyLong());
+		// Statements for another object can not join a batch that may hold any object
+		coalescer.submit(iterate(makeStatement("a", 5, routingKey)), "object2");
+		verify(executor, times(2)).executeBatchAsync(anyListOf(CQLStatement.class), anyLong());
+		assertEquals(1, coalescer.getPendingCount());
+		coalescer.shutdown();
+	}
+}
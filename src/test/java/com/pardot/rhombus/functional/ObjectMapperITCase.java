@@ -8,6 +8,7 @@ import com.google.common.collect.Maps;
 import com.pardot.rhombus.ConnectionManager;
 import com.pardot.rhombus.Criteria;
 import com.pardot.rhombus.ObjectMapper;
+import com.pardot.rhombus.WriteResult;
 import com.pardot.rhombus.cobject.*;
 import com.pardot.rhombus.helpers.TestHelpers;
 import com.pardot.rhombus.util.JsonUtil;
@@ -16,6 +17,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
 import static org.junit.Assert.assertEquals;
@@ -226,6 +228,52 @@ public class ObjectMapperITCase extends RhombusFunctionalTest {
 		cm.teardown();
 	}
 
+	@Test
+	public void testAsyncWrites() throws Exception {
+		//Build the connection manager
+		ConnectionManager cm = getConnectionManager();
+
+		//Build our keyspace definition object
+		CKeyspaceDefinition definition = JsonUtil.objectFromJsonResource(CKeyspaceDefinition.class, this.getClass().getClassLoader(), "CKeyspaceTestData.js");
+		assertNotNull(definition);
+
+		//Rebuild the keyspace and get the object mapper
+		cm.buildKeyspace(definition, true);
+		cm.setDefaultKeyspace(definition);
+		ObjectMapper om = cm.getObjectMapper(definition.getName());
+
+		//Insert without waiting
+		Map<String, Object> testObject = JsonUtil.rhombusMapFromJsonMap(TestHelpers.getTestObject(0), definition.getDefinitions().get("testtype"));
+		WriteResult<Object> inserted = om.insertAsync("testtype", testObject).get(10, TimeUnit.SECONDS);
+		assertTrue(inserted.isSuccessful());
+		UUID key = (UUID) inserted.getIds();
+		assertEquals(testObject.get("foreignid"), om.getByKey("testtype", key).get("foreignid"));
+
+		//Update without waiting
+		Map<String, Object> updates = Maps.newHashMap();
+		updates.put("data1", "updated async");
+		WriteResult<UUID> updated = om.updateAsync("testtype", key, updates).get(10, TimeUnit.SECONDS);
+		assertTrue(updated.isSuccessful());
+		assertEquals(key, updated.getIds());
+		assertEquals("updated async", om.getByKey("testtype", key).get("data1"));
+
+		//Batch insert without waiting
+		Map<String, List<Map<String, Object>>> batch = Maps.newHashMap();
+		batch.put("testtype", Lists.<Map<String, Object>>newArrayList(JsonUtil.rhombusMapFromJsonMap(TestHelpers.getTestObject(1), definition.getDefinitions().get("testtype"))));
+		WriteResult<Map<String, List<UUID>>> batchInserted = om.insertBatchMixedAsync(batch).get(10, TimeUnit.SECONDS);
+		assertTrue(batchInserted.isSuccessful());
+		UUID batchKey = batchInserted.getIds().get("testtype").get(0);
+		assertNotNull(om.getByKey("testtype", batchKey));
+
+		//Delete without waiting
+		assertTrue(om.deleteAsync("testtype", key).get(10, TimeUnit.SECONDS).isSuccessful());
+		assertTrue(om.deleteAsync("testtype", batchKey).get(10, TimeUnit.SECONDS).isSuccessful());
+		assertNull(om.getByKey("testtype", key));
+		assertNull(om.getByKey("testtype", batchKey));
+
+		cm.teardown();
+	}
+
 	//This does not test blob or counter types
 	@Test
 	public void testObjectTypes() throws Exception {